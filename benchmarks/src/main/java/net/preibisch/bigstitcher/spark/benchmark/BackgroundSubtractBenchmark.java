@@ -0,0 +1,84 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import net.preibisch.bigstitcher.spark.detection.LazyBackgroundSubtract;
+import net.preibisch.bigstitcher.spark.util.Downsampling;
+
+/**
+ * Background subtraction of one block as used by the interest point detection (--medianFilter).
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" } )
+public class BackgroundSubtractBenchmark
+{
+	@Param( { "5", "10", "20" } )
+	public int radiusXY;
+
+	@Param( { "64", "128" } )
+	public int blockSize;
+
+	Img< UnsignedShortType > img;
+	Interval block;
+
+	@Setup
+	public void setup()
+	{
+		img = new SyntheticViews( 1, new long[] { 256, 256, 64 }, new int[] { 64, 64, 64 }, 0, 42 ).images.get( 0 );
+		block = new FinalInterval( new long[] { 64, 64, 0 }, new long[] { 64 + blockSize - 1, 64 + blockSize - 1, 63 } );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< FloatType > subtractBackground()
+	{
+		// initialized for every block (as in the Spark tasks), so no result is cached across invocations
+		final RandomAccessibleInterval< FloatType > bg =
+				LazyBackgroundSubtract.init( Views.extendMirrorDouble( img ), block, radiusXY, new int[] { blockSize, blockSize, 1 } );
+
+		return Downsampling.copyToArrayImg( bg, new FloatType() );
+	}
+}
@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.type.numeric.real.FloatType;
+import net.preibisch.bigstitcher.spark.fusion.BlendingWeights;
+import net.preibisch.bigstitcher.spark.fusion.TranslationFusion;
+import net.preibisch.mvrecon.process.fusion.transformed.weights.BlendingRealRandomAccessible;
+
+/**
+ * Compares the weighted average fusion of one block from overlapping, translated views using the blending weight
+ * lookup tables ({@link TranslationFusion#accumulate}) with computing the weight of every voxel using the blending
+ * of multiview-reconstruction. All views are placed so that their blending zones cross the block.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" } )
+public class BlendingWeightsBenchmark
+{
+	@Param( { "4", "8" } )
+	public int numViews;
+
+	@Param( { "64", "128" } )
+	public int blockSize;
+
+	final FinalDimensions viewSize = new FinalDimensions( 256, 256, 256 );
+
+	long[] block;
+	long[][] min, max, target;
+	float[][] values;
+
+	@Setup
+	public void setup()
+	{
+		final Random rnd = new Random( 42 );
+
+		block = new long[] { blockSize, blockSize, blockSize };
+		min = new long[ numViews ][ 3 ];
+		max = new long[ numViews ][ 3 ];
+		target = new long[ numViews ][ 3 ];
+		values = new float[ numViews ][];
+
+		for ( int v = 0; v < numViews; ++v )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				// the lower or upper border of the view is inside the block
+				final long border = blockSize / 4 + rnd.nextInt( blockSize / 2 );
+				final long offset = rnd.nextBoolean() ? border : border - viewSize.dimension( d ) + 1;
+
+				min[ v ][ d ] = Math.max( 0, -offset );
+				max[ v ][ d ] = Math.min( viewSize.dimension( d ) - 1, blockSize - 1 - offset );
+				target[ v ][ d ] = min[ v ][ d ] + offset;
+			}
+
+			values[ v ] = new float[ (int)( ( max[ v ][ 0 ] - min[ v ][ 0 ] + 1 ) * ( max[ v ][ 1 ] - min[ v ][ 1 ] + 1 ) * ( max[ v ][ 2 ] - min[ v ][ 2 ] + 1 ) ) ];
+
+			for ( int i = 0; i < values[ v ].length; ++i )
+				values[ v ][ i ] = rnd.nextInt( 4096 );
+		}
+	}
+
+	@Benchmark
+	public float[] lookupTables()
+	{
+		final float[] sum = new float[ blockSize * blockSize * blockSize ];
+		final float[] weights = new float[ sum.length ];
+
+		for ( int v = 0; v < numViews; ++v )
+			TranslationFusion.accumulate( values[ v ], min[ v ], max[ v ], viewSize, sum, weights, block, target[ v ] );
+
+		return normalize( sum, weights );
+	}
+
+	@Benchmark
+	public float[] perVoxelWeights()
+	{
+		final float[] sum = new float[ blockSize * blockSize * blockSize ];
+		final float[] weights = new float[ sum.length ];
+
+		final float[] border = new float[] { BlendingWeights.blendingBorder, BlendingWeights.blendingBorder, BlendingWeights.blendingBorder };
+		final float[] blending = new float[] { BlendingWeights.blendingRange, BlendingWeights.blendingRange, BlendingWeights.blendingRange };
+
+		for ( int v = 0; v < numViews; ++v )
+		{
+			final RealRandomAccess< FloatType > weight =
+					new BlendingRealRandomAccessible( new FinalInterval( viewSize ), border, blending ).realRandomAccess();
+
+			int j = 0;
+
+			for ( long z = min[ v ][ 2 ]; z <= max[ v ][ 2 ]; ++z )
+				for ( long y = min[ v ][ 1 ]; y <= max[ v ][ 1 ]; ++y )
+					for ( long x = min[ v ][ 0 ]; x <= max[ v ][ 0 ]; ++x, ++j )
+					{
+						weight.setPosition( x, 0 );
+						weight.setPosition( y, 1 );
+						weight.setPosition( z, 2 );
+
+						final float w = weight.get().get();
+						final int i = (int)( ( target[ v ][ 2 ] + z - min[ v ][ 2 ] ) * blockSize * blockSize + ( target[ v ][ 1 ] + y - min[ v ][ 1 ] ) * blockSize + target[ v ][ 0 ] + x - min[ v ][ 0 ] );
+
+						sum[ i ] += w * values[ v ][ j ];
+						weights[ i ] += w;
+					}
+		}
+
+		return normalize( sum, weights );
+	}
+
+	private static float[] normalize( final float[] sum, final float[] weights )
+	{
+		for ( int i = 0; i < sum.length; ++i )
+			if ( weights[ i ] > 0 )
+				sum[ i ] /= weights[ i ];
+
+		return sum;
+	}
+
+	public static void main( final String... args ) throws RunnerException
+	{
+		// both paths must fuse the same result
+		final BlendingWeightsBenchmark benchmark = new BlendingWeightsBenchmark();
+		benchmark.numViews = 8;
+		benchmark.blockSize = 64;
+		benchmark.setup();
+
+		final float[] a = benchmark.lookupTables();
+		final float[] b = benchmark.perVoxelWeights();
+
+		double maxDiff = 0;
+		for ( int i = 0; i < a.length; ++i )
+			maxDiff = Math.max( maxDiff, Math.abs( a[ i ] - b[ i ] ) );
+
+		System.out.println( "max difference of the fused intensities (0...4095): " + maxDiff );
+
+		new Runner( new OptionsBuilder().include( BlendingWeightsBenchmark.class.getSimpleName() ).build() ).run();
+	}
+}
@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.preibisch.bigstitcher.spark.detection.CombineInterestPoints;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+
+/**
+ * Combines the interest points of one view detected by many jobs in overlapping areas (KD-tree merge of
+ * detect-interestpoints --overlappingOnly), every job shares a fraction of its points with the previous one.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" } )
+public class CombineInterestPointsBenchmark
+{
+	@Param( { "8", "64" } )
+	public int numJobs;
+
+	@Param( { "1000", "10000" } )
+	public int pointsPerJob;
+
+	final double duplicates = 0.2;
+
+	List< List< InterestPoint > > ipsList;
+
+	@Setup
+	public void setup()
+	{
+		final Random rnd = new Random( 42 );
+
+		ipsList = new ArrayList<>();
+
+		for ( int j = 0; j < numJobs; ++j )
+		{
+			final ArrayList< InterestPoint > ips = new ArrayList<>();
+
+			for ( int i = 0; i < pointsPerJob; ++i )
+			{
+				if ( j > 0 && rnd.nextDouble() < duplicates )
+				{
+					// the same point detected by the previous job, slightly moved
+					final double[] l = ipsList.get( j - 1 ).get( rnd.nextInt( pointsPerJob ) ).getL().clone();
+					for ( int d = 0; d < 3; ++d )
+						l[ d ] += ( rnd.nextDouble() - 0.5 ) * 0.2;
+
+					ips.add( new InterestPoint( i, l ) );
+				}
+				else
+				{
+					ips.add( new InterestPoint( i, new double[] { rnd.nextDouble() * 2048, rnd.nextDouble() * 2048, rnd.nextDouble() * 512 } ) );
+				}
+			}
+
+			ipsList.add( ips );
+		}
+	}
+
+	@Benchmark
+	public List< InterestPoint > combine()
+	{
+		final ArrayList< InterestPoint > combined = new ArrayList<>();
+
+		CombineInterestPoints.combine( ipsList, null, true, 0.5, combined, new ArrayList<>() );
+
+		return combined;
+	}
+}
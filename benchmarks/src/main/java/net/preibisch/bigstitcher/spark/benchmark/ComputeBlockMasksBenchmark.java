@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.preibisch.bigstitcher.spark.fusion.GenerateComputeBlockMasks;
+
+/**
+ * Computes the masks of one block (affine-fusion --masks) for a varying number of overlapping views.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" } )
+public class ComputeBlockMasksBenchmark
+{
+	@Param( { "1", "4", "8" } )
+	public int numViews;
+
+	@Param( { "64", "128" } )
+	public int blockSize;
+
+	SyntheticViews views;
+	long[][] gridBlock;
+
+	@Setup
+	public void setup()
+	{
+		views = new SyntheticViews( numViews, new long[] { 256, 256, 256 }, new int[] { 64, 64, 64 }, 32, 42 );
+
+		// a block in the center of the output, which all views overlap
+		gridBlock = new long[][] { new long[ 3 ], { blockSize, blockSize, blockSize }, new long[ 3 ] };
+
+		for ( int d = 0; d < 3; ++d )
+			gridBlock[ 0 ][ d ] = ( views.bbMax[ d ] - views.bbMin[ d ] + 1 - blockSize ) / 2;
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval< ? > masks()
+	{
+		return new GenerateComputeBlockMasks(
+				views.data,
+				views.registrations,
+				views.viewIds,
+				views.bbMin,
+				views.bbMax,
+				false,
+				false,
+				new double[ 3 ] ).call( gridBlock );
+	}
+}
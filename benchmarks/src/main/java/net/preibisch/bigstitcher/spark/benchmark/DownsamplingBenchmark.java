@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.preibisch.mvrecon.process.n5api.N5ApiTools;
+import net.preibisch.mvrecon.process.n5api.N5ApiTools.MultiResolutionLevelInfo;
+
+/**
+ * Downsamples one block of s0 into s1 of an uncompressed N5 in a temporary directory
+ * (N5ApiTools.writeDownsampledBlock, as used by affine-fusion and resave for the pyramid levels).
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" } )
+public class DownsamplingBenchmark
+{
+	@Param( { "2,2,1", "2,2,2" } )
+	public String downsampling;
+
+	@Param( { "64", "128" } )
+	public int blockSize;
+
+	N5Writer n5;
+	MultiResolutionLevelInfo[] mrInfo;
+	long[][] gridBlock;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		n5 = new N5FSWriter( Files.createTempDirectory( "bigstitcher-spark-benchmark" ).resolve( "data.n5" ).toString() );
+
+		final int[] ds = Arrays.stream( downsampling.split( "," ) ).mapToInt( Integer::parseInt ).toArray();
+		final int[] cellSize = new int[] { blockSize, blockSize, blockSize };
+		final long[] dimensions = new long[] { 4 * blockSize, 4 * blockSize, 4 * blockSize };
+
+		mrInfo = N5ApiTools.setupMultiResolutionPyramid(
+				n5,
+				level -> "s" + level,
+				DataType.UINT16,
+				dimensions,
+				new RawCompression(),
+				cellSize,
+				new int[][] { { 1, 1, 1 }, ds } );
+
+		N5Utils.saveRegion( new SyntheticViews( 1, dimensions, cellSize, 0, 42 ).images.get( 0 ), n5, mrInfo[ 0 ].dataset );
+
+		// one block of s1
+		gridBlock = new long[][] { new long[ 3 ], { blockSize, blockSize, blockSize }, new long[ 3 ] };
+	}
+
+	@Benchmark
+	public void downsampleBlock()
+	{
+		N5ApiTools.writeDownsampledBlock( n5, mrInfo[ 1 ], mrInfo[ 0 ], gridBlock );
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		n5.remove();
+		n5.close();
+	}
+}
@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.preibisch.bigstitcher.spark.util.ViewUtil;
+
+/**
+ * Finds the input cells of all views that are needed to fuse one block (ViewUtil.findOverlappingBlocks, used for
+ * prefetching), for rotated views so that the exact test of the transformed cells is exercised.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" } )
+public class OverlappingBlocksBenchmark
+{
+	@Param( { "4", "16" } )
+	public int numViews;
+
+	@Param( { "32", "64" } )
+	public int cellSize;
+
+	@Param( { "128", "512" } )
+	public int blockSize;
+
+	SyntheticViews views;
+	Interval fusedBlock;
+
+	@Setup
+	public void setup()
+	{
+		views = new SyntheticViews( numViews, new long[] { 256, 256, 128 }, new int[] { cellSize, cellSize, cellSize }, 32, 42 );
+
+		// rotate all views around the z-axis
+		for ( final ViewId viewId : views.viewIds )
+		{
+			final AffineTransform3D rotation = new AffineTransform3D();
+			rotation.rotate( 2, Math.toRadians( 10 + viewId.getViewSetupId() ) );
+			views.registrations.get( viewId ).preConcatenate( rotation );
+		}
+
+		final long[] min = new long[] { -blockSize / 2, -blockSize / 2, 0 };
+		final long[] max = new long[] { blockSize / 2 - 1, blockSize / 2 - 1, 63 };
+		fusedBlock = new FinalInterval( min, max );
+	}
+
+	@Benchmark
+	public int findOverlappingBlocks()
+	{
+		int numCells = 0;
+
+		for ( final ViewId viewId : views.viewIds )
+			numCells += ViewUtil.findOverlappingBlocks( views.data, viewId, views.registrations.get( viewId ), fusedBlock, 1 ).size();
+
+		return numCells;
+	}
+}
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.serializer.JavaSerializer;
+import org.apache.spark.serializer.KryoSerializer;
+import org.apache.spark.serializer.SerializerInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.preibisch.bigstitcher.spark.util.Spark;
+import net.preibisch.legacy.mpicbg.PointMatchGeneric;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.MatcherPairwiseTools.MatchingTask;
+import scala.Tuple2;
+import scala.reflect.ClassTag;
+import scala.reflect.ClassTag$;
+
+/**
+ * Serializes and deserializes typical RDD payloads with the Java and the Kryo serializer (configured like the
+ * commands do, see Spark.conf()): the grid blocks of a fusion (long[][] {offset, size, gridOffset}) and the point
+ * matches that SparkGeometricDescriptorMatching collects. The serialized size is printed during setup.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = { "-Xms4g", "-Xmx4g" } )
+public class SerializationBenchmark
+{
+	@Param( { "java", "kryo" } )
+	public String serializer;
+
+	@Param( { "gridBlocks", "pointMatches" } )
+	public String payload;
+
+	final ClassTag< Object > tag = ClassTag$.MODULE$.apply( Object.class );
+
+	SerializerInstance instance;
+	Object data;
+
+	@Setup
+	public void setup()
+	{
+		final SparkConf conf = Spark.conf( "SerializationBenchmark", false, serializer.equals( "kryo" ) );
+
+		instance = serializer.equals( "kryo" ) ? new KryoSerializer( conf ).newInstance() : new JavaSerializer( conf ).newInstance();
+		data = payload.equals( "gridBlocks" ) ? gridBlocks( 32, 32, 16, 128 ) : pointMatches( 64, 2000 );
+
+		System.out.println( "\n" + serializer + ", " + payload + ": " + instance.serialize( data, tag ).remaining() + " bytes" );
+	}
+
+	@Benchmark
+	public Object roundtrip()
+	{
+		final ByteBuffer buffer = instance.serialize( data, tag );
+		return instance.deserialize( buffer, tag );
+	}
+
+	protected static ArrayList< long[][] > gridBlocks( final int nx, final int ny, final int nz, final long blockSize )
+	{
+		final ArrayList< long[][] > grid = new ArrayList<>();
+
+		for ( int z = 0; z < nz; ++z )
+			for ( int y = 0; y < ny; ++y )
+				for ( int x = 0; x < nx; ++x )
+					grid.add( new long[][] {
+						{ x * blockSize, y * blockSize, z * blockSize },
+						{ blockSize, blockSize, blockSize },
+						{ x, y, z } } );
+
+		return grid;
+	}
+
+	protected static ArrayList< ArrayList< Tuple2< ArrayList< PointMatchGeneric< InterestPoint > >, MatchingTask< ViewId > > > > pointMatches( final int numPairs, final int matchesPerPair )
+	{
+		final Random rnd = new Random( 42 );
+		final ArrayList< ArrayList< Tuple2< ArrayList< PointMatchGeneric< InterestPoint > >, MatchingTask< ViewId > > > > results = new ArrayList<>();
+
+		for ( int p = 0; p < numPairs; ++p )
+		{
+			final ArrayList< PointMatchGeneric< InterestPoint > > matches = new ArrayList<>();
+
+			for ( int i = 0; i < matchesPerPair; ++i )
+				matches.add( new PointMatchGeneric<>(
+						new InterestPoint( i, new double[] { rnd.nextDouble() * 2048, rnd.nextDouble() * 2048, rnd.nextDouble() * 512 } ),
+						new InterestPoint( i, new double[] { rnd.nextDouble() * 2048, rnd.nextDouble() * 2048, rnd.nextDouble() * 512 } ) ) );
+
+			final ArrayList< Tuple2< ArrayList< PointMatchGeneric< InterestPoint > >, MatchingTask< ViewId > > > task = new ArrayList<>();
+			task.add( new Tuple2<>( matches, new MatchingTask<>( new ViewId( 0, p ), new ViewId( 0, p + 1 ), "beads", "beads" ) ) );
+			results.add( task );
+		}
+
+		return results;
+	}
+}
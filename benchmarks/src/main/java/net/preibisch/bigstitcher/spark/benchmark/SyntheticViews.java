@@ -0,0 +1,216 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.benchmark;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.Angle;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.SequenceDescription;
+import mpicbg.spim.data.sequence.SetupImgLoader;
+import mpicbg.spim.data.sequence.Tile;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBoxes;
+import net.preibisch.mvrecon.fiji.spimdata.intensityadjust.IntensityAdjustments;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPoints;
+import net.preibisch.mvrecon.fiji.spimdata.pointspreadfunctions.PointSpreadFunctions;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
+
+/**
+ * A reproducible in-memory dataset for the benchmarks: views of one timepoint and channel with a noisy background
+ * and bright spots, stored as cell images and translated by random (sub-pixel) shifts so that all of them overlap
+ * the region around the origin.
+ */
+public class SyntheticViews
+{
+	public final SpimData2 data;
+	public final ArrayList< ViewId > viewIds = new ArrayList<>();
+	public final HashMap< ViewId, AffineTransform3D > registrations = new HashMap<>();
+	public final HashMap< Integer, Img< UnsignedShortType > > images = new HashMap<>();
+
+	// the bounding box of all transformed views
+	public final long[] bbMin = new long[ 3 ];
+	public final long[] bbMax = new long[ 3 ];
+
+	/**
+	 * @param numViews - the number of views
+	 * @param viewSize - the size of each view
+	 * @param cellSize - the cell size of the images
+	 * @param maxShift - the maximal shift of a view from the origin in each dimension
+	 * @param seed - the seed of the random content and shifts
+	 */
+	public SyntheticViews( final int numViews, final long[] viewSize, final int[] cellSize, final double maxShift, final long seed )
+	{
+		final Random rnd = new Random( seed );
+
+		final HashMap< Integer, ViewSetup > setups = new HashMap<>();
+		final HashMap< ViewId, ViewRegistration > viewRegistrations = new HashMap<>();
+		final VoxelDimensions voxelSize = new FinalVoxelDimensions( "px", 1, 1, 1 );
+
+		Arrays.fill( bbMin, Long.MAX_VALUE );
+		Arrays.fill( bbMax, Long.MIN_VALUE );
+
+		for ( int setupId = 0; setupId < numViews; ++setupId )
+		{
+			final ViewId viewId = new ViewId( 0, setupId );
+
+			setups.put( setupId, new ViewSetup( setupId, "setup " + setupId, new FinalDimensions( viewSize ), voxelSize, new Tile( setupId ), new Channel( 0 ), new Angle( 0 ), new Illumination( 0 ) ) );
+			images.put( setupId, image( viewSize, cellSize, rnd ) );
+
+			final AffineTransform3D model = new AffineTransform3D();
+			model.translate( ( rnd.nextDouble() * 2 - 1 ) * maxShift, ( rnd.nextDouble() * 2 - 1 ) * maxShift, ( rnd.nextDouble() * 2 - 1 ) * maxShift );
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				bbMin[ d ] = Math.min( bbMin[ d ], (long)Math.floor( model.get( d, 3 ) ) );
+				bbMax[ d ] = Math.max( bbMax[ d ], (long)Math.ceil( model.get( d, 3 ) + viewSize[ d ] - 1 ) );
+			}
+
+			viewIds.add( viewId );
+			registrations.put( viewId, model );
+			viewRegistrations.put( viewId, new ViewRegistration( 0, setupId, model ) );
+		}
+
+		final ArrayList< TimePoint > timepoints = new ArrayList<>();
+		timepoints.add( new TimePoint( 0 ) );
+
+		final SequenceDescription sd = new SequenceDescription( new TimePoints( timepoints ), setups, new MemoryImgLoader( images ), null );
+
+		this.data = new SpimData2(
+				URI.create( "file:/tmp/" ),
+				sd,
+				new ViewRegistrations( viewRegistrations ),
+				new ViewInterestPoints(),
+				new BoundingBoxes(),
+				new PointSpreadFunctions(),
+				new StitchingResults(),
+				new IntensityAdjustments() );
+	}
+
+	/**
+	 * @return a noisy background (100 +/- 10) with 1 spot of 3x3x3 voxels per 8^3 voxels on average
+	 */
+	protected static Img< UnsignedShortType > image( final long[] size, final int[] cellSize, final Random rnd )
+	{
+		final Img< UnsignedShortType > img = new CellImgFactory<>( new UnsignedShortType(), cellSize ).create( size );
+
+		final Cursor< UnsignedShortType > cursor = img.cursor();
+		while ( cursor.hasNext() )
+			cursor.next().set( 90 + rnd.nextInt( 21 ) );
+
+		final RandomAccess< UnsignedShortType > ra = img.randomAccess();
+		final long numSpots = ( size[ 0 ] * size[ 1 ] * size[ 2 ] ) / 512;
+		final long[] pos = new long[ 3 ];
+
+		for ( long i = 0; i < numSpots; ++i )
+		{
+			for ( int d = 0; d < 3; ++d )
+				pos[ d ] = 1 + (long)( rnd.nextDouble() * ( size[ d ] - 2 ) );
+
+			for ( int z = -1; z <= 1; ++z )
+				for ( int y = -1; y <= 1; ++y )
+					for ( int x = -1; x <= 1; ++x )
+					{
+						ra.setPosition( new long[] { pos[ 0 ] + x, pos[ 1 ] + y, pos[ 2 ] + z } );
+						ra.get().set( 2000 - 300 * ( Math.abs( x ) + Math.abs( y ) + Math.abs( z ) ) );
+					}
+		}
+
+		return img;
+	}
+
+	public static class MemoryImgLoader implements ImgLoader
+	{
+		final HashMap< Integer, Img< UnsignedShortType > > images;
+
+		public MemoryImgLoader( final HashMap< Integer, Img< UnsignedShortType > > images )
+		{
+			this.images = images;
+		}
+
+		@Override
+		public SetupImgLoader< UnsignedShortType > getSetupImgLoader( final int setupId )
+		{
+			final Img< UnsignedShortType > img = images.get( setupId );
+
+			return new SetupImgLoader< UnsignedShortType >()
+			{
+				@Override
+				public RandomAccessibleInterval< UnsignedShortType > getImage( final int timepointId, final ImgLoaderHint... hints )
+				{
+					return img;
+				}
+
+				@Override
+				public UnsignedShortType getImageType()
+				{
+					return new UnsignedShortType();
+				}
+
+				@Override
+				public RandomAccessibleInterval< FloatType > getFloatImage( final int timepointId, final boolean normalize, final ImgLoaderHint... hints )
+				{
+					final float scale = normalize ? 1.0f / 65535 : 1.0f;
+					return Converters.convert( (RandomAccessibleInterval< UnsignedShortType >)img, ( i, o ) -> o.set( i.get() * scale ), new FloatType() );
+				}
+
+				@Override
+				public Dimensions getImageSize( final int timepointId )
+				{
+					return img;
+				}
+
+				@Override
+				public VoxelDimensions getVoxelSize( final int timepointId )
+				{
+					return new FinalVoxelDimensions( "px", 1, 1, 1 );
+				}
+			};
+		}
+	}
+}
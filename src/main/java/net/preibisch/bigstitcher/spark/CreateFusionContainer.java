@@ -19,6 +19,8 @@ import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer;
 import org.janelia.saalfeldlab.n5.universe.StorageFormat;
 import org.janelia.saalfeldlab.n5.universe.metadata.ome.ngff.v04.OmeNgffMultiScaleMetadata;
 
+import com.google.gson.JsonElement;
+
 import bdv.util.MipmapTransforms;
 import mpicbg.spim.data.SpimDataException;
 import mpicbg.spim.data.sequence.Angle;
@@ -40,6 +42,7 @@ import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractBasic;
 import net.preibisch.bigstitcher.spark.util.Downsampling;
 import net.preibisch.bigstitcher.spark.util.Import;
 import net.preibisch.bigstitcher.spark.util.N5Util;
+import net.preibisch.bigstitcher.spark.util.ShardedZarr;
 import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
@@ -84,6 +87,10 @@ public class CreateFusionContainer extends AbstractBasic implements Callable<Voi
 	@Option(names = "--blockSize", description = "blockSize (default: 128,128,128)")
 	private String blockSizeString = "128,128,128";
 
+	@Option(names = "--shardScale", description = "write a sharded OME-ZARR (Zarr v3), each shard holds this many blocks and is written as a single object, "
+			+ "e.g. 4,4,4 means for blockSize 128,128,128 that each shard is 512,512,512 (only for -s ZARR without --bdv, compression Zstandard, Gzip or Raw; default: no sharding)")
+	private String shardScaleString = null;
+
 	@Option(names = {"-d", "--dataType"}, defaultValue = "FLOAT32", showDefaultValue = CommandLine.Help.Visibility.ALWAYS,
 			description = "Data type, UINT8 [0...255], UINT16 [0...65535] and FLOAT32 are supported, when choosing UINT8 or UINT16 you must define min and max intensity (default: FLOAT32)")
 	private DataTypeFusion dataTypeFusion = null;
@@ -212,6 +219,33 @@ public class CreateFusionContainer extends AbstractBasic implements Callable<Voi
 
 		final int[] blockSize = Import.csvStringToIntArray( blockSizeString );
 
+		final int[] shardSize;
+
+		if ( shardScaleString != null )
+		{
+			if ( storageType != StorageFormat.ZARR || bdv )
+			{
+				System.out.println( "Sharding is only supported for OME-ZARR (-s ZARR) without --bdv." );
+				return null;
+			}
+
+			if ( !ShardedZarr.supports( this.compression ) )
+			{
+				System.out.println( "Sharding only supports the compressions Zstandard, Gzip and Raw, but -c " + this.compression );
+				return null;
+			}
+
+			final int[] shardScale = Import.csvStringToIntArray( shardScaleString );
+			shardSize = new int[ 3 ];
+			Arrays.setAll( shardSize, d -> blockSize[ d ] * shardScale[ d ] );
+
+			System.out.println( "Sharded OME-ZARR (Zarr v3) with shard size " + Util.printCoordinates( shardSize ) );
+		}
+		else
+		{
+			shardSize = null;
+		}
+
 		System.out.println( "Fusion target: " + boundingBox.getTitle() + ": " + Util.printInterval( boundingBox ) + " with blocksize " + Util.printCoordinates( blockSize ) );
 
 		// compression and data type
@@ -387,6 +421,22 @@ public class CreateFusionContainer extends AbstractBasic implements Callable<Voi
 			// for this to work you need to register an adapter in the N5Factory class
 			// final GsonBuilder builder = new GsonBuilder().registerTypeAdapter( CoordinateTransformation.class, new CoordinateTransformationAdapter() );
 			driverVolumeWriter.setAttribute( "/", "multiscales", meta );
+
+			// the arrays are written as Zarr v3 with sharding, the Zarr v2 metadata of the root group remains for BigStitcher-Spark
+			if ( shardSize != null )
+			{
+				final int level = compressionLevel == null ? ShardedZarr.defaultLevel( this.compression ) : compressionLevel;
+
+				for ( final MultiResolutionLevelInfo mrInfoLevel : mrInfo )
+					ShardedZarr.createArray(
+							new ShardedZarr.Array( outPathURI, mrInfoLevel.dataset, mrInfoLevel.dimensions, blockSize, shardSize, dt, this.compression, level ) );
+
+				ShardedZarr.createRootGroup( outPathURI, driverVolumeWriter.getAttribute( "/", "multiscales", JsonElement.class ) );
+
+				driverVolumeWriter.setAttribute( "/", ShardedZarr.SHARD_SIZE_ATTRIBUTE, shardSize );
+				driverVolumeWriter.setAttribute( "/", ShardedZarr.CODEC_ATTRIBUTE, this.compression );
+				driverVolumeWriter.setAttribute( "/", ShardedZarr.CODEC_LEVEL_ATTRIBUTE, level );
+			}
 		}
 
 		if ( bdv )
@@ -21,20 +21,25 @@
  */
 package net.preibisch.bigstitcher.spark;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.VoidFunction;
+import org.apache.spark.broadcast.Broadcast;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
@@ -43,16 +48,19 @@ import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.universe.StorageFormat;
 
 import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.SequenceDescription;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealUnsignedByteConverter;
 import net.imglib2.converter.RealUnsignedShortConverter;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.Type;
@@ -63,25 +71,41 @@ import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
+import net.preibisch.bigstitcher.spark.CreateFusionContainer.Compressions;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractInfrastructure;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractSelectableViews;
+import net.preibisch.bigstitcher.spark.fusion.BlockCostModel;
+import net.preibisch.bigstitcher.spark.fusion.FusionPlan;
 import net.preibisch.bigstitcher.spark.fusion.GenerateComputeBlockMasks;
 import net.preibisch.bigstitcher.spark.fusion.OverlappingBlocks;
 import net.preibisch.bigstitcher.spark.fusion.OverlappingViews;
+import net.preibisch.bigstitcher.spark.fusion.PrefetchService;
+import net.preibisch.bigstitcher.spark.fusion.TranslationFusion;
+import net.preibisch.bigstitcher.spark.fusion.ViewBoundsIndex;
+import net.preibisch.bigstitcher.spark.util.BlockLedger;
+import net.preibisch.bigstitcher.spark.util.BlockManifest;
+import net.preibisch.bigstitcher.spark.util.BlockManifestAccumulator;
+import net.preibisch.bigstitcher.spark.util.BlockPipeline;
+import net.preibisch.bigstitcher.spark.util.BlockPlanner;
+import net.preibisch.bigstitcher.spark.util.Downsampling;
+import net.preibisch.bigstitcher.spark.util.GridOrdering;
 import net.preibisch.bigstitcher.spark.util.Import;
+import net.preibisch.bigstitcher.spark.util.IntensityRange;
 import net.preibisch.bigstitcher.spark.util.N5Util;
+import net.preibisch.bigstitcher.spark.util.ProgressListener;
+import net.preibisch.bigstitcher.spark.util.RunMetrics;
+import net.preibisch.bigstitcher.spark.util.ShardedZarr;
 import net.preibisch.bigstitcher.spark.util.Spark;
 import net.preibisch.mvrecon.fiji.plugin.fusion.FusionGUI.FusionType;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
 import net.preibisch.mvrecon.process.fusion.blk.BlkAffineFusion;
-import net.preibisch.mvrecon.process.fusion.transformed.TransformVirtual;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import net.preibisch.mvrecon.process.n5api.N5ApiTools;
 import net.preibisch.mvrecon.process.n5api.N5ApiTools.MultiResolutionLevelInfo;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
-import util.Grid;
+import scala.Tuple2;
 import util.URITools;
 
 public class SparkAffineFusion extends AbstractInfrastructure implements Callable<Void>, Serializable
@@ -141,9 +165,45 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 	@Option(names = { "-vi" }, description = "specifically list the view ids (time point, view setup) that should be fused into a single image, e.g. -vi '0,0' -vi '0,1' (default: all view ids)")
 	protected String[] vi = null;
 
-	@Option(names = { "--prefetch" }, description = "prefetch all blocks required for fusion in each Spark job using unlimited threads, useful in cloud environments (default: false)")
+	@Option(names = { "--prefetch" }, description = "prefetch all blocks required for fusion in each Spark job using a pool shared by all tasks of an executor, useful in cloud environments (default: false)")
 	protected boolean prefetch = false;
 
+	@Option(names = { "--prefetchThreads" }, description = "maximal number of threads per executor that prefetch blocks (default: 32)")
+	protected int prefetchThreads = 32;
+
+	@Option(names = { "--prefetchMemory" }, description = "maximal amount of prefetched data in MB held per executor (default: 2048)")
+	protected long prefetchMemory = 2048;
+
+	@Option(names = { "--singleJob" }, description = "fuse all channels and timepoints in a single Spark job (and one job per pyramid level) instead of one job per 3D volume, blocks of the same region of different volumes are processed together (default: false)")
+	protected boolean singleJob = false;
+
+	@Option(names = { "--resume" }, description = "record the completed blocks in a ledger inside the container and resume an interrupted fusion into the same container, skipping all blocks and pyramid levels that were completed according to the ledger; the interrupted run must have been started with --resume as well and the XML, bounding box, data type and intensity range must match (default: false)")
+	protected boolean resume = false;
+
+	@Option(names = { "--blockPlan" }, description = "path of a JSON block plan; with --dryRun the plan is written there, otherwise the blocks and costs of a previously written plan are used instead of estimating them again")
+	protected String blockPlan = null;
+
+	@Option(names = { "--computeThreads" }, description = "number of threads per Spark task that fuse the output blocks of a compute block, with 1 the Spark task fuses them itself while its I/O threads write the previous ones (default: 1)")
+	protected int computeThreads = 1;
+
+	@Option(names = { "--ioThreads" }, description = "number of threads per Spark task that compress and write output blocks while the next ones are fused, pooled by all tasks of an executor (default: 2)")
+	protected int ioThreads = 2;
+
+	@Option(names = { "--maxQueuedBlocks" }, description = "maximal number of output blocks per Spark task that are fused but not yet written (default: 4)")
+	protected int maxQueuedBlocks = 4;
+
+	@Option(names = { "--translationTolerance" }, description = "blocks where all views are translations of the output grid by whole pixels, up to this many pixels, are fused with a fast path that copies and blends the input arrays instead of interpolating (averaging fusion only); a negative value disables the fast path (default: 0.001)")
+	protected double translationTolerance = 0.001;
+
+	@Option(names = { "--estimateIntensityRange" }, description = "for UINT8/UINT16 fusion, estimate the intensity range from the histograms of a low resolution level of the input views before fusing and store it in the container, replaces a previously stored range (default: false)")
+	protected boolean estimateIntensityRange = false;
+
+	@Option(names = { "--intensityPercentiles" }, description = "lower and upper percentile of the input intensities that are mapped to the min and max intensity with --estimateIntensityRange (default: 0.1,99.9)")
+	protected String intensityPercentiles = "0.1,99.9";
+
+	@Option(names = { "--fusedPyramid" }, description = "compute the multiresolution pyramid in the same pass as s0, each compute block (enlarged to cover whole downsampling footprints) is fused once and downsampled in memory; only the remaining coarse levels are computed from storage, which roughly halves the I/O (default: false)")
+	protected boolean fusedPyramid = false;
+
 	URI outPathURI = null;
 	/**
 	 * Prefetching now works with a Executors.newCachedThreadPool();
@@ -155,12 +215,6 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 	{
 		this.setRegion();
 
-		if (dryRun)
-		{
-			System.out.println( "dry-run not supported for affine fusion.");
-			return null;
-		}
-
 		if ( firstTileWins && firstTileWinsInverse )
 		{
 			System.out.println( "You can only choose one of the two firstTileWins or firstTileWinsInverse.");
@@ -254,6 +308,9 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 
 		final DataType dataType = driverVolumeWriter.getAttribute( "/", "Bigstitcher-Spark/DataType", DataType.class );
 
+		// sharded OME-ZARR (Zarr v3), each compute block is one shard
+		final int[] shardSize = storageType == StorageFormat.ZARR ? driverVolumeWriter.getAttribute( "/", ShardedZarr.SHARD_SIZE_ATTRIBUTE, int[].class ) : null;
+
 		final long[] orig_bbMin = driverVolumeWriter.getAttribute( "/", "Bigstitcher-Spark/Boundingbox_min", long[].class );
 		if ( !Double.isNaN( anisotropyFactor ) )
 			orig_bbMin[ 2 ] = Math.round( Math.floor( orig_bbMin[ 2 ] * anisotropyFactor ) );
@@ -269,6 +326,9 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 		System.out.println( "blockSize: " + Arrays.toString( blockSize ) );
 		System.out.println( "dataType: " + dataType );
 
+		if ( shardSize != null )
+			System.out.println( "shardSize: " + Arrays.toString( shardSize ) );
+
 		double minI = Double.NaN, maxI = Double.NaN;
 		try
 		{
@@ -280,12 +340,6 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 			System.out.println( "Min/Max intensity not stored." );
 		}
 
-		final double minIntensity = minI;
-		final double maxIntensity = maxI;
-
-		System.out.println( "minIntensity: " + minI );
-		System.out.println( "maxIntensity: " + maxI );
-
 		final MultiResolutionLevelInfo[][] mrInfos =
 				driverVolumeWriter.getAttribute( "/", "Bigstitcher-Spark/MultiResolutionInfos", MultiResolutionLevelInfo[][].class );
 
@@ -298,6 +352,9 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 		if ( dataGlobal == null )
 			return null;
 
+		// lets the executors share one instance of the XML across all their tasks
+		final long xmlHash = Spark.contentHash( dataGlobal );
+
 		final ArrayList< ViewId > viewIdsGlobal;
 
 		if (
@@ -323,13 +380,6 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 		System.out.println( "Fusing: " + boundingBox.getTitle() + ": " + Util.printInterval( boundingBox ) +
 				" with blocksize " + Util.printCoordinates( blockSize ) + " and " + Util.printCoordinates( blocksPerJob ) + " blocks per job" );
 
-		if ( dataType == DataType.UINT8 )
-			System.out.println( "Fusing to UINT8, min intensity = " + minIntensity + ", max intensity = " + maxIntensity );
-		else if ( dataType == DataType.UINT16 )
-			System.out.println( "Fusing to UINT16, min intensity = " + minIntensity + ", max intensity = " + maxIntensity );
-		else
-			System.out.println( "Fusing to FLOAT32" );
-
 		//
 		// final variables for Spark
 		//
@@ -344,13 +394,90 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 		}
 		catch (Exception e ) {}
 
-		final SparkConf conf = new SparkConf().setAppName("AffineFusion");
+		final SparkConf conf = sparkConf( "AffineFusion" );
+
+		// a dry-run only computes the plan on the driver
+		final JavaSparkContext sc;
+		final RunMetrics metrics;
+		final FusionPlan plan;
+
+		if ( dryRun )
+		{
+			sc = null;
+			metrics = null;
+			plan = new FusionPlan( bbMin, bbMax );
+
+			System.out.println( "Dry-run: computing the block plan (no pixels are loaded or written)." );
+		}
+		else
+		{
+			sc = new JavaSparkContext(conf);
+			sc.setLogLevel("ERROR");
+
+			metrics = new RunMetrics( sc, "SparkAffineFusion" );
+			registerProgressListener( sc );
+
+			plan = blockPlan == null ? null : FusionPlan.load( blockPlan );
+
+			if ( plan != null )
+				System.out.println( "Loaded block plan '" + blockPlan + "' with " + plan.blocks.size() + " non-empty block(s)." );
+		}
+
+		if ( estimateIntensityRange && !dryRun && ( dataType == DataType.UINT8 || dataType == DataType.UINT16 ) )
+		{
+			final double[] percentiles = Import.csvStringToDoubleArray( intensityPercentiles );
+			final HashMap< Integer, double[] > ranges =
+					IntensityRange.estimate( sc, xmlURI, xmlHash, dataGlobal, viewIdsGlobal, percentiles[ 0 ], percentiles[ 1 ] );
+
+			// the global range covers all channels, each channel is fused with its own range (see below)
+			final List< Channel > channels = dataGlobal.getSequenceDescription().getAllChannelsOrdered();
+			final double[] channelMin = new double[ channels.size() ];
+			final double[] channelMax = new double[ channels.size() ];
+
+			minI = Double.MAX_VALUE;
+			maxI = -Double.MAX_VALUE;
+
+			for ( int c = 0; c < channels.size(); ++c )
+			{
+				final double[] range = ranges.get( channels.get( c ).getId() );
 
-		if (localSparkBindAddress)
-			conf.set("spark.driver.bindAddress", "127.0.0.1");
+				channelMin[ c ] = range == null ? Double.NaN : range[ 0 ];
+				channelMax[ c ] = range == null ? Double.NaN : range[ 1 ];
 
-		final JavaSparkContext sc = new JavaSparkContext(conf);
-		sc.setLogLevel("ERROR");
+				if ( range != null )
+				{
+					minI = Math.min( minI, range[ 0 ] );
+					maxI = Math.max( maxI, range[ 1 ] );
+				}
+			}
+
+			if ( ranges.isEmpty() )
+				throw new IllegalStateException( "Could not estimate the intensity range, no views to fuse." );
+
+			driverVolumeWriter.setAttribute( "/", "Bigstitcher-Spark/MinIntensity", minI );
+			driverVolumeWriter.setAttribute( "/", "Bigstitcher-Spark/MaxIntensity", maxI );
+			driverVolumeWriter.setAttribute( "/", "Bigstitcher-Spark/ChannelMinIntensity", channelMin );
+			driverVolumeWriter.setAttribute( "/", "Bigstitcher-Spark/ChannelMaxIntensity", channelMax );
+		}
+
+		final double minIntensity = minI;
+		final double maxIntensity = maxI;
+
+		// per-channel ranges (stored by --estimateIntensityRange), channels without one use the global range
+		double[] channelMinI = null, channelMaxI = null;
+		try
+		{
+			channelMinI = driverVolumeWriter.getAttribute( "/", "Bigstitcher-Spark/ChannelMinIntensity", double[].class );
+			channelMaxI = driverVolumeWriter.getAttribute( "/", "Bigstitcher-Spark/ChannelMaxIntensity", double[].class );
+		}
+		catch ( Exception e ) {}
+
+		if ( dataType == DataType.UINT8 )
+			System.out.println( "Fusing to UINT8, min intensity = " + minIntensity + ", max intensity = " + maxIntensity );
+		else if ( dataType == DataType.UINT16 )
+			System.out.println( "Fusing to UINT16, min intensity = " + minIntensity + ", max intensity = " + maxIntensity );
+		else
+			System.out.println( "Fusing to FLOAT32" );
 
 		final SequenceDescription sd = dataGlobal.getSequenceDescription();
 
@@ -365,6 +492,9 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 
 		final long totalTime = System.currentTimeMillis();
 
+		// only used if all volumes are fused in a single Spark job
+		final ArrayList< FusionVolume > volumes = new ArrayList<>();
+
 		for ( int c = 0; c < numChannels; ++c )
 			for ( int t = 0; t < numTimepoints; ++t )
 			{
@@ -388,6 +518,13 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 					System.out.println( "Fusing " + viewIds.size() + " views for this 3D volume ... " );
 
 				viewIds.forEach( vd -> System.out.println( Group.pvid( vd ) ) );
+
+				final double channelMinIntensity = channelIntensity( channelMinI, cIndex, minIntensity );
+				final double channelMaxIntensity = channelIntensity( channelMaxI, cIndex, maxIntensity );
+
+				if ( dataType == DataType.UINT8 || dataType == DataType.UINT16 )
+					System.out.println( "Channel " + cIndex + ": min intensity = " + channelMinIntensity + ", max intensity = " + channelMaxIntensity );
+
 				final MultiResolutionLevelInfo[] mrInfo;
 
 				if ( storageType == StorageFormat.ZARR )
@@ -396,38 +533,120 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 					mrInfo = mrInfos[ cIndex + tIndex*numChannels ];
 
 				// using bigger blocksizes than being stored for efficiency (needed for very large datasets)
-				final int[] computeBlockSize = new int[ 3 ];
-				Arrays.setAll( computeBlockSize, d -> blockSize[ d ] * blocksPerJob[ d ] );
-				final List<long[][]> grid = Grid.create(dimensions,
-						computeBlockSize,
-						blockSize);
+				final int[] requestedComputeBlockSize = new int[ 3 ];
+				Arrays.setAll( requestedComputeBlockSize, d -> blockSize[ d ] * blocksPerJob[ d ] );
+
+				// in fused-pyramid mode the compute blocks cover whole blocks of all levels that are downsampled in memory
+				final int inMemoryLevels;
+				final int[] computeBlockSize;
+
+				if ( shardSize != null )
+				{
+					// a Spark task always writes whole shards with a single PUT
+					inMemoryLevels = 0;
+					computeBlockSize = shardSize.clone();
+
+					System.out.println( "Sharded output: the compute blocksize is the shard size " + Util.printCoordinates( computeBlockSize ) +
+							( fusedPyramid || !Arrays.equals( requestedComputeBlockSize, computeBlockSize ) ? ", ignoring --blockScale and --fusedPyramid." : "." ) );
+				}
+				else if ( fusedPyramid )
+				{
+					final int[][] absoluteDownsamplings = new int[ mrInfo.length ][];
+					Arrays.setAll( absoluteDownsamplings, level -> mrInfo[ level ].absoluteDownsampling );
+
+					inMemoryLevels = Downsampling.numInMemoryLevels( absoluteDownsamplings, blockSize, requestedComputeBlockSize );
+					computeBlockSize = Downsampling.alignComputeBlockSize( absoluteDownsamplings[ inMemoryLevels ], blockSize, requestedComputeBlockSize );
+
+					System.out.println( "Fused pyramid: computing s0-s" + inMemoryLevels + " in one pass with compute blocksize " + Util.printCoordinates( computeBlockSize ) +
+							", " + ( mrInfo.length - 1 - inMemoryLevels ) + " remaining level(s) will be downsampled from storage." );
+				}
+				else
+				{
+					inMemoryLevels = 0;
+					computeBlockSize = requestedComputeBlockSize;
+				}
+				// the compute blocks follow the chunk (or shard) grid of the dataset, each chunk has a single writer
+				final List<long[][]> grid =
+						BlockPlanner.forLevel( driverVolumeWriter, mrInfo[ 0 ], blockSize, shardSize ).plan( computeBlockSize );
 
 				System.out.println( "numJobs = " + grid.size() );
 
 				//driverVolumeWriter.setAttribute( n5Dataset, "offset", minBB );
 
-				final JavaRDD<long[][]> rdd = sc.parallelize( grid, Math.min( Spark.maxPartitions, grid.size() ) );
+				// transformed bounding boxes of all views, computed once
+				final ViewBoundsIndex index = new ViewBoundsIndex( dataGlobal, viewIds );
+
+				// estimates the cost of each block (on the driver) unless it is planned already, blocks that no view overlaps are not submitted
+				final IdentityHashMap< long[][], Double > costs = new IdentityHashMap<>();
+
+				if ( !dryRun && plan != null && plan.matches( bbMin, bbMax, cIndex, tIndex, computeBlockSize ) )
+				{
+					grid.forEach( gridBlock -> costs.put( gridBlock, plan.cost( cIndex, tIndex, gridBlock ) ) );
+				}
+				else
+				{
+					if ( !dryRun && plan != null )
+						System.out.println( "Block plan does not match channel " + cIndex + ", timepoint " + tIndex + " (bounding box or compute blocksize differ), estimating costs." );
+
+					final BlockCostModel costModel = new BlockCostModel( index, orig_bbMin, 2 );
+					grid.forEach( gridBlock -> costs.put( gridBlock, costModel.cost( gridBlock ) ) );
+				}
+
+				if ( dryRun )
+				{
+					plan.plan( dataGlobal, index, grid, costs, orig_bbMin, cIndex, tIndex, computeBlockSize, bytesPerPixel( dataType ), pyramidFactor( mrInfo ) );
+					continue;
+				}
+
+				final Broadcast< ViewBoundsIndex > viewBoundsIndex = sc.broadcast( index );
+
+				// blocks that turned out to be empty when fusing, they are not written (collected per task, one manifest per level)
+				final long[][] levelDimensions = new long[ inMemoryLevels + 1 ][];
+				final int[][] levelDownsampling = new int[ inMemoryLevels + 1 ][];
+				Arrays.setAll( levelDimensions, level -> dimensions3d( mrInfo[ level ] ) );
+				Arrays.setAll( levelDownsampling, level -> mrInfo[ level ].absoluteDownsampling );
+
+				final BlockManifestAccumulator emptyBlocks = new BlockManifestAccumulator( levelDimensions, levelDownsampling, blockSize );
+				sc.sc().register( emptyBlocks, "empty blocks c" + cIndex + " t" + tIndex );
+
+				// chunks that an earlier fusion wrote into this dataset are deleted wherever the output is empty now
+				final boolean overwrite = markFused( driverVolumeWriter, mrInfo[ 0 ].dataset, cIndex, tIndex );
+
+				if ( overwrite )
+					System.out.println( "Channel " + cIndex + ", timepoint " + tIndex + " was fused into this container before, deleting the chunks of all empty blocks." );
 
-				long time = System.currentTimeMillis();
+				// ledger of the completed blocks of each level, allows to resume an interrupted run
+				// (only written if the user wants to resume, a volume fused with different parameters is fused from scratch)
+				final boolean resumeVolume = BlockLedger.prepare( driverVolumeWriter, resume, cIndex, tIndex,
+						BlockLedger.parameters( xmlHash, bbMin, bbMax, dataType, channelMinIntensity, channelMaxIntensity, inMemoryLevels ) );
+				final BlockLedger[] ledgers = new BlockLedger[ mrInfo.length ];
+				Arrays.setAll( ledgers, level -> new BlockLedger( outPathURI, storageType, cIndex, tIndex, level, dimensions3d( mrInfo[ level ] ), blockSize, resume ) );
+				final BlockLedger ledger = ledgers[ 0 ];
 
-				rdd.foreach(
+				final ShardedZarr.Array[] shards;
+
+				if ( shardSize != null )
+				{
+					final Compressions codec = driverVolumeWriter.getAttribute( "/", ShardedZarr.CODEC_ATTRIBUTE, Compressions.class );
+					final int codecLevel = driverVolumeWriter.getAttribute( "/", ShardedZarr.CODEC_LEVEL_ATTRIBUTE, int.class );
+
+					shards = new ShardedZarr.Array[ mrInfo.length ];
+					Arrays.setAll( shards, level -> new ShardedZarr.Array( outPathURI, mrInfo[ level ].dataset, mrInfo[ level ].dimensions, blockSize, shardSize, dataType, codec, codecLevel ) );
+				}
+				else
+				{
+					shards = null;
+				}
+
+				final VoidFunction< long[][] > fuseBlock =
 						gridBlock ->
 						{
-							final SpimData2 dataLocal = Spark.getSparkJobSpimData2(xmlURI);
+							final long blockTime = System.nanoTime();
 
-							final HashMap< ViewId, AffineTransform3D > registrations =
-									TransformVirtual.adjustAllTransforms(
-											viewIds,
-											dataLocal.getViewRegistrations().getViewRegistrations(),
-											anisotropyFactor,
-											Double.NaN );
+							final SpimData2 dataLocal = metrics.loadXml( () -> Spark.getSparkJobSpimData2( xmlURI, xmlHash ) );
 
-							final HashMap< ViewId, AffineTransform3D > orig_registrations =
-									TransformVirtual.adjustAllTransforms(
-											viewIds,
-											dataLocal.getViewRegistrations().getViewRegistrations(),
-											Double.NaN,
-											Double.NaN );
+							final HashMap< ViewId, AffineTransform3D > registrations = metrics.loadXml( () ->
+									Spark.getSparkJobRegistrations( xmlURI, xmlHash, viewIds, anisotropyFactor, Double.NaN ) );
 
 							final Converter conv;
 							final Type type;
@@ -435,14 +654,14 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 
 							if ( dataType == DataType.UINT8 )
 							{
-								conv = new RealUnsignedByteConverter<>( minIntensity, maxIntensity );
+								conv = new RealUnsignedByteConverter<>( channelMinIntensity, channelMaxIntensity );
 								type = new UnsignedByteType();
 								uint8 = true;
 								uint16 = false;
 							}
 							else if ( dataType == DataType.UINT16 )
 							{
-								conv = new RealUnsignedShortConverter<>( minIntensity, maxIntensity );
+								conv = new RealUnsignedShortConverter<>( channelMinIntensity, channelMaxIntensity );
 								type = new UnsignedShortType();
 								uint8 = false;
 								uint16 = true;
@@ -463,7 +682,6 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 							// The size of the block that this job renders (in pixels)
 							final long[] superBlockSize = gridBlock[ 1 ];
 
-							//TODO: prefetchExecutor!!
 							final long[] fusedBlockMin = new long[ n ];
 							final long[] fusedBlockMax = new long[ n ];
 							final Interval fusedBlock = FinalInterval.wrap( fusedBlockMin, fusedBlockMax );
@@ -473,18 +691,30 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 							Arrays.setAll( fusedBlockMax, d -> superBlockOffset[ d ] + superBlockSize[ d ] - 1 );
 
 							final List< ViewId > overlappingViews =
-									OverlappingViews.findOverlappingViews( dataLocal, viewIds, orig_registrations, fusedBlock );
+									OverlappingViews.findOverlappingViews( viewBoundsIndex.value(), fusedBlock );
 
 							if ( overlappingViews.size() == 0 )
+							{
+								if ( overwrite )
+									deleteComputeBlock( outPathURI, storageType, mrInfo, shards, inMemoryLevels, gridBlock, blockSize, cIndex, tIndex );
+
+								emptyBlocks.add( gridBlock );
+								metrics.emptyBlocks( 1 );
+								ledger.completed( gridBlock );
 								return;
+							}
 
-							final RandomAccessibleInterval img;
+							// fuses a block { offset, size } of the output (zero-min)
+							final Function< long[][], RandomAccessibleInterval > fuse;
+
+							// holds the prefetched input cells until the output of this block is computed
+							PrefetchService.Handle prefetched = null;
 
 							if ( masks )
 							{
 								System.out.println( "Creating masks for block: offset=" + Util.printCoordinates( gridBlock[0] ) + ", dimension=" + Util.printCoordinates( gridBlock[1] ) );
 
-								img = Views.zeroMin(
+								final RandomAccessibleInterval img = Views.zeroMin(
 										new GenerateComputeBlockMasks(
 												dataLocal,
 												registrations,
@@ -494,27 +724,35 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 												uint8,
 												uint16,
 												maskOff ).call( gridBlock ) );
+
+								fuse = block -> Views.offsetInterval( img, block[ 0 ], block[ 1 ] );
 							}
 							else
 							{
 								//
 								// PREFETCHING, TODO: should be part of BlkAffineFusion.init
 								//
-								final OverlappingBlocks overlappingBlocks = OverlappingBlocks.find( dataLocal, overlappingViews, fusedBlock );
+								final OverlappingBlocks overlappingBlocks = OverlappingBlocks.find( dataLocal, viewBoundsIndex.value(), fusedBlock );
 								if ( overlappingBlocks.overlappingViews().isEmpty() )
+								{
+									if ( overwrite )
+										deleteComputeBlock( outPathURI, storageType, mrInfo, shards, inMemoryLevels, gridBlock, blockSize, cIndex, tIndex );
+
+									emptyBlocks.add( gridBlock );
+									metrics.emptyBlocks( 1 );
+									ledger.completed( gridBlock );
 									return;
+								}
+
+								metrics.input( overlappingBlocks.numPrefetchBlocks(), overlappingBlocks.estimatedBytes() );
 
 								if ( prefetch )
 								{
 									System.out.println( "Prefetching: " + overlappingBlocks.numPrefetchBlocks() + " block(s) from " + overlappingBlocks.overlappingViews().size() + " overlapping view(s) in the input data." );
 
-									final ExecutorService prefetchExecutor = Executors.newCachedThreadPool();
-									overlappingBlocks.prefetch(prefetchExecutor);
-									prefetchExecutor.shutdown();
+									prefetched = overlappingBlocks.prefetch( PrefetchService.getInstance( prefetchThreads, prefetchMemory * 1024 * 1024 ) );
 								}
 
-								System.out.println( "Fusing block: offset=" + Util.printCoordinates( gridBlock[0] ) + ", dimension=" + Util.printCoordinates( gridBlock[1] ) );
-
 								final FusionType fusionType;
 
 								if ( firstTileWins )
@@ -524,138 +762,906 @@ public class SparkAffineFusion extends AbstractInfrastructure implements Callabl
 								else
 									fusionType = FusionType.AVG_BLEND;
 
-								// returns a zero-min interval
-								img = BlkAffineFusion.init(
-										conv,
-										dataLocal.getSequenceDescription().getImgLoader(),
-										viewIds,
-										registrations,
-										dataLocal.getSequenceDescription().getViewDescriptions(),
-										fusionType,//fusion.getFusionType(),
-										1, // linear interpolation
-										null, // intensity correction
-										new BoundingBox( new FinalInterval( bbMin, bbMax ) ),
-										(RealType & NativeType)type,
-										blockSize );
-							}
+								// views that are translations of the output grid are fused by copying and blending the input arrays
+								final Map< ViewId, long[] > translations =
+										fusionType == FusionType.AVG_BLEND && translationTolerance >= 0 ?
+												TranslationFusion.translations(
+														dataLocal.getSequenceDescription().getViewDescriptions(),
+														registrations,
+														overlappingBlocks.overlappingViews(),
+														bbMin,
+														translationTolerance ) : null;
+
+								if ( translations != null )
+								{
+									System.out.println( "Fusing block (translations only): offset=" + Util.printCoordinates( gridBlock[0] ) + ", dimension=" + Util.printCoordinates( gridBlock[1] ) );
+
+									fuse = block ->
+									{
+										final RandomAccessibleInterval< FloatType > fused =
+												TranslationFusion.fuse(
+														dataLocal.getSequenceDescription().getImgLoader(),
+														dataLocal.getSequenceDescription().getViewDescriptions(),
+														translations,
+														block[ 0 ],
+														block[ 1 ] );
+
+										return conv == null ? fused : Converters.convert( (RandomAccessibleInterval)fused, conv, (Type)type );
+									};
+								}
+								else
+								{
+									System.out.println( "Fusing block: offset=" + Util.printCoordinates( gridBlock[0] ) + ", dimension=" + Util.printCoordinates( gridBlock[1] ) );
 
-							final long[] blockOffset, blockSizeExport, gridOffset;
+									// returns a zero-min interval
+									final RandomAccessibleInterval img = BlkAffineFusion.init(
+											conv,
+											dataLocal.getSequenceDescription().getImgLoader(),
+											viewIds,
+											registrations,
+											dataLocal.getSequenceDescription().getViewDescriptions(),
+											fusionType,//fusion.getFusionType(),
+											1, // linear interpolation
+											null, // intensity correction
+											new BoundingBox( new FinalInterval( bbMin, bbMax ) ),
+											(RealType & NativeType)type,
+											blockSize );
+
+									fuse = block -> Views.offsetInterval( img, block[ 0 ], block[ 1 ] );
+								}
+							}
 
-							final RandomAccessible image;
+							// everything this block holds is released in the finally, also if the attempt fails
+							N5Writer driverVolumeWriterLocal = null;
+							boolean completed = false;
 
-							// 5D OME-ZARR CONTAINER
-							if ( storageType == StorageFormat.ZARR )
+							try
 							{
-								// gridBlock is 3d, make it 5d
-								blockOffset = new long[] { gridBlock[0][0], gridBlock[0][1], gridBlock[0][2], cIndex, tIndex };
-								blockSizeExport = new long[] { gridBlock[1][0], gridBlock[1][1], gridBlock[1][2], 1, 1 };
-								gridOffset = new long[] { gridBlock[2][0], gridBlock[2][1], gridBlock[2][2], cIndex, tIndex }; // because blocksize in C & T is 1
-
-								// img is 3d, make it 5d
-								// the same information is returned no matter which index is queried in C and T
-								image = Views.addDimension( Views.addDimension( img ) );
+								// fuse s0 once, all following levels that are computed in memory are downsampled from the previous one,
+								// without such levels each output block is fused into its own image and written directly
+								RandomAccessibleInterval levelBlock = inMemoryLevels == 0 ? null : new ArrayImgFactory<>( (NativeType)type ).create( gridBlock[ 1 ] );
+
+								driverVolumeWriterLocal = N5Util.acquireN5Writer( outPathURI, storageType );
+
+								// the output blocks are encoded into the shard by the io threads, which is written once all are done
+								final ShardedZarr.ShardWriter shard = shards == null ? null : new ShardedZarr.ShardWriter( shards[ 0 ], gridBlock[ 0 ], cIndex, tIndex );
+
+								// the output blocks are fused by the compute threads while the previous ones are compressed and written
+								try ( final BlockPipeline pipeline = new BlockPipeline( computeThreads, ioThreads, maxQueuedBlocks ) )
+								{
+									for ( int level = 0; level <= inMemoryLevels; ++level )
+									{
+										if ( level > 0 )
+										{
+											levelBlock = Downsampling.downsampleInMemory( levelBlock, mrInfo[ level ].relativeDownsampling, (RealType & NativeType)type, blockSize );
+
+											// the block is too small for this level (can happen at the border)
+											if ( levelBlock == null )
+												break;
+										}
+
+										final long[][] levelGridBlock = new long[ 3 ][ 3 ];
+										for ( int d = 0; d < 3; ++d )
+										{
+											levelGridBlock[ 0 ][ d ] = gridBlock[ 0 ][ d ] / mrInfo[ level ].absoluteDownsampling[ d ];
+											levelGridBlock[ 1 ][ d ] = level == 0 ? gridBlock[ 1 ][ d ] : levelBlock.dimension( d );
+											levelGridBlock[ 2 ][ d ] = levelGridBlock[ 0 ][ d ] / blockSize[ d ];
+										}
+
+										final long nonEmptyBlocks = saveBlocks(
+												pipeline, level == 0 ? fuse : null, levelBlock, (NativeType)type, levelGridBlock, level, blockSize,
+												driverVolumeWriterLocal, mrInfo[ level ].dataset, storageType, cIndex, tIndex, shard, emptyBlocks, overwrite, metrics );
+
+										// all background, nothing to downsample (the whole block is recorded in the block manifests of all levels)
+										if ( level == 0 && nonEmptyBlocks == 0 )
+										{
+											if ( overwrite )
+												deleteBlocks( driverVolumeWriterLocal, mrInfo, 1, inMemoryLevels, gridBlock, blockSize, storageType, cIndex, tIndex );
+
+											emptyBlocks.add( gridBlock );
+											break;
+										}
+									}
+
+									// all output blocks are fused, the input cells are not needed while they are written
+									pipeline.awaitComputed();
+
+									if ( prefetched != null )
+										prefetched.close();
+
+									pipeline.await();
+								}
+
+								if ( shard != null )
+									writeShard( shard, overwrite, metrics );
+
+								ledger.completed( gridBlock );
+								completed = true;
+
+								metrics.block( gridBlock, overlappingViews.size(), System.nanoTime() - blockTime );
 							}
-							else
+							finally
 							{
-								blockOffset = gridBlock[0];
-								blockSizeExport = gridBlock[1];
-								gridOffset = gridBlock[2];
+								if ( driverVolumeWriterLocal != null )
+									N5Util.releaseN5Writer( driverVolumeWriterLocal );
+
+								if ( prefetched != null )
+									prefetched.close();
 
-								image = img;
+								// the attempt fails with this block, keep what it completed so far
+								if ( !completed )
+									ledger.failed();
 							}
+						};
+
+				final FusionVolume volume =
+						new FusionVolume( cIndex, tIndex, mrInfo, shards, inMemoryLevels, computeBlockSize, grid, costs, emptyBlocks, overwrite, ledgers, resumeVolume, fuseBlock );
+
+				// all volumes are processed together after the loop
+				if ( singleJob )
+					volumes.add( volume );
+				else
+					fuse( sc, Arrays.asList( volume ), driverVolumeWriter, outPathURI, storageType, blockSize, metrics );
+			}
+
+		if ( singleJob && !dryRun )
+			fuse( sc, volumes, driverVolumeWriter, outPathURI, storageType, blockSize, metrics );
+
+		if ( dryRun )
+		{
+			plan.printSummary();
+
+			if ( blockPlan != null )
+			{
+				plan.save( blockPlan );
+				System.out.println( "Saved block plan to '" + blockPlan + "'." );
+			}
+		}
+
+		// close main writer (is shared over Spark-threads if it's HDF5, thus just closing it here)
+		driverVolumeWriter.close();
+
+		/*
+		if ( multiRes )
+			System.out.println( "Saved, e.g. view with './n5-view -i " + n5PathURI + " -d " + n5Dataset.substring( 0, n5Dataset.length() - 3) + "'" );
+		else
+			System.out.println( "Saved, e.g. view with './n5-view -i " + n5PathURI + " -d " + n5Dataset + "'" );
+		*/
+
+		System.out.println( "done, took: " + (System.currentTimeMillis() - totalTime ) + " ms." );
+
+		if ( sc != null )
+		{
+			saveRunReport( metrics );
+			sc.close();
+		}
+
+		// writers that the Spark tasks shared in this JVM (local mode)
+		N5Util.closeSharedWriters();
+
+		return null;
+	}
+
+	/**
+	 * Fuses volumes (channels and timepoints) in a single Spark job, followed by one Spark job per pyramid level
+	 * across all volumes. The blocks are ordered so that the same spatial region of all volumes is adjacent and thus
+	 * usually ends up in the same partition, where it benefits from the same cached input data. When resuming, blocks
+	 * and levels that are complete according to the ledger are skipped.
+	 */
+	protected static void fuse(
+			final JavaSparkContext sc,
+			final List< FusionVolume > volumes,
+			final N5Writer driverVolumeWriter,
+			final URI outPathURI,
+			final StorageFormat storageType,
+			final int[] blockSize,
+			final RunMetrics metrics )
+	{
+		final ArrayList< Tuple2< Integer, long[][] > > blocks = new ArrayList<>();
+
+		// the stages of a single volume are named after it
+		final String volumeName = volumes.size() == 1 ? " c" + volumes.get( 0 ).cIndex + " t" + volumes.get( 0 ).tIndex : "";
+		final boolean[] s0Complete = new boolean[ volumes.size() ];
+
+		for ( int i = 0; i < volumes.size(); ++i )
+		{
+			final FusionVolume volume = volumes.get( i );
+
+			s0Complete[ i ] = volume.resume && volume.ledgers[ 0 ].isComplete( driverVolumeWriter );
+
+			if ( s0Complete[ i ] )
+			{
+				System.out.println( "Full resolution of channel " + volume.cIndex + ", timepoint " + volume.tIndex + " is complete, skipping." );
+				continue;
+			}
+
+			for ( final long[][] gridBlock : pendingBlocks( volume.grid, volume.resume ? volume.ledgers[ 0 ].load( driverVolumeWriter ) : null ) )
+				blocks.add( new Tuple2<>( i, gridBlock ) );
+		}
+
+		System.out.println( "\nFusing " + volumes.size() + " volume(s) in a single job, numJobs = " + blocks.size() );
+
+		final ArrayList< VoidFunction< long[][] > > fuseBlocks = new ArrayList<>();
+		volumes.forEach( volume -> fuseBlocks.add( volume.fuseBlock ) );
+
+		long time = System.currentTimeMillis();
 
-							final Interval block =
-									Intervals.translate(
-											new FinalInterval( blockSizeExport ),
-											blockOffset );
+		ProgressListener.stage( sc, "fusion s0" + volumeName, blocks.stream().filter( block -> volumes.get( block._1() ).cost( block._2() ) > 0 ).count() );
 
-							final RandomAccessibleInterval source =
-									Views.interval( image, block );
+		// the same block of all volumes stays together, blocks that no view overlaps are dropped (unless their chunks must be deleted)
+		final JavaRDD< Tuple2< Integer, long[][] > > rdd =
+				GridOrdering.parallelize( sc, blocks, Tuple2::_2, block -> volumes.get( block._1() ).cost( block._2() ) );
 
-							final RandomAccessibleInterval sourceGridBlock =
-									Views.offsetInterval(source, blockOffset, blockSizeExport);
+		rdd.foreach( block -> fuseBlocks.get( block._1() ).call( block._2() ) );
 
-							final N5Writer driverVolumeWriterLocal = N5Util.createN5Writer( outPathURI, storageType );
+		System.out.println( new Date( System.currentTimeMillis() ) + ": Saved full resolution, took: " + (System.currentTimeMillis() - time ) + " ms." );
+		metrics.stage( "s0" + volumeName, System.currentTimeMillis() - time );
 
-							// TODO: is this multithreaded??
-							// TODO: should we catch the N5 exception and throw a general one?
-							N5Utils.saveBlock(sourceGridBlock, driverVolumeWriterLocal, mrInfo[ 0 ].dataset, gridOffset );
+		final ArrayList< BlockManifest[] > manifests = new ArrayList<>();
 
-							if ( N5Util.sharedHDF5Writer == null )
-								driverVolumeWriterLocal.close();
-						} );
+		for ( int i = 0; i < volumes.size(); ++i )
+		{
+			final FusionVolume volume = volumes.get( i );
+
+			if ( s0Complete[ i ] )
+			{
+				final BlockManifest[] loaded = new BlockManifest[ volume.mrInfo.length ];
+
+				for ( int level = 0; level <= volume.inMemoryLevels; ++level )
+					loaded[ level ] = loadManifest( driverVolumeWriter, volume.mrInfo, level, blockSize, volume.cIndex, volume.tIndex );
+
+				manifests.add( loaded );
+			}
+			else
+			{
+				manifests.add( emptyBlockManifests( volume.mrInfo, volume.grid, volume.costs, volume.emptyBlocks ) );
+				saveManifests( driverVolumeWriter, volume.mrInfo, manifests.get( i ), 0, volume.inMemoryLevels, volume.cIndex, volume.tIndex );
+				volume.ledgers[ 0 ].setComplete( driverVolumeWriter );
+			}
+		}
+
+		//
+		// save multiresolution pyramid (s1 ... sN) of all volumes, one job per level
+		//
+		final int numLevels = volumes.stream().mapToInt( volume -> volume.mrInfo.length ).max().getAsInt();
 
-				System.out.println( new Date( System.currentTimeMillis() ) + ": Saved full resolution, took: " + (System.currentTimeMillis() - time ) + " ms." );
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			final ArrayList< Tuple2< Integer, long[][] > > allBlocks = new ArrayList<>();
+			final HashMap< Integer, VoidFunction< long[][] > > downsampleBlocks = new HashMap<>();
+
+			for ( int i = 0; i < volumes.size(); ++i )
+			{
+				final FusionVolume volume = volumes.get( i );
+
+				// computed in memory or not existing
+				if ( level <= volume.inMemoryLevels || level >= volume.mrInfo.length )
+					continue;
 
-				//
-				// save multiresolution pyramid (s1 ... sN)
-				//
-				for ( int level = 1; level < mrInfo.length; ++level )
+				if ( volume.resume && volume.ledgers[ level ].isComplete( driverVolumeWriter ) )
 				{
-					final int s = level;
+					System.out.println( "Level s" + level + " of channel " + volume.cIndex + ", timepoint " + volume.tIndex + " is complete, skipping." );
+					manifests.get( i )[ level ] = loadManifest( driverVolumeWriter, volume.mrInfo, level, blockSize, volume.cIndex, volume.tIndex );
+					continue;
+				}
 
-					final List<long[][]> allBlocks = Grid.create(
-							new long[] { mrInfo[ level ].dimensions[ 0 ], mrInfo[ level ].dimensions[ 1 ], mrInfo[ level ].dimensions[ 2 ] },
-							computeBlockSize,
-							blockSize);
+				final MultiResolutionLevelInfo mrInfo = volume.mrInfo[ level ];
 
-					System.out.println( new Date( System.currentTimeMillis() ) + ": Downsampling: " + Util.printCoordinates( mrInfo[ level ].absoluteDownsampling ) + " with relative downsampling of " + Util.printCoordinates( mrInfo[ level ].relativeDownsampling ));
-					System.out.println( new Date( System.currentTimeMillis() ) + ": s" + level + " num blocks=" + allBlocks.size() );
-					System.out.println( new Date( System.currentTimeMillis() ) + ": Loading '" + mrInfo[ level - 1 ].dataset + "', downsampled will be written as '" + mrInfo[ level ].dataset + "'." );
+				final List< long[][] > levelBlocks =
+						BlockPlanner.forLevel( driverVolumeWriter, mrInfo, blockSize, volume.shards == null ? null : volume.shards[ level ].shardSize ).plan( volume.computeBlockSize );
 
-					time = System.currentTimeMillis();
+				// blocks computed only from empty blocks are empty too
+				final List< long[][] > nonEmptyBlocks = skipEmptyBlocks( levelBlocks, volume.mrInfo, level, blockSize, manifests.get( i ) );
 
-					final JavaRDD<long[][]> rddDS = sc.parallelize( allBlocks, Math.min( Spark.maxPartitions, allBlocks.size() ) );
+				System.out.println( new Date( System.currentTimeMillis() ) + ": Downsampling: " + Util.printCoordinates( mrInfo.absoluteDownsampling ) + " with relative downsampling of " + Util.printCoordinates( mrInfo.relativeDownsampling ));
+				System.out.println( new Date( System.currentTimeMillis() ) + ": s" + level + " num blocks=" + levelBlocks.size() + ", empty=" + ( levelBlocks.size() - nonEmptyBlocks.size() ) );
+				System.out.println( new Date( System.currentTimeMillis() ) + ": Loading '" + volume.mrInfo[ level - 1 ].dataset + "', downsampled will be written as '" + mrInfo.dataset + "'." );
 
-					rddDS.foreach(
-							gridBlock ->
-							{
-								final N5Writer driverVolumeWriterLocal = N5Util.createN5Writer( outPathURI, storageType );
+				// empty blocks are downsampled too if they might hold chunks of an earlier fusion, they are overwritten or deleted
+				for ( final long[][] gridBlock : pendingBlocks( volume.overwrite ? levelBlocks : nonEmptyBlocks, volume.resume ? volume.ledgers[ level ].load( driverVolumeWriter ) : null ) )
+					allBlocks.add( new Tuple2<>( i, gridBlock ) );
 
-								// 5D OME-ZARR CONTAINER
-								if ( storageType == StorageFormat.ZARR )
-								{
-									N5ApiTools.writeDownsampledBlock5dOMEZARR(
-											driverVolumeWriterLocal,
-											mrInfo[ s ],
-											mrInfo[ s - 1 ],
-											gridBlock,
-											cIndex,
-											tIndex );
-								}
-								else
-								{
-									N5ApiTools.writeDownsampledBlock(
-											driverVolumeWriterLocal,
-											mrInfo[ s ],
-											mrInfo[ s - 1 ],
-											gridBlock );
-								}
+				downsampleBlocks.put( i, downsampleBlock( outPathURI, storageType, volume.mrInfo, volume.shards, level, blockSize, volume.cIndex, volume.tIndex, volume.overwrite, volume.ledgers[ level ], metrics ) );
+			}
+
+			if ( downsampleBlocks.size() == 0 )
+				continue;
 
-								if ( N5Util.sharedHDF5Writer == null )
-									driverVolumeWriterLocal.close();
+			System.out.println( new Date( System.currentTimeMillis() ) + ": s" + level + " num blocks=" + allBlocks.size() + " for " + downsampleBlocks.size() + " volume(s)" );
 
-							});
+			time = System.currentTimeMillis();
 
-					System.out.println( new Date( System.currentTimeMillis() ) + ": Saved level s " + level + ", took: " + (System.currentTimeMillis() - time ) + " ms." );
+			ProgressListener.stage( sc, "downsampling s" + level + volumeName, -1 );
+
+			final JavaRDD< Tuple2< Integer, long[][] > > rddDS =
+					GridOrdering.parallelize( sc, allBlocks, Tuple2::_2, block -> GridOrdering.numVoxels( block._2() ) );
+
+			rddDS.foreach( block -> downsampleBlocks.get( block._1() ).call( block._2() ) );
+
+			for ( final int i : downsampleBlocks.keySet() )
+			{
+				saveManifests( driverVolumeWriter, volumes.get( i ).mrInfo, manifests.get( i ), level, level, volumes.get( i ).cIndex, volumes.get( i ).tIndex );
+				volumes.get( i ).ledgers[ level ].setComplete( driverVolumeWriter );
+			}
+
+			System.out.println( new Date( System.currentTimeMillis() ) + ": Saved level s " + level + ", took: " + (System.currentTimeMillis() - time ) + " ms." );
+			metrics.stage( "s" + level + volumeName, System.currentTimeMillis() - time );
+		}
+	}
+
+	/**
+	 * @param blocks all blocks
+	 * @param completed the completed blocks (can be null)
+	 * @return the blocks that are not completed yet
+	 */
+	protected static List< long[][] > pendingBlocks( final List< long[][] > blocks, final BlockManifest completed )
+	{
+		if ( completed == null )
+			return blocks;
+
+		final ArrayList< long[][] > pending = new ArrayList<>();
+
+		for ( final long[][] gridBlock : blocks )
+			if ( !completed.containsAll( gridBlock ) )
+				pending.add( gridBlock );
+
+		System.out.println( "Resuming: " + ( blocks.size() - pending.size() ) + " of " + blocks.size() + " block(s) are complete." );
+
+		return pending;
+	}
+
+	/**
+	 * @param shards - the sharded arrays of all levels, or null if the container is not sharded
+	 * @param overwrite - if shards that are empty now are deleted (they might hold data of an earlier fusion)
+	 * @return a function that computes one block of level s from level s-1 stored in the container
+	 */
+	protected static VoidFunction< long[][] > downsampleBlock(
+			final URI outPathURI,
+			final StorageFormat storageType,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final ShardedZarr.Array[] shards,
+			final int s,
+			final int[] blockSize,
+			final int cIndex,
+			final int tIndex,
+			final boolean overwrite,
+			final BlockLedger ledger,
+			final RunMetrics metrics )
+	{
+		return gridBlock ->
+		{
+			if ( shards != null )
+			{
+				downsampleShard( shards[ s ], shards[ s - 1 ], mrInfo[ s ].relativeDownsampling, blockSize, gridBlock, cIndex, tIndex, overwrite, metrics );
+				ledger.completed( gridBlock );
+				return;
+			}
+
+			final N5Writer driverVolumeWriterLocal = N5Util.acquireN5Writer( outPathURI, storageType );
+
+			try
+			{
+				// 5D OME-ZARR CONTAINER
+				if ( storageType == StorageFormat.ZARR )
+				{
+					N5ApiTools.writeDownsampledBlock5dOMEZARR(
+							driverVolumeWriterLocal,
+							mrInfo[ s ],
+							mrInfo[ s - 1 ],
+							gridBlock,
+							cIndex,
+							tIndex );
+				}
+				else
+				{
+					N5ApiTools.writeDownsampledBlock(
+							driverVolumeWriterLocal,
+							mrInfo[ s ],
+							mrInfo[ s - 1 ],
+							gridBlock );
 				}
 			}
+			finally
+			{
+				N5Util.releaseN5Writer( driverVolumeWriterLocal );
+			}
 
-		// close main writer (is shared over Spark-threads if it's HDF5, thus just closing it here)
-		driverVolumeWriter.close();
+			ledger.completed( gridBlock );
+		};
+	}
 
-		/*
-		if ( multiRes )
-			System.out.println( "Saved, e.g. view with './n5-view -i " + n5PathURI + " -d " + n5Dataset.substring( 0, n5Dataset.length() - 3) + "'" );
+	/**
+	 * Computes one shard of a level from the previous level. The shards of the previous level that it covers are read
+	 * as a whole (they are needed completely), downsampled in memory and written as a single object.
+	 *
+	 * @param gridBlock - { offset, size, gridOffset } of the shard in the coordinates of the level
+	 * @param overwrite - if the shard is deleted if it is empty now (it might hold data of an earlier fusion)
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	protected static void downsampleShard(
+			final ShardedZarr.Array target,
+			final ShardedZarr.Array source,
+			final int[] relativeDownsampling,
+			final int[] blockSize,
+			final long[][] gridBlock,
+			final int cIndex,
+			final int tIndex,
+			final boolean overwrite,
+			final RunMetrics metrics ) throws Exception
+	{
+		final long[] sourceMin = new long[ 3 ];
+		final long[] sourceSize = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			sourceMin[ d ] = gridBlock[ 0 ][ d ] * relativeDownsampling[ d ];
+			sourceSize[ d ] = Math.min( source.dimensions[ d ] - sourceMin[ d ], gridBlock[ 1 ][ d ] * relativeDownsampling[ d ] );
+		}
+
+		final NativeType type = ShardedZarr.type( target.dataType );
+
+		final RandomAccessibleInterval downsampled = Downsampling.downsampleInMemory(
+				ShardedZarr.read( source, sourceMin, sourceSize, cIndex, tIndex, type ),
+				relativeDownsampling,
+				(RealType & NativeType)type,
+				blockSize );
+
+		// the source is too small for this level (can happen at the border)
+		if ( downsampled == null )
+			return;
+
+		final ShardedZarr.ShardWriter shard = new ShardedZarr.ShardWriter( target, gridBlock[ 0 ], cIndex, tIndex );
+
+		for ( final long[][] block : BlockPipeline.split( gridBlock, blockSize ) )
+		{
+			final long[] min = new long[ 3 ];
+			final long[] max = new long[ 3 ];
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = block[ 0 ][ d ] - gridBlock[ 0 ][ d ];
+				max[ d ] = Math.min( downsampled.dimension( d ), min[ d ] + block[ 1 ][ d ] ) - 1;
+			}
+
+			if ( !Intervals.isEmpty( FinalInterval.wrap( min, max ) ) )
+			{
+				final RandomAccessibleInterval chunk = Views.zeroMin( Views.interval( downsampled, min, max ) );
+
+				if ( !BlockManifest.isBackground( Views.iterable( chunk ) ) )
+					metrics.write( img -> shard.add( (RandomAccessibleInterval)img, block[ 2 ] ) ).write( chunk );
+			}
+		}
+
+		writeShard( shard, overwrite, metrics );
+	}
+
+	/**
+	 * @param overwrite - if the shard is deleted if it has no chunks (it might hold data of an earlier fusion)
+	 */
+	protected static void writeShard( final ShardedZarr.ShardWriter shard, final boolean overwrite, final RunMetrics metrics ) throws IOException
+	{
+		final long time = System.nanoTime();
+
+		// the bytes are counted when the blocks are added
+		if ( overwrite && shard.isEmpty() )
+			shard.delete();
 		else
-			System.out.println( "Saved, e.g. view with './n5-view -i " + n5PathURI + " -d " + n5Dataset + "'" );
-		*/
+			shard.write();
 
-		System.out.println( "done, took: " + (System.currentTimeMillis() - totalTime ) + " ms." );
+		metrics.written( 0, 0, System.nanoTime() - time );
+	}
 
-		sc.close();
+	/**
+	 * Marks a volume (c,t) of a dataset as fused before anything is written.
+	 *
+	 * @return true if it was fused before (also by an interrupted run), i.e. it might hold chunks that are empty now
+	 */
+	protected static boolean markFused( final N5Writer n5Writer, final String dataset, final int cIndex, final int tIndex )
+	{
+		final String attribute = "Bigstitcher-Spark/Fused_c" + cIndex + "_t" + tIndex;
 
-		return null;
+		// containers fused before this attribute existed have a block manifest
+		if ( isAttribute( n5Writer, dataset, attribute, Boolean.class ) || isAttribute( n5Writer, dataset, BlockManifest.attribute( cIndex, tIndex ), long[].class ) )
+			return true;
+
+		n5Writer.setAttribute( dataset, attribute, true );
+
+		return false;
+	}
+
+	private static boolean isAttribute( final N5Writer n5Writer, final String dataset, final String attribute, final Class< ? > clazz )
+	{
+		try
+		{
+			return n5Writer.getAttribute( dataset, attribute, clazz ) != null;
+		}
+		catch ( Exception e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes all chunks of an empty compute block of s0 in all levels that are computed in memory, or its shard.
+	 */
+	protected static void deleteComputeBlock(
+			final URI outPathURI,
+			final StorageFormat storageType,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final ShardedZarr.Array[] shards,
+			final int inMemoryLevels,
+			final long[][] gridBlock,
+			final int[] blockSize,
+			final int cIndex,
+			final int tIndex ) throws IOException
+	{
+		// a compute block is a single shard
+		if ( shards != null )
+		{
+			new ShardedZarr.ShardWriter( shards[ 0 ], gridBlock[ 0 ], cIndex, tIndex ).delete();
+			return;
+		}
+
+		final N5Writer n5Writer = N5Util.acquireN5Writer( outPathURI, storageType );
+
+		try
+		{
+			deleteBlocks( n5Writer, mrInfo, 0, inMemoryLevels, gridBlock, blockSize, storageType, cIndex, tIndex );
+		}
+		finally
+		{
+			N5Util.releaseN5Writer( n5Writer );
+		}
+	}
+
+	/**
+	 * Deletes all chunks that a compute block of s0 covers in the levels fromLevel to toLevel.
+	 */
+	protected static void deleteBlocks(
+			final N5Writer n5Writer,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final int fromLevel,
+			final int toLevel,
+			final long[][] gridBlock,
+			final int[] blockSize,
+			final StorageFormat storageType,
+			final int cIndex,
+			final int tIndex )
+	{
+		for ( int level = fromLevel; level <= toLevel; ++level )
+		{
+			final int[] ds = mrInfo[ level ].absoluteDownsampling;
+			final long[][] levelGridBlock = new long[ 3 ][ 3 ];
+
+			// the compute blocks are aligned with the blocks of all levels computed in memory
+			for ( int d = 0; d < 3; ++d )
+			{
+				levelGridBlock[ 0 ][ d ] = gridBlock[ 0 ][ d ] / ds[ d ];
+				levelGridBlock[ 1 ][ d ] = Math.min( mrInfo[ level ].dimensions[ d ], ( gridBlock[ 0 ][ d ] + gridBlock[ 1 ][ d ] + ds[ d ] - 1 ) / ds[ d ] ) - levelGridBlock[ 0 ][ d ];
+				levelGridBlock[ 2 ][ d ] = levelGridBlock[ 0 ][ d ] / blockSize[ d ];
+			}
+
+			for ( final long[][] block : BlockPipeline.split( levelGridBlock, blockSize ) )
+				deleteBlock( n5Writer, mrInfo[ level ].dataset, block[ 2 ], storageType, cIndex, tIndex );
+		}
+	}
+
+	/**
+	 * One 3D volume (channel, timepoint) of the output container, including the function that fuses one of its blocks.
+	 */
+	protected static class FusionVolume
+	{
+		final int cIndex, tIndex;
+		final MultiResolutionLevelInfo[] mrInfo;
+		final ShardedZarr.Array[] shards;
+		final int inMemoryLevels;
+		final int[] computeBlockSize;
+		final List< long[][] > grid;
+		final Map< long[][], Double > costs;
+		final BlockManifestAccumulator emptyBlocks;
+		final boolean overwrite;
+		final BlockLedger[] ledgers;
+		final boolean resume;
+		final VoidFunction< long[][] > fuseBlock;
+
+		public FusionVolume(
+				final int cIndex,
+				final int tIndex,
+				final MultiResolutionLevelInfo[] mrInfo,
+				final ShardedZarr.Array[] shards,
+				final int inMemoryLevels,
+				final int[] computeBlockSize,
+				final List< long[][] > grid,
+				final Map< long[][], Double > costs,
+				final BlockManifestAccumulator emptyBlocks,
+				final boolean overwrite,
+				final BlockLedger[] ledgers,
+				final boolean resume,
+				final VoidFunction< long[][] > fuseBlock )
+		{
+			this.cIndex = cIndex;
+			this.tIndex = tIndex;
+			this.mrInfo = mrInfo;
+			this.shards = shards;
+			this.inMemoryLevels = inMemoryLevels;
+			this.computeBlockSize = computeBlockSize;
+			this.grid = grid;
+			this.costs = costs;
+			this.emptyBlocks = emptyBlocks;
+			this.overwrite = overwrite;
+			this.ledgers = ledgers;
+			this.resume = resume;
+			this.fuseBlock = fuseBlock;
+		}
+
+		/**
+		 * @return the estimated cost of a block, blocks that no view overlaps get a minimal cost if their chunks must be deleted
+		 */
+		double cost( final long[][] gridBlock )
+		{
+			final double cost = costs.get( gridBlock );
+
+			return cost > 0 || !overwrite ? cost : Double.MIN_NORMAL;
+		}
+	}
+
+	/**
+	 * Creates the block manifests of s0 and all levels computed in memory from the empty blocks the tasks collected
+	 * (s0 blocks that no view overlaps or that were all background, and output blocks of single levels that were all
+	 * background) and the s0 blocks that were not submitted since no view overlaps them.
+	 *
+	 * @return the manifests, one entry per level (null for levels that are downsampled from storage)
+	 */
+	protected static BlockManifest[] emptyBlockManifests(
+			final MultiResolutionLevelInfo[] mrInfo,
+			final List< long[][] > grid,
+			final Map< long[][], Double > costs,
+			final BlockManifestAccumulator emptyBlocks )
+	{
+		final long numReported = emptyBlocks.numBlocks();
+
+		grid.stream().filter( gridBlock -> costs.get( gridBlock ) <= 0 ).forEach( emptyBlocks::add );
+
+		final BlockManifest[] levels = emptyBlocks.value();
+		final BlockManifest[] manifests = new BlockManifest[ mrInfo.length ];
+
+		for ( int level = 0; level < levels.length; ++level )
+			manifests[ level ] = levels[ level ];
+
+		System.out.println( "Skipped " + numReported + " empty compute or output block(s) when fusing and " + ( emptyBlocks.numBlocks() - numReported ) +
+				" that no view overlaps, " + grid.size() + " compute block(s) at s0." );
+
+		return manifests;
+	}
+
+	/**
+	 * Removes all blocks of level s whose source region in level s-1 is empty and records them in the manifest of level s.
+	 *
+	 * @return the blocks that need to be computed
+	 */
+	protected static List< long[][] > skipEmptyBlocks(
+			final List< long[][] > blocks,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final int s,
+			final int[] blockSize,
+			final BlockManifest[] manifests )
+	{
+		manifests[ s ] = new BlockManifest( dimensions3d( mrInfo[ s ] ), blockSize );
+
+		final long[] sourceDim = dimensions3d( mrInfo[ s - 1 ] );
+		final int[] ds = mrInfo[ s ].relativeDownsampling;
+
+		final ArrayList< long[][] > nonEmptyBlocks = new ArrayList<>();
+		final long[] sourceMin = new long[ 3 ];
+		final long[] sourceMax = new long[ 3 ];
+
+		for ( final long[][] gridBlock : blocks )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				sourceMin[ d ] = gridBlock[ 0 ][ d ] * ds[ d ];
+				sourceMax[ d ] = Math.min( sourceDim[ d ] - 1, ( gridBlock[ 0 ][ d ] + gridBlock[ 1 ][ d ] ) * ds[ d ] - 1 );
+			}
+
+			if ( manifests[ s - 1 ].containsAll( sourceMin, sourceMax ) )
+				manifests[ s ].add( gridBlock );
+			else
+				nonEmptyBlocks.add( gridBlock );
+		}
+
+		return nonEmptyBlocks;
+	}
+
+	protected static void saveManifests(
+			final N5Writer n5Writer,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final BlockManifest[] manifests,
+			final int fromLevel,
+			final int toLevel,
+			final int cIndex,
+			final int tIndex )
+	{
+		for ( int level = fromLevel; level <= toLevel; ++level )
+			manifests[ level ].save( n5Writer, mrInfo[ level ].dataset, BlockManifest.attribute( cIndex, tIndex ) );
+	}
+
+	/**
+	 * @return the stored manifest of empty blocks of a level, or an empty manifest if none is stored
+	 */
+	protected static BlockManifest loadManifest(
+			final N5Writer n5Writer,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final int level,
+			final int[] blockSize,
+			final int cIndex,
+			final int tIndex )
+	{
+		final BlockManifest manifest = BlockManifest.load( n5Writer, mrInfo[ level ].dataset, BlockManifest.attribute( cIndex, tIndex ), dimensions3d( mrInfo[ level ] ), blockSize );
+
+		return manifest != null ? manifest : new BlockManifest( dimensions3d( mrInfo[ level ] ), blockSize );
+	}
+
+	/**
+	 * @return the size of all levels of the pyramid relative to s0
+	 */
+	protected static double pyramidFactor( final MultiResolutionLevelInfo[] mrInfo )
+	{
+		double factor = 0;
+
+		for ( final MultiResolutionLevelInfo level : mrInfo )
+			factor += 1.0 / ( (double)level.absoluteDownsampling[ 0 ] * level.absoluteDownsampling[ 1 ] * level.absoluteDownsampling[ 2 ] );
+
+		return factor;
+	}
+
+	/**
+	 * @return the intensity of a channel (indexed like the ordered channels), or the global one if it was not estimated
+	 */
+	protected static double channelIntensity( final double[] channelIntensities, final int cIndex, final double globalIntensity )
+	{
+		if ( channelIntensities == null || cIndex >= channelIntensities.length || Double.isNaN( channelIntensities[ cIndex ] ) )
+			return globalIntensity;
+
+		return channelIntensities[ cIndex ];
+	}
+
+	protected static int bytesPerPixel( final DataType dataType )
+	{
+		if ( dataType == DataType.UINT8 )
+			return 1;
+		else if ( dataType == DataType.UINT16 )
+			return 2;
+		else
+			return 4;
+	}
+
+	private static long[] dimensions3d( final MultiResolutionLevelInfo mrInfo )
+	{
+		return new long[] { mrInfo.dimensions[ 0 ], mrInfo.dimensions[ 1 ], mrInfo.dimensions[ 2 ] };
+	}
+
+	/**
+	 * Writes a zero-min block of one level through the pipeline, one output block at a time. If a fusion is given,
+	 * each output block is first fused into the block by the compute threads. Output blocks that are
+	 * all background are not written but reported as empty blocks of this level (and their chunks are deleted if overwrite is set).
+	 *
+	 * @param levelBlock - the block of this level, or null if each output block is fused into its own image (requires a fusion)
+	 * @param type - the type of the output blocks
+	 * @param levelGridBlock - { offset, size, gridOffset } of the block in the coordinates of the level
+	 * @param shard - collects the output blocks if the container is sharded (written by the caller), otherwise null
+	 * @return the number of output blocks that are not empty (after all of them are computed)
+	 */
+	protected static long saveBlocks(
+			final BlockPipeline pipeline,
+			final Function< long[][], RandomAccessibleInterval > fuse,
+			final RandomAccessibleInterval levelBlock,
+			final NativeType type,
+			final long[][] levelGridBlock,
+			final int level,
+			final int[] blockSize,
+			final N5Writer n5Writer,
+			final String dataset,
+			final StorageFormat storageType,
+			final int cIndex,
+			final int tIndex,
+			final ShardedZarr.ShardWriter shard,
+			final BlockManifestAccumulator emptyBlocks,
+			final boolean overwrite,
+			final RunMetrics metrics )
+	{
+		final AtomicLong nonEmptyBlocks = new AtomicLong();
+
+		for ( final long[][] block : BlockPipeline.split( levelGridBlock, blockSize ) )
+		{
+			final long[] min = new long[ 3 ];
+			final long[] max = new long[ 3 ];
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = block[ 0 ][ d ] - levelGridBlock[ 0 ][ d ];
+				max[ d ] = min[ d ] + block[ 1 ][ d ] - 1;
+			}
+
+			pipeline.submit(
+					metrics.compute( () ->
+					{
+						final RandomAccessibleInterval target =
+								levelBlock == null ?
+										new ArrayImgFactory<>( type ).create( block[ 1 ] ) :
+										Views.zeroMin( Views.interval( levelBlock, min, max ) );
+
+						if ( fuse != null )
+						{
+							final RandomAccessibleInterval input = Views.zeroMin( fuse.apply( block ) );
+							LoopBuilder.setImages( input, target ).forEachPixel( ( i, o ) -> ( (Type)o ).set( (Type)i ) );
+						}
+
+						if ( BlockManifest.isBackground( Views.iterable( target ) ) )
+						{
+							// an empty block of this level (see BlockManifestAccumulator), a shard is rewritten without it
+							emptyBlocks.add( new long[][] { block[ 0 ], block[ 1 ], block[ 2 ], { level } } );
+							metrics.emptyBlocks( 1 );
+
+							if ( overwrite && shard == null )
+								deleteBlock( n5Writer, dataset, block[ 2 ], storageType, cIndex, tIndex );
+
+							return null;
+						}
+
+						nonEmptyBlocks.incrementAndGet();
+						return target;
+					}),
+					metrics.write( target ->
+					{
+						if ( shard == null )
+							saveBlock( target, n5Writer, dataset, block[ 2 ], storageType, cIndex, tIndex );
+						else
+							shard.add( target, block[ 2 ] );
+					}) );
+		}
+
+		pipeline.awaitComputed();
+
+		return nonEmptyBlocks.get();
+	}
+
+	/**
+	 * Saves a zero-min 3D block into a fused volume, which is 5D for OME-ZARR.
+	 */
+	protected static void saveBlock(
+			final RandomAccessibleInterval block,
+			final N5Writer n5Writer,
+			final String dataset,
+			final long[] gridOffset,
+			final StorageFormat storageType,
+			final int cIndex,
+			final int tIndex )
+	{
+		if ( storageType == StorageFormat.ZARR )
+			N5Utils.saveBlock(
+					Views.addDimension( Views.addDimension( block, 0, 0 ), 0, 0 ),
+					n5Writer,
+					dataset,
+					new long[] { gridOffset[ 0 ], gridOffset[ 1 ], gridOffset[ 2 ], cIndex, tIndex } );
+		else
+			N5Utils.saveBlock( block, n5Writer, dataset, gridOffset );
+	}
+
+	/**
+	 * Deletes a block of a fused volume, which is 5D for OME-ZARR.
+	 */
+	protected static void deleteBlock(
+			final N5Writer n5Writer,
+			final String dataset,
+			final long[] gridOffset,
+			final StorageFormat storageType,
+			final int cIndex,
+			final int tIndex )
+	{
+		if ( storageType == StorageFormat.ZARR )
+			n5Writer.deleteBlock( dataset, gridOffset[ 0 ], gridOffset[ 1 ], gridOffset[ 2 ], cIndex, tIndex );
+		else
+			n5Writer.deleteBlock( dataset, gridOffset );
 	}
 
 	public static void main(final String... args) throws SpimDataException {
@@ -41,12 +41,16 @@ import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractInfrastructure;
 import net.preibisch.bigstitcher.spark.util.DataTypeUtil;
+import net.preibisch.bigstitcher.spark.util.GridOrdering;
 import net.preibisch.bigstitcher.spark.util.Import;
 import net.preibisch.bigstitcher.spark.util.N5Util;
+import net.preibisch.bigstitcher.spark.util.ProgressListener;
+import net.preibisch.bigstitcher.spark.util.RunMetrics;
 import net.preibisch.mvrecon.process.downsampling.lazy.LazyHalfPixelDownsample2x;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
@@ -93,11 +97,14 @@ public class SparkDownsample extends AbstractInfrastructure implements Callable<
 			System.exit( 0 );
 		}
 
-		final SparkConf conf = new SparkConf().setAppName("Downsample");
+		final SparkConf conf = sparkConf( "Downsample" );
 
 		final JavaSparkContext sc = new JavaSparkContext(conf);
 		sc.setLogLevel("OFF");
 
+		final RunMetrics metrics = new RunMetrics( sc, "SparkDownsample" );
+		registerProgressListener( sc );
+
 		final int[][] downsampling = Import.csvStringListToDownsampling( this.downsampling );
 
 		final URI n5Path = URITools.toURI( this.n5PathIn );
@@ -151,37 +158,57 @@ public class SparkDownsample extends AbstractInfrastructure implements Callable<
 			System.out.println( "Output dimensions: " + Util.printCoordinates( dim ));
 			System.out.println( "Tasks: " + grid.size() );
 
-			final JavaRDD<long[][]> rdd = sc.parallelize(grid);
+			ProgressListener.stage( sc, "downsampling " + n5DatasetOut, grid.size() );
+
+			final JavaRDD<long[][]> rdd = GridOrdering.parallelize( sc, grid );
 
 
 			final long timeLevel = System.currentTimeMillis();
 
 			rdd.foreach(
 					gridBlock -> {
-						final N5Writer n5Lcl = N5Util.createN5Writer( n5Path, storageType );
-						final DataType dataTypeLcl = DataType.fromString(dataTypeString);
-
-						RandomAccessibleInterval downsampled = N5Utils.open( n5Lcl, n5DatasetIn );
-
-						for ( int d = 0; d < downsampled.numDimensions(); ++d )
-							if ( ds[ d ] > 1 )
-								downsampled = LazyHalfPixelDownsample2x.init(
-									downsampled,
-									new FinalInterval( downsampled ),
-									(RealType & NativeType)DataTypeUtil.toType( dataTypeLcl ),
-									blockSize,
-									d);
-
-						final RandomAccessibleInterval sourceGridBlock = Views.offsetInterval(downsampled, gridBlock[0], gridBlock[1]);
-						N5Utils.saveNonEmptyBlock(sourceGridBlock, n5Lcl, n5DatasetOut, gridBlock[2], (RealType & NativeType)DataTypeUtil.toType( dataTypeLcl ));
+						final long blockTime = System.nanoTime();
+						final N5Writer n5Lcl = N5Util.acquireN5Writer( n5Path, storageType );
+
+						try
+						{
+							final DataType dataTypeLcl = DataType.fromString(dataTypeString);
+
+							RandomAccessibleInterval downsampled = N5Utils.open( n5Lcl, n5DatasetIn );
+
+							for ( int d = 0; d < downsampled.numDimensions(); ++d )
+								if ( ds[ d ] > 1 )
+									downsampled = LazyHalfPixelDownsample2x.init(
+										downsampled,
+										new FinalInterval( downsampled ),
+										(RealType & NativeType)DataTypeUtil.toType( dataTypeLcl ),
+										blockSize,
+										d);
+
+							final RandomAccessibleInterval sourceGridBlock = Views.offsetInterval(downsampled, gridBlock[0], gridBlock[1]);
+							N5Utils.saveNonEmptyBlock(sourceGridBlock, n5Lcl, n5DatasetOut, gridBlock[2], (RealType & NativeType)DataTypeUtil.toType( dataTypeLcl ));
+
+							// downsampling is lazy, i.e. it happens while the block is written
+							metrics.written( Intervals.numElements( sourceGridBlock ), RunMetrics.bytes( sourceGridBlock ), System.nanoTime() - blockTime );
+							metrics.block( gridBlock, 1, System.nanoTime() - blockTime );
+						}
+						finally
+						{
+							N5Util.releaseN5Writer( n5Lcl );
+						}
 					});
 
 			Thread.sleep( 100 );
 			System.out.println( "downsampled level=" + level +", took: " + (System.currentTimeMillis() - timeLevel ) + " ms." );
+			metrics.stage( "level " + level, System.currentTimeMillis() - timeLevel );
 		}
 
+		saveRunReport( metrics );
 		sc.close();
 
+		// writers that the Spark tasks shared in this JVM (local mode)
+		N5Util.closeSharedWriters();
+
 		n5.close();
 
 		Thread.sleep( 100 );
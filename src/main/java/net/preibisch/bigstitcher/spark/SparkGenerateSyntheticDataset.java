@@ -0,0 +1,481 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.universe.StorageFormat;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.Angle;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.SequenceDescription;
+import mpicbg.spim.data.sequence.Tile;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Util;
+import net.imglib2.util.ValuePair;
+import net.imglib2.view.Views;
+import net.preibisch.bigstitcher.spark.CreateFusionContainer.Compressions;
+import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractInfrastructure;
+import net.preibisch.bigstitcher.spark.util.BlockPipeline;
+import net.preibisch.bigstitcher.spark.util.GridOrdering;
+import net.preibisch.bigstitcher.spark.util.Import;
+import net.preibisch.bigstitcher.spark.util.N5Util;
+import net.preibisch.bigstitcher.spark.util.ProgressListener;
+import net.preibisch.bigstitcher.spark.util.RunMetrics;
+import net.preibisch.mvrecon.fiji.plugin.resave.Resave_HDF5;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBoxes;
+import net.preibisch.mvrecon.fiji.spimdata.intensityadjust.IntensityAdjustments;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPoints;
+import net.preibisch.mvrecon.fiji.spimdata.pointspreadfunctions.PointSpreadFunctions;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
+import net.preibisch.mvrecon.process.n5api.N5ApiTools;
+import net.preibisch.mvrecon.process.n5api.N5ApiTools.MultiResolutionLevelInfo;
+import picocli.CommandLine;
+import picocli.CommandLine.Option;
+import util.URITools;
+
+/**
+ * Writes a synthetic BigStitcher project (XML + BDV-N5 or OME-ZARR) of one timepoint and channel: a grid of tiles
+ * that image the same randomly placed beads, with configurable overlap, noise and pyramid. The XML only contains the
+ * nominal grid positions of the tiles, the actual positions differ by a random shift and rotation around z (--jitter,
+ * --rotation) that the registration needs to find. Useful for measuring the throughput of the pipeline locally.
+ */
+public class SparkGenerateSyntheticDataset extends AbstractInfrastructure implements Callable<Void>, Serializable
+{
+	private static final long serialVersionUID = -4310553405707312871L;
+
+	// intensity of the background and range of the intensities of the beads
+	public static double background = 100;
+	public static double minBeadIntensity = 500, maxBeadIntensity = 1500;
+
+	@Option(names = { "-xo", "--xmlout" }, required = true, description = "path to the new BigStitcher xml, e.g. /home/synthetic.xml or s3://myBucket/synthetic.xml")
+	private String xmlOutURIString = null;
+
+	@Option(names = { "-o", "--n5Path" }, description = "N5/OME-ZARR path for saving, (default: 'folder of the xml'/dataset.n5 or dataset.ome.zarr)")
+	private String n5PathURIString = null;
+
+	@Option(names = { "--N5" }, description = "Export as N5 (default: OMEZARR)")
+	private boolean useN5 = false;
+
+	@Option(names = { "--tiles" }, description = "number of tiles in x,y,z (default: 3,3,1)")
+	private String tilesString = "3,3,1";
+
+	@Option(names = { "--tileSize" }, description = "size of each tile in pixels (default: 512,512,128)")
+	private String tileSizeString = "512,512,128";
+
+	@Option(names = { "--overlap" }, description = "overlap between neighboring tiles as fraction of the tile size (default: 0.1)")
+	private double overlap = 0.1;
+
+	@Option(names = { "--jitter" }, description = "maximal random shift of the tiles in pixels relative to the nominal grid positions stored in the XML (default: 10.0)")
+	private double jitter = 10.0;
+
+	@Option(names = { "--rotation" }, description = "maximal random rotation of the tiles around the z-axis in degrees that is not stored in the XML (default: 0.0)")
+	private double rotation = 0.0;
+
+	@Option(names = { "--beadDensity" }, description = "density of beads; number of beads per 100x100x100 px volume (default: 20.0)")
+	private double beadDensity = 20.0;
+
+	@Option(names = { "--beadSigma" }, description = "sigma of the gaussian shaped beads in pixels (default: 1.5)")
+	private double beadSigma = 1.5;
+
+	@Option(names = { "--noise" }, description = "standard deviation of the gaussian noise added to each tile (default: 10.0)")
+	private double noise = 10.0;
+
+	@Option(names = { "--seed" }, description = "seed of the random bead positions, tile positions and noise (default: 42)")
+	private long seed = 42;
+
+	@Option(names = "--blockSize", description = "blockSize (default: 128,128,64)")
+	private String blockSizeString = "128,128,64";
+
+	@Option(names = "--blockScale", description = "how many blocks to use for a single processing step, e.g. 4,4,1 means for blockSize a 128,128,64 that each spark thread writes 512,512,64 (default: 4,4,1)")
+	private String blockScaleString = "4,4,1";
+
+	@Option(names = { "-ds", "--downsampling" }, description = "downsampling pyramid (must contain full res 1,1,1 that is always created), e.g. 1,1,1; 2,2,1; 4,4,1; 8,8,2 (default: automatically computed)")
+	private String downsampling = null;
+
+	@Option(names = {"-c", "--compression"}, defaultValue = "Zstandard", showDefaultValue = CommandLine.Help.Visibility.ALWAYS,
+			description = "Dataset compression")
+	private Compressions compression = null;
+
+	@Option(names = {"-cl", "--compressionLevel" }, description = "compression level, if supported by the codec (default: gzip 1, Zstandard 3, xz 6)")
+	private Integer compressionLevel = null;
+
+	@Override
+	public Void call() throws Exception
+	{
+		this.setRegion();
+
+		final URI xmlOutURI = URITools.toURI( xmlOutURIString );
+		final URI n5PathURI = URITools.toURI( this.n5PathURIString == null ? URITools.appendName( URITools.getParentURI( xmlOutURI ), (useN5 ? "dataset.n5" : "dataset.ome.zarr") ) : n5PathURIString );
+		final StorageFormat storageFormat = useN5 ? StorageFormat.N5 : StorageFormat.ZARR;
+		final Compression compression = N5Util.getCompression( this.compression, this.compressionLevel );
+
+		final int[] tiles = Import.csvStringToIntArray( tilesString );
+		final long[] tileSize = Arrays.stream( Import.csvStringToIntArray( tileSizeString ) ).mapToLong( i -> i ).toArray();
+		final int[] blockSize = Import.csvStringToIntArray( blockSizeString );
+		final int[] blockScale = Import.csvStringToIntArray( blockScaleString );
+
+		final int[] computeBlockSize = new int[] {
+				blockSize[0] * blockScale[ 0 ],
+				blockSize[1] * blockScale[ 1 ],
+				blockSize[2] * blockScale[ 2 ] };
+
+		final Random rnd = new Random( seed );
+
+		//
+		// set up the tiles, the XML only contains the nominal grid positions
+		//
+		final HashMap< Integer, ViewSetup > setups = new HashMap<>();
+		final HashMap< ViewId, ViewRegistration > viewRegistrations = new HashMap<>();
+		final ArrayList< ViewId > viewIds = new ArrayList<>();
+		final HashMap< Integer, AffineTransform3D > actualModels = new HashMap<>();
+
+		final double[] min = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		final double[] max = new double[] { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+		for ( int z = 0; z < tiles[ 2 ]; ++z )
+			for ( int y = 0; y < tiles[ 1 ]; ++y )
+				for ( int x = 0; x < tiles[ 0 ]; ++x )
+				{
+					final int setupId = setups.size();
+					final int[] g = new int[] { x, y, z };
+					final double[] location = new double[ 3 ];
+
+					for ( int d = 0; d < 3; ++d )
+						location[ d ] = g[ d ] * tileSize[ d ] * ( 1.0 - overlap );
+
+					setups.put( setupId, new ViewSetup(
+							setupId, "tile " + setupId, new FinalDimensions( tileSize ), new FinalVoxelDimensions( "px", 1, 1, 1 ),
+							new Tile( setupId, "tile " + setupId, location ), new Channel( 0 ), new Angle( 0 ), new Illumination( 0 ) ) );
+
+					final AffineTransform3D nominal = new AffineTransform3D();
+					nominal.translate( location );
+
+					final ViewId viewId = new ViewId( 0, setupId );
+					viewIds.add( viewId );
+					viewRegistrations.put( viewId, new ViewRegistration( 0, setupId, nominal ) );
+
+					// the actual position: rotated around the center of the tile and shifted
+					final AffineTransform3D actual = new AffineTransform3D();
+					actual.translate( -tileSize[ 0 ] / 2.0, -tileSize[ 1 ] / 2.0, -tileSize[ 2 ] / 2.0 );
+					actual.rotate( 2, Math.toRadians( ( rnd.nextDouble() * 2 - 1 ) * rotation ) );
+					actual.translate( tileSize[ 0 ] / 2.0, tileSize[ 1 ] / 2.0, tileSize[ 2 ] / 2.0 );
+
+					for ( int d = 0; d < 3; ++d )
+						location[ d ] += ( rnd.nextDouble() * 2 - 1 ) * ( tileSize[ d ] > 1 ? jitter : 0 );
+
+					actual.translate( location );
+					actualModels.put( setupId, actual );
+
+					final RealInterval bounds = actual.estimateBounds( new FinalInterval( tileSize ) );
+
+					for ( int d = 0; d < 3; ++d )
+					{
+						min[ d ] = Math.min( min[ d ], bounds.realMin( d ) );
+						max[ d ] = Math.max( max[ d ], bounds.realMax( d ) );
+					}
+				}
+
+		final ArrayList< TimePoint > timepoints = new ArrayList<>();
+		timepoints.add( new TimePoint( 0 ) );
+
+		final SpimData2 data = new SpimData2(
+				URITools.getParentURI( xmlOutURI ),
+				new SequenceDescription( new TimePoints( timepoints ), setups, null, null ),
+				new ViewRegistrations( viewRegistrations ),
+				new ViewInterestPoints(),
+				new BoundingBoxes(),
+				new PointSpreadFunctions(),
+				new StitchingResults(),
+				new IntensityAdjustments() );
+
+		//
+		// place the beads in world coordinates and map them into the local coordinates of each tile
+		//
+		final long numBeads = Math.round( beadDensity * ( max[ 0 ] - min[ 0 ] ) * ( max[ 1 ] - min[ 1 ] ) * ( max[ 2 ] - min[ 2 ] ) / ( 100.0 * 100.0 * 100.0 ) );
+		final double[][] beads = new double[ (int)numBeads ][ 4 ];
+
+		for ( final double[] bead : beads )
+		{
+			for ( int d = 0; d < 3; ++d )
+				bead[ d ] = min[ d ] + rnd.nextDouble() * ( max[ d ] - min[ d ] );
+
+			bead[ 3 ] = minBeadIntensity + rnd.nextDouble() * ( maxBeadIntensity - minBeadIntensity );
+		}
+
+		final HashMap< Integer, double[][] > beadsPerSetup = new HashMap<>();
+
+		actualModels.forEach( ( setupId, model ) -> beadsPerSetup.put( setupId, localBeads( beads, model.inverse(), tileSize, 3 * beadSigma ) ) );
+
+		// estimate or read downsampling factors
+		final int[][] downsamplings;
+
+		if ( this.downsampling == null )
+			downsamplings = N5ApiTools.mipMapInfoToDownsamplings( Resave_HDF5.proposeMipmaps( N5ApiTools.assembleViewSetups( data, viewIds ) ) );
+		else
+			downsamplings = Import.csvStringToDownsampling( this.downsampling );
+
+		if ( !Import.testFirstDownsamplingIsPresent( downsamplings ) )
+			throw new RuntimeException( "First downsampling step must be full resolution [1,1,...1], stopping." );
+
+		System.out.println( "Tiles: " + Util.printCoordinates( tiles ) + ", tile size: " + Util.printCoordinates( tileSize ) + ", overlap: " + overlap );
+		System.out.println( "Jitter: " + jitter + " px, rotation: " + rotation + " degrees, seed: " + seed );
+		System.out.println( "Beads: " + numBeads + " (sigma=" + beadSigma + "), noise: " + noise );
+		System.out.println( "N5 block size=" + Util.printCoordinates( blockSize ) );
+		System.out.println( "Compute block size=" + Util.printCoordinates( computeBlockSize ) );
+		System.out.println( "Downsamplings: " + Arrays.deepToString( downsamplings ) );
+		System.out.println( "Setting up XML at: " + xmlOutURI );
+		System.out.println( "Setting up N5 writing to basepath: " + n5PathURI );
+
+		if ( dryRun )
+		{
+			System.out.println( "This is a dry-run, stopping here.");
+			return null;
+		}
+
+		final long start = System.currentTimeMillis();
+		long time = start;
+
+		final N5Writer n5Writer = URITools.instantiateN5Writer( storageFormat, n5PathURI );
+
+		final Map< ViewId, MultiResolutionLevelInfo[] > viewIdToMrInfo =
+				viewIds.parallelStream().map( viewId ->
+				{
+					final MultiResolutionLevelInfo[] mrInfo;
+
+					if ( useN5 )
+						mrInfo = N5ApiTools.setupBdvDatasetsN5( n5Writer, viewId, DataType.UINT16, tileSize, compression, blockSize, downsamplings );
+					else
+						mrInfo = N5ApiTools.setupBdvDatasetsOMEZARR( n5Writer, viewId, DataType.UINT16, tileSize, compression, blockSize, downsamplings );
+
+					return new ValuePair<>( viewId, mrInfo );
+				}).collect(Collectors.toMap( e -> e.getA(), e -> e.getB() ));
+
+		final List<long[][]> gridS0 =
+				viewIds.stream().map( viewId ->
+						N5ApiTools.assembleJobs( viewId, tileSize, blockSize, computeBlockSize ) ).flatMap(List::stream).collect( Collectors.toList() );
+
+		System.out.println( "Created BDV-metadata, took " + (System.currentTimeMillis() - time ) + " ms." );
+		System.out.println( "Number of compute blocks = " + gridS0.size() );
+
+		final SparkConf conf = sparkConf( "SparkGenerateSyntheticDataset" );
+
+		final JavaSparkContext sc = new JavaSparkContext(conf);
+		sc.setLogLevel("ERROR");
+
+		final RunMetrics metrics = new RunMetrics( sc, "SparkGenerateSyntheticDataset" );
+		registerProgressListener( sc );
+
+		//
+		// render s0 level
+		//
+		time = System.currentTimeMillis();
+
+		ProgressListener.stage( sc, "render s0", gridS0.size() );
+
+		final JavaRDD<long[][]> rdds0 = GridOrdering.parallelize( sc, gridS0 );
+
+		final double beadSigma = this.beadSigma;
+		final double noise = this.noise;
+		final long seed = this.seed;
+
+		rdds0.foreach(
+				gridBlock ->
+				{
+					final long blockTime = System.nanoTime();
+					final int setupId = N5ApiTools.gridBlockToViewId( gridBlock ).getViewSetupId();
+					final String dataset = N5ApiTools.gridToDatasetBdv( 0, storageFormat ).apply( gridBlock );
+					final N5Writer n5Lcl = N5Util.acquireN5Writer( n5PathURI, storageFormat );
+
+					try ( final BlockPipeline pipeline = new BlockPipeline( 1, 2, 4 ) )
+					{
+						for ( final long[][] block : BlockPipeline.split( gridBlock, blockSize ) )
+							pipeline.submit(
+									metrics.compute( () -> render( block[ 0 ], block[ 1 ], beadsPerSetup.get( setupId ), beadSigma, noise, seed + 31 * setupId ) ),
+									metrics.write( rendered ->
+									{
+										if ( storageFormat == StorageFormat.ZARR )
+											N5Utils.saveBlock(
+													Views.addDimension( Views.addDimension( rendered, 0, 0 ), 0, 0 ),
+													n5Lcl,
+													dataset,
+													new long[] { block[ 2 ][ 0 ], block[ 2 ][ 1 ], block[ 2 ][ 2 ], 0, 0 } );
+										else
+											N5Utils.saveBlock( rendered, n5Lcl, dataset, block[ 2 ] );
+									}) );
+
+						pipeline.await();
+					}
+					finally
+					{
+						N5Util.releaseN5Writer( n5Lcl );
+					}
+
+					metrics.block( gridBlock, 1, System.nanoTime() - blockTime );
+				});
+
+		System.out.println( "Rendered " + (useN5 ? "N5 s0" : "OME-ZARR 0") + "-level, took: " + (System.currentTimeMillis() - time ) + " ms." );
+		metrics.stage( "s0", System.currentTimeMillis() - time );
+
+		//
+		// Save remaining downsampling levels (s1 ... sN)
+		//
+		SparkResaveN5.saveDownsamplingLevels( sc, n5Writer, n5PathURI, useN5, viewIds, viewIdToMrInfo, downsamplings.length, metrics );
+
+		saveRunReport( metrics );
+		sc.close();
+
+		// writers that the Spark tasks shared in this JVM (local mode)
+		N5Util.closeSharedWriters();
+
+		System.out.println( "Saving new xml to: " + xmlOutURI );
+
+		data.getSequenceDescription().setImgLoader( SparkResaveN5.createImgLoader( data, n5PathURI, useN5, viewIdToMrInfo ) );
+		new XmlIoSpimData2().save( data, xmlOutURI );
+
+		n5Writer.close();
+
+		System.out.println( "Generated synthetic dataset, in total took: " + (System.currentTimeMillis() - start ) + " ms." );
+		System.out.println( "done." );
+
+		return null;
+	}
+
+	/**
+	 * @return all beads (x,y,z,intensity) that are within the tile or at most 'border' away from it in local coordinates
+	 */
+	public static double[][] localBeads( final double[][] beads, final AffineTransform3D worldToLocal, final long[] tileSize, final double border )
+	{
+		final ArrayList< double[] > local = new ArrayList<>();
+
+		for ( final double[] bead : beads )
+		{
+			final double[] l = new double[ 4 ];
+			worldToLocal.apply( bead, l );
+			l[ 3 ] = bead[ 3 ];
+
+			boolean inside = true;
+
+			for ( int d = 0; d < 3 && inside; ++d )
+				inside = l[ d ] >= -border && l[ d ] <= tileSize[ d ] - 1 + border;
+
+			if ( inside )
+				local.add( l );
+		}
+
+		return local.toArray( new double[ local.size() ][] );
+	}
+
+	/**
+	 * Renders a block of a tile; background, gaussian noise and the gaussian shaped beads.
+	 *
+	 * @param offset - the offset of the block in the tile
+	 * @param size - the size of the block
+	 * @param beads - the beads (x,y,z,intensity) in local coordinates of the tile
+	 * @param sigma - the sigma of the beads
+	 * @param noise - the standard deviation of the noise
+	 * @param seed - the seed of the noise, combined with the offset of the block
+	 * @return the rendered block
+	 */
+	public static RandomAccessibleInterval< UnsignedShortType > render(
+			final long[] offset,
+			final long[] size,
+			final double[][] beads,
+			final double sigma,
+			final double noise,
+			final long seed )
+	{
+		final int sx = (int)size[ 0 ], sy = (int)size[ 1 ], sz = (int)size[ 2 ];
+		final float[] values = new float[ sx * sy * sz ];
+
+		final Random rnd = new Random( seed + 31 * ( offset[ 0 ] + 31 * ( offset[ 1 ] + 31 * offset[ 2 ] ) ) );
+
+		for ( int i = 0; i < values.length; ++i )
+			values[ i ] = (float)( background + rnd.nextGaussian() * noise );
+
+		final double r = 3 * sigma;
+		final double twoSigmaSq = 2 * sigma * sigma;
+
+		for ( final double[] bead : beads )
+		{
+			final double x = bead[ 0 ] - offset[ 0 ], y = bead[ 1 ] - offset[ 1 ], z = bead[ 2 ] - offset[ 2 ];
+
+			final int x0 = Math.max( 0, (int)Math.ceil( x - r ) ), x1 = Math.min( sx - 1, (int)Math.floor( x + r ) );
+			final int y0 = Math.max( 0, (int)Math.ceil( y - r ) ), y1 = Math.min( sy - 1, (int)Math.floor( y + r ) );
+			final int z0 = Math.max( 0, (int)Math.ceil( z - r ) ), z1 = Math.min( sz - 1, (int)Math.floor( z + r ) );
+
+			for ( int zi = z0; zi <= z1; ++zi )
+				for ( int yi = y0; yi <= y1; ++yi )
+					for ( int xi = x0; xi <= x1; ++xi )
+					{
+						final double dSq = ( xi - x ) * ( xi - x ) + ( yi - y ) * ( yi - y ) + ( zi - z ) * ( zi - z );
+						values[ xi + sx * ( yi + sy * zi ) ] += (float)( bead[ 3 ] * Math.exp( -dSq / twoSigmaSq ) );
+					}
+		}
+
+		final short[] pixels = new short[ values.length ];
+
+		for ( int i = 0; i < values.length; ++i )
+			pixels[ i ] = (short)Math.max( 0, Math.min( 65535, Math.round( values[ i ] ) ) );
+
+		return ArrayImgs.unsignedShorts( pixels, size );
+	}
+
+	public static void main(final String... args) {
+
+		System.out.println(Arrays.toString(args));
+
+		System.exit(new CommandLine(new SparkGenerateSyntheticDataset()).execute(args));
+	}
+}
@@ -42,6 +42,8 @@ import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractRegistration;
+import net.preibisch.bigstitcher.spark.util.ProgressListener;
+import net.preibisch.bigstitcher.spark.util.RunMetrics;
 import net.preibisch.bigstitcher.spark.util.Spark;
 import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.legacy.mpicbg.PointMatchGeneric;
@@ -215,6 +217,7 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 		}
 
 		final URI xmlURI = this.xmlURI;
+		final long xmlHash = this.xmlHash;
 		final boolean matchAcrossLabels = this.matchAcrossLabels;
 		final InterestPointOverlapType interestpointsForReg = this.interestpointsForReg;
 		final int ransacIterations = this.ransacIterations;
@@ -235,14 +238,14 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 		final RegularizationModel regularizationModel = this.regularizationModel;
 		final double lambda = this.regularizationLambda;
 
-		final SparkConf conf = new SparkConf().setAppName("SparkGeometricDescriptorRegistration");
-
-		if ( localSparkBindAddress )
-			conf.set("spark.driver.bindAddress", "127.0.0.1");
+		final SparkConf conf = sparkConf( "SparkGeometricDescriptorRegistration" );
 
 		final JavaSparkContext sc = new JavaSparkContext(conf);
 		sc.setLogLevel("ERROR");
 
+		final RunMetrics metrics = new RunMetrics( sc, "SparkGeometricDescriptorMatching" );
+		registerProgressListener( sc );
+
 		final JavaRDD< ArrayList< Tuple2< ArrayList< PointMatchGeneric< InterestPoint > >, MatchingTask<ViewId> > > > rddResults;
 
 		if ( !groupTiles && !groupIllums && !groupChannels && !splitTimepoints )
@@ -256,11 +259,16 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 			setup.getPairs().forEach( pair -> System.out.println( "\t" + Group.pvid( pair.getA() ) + " <=> " + Group.pvid( pair.getB() ) ) );
 			System.out.println( "In total: " + tasksList.size() + " pair(s) across labels: " + labels);
 
+			ProgressListener.stage( sc, "matching", tasksList.size() );
+
 			final JavaRDD<MatchingTask<ViewId>> rdd = sc.parallelize( tasksList ).repartition( Math.min( Spark.maxPartitions, tasksList.size() ) );
 
 			rddResults = rdd.map( task ->
 			{
-				final SpimData2 data = Spark.getSparkJobSpimData2( xmlURI );
+				final long taskTime = System.nanoTime();
+				final SpimData2 data = metrics.loadXml( () -> Spark.getSparkJobSpimData2( xmlURI, xmlHash ) );
+				// interest points are loaded lazily, load them into a task-local instance instead of the shared one
+				final SpimData2 taskData = metrics.loadXml( () -> Spark.getSparkJobSpimData2( xmlURI ) );
 				final ArrayList< ViewId > views = task.viewsAsList();
 
 				// filter so we only load interest points we actually need
@@ -283,7 +291,7 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 						TransformationTools.getAllTransformedInterestPoints(
 							views,
 							data.getViewRegistrations().getViewRegistrations(),
-							data.getViewInterestPoints().getViewInterestPoints(),
+							taskData.getViewInterestPoints().getViewInterestPoints(),
 							labelMap );
 
 				// only keep those interestpoints that currently overlap with a view to register against
@@ -333,6 +341,8 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 
 				service.shutdown();
 				*/
+				metrics.task( Group.pvid( task.vA ) + " <=> " + Group.pvid( task.vB ), views.size(), System.nanoTime() - taskTime );
+
 				return new ArrayList<>( Arrays.asList( new Tuple2<>( new ArrayList<>( result.getInliers() ), task ) ) );
 			});
 		}
@@ -355,11 +365,16 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 			groupedPairs.forEach( pair -> System.out.println( "\t" + pair.getA() + " <=> " + pair.getB() ) );
 			System.out.println( "In total: " + groupedPairs.size() + " pair(s).");
 
+			ProgressListener.stage( sc, "matching (grouped)", tasksList.size() );
+
 			final JavaRDD<MatchingTask<Group<ViewId>>> rdd = sc.parallelize( tasksList ).repartition( Math.min( Spark.maxPartitions, tasksList.size() ) );
 
 			rddResults = rdd.map( task ->
 			{
-				final SpimData2 data = Spark.getSparkJobSpimData2( xmlURI );
+				final long taskTime = System.nanoTime();
+				final SpimData2 data = metrics.loadXml( () -> Spark.getSparkJobSpimData2( xmlURI, xmlHash ) );
+				// interest points are loaded lazily, load them into a task-local instance instead of the shared one
+				final SpimData2 taskData = metrics.loadXml( () -> Spark.getSparkJobSpimData2( xmlURI ) );
 				//final Pair<Group<ViewId>, Group<ViewId>> pair = Spark.deserializeGroupedViewIdPairForRDD( serializedGroupPair );
 
 				final ArrayList< ViewId > views = new ArrayList<>();
@@ -390,7 +405,7 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 						TransformationTools.getAllTransformedInterestPoints(
 							views,
 							data.getViewRegistrations().getViewRegistrations(),
-							data.getViewInterestPoints().getViewInterestPoints(),
+							taskData.getViewInterestPoints().getViewInterestPoints(),
 							labelMap );
 
 				// only keep those interestpoints that currently overlap with a view to register against
@@ -495,13 +510,19 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 
 				System.out.println( "\t" + task.vA + " <=> " + task.vB + ": Remaining per-view correspondences=" + mapResults.size() );
 
+				metrics.task( task.vA + " <=> " + task.vB, views.size(), System.nanoTime() - taskTime );
+
 				return resultsLocal;
 			});
 		}
 
+		final long time = System.currentTimeMillis();
+
 		rddResults.cache();
 		rddResults.count();
 
+		metrics.stage( "matching", System.currentTimeMillis() - time );
+
 		final List<ArrayList<Tuple2<ArrayList<PointMatchGeneric<InterestPoint>>, MatchingTask<ViewId>>>> results = rddResults.collect();
 
 		// add the corresponding detections and output result
@@ -540,6 +561,7 @@ public class SparkGeometricDescriptorMatching extends AbstractRegistration
 			allIps.parallelStream().forEach( pair -> ip.get( pair.getA() ).getInterestPointList( pair.getB() ).saveCorrespondingInterestPoints( true ) );
 		}
 
+		saveRunReport( metrics );
 		sc.close();
 
 		System.out.println( "Done.");
@@ -31,7 +31,6 @@ import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import org.apache.spark.SparkConf;
@@ -52,7 +51,6 @@ import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.KDTree;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
@@ -62,7 +60,6 @@ import net.imglib2.converter.Converters;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
-import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
 import net.imglib2.position.FunctionRandomAccessible;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
@@ -74,9 +71,14 @@ import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractSelectableViews;
+import net.preibisch.bigstitcher.spark.detection.CombineInterestPoints;
 import net.preibisch.bigstitcher.spark.detection.LazyBackgroundSubtract;
-import net.preibisch.bigstitcher.spark.fusion.OverlappingViews;
+import net.preibisch.bigstitcher.spark.fusion.PrefetchService;
+import net.preibisch.bigstitcher.spark.fusion.ViewBoundsIndex;
 import net.preibisch.bigstitcher.spark.util.Import;
+import net.preibisch.bigstitcher.spark.util.N5Util;
+import net.preibisch.bigstitcher.spark.util.ProgressListener;
+import net.preibisch.bigstitcher.spark.util.RunMetrics;
 import net.preibisch.bigstitcher.spark.util.Spark;
 import net.preibisch.bigstitcher.spark.util.ViewUtil;
 import net.preibisch.bigstitcher.spark.util.ViewUtil.PrefetchPixel;
@@ -139,9 +141,15 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 	@Option(names = { "-i1", "--maxIntensity" }, required = true, description = "max intensity for segmentation, e.g. 2048.0")
 	protected Double maxIntensity = null;
 
-	@Option(names = { "--prefetch" }, description = "prefetch all blocks required to process DoG in each Spark job using unlimited threads, useful in cloud environments (default: false)")
+	@Option(names = { "--prefetch" }, description = "prefetch all blocks required to process DoG in each Spark job using a pool shared by all tasks of an executor, useful in cloud environments (default: false)")
 	protected boolean prefetch = false;
 
+	@Option(names = { "--prefetchThreads" }, description = "maximal number of threads per executor that prefetch blocks (default: 32)")
+	protected int prefetchThreads = 32;
+
+	@Option(names = { "--prefetchMemory" }, description = "maximal amount of prefetched data in MB held per executor (default: 2048)")
+	protected long prefetchMemory = 2048;
+
 	@Option(names = { "--keepTemporaryN5" }, description = "do NOT delete the temporary spark N5 in interestpoints.n5 (default: false)")
 	protected boolean keepTemporaryN5 = false;
 
@@ -192,6 +200,7 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 		// Global variables that need to be serialized for Spark as each job needs access to them
 		final int[] blockSize = Import.csvStringToIntArray(blockSizeString);
 		final URI xmlURI = this.xmlURI;
+		final long xmlHash = this.xmlHash;
 		final String label = this.label;
 		final int downsampleXY = this.dsxy;
 		final int downsampleZ = this.dsz;
@@ -207,6 +216,8 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 		final int maxSpots = this.maxSpots;
 		final boolean maxSpotsPerOverlap = this.maxSpotsPerOverlap;
 		final boolean prefetch = this.prefetch;
+		final int prefetchThreads = this.prefetchThreads;
+		final long prefetchMemory = this.prefetchMemory;
 		final boolean storeIntensities = this.storeIntensities;
 		final Integer medianFilter = this.medianFilter;
 
@@ -238,13 +249,16 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 		// assemble all pairs for parallelization with Spark
 		final ArrayList< Tuple2< ViewId, ViewId > > metadataJobs = new ArrayList<>();
 
+		// transformed bounding boxes of all views, computed once
+		final ViewBoundsIndex viewBoundsIndex = onlyOverlappingRegions ? new ViewBoundsIndex( dataGlobal, viewIdsGlobal ) : null;
+
 		for ( final ViewId viewDesc : viewIdsGlobal )
 		{
 			final ViewId viewId = new ViewId( viewDesc.getTimePointId(), viewDesc.getViewSetupId() );
 
 			if ( onlyOverlappingRegions )
 			{
-				for ( final ViewId otherViewId : OverlappingViews.findAllOverlappingViewsFor( viewId, dataGlobal, viewIdsGlobal ) )
+				for ( final ViewId otherViewId : viewBoundsIndex.overlappingViews( viewId ) )
 				{
 					if ( !otherViewId.equals( viewId ) )
 					{
@@ -268,19 +282,21 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 			}
 		}
 
-		final SparkConf conf = new SparkConf().setAppName("SparkInterestPointDetection");
-
-		if ( localSparkBindAddress )
-			conf.set("spark.driver.bindAddress", "127.0.0.1");
+		final SparkConf conf = sparkConf( "SparkInterestPointDetection" );
 
 		final JavaSparkContext sc = new JavaSparkContext(conf);
 		sc.setLogLevel("ERROR");
 
+		final RunMetrics metrics = new RunMetrics( sc, "SparkInterestPointDetection" );
+		registerProgressListener( sc );
+
+		ProgressListener.stage( sc, "loading metadata", -1 );
+
 		final JavaRDD<Tuple2<ViewId, ViewId>> metadataJobsSpark = sc.parallelize( metadataJobs, Math.min( Spark.maxPartitions, metadataJobs.size() ) );
 
 		final JavaRDD< ArrayList< Tuple3< ViewId, long[], long[] > > > metadataJobRDD = metadataJobsSpark.map( metaData ->
 		{
-			final SpimData2 dataLocal = Spark.getSparkJobSpimData2( xmlURI );
+			final SpimData2 dataLocal = metrics.loadXml( () -> Spark.getSparkJobSpimData2( xmlURI, xmlHash ) );
 
 			final ViewDescription vd = dataLocal.getSequenceDescription().getViewDescription( metaData._1() );
 			final ImgLoader imgLoader = dataLocal.getSequenceDescription().getImgLoader();
@@ -413,12 +429,15 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 
 		// returning all points can exceed Spark boundaries, save it to N5 and load instead
 		// e.g. Total size of serialized results of 4317 tasks (1024.6 MiB) is bigger than spark.driver.maxResultSize (1024.0 MiB)
+		ProgressListener.stage( sc, "detection", sparkProcess.size() );
+
 		final JavaRDD<Tuple3<ViewId, long[], long[][]>> rddJob = sc.parallelize( sparkProcess, Math.min( Spark.maxPartitions, sparkProcess.size() ) );
 
 		// return ViewId, interval, filename for serialized SparkIPResults[locations, intensities]
 		final JavaRDD< Tuple3< ViewId, long[][], String> > rddResult = rddJob.map( serializedInput ->
 		{
-			final SpimData2 data = Spark.getSparkJobSpimData2( xmlURI );
+			final long blockTime = System.nanoTime();
+			final SpimData2 data = metrics.loadXml( () -> Spark.getSparkJobSpimData2( xmlURI, xmlHash ) );
 			final ViewId viewId = serializedInput._1();
 			final ViewDescription vd = data.getSequenceDescription().getViewDescription( serializedInput._1() );
 
@@ -481,6 +500,9 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 
 			System.out.println( "Processing " + Group.pvid(viewId) + ", " + Util.printInterval( processInterval ) + " of full interval " + Util.printInterval( input.getA() ) );
 
+			// holds the prefetched input cells until the interest points of this block are detected
+			PrefetchService.Handle prefetched = null;
+
 			if ( prefetch )
 			{
 				// how big is the biggest sigma? It defines the overlap with neighboring blocks that we need
@@ -494,52 +516,65 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 
 				System.out.println( "Prefetching " + prefetchBlocks.size() + " blocks for " + Group.pvid(viewId) + ", " + Util.printInterval( processInterval ) );
 
-				final ExecutorService prefetchExecutor = Executors.newCachedThreadPool(); //Executors.newFixedThreadPool( SparkAffineFusion.N_PREFETCH_THREADS );
-				prefetchExecutor.invokeAll( prefetchBlocks );
-				prefetchExecutor.shutdown();
+				// the size of the input cells is not known before they are loaded
+				metrics.input( prefetchBlocks.size(), 0 );
+
+				prefetched = PrefetchService.getInstance( prefetchThreads, prefetchMemory * 1024 * 1024 ).submit( prefetchBlocks );
 			}
 
-			final RandomAccessibleInterval inputImage;
+			final ArrayList< InterestPoint > ips;
 
-			if ( medianFilter != null && medianFilter > 0 )
+			try
 			{
-				inputImage = LazyBackgroundSubtract.init(
-						(RandomAccessible)Views.extendMirrorDouble( input.getA() ),
-						new FinalInterval(input.getA()),
-						medianFilter,
-						new int[] {512, 512, 128} );
+				final RandomAccessibleInterval inputImage;
+
+				if ( medianFilter != null && medianFilter > 0 )
+				{
+					inputImage = LazyBackgroundSubtract.init(
+							(RandomAccessible)Views.extendMirrorDouble( input.getA() ),
+							new FinalInterval(input.getA()),
+							medianFilter,
+							new int[] {512, 512, 128} );
+				}
+				else
+				{
+					inputImage = input.getA();
+				}
+
+				final ExecutorService service = Threads.createFixedExecutorService( 1 );
+				final long dogTime = System.nanoTime();
+
+				ips = DoGImgLib2.computeDoG(
+						(RandomAccessible)Views.extendMirrorDouble( inputImage ), // the entire image, extended to infinity
+						null, // mask
+						processInterval,
+						dog.sigma,
+						dog.threshold,
+						dog.localization,
+						dog.findMin,
+						dog.findMax,
+						dog.minIntensity,
+						dog.maxIntensity,
+						new int[] {128, 128, 64},
+						service,
+						dog.cuda,
+						dog.deviceCUDA,
+						dog.accurateCUDA,
+						dog.percentGPUMem );
+
+				service.shutdown();
+				metrics.computeTime( System.nanoTime() - dogTime );
 			}
-			else
+			finally
 			{
-				inputImage = input.getA();
+				if ( prefetched != null )
+					prefetched.close();
 			}
 
-			final ExecutorService service = Threads.createFixedExecutorService( 1 );
-
-			@SuppressWarnings("unchecked")
-			final ArrayList< InterestPoint > ips = DoGImgLib2.computeDoG(
-					(RandomAccessible)Views.extendMirrorDouble( inputImage ), // the entire image, extended to infinity
-					null, // mask
-					processInterval,
-					dog.sigma,
-					dog.threshold,
-					dog.localization,
-					dog.findMin,
-					dog.findMax,
-					dog.minIntensity,
-					dog.maxIntensity,
-					new int[] {128, 128, 64},
-					service,
-					dog.cuda,
-					dog.deviceCUDA,
-					dog.accurateCUDA,
-					dog.percentGPUMem );
-
-			service.shutdown();
-
 			if ( ips == null || ips.size() == 0 )
 			{
 				System.out.println( "No interest points found for " + Group.pvid(viewId) + ", " + Util.printInterval( processInterval ) );
+				metrics.block( serializedInput._3(), 1, System.nanoTime() - blockTime );
 				//return new Tuple4<>( serializedInput._1(), Spark.serializeInterval( processInterval ), null, null );
 				return new Tuple3<>( viewId, Spark.serializeInterval( processInterval ), "" );
 			}
@@ -591,46 +626,59 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 			serializeDataset = serializeDataset.replaceAll( "\\[", "_" );
 			serializeDataset = serializeDataset.replaceAll( "\\]", "_" );
 
-			final N5Writer n5WriterLocal = URITools.instantiateN5Writer( StorageFormat.N5, tempURI );
+			final long writeTime = System.nanoTime();
+			final N5Writer n5WriterLocal = N5Util.acquireN5Writer( tempURI, StorageFormat.N5 );
 
-			if ( ips.size() > 0 )
+			try
 			{
-				final int n = ips.get( 0 ).getL().length;
-				final double[] points = new double[ ips.size() * n ];
+				if ( ips.size() > 0 )
+				{
+					final int n = ips.get( 0 ).getL().length;
+					final double[] points = new double[ ips.size() * n ];
 
-				int j = 0;
-				for ( int i = 0; i < ips.size(); ++i )
-					for ( int d = 0; d < n; ++d )
-						points[ j++ ] = ips.get( i ).getL()[ d ];
-
-				N5Utils.save(
-						ArrayImgs.doubles( points, new long[] { n, ips.size() } ),
-						n5WriterLocal,
-						tempDataset + "/" + serializeDataset + "/points",
-						new int[] { n, ips.size() },
-						new ZstandardCompression() );
-			}
+					int j = 0;
+					for ( int i = 0; i < ips.size(); ++i )
+						for ( int d = 0; d < n; ++d )
+							points[ j++ ] = ips.get( i ).getL()[ d ];
+
+					N5Utils.save(
+							ArrayImgs.doubles( points, new long[] { n, ips.size() } ),
+							n5WriterLocal,
+							tempDataset + "/" + serializeDataset + "/points",
+							new int[] { n, ips.size() },
+							new ZstandardCompression() );
+				}
 
-			if ( intensities != null && intensities.length > 0 )
+				if ( intensities != null && intensities.length > 0 )
+				{
+					N5Utils.save(
+							ArrayImgs.doubles( intensities, new long[] { intensities.length } ),
+							n5WriterLocal,
+							tempDataset + "/" + serializeDataset + "/intensities",
+							new int[] { intensities.length },
+							new ZstandardCompression() );
+				}
+			}
+			finally
 			{
-				N5Utils.save(
-						ArrayImgs.doubles( intensities, new long[] { intensities.length } ),
-						n5WriterLocal,
-						tempDataset + "/" + serializeDataset + "/intensities",
-						new int[] { intensities.length },
-						new ZstandardCompression() );
+				N5Util.releaseN5Writer( n5WriterLocal );
 			}
 
-			n5WriterLocal.close();
+			metrics.written( 0, 8l * ips.size() * ( ips.get( 0 ).getL().length + ( intensities != null ? 1 : 0 ) ), System.nanoTime() - writeTime );
+			metrics.block( serializedInput._3(), 1, System.nanoTime() - blockTime );
 
 			// return ViewId, interval, filename for [locations, intensities]
 			return new Tuple3<>( viewId, Spark.serializeInterval( processInterval ), serializeDataset );
 		});
 
 
+		final long time = System.currentTimeMillis();
+
 		rddResult.cache();
 		rddResult.count();
 
+		metrics.stage( "detection", System.currentTimeMillis() - time );
+
 		final List<Tuple3<ViewId, long[][], String>> results = rddResult.collect();
 
 		// assemble all interest point intervals per ViewId
@@ -674,20 +722,27 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 		{
 			System.out.println( "Deleting temporary Spark files ... ");
 
+			ProgressListener.stage( sc, "deleting temporary files", -1 );
+
 			final JavaRDD<Tuple3<ViewId, long[][], String>> rdd = sc.parallelize( results, Math.min( Spark.maxPartitions, results.size() ) );
 
 			rdd.foreach( boundingBox ->
 			{
-				final N5Writer n5WriterLocal = URITools.instantiateN5Writer( StorageFormat.N5, tempURI );
+				final N5Writer n5WriterLocal = N5Util.acquireN5Writer( tempURI, StorageFormat.N5 );
 
-				if ( n5WriterLocal.datasetExists( tempDataset + "/" + boundingBox._3() + "/points" ))
+				try
 				{
-					n5WriterLocal.remove( tempDataset + "/" + boundingBox._3() + "/points" );
-
-					if ( n5WriterLocal.datasetExists( tempDataset + "/" + boundingBox._3() + "/intensities" ) )
-						n5WriterLocal.remove( tempDataset + "/" + boundingBox._3() + "/intensities" );
+					if ( n5WriterLocal.datasetExists( tempDataset + "/" + boundingBox._3() + "/points" ))
+					{
+						n5WriterLocal.remove( tempDataset + "/" + boundingBox._3() + "/points" );
 
-					n5WriterLocal.close();
+						if ( n5WriterLocal.datasetExists( tempDataset + "/" + boundingBox._3() + "/intensities" ) )
+							n5WriterLocal.remove( tempDataset + "/" + boundingBox._3() + "/intensities" );
+					}
+				}
+				finally
+				{
+					N5Util.releaseN5Writer( n5WriterLocal );
 				}
 			});
 
@@ -696,8 +751,12 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 			System.out.println( "All deleted.");
 		}
 
+		saveRunReport( metrics );
 		sc.close();
 
+		// writers that the Spark tasks shared in this JVM (local mode)
+		N5Util.closeSharedWriters();
+
 		System.out.println( "Computed all interest points, statistics:" );
 
 		// assemble all ViewIds
@@ -795,43 +854,7 @@ public class SparkInterestPointDetection extends AbstractSelectableViews impleme
 				intensitiesList = null;
 
 			// combine points since overlapping areas might exist
-			for ( int l = 0; l < ipsList.size(); ++l )
-			{
-				final List< InterestPoint > ips = ipsList.get( l );
-				final List< Double > intensities;
-
-				if ( storeIntensities || maxSpots > 0 )
-					intensities = intensitiesList.get( l );
-				else
-					intensities = null;
-
-				if ( !overlappingOnly || myIps.size() == 0 )
-				{
-					myIps.addAll( ips );
-
-					if ( storeIntensities || maxSpots > 0 )
-						myIntensities.addAll( intensities );
-				}
-				else
-				{
-					final KDTree< InterestPoint > tree = new KDTree<>(myIps, myIps);
-					final NearestNeighborSearchOnKDTree< InterestPoint > search = new NearestNeighborSearchOnKDTree<>( tree );
-
-					for ( int i = 0; i < ips.size(); ++i )
-					{
-						final InterestPoint ip = ips.get( i );
-						search.search( ip );
-
-						if ( search.getDistance() > combineDistance )
-						{
-							myIps.add( ip );
-
-							if ( storeIntensities || maxSpots > 0 )
-								myIntensities.add( intensities.get( i ) );
-						}
-					}
-				}
-			}
+			CombineInterestPoints.combine( ipsList, intensitiesList, overlappingOnly, combineDistance, myIps, myIntensities );
 
 			if ( myIps.size() > 0 )
 			{
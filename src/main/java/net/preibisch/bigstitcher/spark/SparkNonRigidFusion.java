@@ -26,13 +26,16 @@ import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.broadcast.Broadcast;
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
@@ -48,18 +51,27 @@ import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converters;
 import net.imglib2.parallel.SequentialExecutorService;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import net.preibisch.bigstitcher.spark.SparkAffineFusion.DataTypeFusion;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractSelectableViews;
+import net.preibisch.bigstitcher.spark.fusion.BlockCostModel;
+import net.preibisch.bigstitcher.spark.fusion.ViewBoundsIndex;
 import net.preibisch.bigstitcher.spark.util.BDVSparkInstantiateViewSetup;
+import net.preibisch.bigstitcher.spark.util.BlockPipeline;
+import net.preibisch.bigstitcher.spark.util.BlockPlanner;
+import net.preibisch.bigstitcher.spark.util.Downsampling;
+import net.preibisch.bigstitcher.spark.util.GridOrdering;
 import net.preibisch.bigstitcher.spark.util.Import;
 import net.preibisch.bigstitcher.spark.util.N5Util;
+import net.preibisch.bigstitcher.spark.util.ProgressListener;
+import net.preibisch.bigstitcher.spark.util.RunMetrics;
 import net.preibisch.bigstitcher.spark.util.Spark;
-import net.preibisch.bigstitcher.spark.util.ViewUtil;
 import net.preibisch.mvrecon.fiji.plugin.fusion.FusionGUI.FusionType;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
@@ -69,7 +81,6 @@ import net.preibisch.mvrecon.process.n5api.SpimData2Tools;
 import net.preibisch.mvrecon.process.n5api.SpimData2Tools.InstantiateViewSetup;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
-import util.Grid;
 import util.URITools;
 
 public class SparkNonRigidFusion extends AbstractSelectableViews implements Callable<Void>, Serializable
@@ -112,6 +123,15 @@ public class SparkNonRigidFusion extends AbstractSelectableViews implements Call
 			description = "Data type, UINT8 [0...255], UINT16 [0...65535] and FLOAT32 are supported, when choosing UINT8 or UINT16 you must define min and max intensity (default: FLOAT32)")
 	private DataTypeFusion dataTypeFusion = null;
 
+	@Option(names = { "--computeThreads" }, description = "number of threads per Spark task that fuse the output blocks of a compute block, with 1 the Spark task fuses them itself while its I/O threads write the previous ones (default: 1)")
+	private int computeThreads = 1;
+
+	@Option(names = { "--ioThreads" }, description = "number of threads per Spark task that compress and write output blocks while the next ones are fused, pooled by all tasks of an executor (default: 2)")
+	private int ioThreads = 2;
+
+	@Option(names = { "--maxQueuedBlocks" }, description = "maximal number of output blocks per Spark task that are fused but not yet written (default: 4)")
+	private int maxQueuedBlocks = 4;
+
 	@Option(names = { "--minIntensity" }, description = "min intensity for scaling values to the desired range (required for UINT8 and UINT16), e.g. 0.0")
 	private Double minIntensity = null;
 
@@ -207,6 +227,7 @@ public class SparkNonRigidFusion extends AbstractSelectableViews implements Call
 		final URI n5PathURI = this.n5PathURI;
 		final String n5Dataset = this.n5Dataset != null ? this.n5Dataset : N5ApiTools.createBDVPath( this.bdvString, 0, this.storageType );
 		final URI xmlURI = this.xmlURI;
+		final long xmlHash = this.xmlHash;
 		final URI xmloutURI = this.xmlOutURI;
 		final StorageFormat storageType = this.storageType;
 		final Compression compression = new ZstandardCompression( 3 );
@@ -249,9 +270,7 @@ public class SparkNonRigidFusion extends AbstractSelectableViews implements Call
 		// using bigger blocksizes than being stored for efficiency (needed for very large datasets)
 		final int[] superBlockSize = new int[ 3 ];
 		Arrays.setAll( superBlockSize, d -> blockSize[ d ] * blocksPerJob[ d ] );
-		final List<long[][]> grid = Grid.create(dimensions,
-				superBlockSize,
-				blockSize);
+		final List<long[][]> grid = BlockPlanner.forDataset( driverVolumeWriter, n5Dataset ).plan( superBlockSize );
 
 		System.out.println( "numJobs = " + grid.size() );
 
@@ -298,21 +317,31 @@ public class SparkNonRigidFusion extends AbstractSelectableViews implements Call
 			System.out.println( "Done writing BDV metadata.");
 		}
 
-		final SparkConf conf = new SparkConf().setAppName("NonRigidFusion");
-
-		if (localSparkBindAddress)
-			conf.set("spark.driver.bindAddress", "127.0.0.1");
+		final SparkConf conf = sparkConf( "NonRigidFusion" );
 
 		final JavaSparkContext sc = new JavaSparkContext(conf);
 		sc.setLogLevel("ERROR");
 
-		final JavaRDD<long[][]> rdd = sc.parallelize( grid, Math.min( Spark.maxPartitions, grid.size() ) );
+		final RunMetrics metrics = new RunMetrics( sc, "SparkNonRigidFusion" );
+		registerProgressListener( sc );
+
+		// transformed bounding boxes of all views, computed once
+		final ViewBoundsIndex viewBoundsIndexGlobal = new ViewBoundsIndex( dataGlobal, viewIdsGlobal );
+		final Broadcast< ViewBoundsIndex > viewBoundsIndex = sc.broadcast( viewBoundsIndexGlobal );
+
+		// balance partitions by estimated cost, blocks that no view overlaps (expanded by 50, see below) are not submitted
+		final BlockCostModel costModel = new BlockCostModel( viewBoundsIndexGlobal, min, 50 );
+
+		ProgressListener.stage( sc, "non-rigid fusion", grid.stream().filter( gridBlock -> costModel.cost( gridBlock ) > 0 ).count() );
+
+		final JavaRDD<long[][]> rdd = GridOrdering.parallelize( sc, grid, Function.identity(), costModel::cost );
 
 		final long time = System.currentTimeMillis();
 
 		rdd.foreach(
 				gridBlock -> {
-					final SpimData2 dataLocal = Spark.getSparkJobSpimData2( xmlURI );
+					final long blockTime = System.nanoTime();
+					final SpimData2 dataLocal = metrics.loadXml( () -> Spark.getSparkJobSpimData2( xmlURI, xmlHash ) );
 
 					// be smarter, test which ViewIds are actually needed for the block we want to fuse
 					final Interval fusedBlock =
@@ -322,49 +351,35 @@ public class SparkNonRigidFusion extends AbstractSelectableViews implements Call
 											gridBlock[0] ), // block offset
 									min ); // min of the randomaccessbileinterval
 
-					// recover views to process
-					final List< ViewId > viewsToFuse = new ArrayList<>(); // fuse
-					final List< ViewId > allViews = new ArrayList<>();
-
-					for ( int i = 0; i < serializedViewIds.length; ++i )
-					{
-						final ViewId viewId = Spark.deserializeViewIds(serializedViewIds, i);
-
-						// expand by 50 to be conservative for non-rigid overlaps
-						final Interval boundingBox = ViewUtil.getTransformedBoundingBox( dataLocal, viewId );
-						final Interval bounds = Intervals.expand( boundingBox, 50 );
-						// TODO: estimate the "50" from the distance of corresponding, transformed interest points
-
-						if ( ViewUtil.overlaps( fusedBlock, bounds ) )
-							viewsToFuse.add( viewId );
+					final ViewBoundsIndex index = viewBoundsIndex.value();
 
-						allViews.add( viewId );
-					}
+					// recover views to process
+					// expand by 50 to be conservative for non-rigid overlaps
+					// TODO: estimate the "50" from the distance of corresponding, transformed interest points
+					final List< ViewId > viewsToFuse = index.overlapping( Intervals.expand( fusedBlock, 50 ) ); // fuse
 
 					// nothing to save...
 					if ( viewsToFuse.size() == 0 )
+					{
+						metrics.emptyBlocks( 1 );
 						return;
+					}
 
-					// test with which views the viewsToFuse overlap
+					// test with which views the viewsToFuse overlap (both expanded by 25)
 					// TODO: use the actual interest point correspondences maybe (i.e. change in mvr)
+					final HashSet< ViewId > overlappingViewsToFuse = new HashSet<>();
+
+					for ( final ViewId fusedId : viewsToFuse )
+						overlappingViewsToFuse.addAll( index.overlapping( Intervals.expand( index.bounds( fusedId ), 50 ) ) );
+
 					final List< ViewId > viewsToUse = new ArrayList<>(); // used to compute the non-rigid transform
 
-					for ( final ViewId viewId : allViews )
+					for ( int i = 0; i < serializedViewIds.length; ++i )
 					{
-						final Interval boundingBoxView = ViewUtil.getTransformedBoundingBox( dataLocal, viewId );
-						final Interval boundsView = Intervals.expand( boundingBoxView, 25 );
+						final ViewId viewId = Spark.deserializeViewIds(serializedViewIds, i);
 
-						for ( final ViewId fusedId : viewsToFuse )
-						{
-							final Interval boundingBoxFused = ViewUtil.getTransformedBoundingBox( dataLocal, fusedId );
-							final Interval boundsFused = Intervals.expand( boundingBoxFused, 25 );
-							
-							if ( ViewUtil.overlaps( boundsView, boundsFused ))
-							{
-								viewsToUse.add( viewId );
-								break;
-							}
-						}
+						if ( overlappingViewsToFuse.contains( viewId ) )
+							viewsToUse.add( viewId );
 					}
 
 					final double downsampling = Double.NaN;
@@ -399,40 +414,62 @@ public class SparkNonRigidFusion extends AbstractSelectableViews implements Call
 
 					service.shutdown();
 
-					final N5Writer executorVolumeWriter = N5Util.createN5Writer(n5PathURI, storageType);
+					final RandomAccessibleInterval output;
+					final NativeType type;
 
 					if ( uint8 )
 					{
-						final RandomAccessibleInterval< UnsignedByteType > sourceUINT8 =
-								Converters.convert(
-										source,(i, o) -> o.setReal( ( i.get() - minIntensity ) / range ),
-										new UnsignedByteType());
-
-						//final RandomAccessibleInterval<UnsignedByteType> sourceGridBlock = Views.offsetInterval(sourceUINT8, gridBlock[0], gridBlock[1]);
-						N5Utils.saveBlock(sourceUINT8, executorVolumeWriter, n5Dataset, gridBlock[2]);
+						type = new UnsignedByteType();
+						output = Converters.convert(
+								source,(i, o) -> o.setReal( ( i.get() - minIntensity ) / range ),
+								new UnsignedByteType());
 					}
 					else if ( uint16 )
 					{
-						final RandomAccessibleInterval< UnsignedShortType > sourceUINT16 =
-								Converters.convert(
-										source,(i, o) -> o.setReal( ( i.get() - minIntensity ) / range ),
-										new UnsignedShortType());
-
-						//final RandomAccessibleInterval<UnsignedShortType> sourceGridBlock = Views.offsetInterval(sourceUINT16, gridBlock[0], gridBlock[1]);
-						N5Utils.saveBlock(sourceUINT16, executorVolumeWriter, n5Dataset, gridBlock[2]);
+						type = new UnsignedShortType();
+						output = Converters.convert(
+								source,(i, o) -> o.setReal( ( i.get() - minIntensity ) / range ),
+								new UnsignedShortType());
 					}
 					else
 					{
-						//final RandomAccessibleInterval<FloatType> sourceGridBlock = Views.offsetInterval(source, gridBlock[0], gridBlock[1]);
-						N5Utils.saveBlock(source, executorVolumeWriter, n5Dataset, gridBlock[2]);
+						type = new FloatType();
+						output = source;
 					}
 
-					if ( executorVolumeWriter != N5Util.sharedHDF5Writer )
-						executorVolumeWriter.close();
+					final N5Writer executorVolumeWriter = N5Util.acquireN5Writer( n5PathURI, storageType );
+
+					// the output blocks are fused by the compute threads while the previous ones are compressed and written
+					try ( final BlockPipeline pipeline = new BlockPipeline( computeThreads, ioThreads, maxQueuedBlocks ) )
+					{
+						for ( final long[][] block : BlockPipeline.split( gridBlock, blockSize ) )
+						{
+							final long[] offset = new long[ 3 ];
+							Arrays.setAll( offset, d -> block[ 0 ][ d ] - gridBlock[ 0 ][ d ] );
+
+							pipeline.submit(
+									metrics.compute( () -> Downsampling.copyToArrayImg( Views.offsetInterval( Views.zeroMin( output ), offset, block[ 1 ] ), type ) ),
+									metrics.write( fused -> N5Utils.saveBlock( fused, executorVolumeWriter, n5Dataset, block[ 2 ] ) ) );
+						}
+
+						pipeline.await();
+					}
+					finally
+					{
+						N5Util.releaseN5Writer( executorVolumeWriter );
+					}
+
+					metrics.block( gridBlock, viewsToFuse.size(), System.nanoTime() - blockTime );
 				});
 
+		metrics.stage( "fusion", System.currentTimeMillis() - time );
+
+		saveRunReport( metrics );
 		sc.close();
 
+		// writers that the Spark tasks shared in this JVM (local mode)
+		N5Util.closeSharedWriters();
+
 		// close main writer (is shared over Spark-threads if it's HDF5, thus just closing it here)
 		driverVolumeWriter.close();
 
@@ -51,6 +51,8 @@ import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractSelectableViews;
+import net.preibisch.bigstitcher.spark.util.ProgressListener;
+import net.preibisch.bigstitcher.spark.util.RunMetrics;
 import net.preibisch.bigstitcher.spark.util.Spark;
 import net.preibisch.bigstitcher.spark.util.SerializablePairwiseStitchingResult;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
@@ -181,19 +183,22 @@ public class SparkPairwiseStitching extends AbstractSelectableViews
 		final ActionType channelCombine = this.channelCombine;
 		final ActionType illumCombine = this.illumCombine;
 
-		final SparkConf conf = new SparkConf().setAppName("SparkPairwiseStitching");
-
-		if (localSparkBindAddress)
-			conf.set("spark.driver.bindAddress", "127.0.0.1");
+		final SparkConf conf = sparkConf( "SparkPairwiseStitching" );
 
 		final JavaSparkContext sc = new JavaSparkContext(conf);
 		sc.setLogLevel("ERROR");
 
+		final RunMetrics metrics = new RunMetrics( sc, "SparkPairwiseStitching" );
+		registerProgressListener( sc );
+
+		ProgressListener.stage( sc, "pairwise stitching", groupedPairs.size() );
+
 		final JavaRDD<int[][][]> rdd = sc.parallelize( Spark.serializeGroupedViewIdPairsForRDD( groupedPairs ), Math.min( Spark.maxPartitions, groupedPairs.size() ) );
 
 		final JavaRDD<Tuple2<int[][][], SerializablePairwiseStitchingResult>> rddResults = rdd.map( serializedGroupPair ->
 		{
-			final SpimData2 data = Spark.getSparkJobSpimData2( xmlURI );
+			final long taskTime = System.nanoTime();
+			final SpimData2 data = metrics.loadXml( () -> Spark.getSparkJobSpimData2( xmlURI, xmlHash ) );
 			final Pair<Group<ViewId>, Group<ViewId>> pair = Spark.deserializeGroupedViewIdPairForRDD( serializedGroupPair );
 			final ViewRegistrations vrs = data.getViewRegistrations();
 
@@ -271,6 +276,8 @@ public class SparkPairwiseStitching extends AbstractSelectableViews
 
 			serviceLocal.shutdown();
 
+			metrics.task( pair.getA() + " <> " + pair.getB(), pair.getA().getViews().size() + pair.getB().getViews().size(), System.nanoTime() - taskTime );
+
 			if ( result == null )
 			{
 				System.out.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: " + pair.getA() + " <> " + pair.getB() + ": No shift found." );
@@ -302,9 +309,13 @@ public class SparkPairwiseStitching extends AbstractSelectableViews
 			}
 		});
 
+		final long time = System.currentTimeMillis();
+
 		rddResults.cache();
 		rddResults.count();
 
+		metrics.stage( "pairwise stitching", System.currentTimeMillis() - time );
+
 		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
 
 		System.out.println( "\nCollecting results\n" );
@@ -381,6 +392,7 @@ public class SparkPairwiseStitching extends AbstractSelectableViews
 
 		System.out.println( new Date( System.currentTimeMillis() ) + ": Remaining pairs after applying filters: " + fsr.getPairwiseResults().size() );
 
+		saveRunReport( metrics );
 		sc.close();
 
 		if (!dryRun)
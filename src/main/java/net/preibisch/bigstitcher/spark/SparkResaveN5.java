@@ -29,6 +29,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.apache.spark.SparkConf;
@@ -37,17 +38,29 @@ import org.apache.spark.api.java.JavaSparkContext;
 import org.bigdataviewer.n5.N5CloudImageLoader;
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.universe.StorageFormat;
 
 import bdv.img.n5.N5ImageLoader;
+import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
+import net.imglib2.view.Views;
 import net.preibisch.bigstitcher.spark.CreateFusionContainer.Compressions;
 import net.preibisch.bigstitcher.spark.abstractcmdline.AbstractBasic;
+import net.preibisch.bigstitcher.spark.util.BlockPipeline;
+import net.preibisch.bigstitcher.spark.util.BlockPlanner;
+import net.preibisch.bigstitcher.spark.util.Downsampling;
+import net.preibisch.bigstitcher.spark.util.GridOrdering;
 import net.preibisch.bigstitcher.spark.util.Import;
 import net.preibisch.bigstitcher.spark.util.N5Util;
+import net.preibisch.bigstitcher.spark.util.ProgressListener;
+import net.preibisch.bigstitcher.spark.util.RunMetrics;
 import net.preibisch.bigstitcher.spark.util.Spark;
 import net.preibisch.mvrecon.fiji.plugin.resave.Resave_HDF5;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
@@ -99,6 +112,15 @@ public class SparkResaveN5 extends AbstractBasic implements Callable<Void>, Seri
 	@Option(names = {"-cl", "--compressionLevel" }, description = "compression level, if supported by the codec (default: gzip 1, Zstandard 3, xz 6)")
 	private Integer compressionLevel = null;
 
+	@Option(names = { "--computeThreads" }, description = "number of threads per Spark task that load the output blocks of a compute block, with 1 the Spark task loads them itself while its I/O threads write the previous ones (default: 1)")
+	private int computeThreads = 1;
+
+	@Option(names = { "--ioThreads" }, description = "number of threads per Spark task that compress and write output blocks while the next ones are loaded, pooled by all tasks of an executor (default: 2)")
+	private int ioThreads = 2;
+
+	@Option(names = { "--maxQueuedBlocks" }, description = "maximal number of output blocks per Spark task that are loaded but not yet written (default: 4)")
+	private int maxQueuedBlocks = 4;
+
 	@Option(names = { "-o", "--n5Path" }, description = "N5/OME-ZARR path for saving, (default: 'folder of the xml'/dataset.n5 or e.g. s3://myBucket/data.n5)")
 	private String n5PathURIString = null;
 
@@ -231,108 +253,198 @@ public class SparkResaveN5 extends AbstractBasic implements Callable<Void>, Seri
 				}).collect(Collectors.toMap( e -> e.getA(), e -> e.getB() ));
 
 		System.out.println( "Created BDV-metadata, took " + (System.currentTimeMillis() - time ) + " ms." );
-		System.out.println( "Number of compute blocks = " + gridS0.size() );
 
-		final SparkConf conf = new SparkConf().setAppName("SparkResaveN5");
+		// every chunk of the created datasets is written by exactly one compute block
+		validateJobs( n5Writer, gridS0, viewIdToMrInfo, 0 );
+		System.out.println( "Number of compute blocks = " + gridS0.size() );
 
-		if ( localSparkBindAddress )
-			conf.set("spark.driver.bindAddress", "127.0.0.1");
+		final SparkConf conf = sparkConf( "SparkResaveN5" );
 
 		final JavaSparkContext sc = new JavaSparkContext(conf);
 		sc.setLogLevel("ERROR");
 
+		final RunMetrics metrics = new RunMetrics( sc, "SparkResaveN5" );
+		registerProgressListener( sc );
+
 		//
 		// Save s0 level
 		//
 		time = System.currentTimeMillis();
 
-		final JavaRDD<long[][]> rdds0 = sc.parallelize( gridS0, Math.min( Spark.maxPartitions, gridS0.size() ) );
+		ProgressListener.stage( sc, "resave s0", gridS0.size() );
+
+		final JavaRDD<long[][]> rdds0 = GridOrdering.parallelize( sc, gridS0 );
 
 		rdds0.foreach(
 				gridBlock ->
 				{
-					final SpimData2 dataLocal = Spark.getSparkJobSpimData2(xmlURI);
-					final N5Writer n5Lcl = URITools.instantiateN5Writer( useN5 ? StorageFormat.N5 : StorageFormat.ZARR, n5PathURI );
-
-					N5ApiTools.resaveS0Block(
-							dataLocal,
-							n5Lcl,
-							useN5 ? StorageFormat.N5 : StorageFormat.ZARR,
-							dataTypes.get( N5ApiTools.gridBlockToViewId( gridBlock ).getViewSetupId() ),
-							N5ApiTools.gridToDatasetBdv( 0, useN5 ? StorageFormat.N5 : StorageFormat.ZARR ), // a function mapping the gridblock to the dataset name for level 0 and N5
-							gridBlock );
-
-					n5Lcl.close();
+					final long blockTime = System.nanoTime();
+
+					final SpimData2 dataLocal = metrics.loadXml( () -> Spark.getSparkJobSpimData2( xmlURI, xmlHash ) );
+					final N5Writer n5Lcl = N5Util.acquireN5Writer( n5PathURI, useN5 ? StorageFormat.N5 : StorageFormat.ZARR );
+
+					// the output blocks are loaded by the compute threads while the previous ones are compressed and written
+					try ( final BlockPipeline pipeline = new BlockPipeline( computeThreads, ioThreads, maxQueuedBlocks ) )
+					{
+						resaveS0Block(
+								pipeline,
+								dataLocal,
+								n5Lcl,
+								useN5 ? StorageFormat.N5 : StorageFormat.ZARR,
+								N5ApiTools.gridToDatasetBdv( 0, useN5 ? StorageFormat.N5 : StorageFormat.ZARR ), // a function mapping the gridblock to the dataset name for level 0 and N5
+								gridBlock,
+								blockSize,
+								metrics );
+
+						pipeline.await();
+					}
+					finally
+					{
+						N5Util.releaseN5Writer( n5Lcl );
+					}
+
+					metrics.block( gridBlock, 1, System.nanoTime() - blockTime );
 				});
 
 		System.out.println( "Resaved " + (useN5 ? "N5 s0" : "OME-ZARR 0") + "-level, took: " + (System.currentTimeMillis() - time ) + " ms." );
+		metrics.stage( "s0", System.currentTimeMillis() - time );
 
 		//
 		// Save remaining downsampling levels (s1 ... sN)
 		//
-		for ( int level = 1; level < downsamplings.length; ++level )
+		saveDownsamplingLevels( sc, n5Writer, n5PathURI, useN5, viewIdsGlobal, viewIdToMrInfo, downsamplings.length, metrics );
+
+		saveRunReport( metrics );
+		sc.close();
+
+		// writers that the Spark tasks shared in this JVM (local mode)
+		N5Util.closeSharedWriters();
+
+		System.out.println( "resaved successfully." );
+
+		// things look good, let's save the new XML
+		System.out.println( "Saving new xml to: " + xmlOutURI );
+
+		dataGlobal.getSequenceDescription().setImgLoader( createImgLoader( dataGlobal, n5PathURI, useN5, viewIdToMrInfo ) );
+
+		new XmlIoSpimData2().save( dataGlobal, xmlOutURI );
+
+		n5Writer.close();
+
+		Thread.sleep( 100 );
+		System.out.println( "Resaved project, in total took: " + (System.currentTimeMillis() - time ) + " ms." );
+		System.out.println( "done." );
+
+		return null;
+	}
+
+	/**
+	 * Verifies that every chunk of one level of all views is written by exactly one compute block (see {@link BlockPlanner}).
+	 *
+	 * @param n5 - the container
+	 * @param blocks - the compute blocks of all views (the ViewId is stored in the blocks)
+	 * @param viewIdToMrInfo - the levels of each view
+	 * @param level - the level
+	 */
+	public static void validateJobs(
+			final N5Reader n5,
+			final List< long[][] > blocks,
+			final Map< ViewId, MultiResolutionLevelInfo[] > viewIdToMrInfo,
+			final int level )
+	{
+		blocks.stream().collect( Collectors.groupingBy( gridBlock -> N5ApiTools.gridBlockToViewId( gridBlock ) ) ).forEach( ( viewId, viewBlocks ) ->
+				BlockPlanner.forLevel( n5, viewIdToMrInfo.get( viewId )[ level ], null, null ).validate( viewBlocks ) );
+	}
+
+	/**
+	 * Writes the downsampling levels 1 ... numLevels-1 of all views, each level is computed from the previous one.
+	 * The compute blocks of each level are validated against the chunks of its datasets before it is written.
+	 */
+	public static void saveDownsamplingLevels(
+			final JavaSparkContext sc,
+			final N5Reader n5,
+			final URI n5PathURI,
+			final boolean useN5,
+			final List< ViewId > viewIds,
+			final Map< ViewId, MultiResolutionLevelInfo[] > viewIdToMrInfo,
+			final int numLevels,
+			final RunMetrics metrics )
+	{
+		for ( int level = 1; level < numLevels; ++level )
 		{
 			final int s = level;
 
 			final List<long[][]> allBlocks =
-					viewIdsGlobal.stream().map( viewId ->
+					viewIds.stream().map( viewId ->
 							N5ApiTools.assembleJobs(
 									viewId,
 									viewIdToMrInfo.get(viewId)[s] )).flatMap(List::stream).collect( Collectors.toList() );
 
+			// every chunk of the level is written by exactly one compute block
+			validateJobs( n5, allBlocks, viewIdToMrInfo, s );
+
 			System.out.println( "Downsampling level " + (useN5 ? "s" : "") + s + "... " );
 			System.out.println( "Number of compute blocks: " + allBlocks.size() );
 
-			final JavaRDD<long[][]> rddsN = sc.parallelize(allBlocks, Math.min( Spark.maxPartitions, allBlocks.size() ) );
+			ProgressListener.stage( sc, "downsampling s" + s, -1 );
+
+			final JavaRDD<long[][]> rddsN = GridOrdering.parallelize( sc, allBlocks );
 
 			final long timeS = System.currentTimeMillis();
 
 			rddsN.foreach(
 					gridBlock ->
 					{
-						final N5Writer n5Lcl = URITools.instantiateN5Writer( useN5 ? StorageFormat.N5 : StorageFormat.ZARR, n5PathURI );
+						final N5Writer n5Lcl = N5Util.acquireN5Writer( n5PathURI, useN5 ? StorageFormat.N5 : StorageFormat.ZARR );
 
-						if ( useN5 )
+						try
 						{
-							N5ApiTools.writeDownsampledBlock(
-									n5Lcl,
-									viewIdToMrInfo.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ s ], //N5ResaveTools.gridToDatasetBdv( s, StorageType.N5 ),
-									viewIdToMrInfo.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ s - 1 ],//N5ResaveTools.gridToDatasetBdv( s - 1, StorageType.N5 ),
-									gridBlock );
+							if ( useN5 )
+							{
+								N5ApiTools.writeDownsampledBlock(
+										n5Lcl,
+										viewIdToMrInfo.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ s ], //N5ResaveTools.gridToDatasetBdv( s, StorageType.N5 ),
+										viewIdToMrInfo.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ s - 1 ],//N5ResaveTools.gridToDatasetBdv( s - 1, StorageType.N5 ),
+										gridBlock );
+							}
+							else
+							{
+								N5ApiTools.writeDownsampledBlock5dOMEZARR(
+										n5Lcl,
+										viewIdToMrInfo.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ s ], //N5ResaveTools.gridToDatasetBdv( s, StorageType.N5 ),
+										viewIdToMrInfo.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ s - 1 ],//N5ResaveTools.gridToDatasetBdv( s - 1, StorageType.N5 ),
+										gridBlock,
+										0,
+										0 );
+							}
 						}
-						else
+						finally
 						{
-							N5ApiTools.writeDownsampledBlock5dOMEZARR(
-									n5Lcl,
-									viewIdToMrInfo.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ s ], //N5ResaveTools.gridToDatasetBdv( s, StorageType.N5 ),
-									viewIdToMrInfo.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ s - 1 ],//N5ResaveTools.gridToDatasetBdv( s - 1, StorageType.N5 ),
-									gridBlock,
-									0,
-									0 );
+							N5Util.releaseN5Writer( n5Lcl );
 						}
-
-						n5Lcl.close();
 					});
 
 			System.out.println( "Resaved " + (useN5 ? "N5 s" : "OME-ZARR ") + s + " level, took: " + (System.currentTimeMillis() - timeS ) + " ms." );
+			metrics.stage( "s" + s, System.currentTimeMillis() - timeS );
 		}
+	}
 
-		sc.close();
-
-		System.out.println( "resaved successfully." );
-
-		// things look good, let's save the new XML
-		System.out.println( "Saving new xml to: " + xmlOutURI );
-
+	/**
+	 * @return the imgloader for the BDV-N5 or OME-ZARR datasets that were set up for all views
+	 */
+	public static ImgLoader createImgLoader(
+			final SpimData2 data,
+			final URI n5PathURI,
+			final boolean useN5,
+			final Map< ViewId, MultiResolutionLevelInfo[] > viewIdToMrInfo )
+	{
 		if ( useN5 && URITools.isFile( n5PathURI ))
 		{
-			dataGlobal.getSequenceDescription().setImgLoader(
-					new N5ImageLoader( n5PathURI, dataGlobal.getSequenceDescription()));
+			return new N5ImageLoader( n5PathURI, data.getSequenceDescription());
 		}
 		else if ( useN5 )
 		{
-			dataGlobal.getSequenceDescription().setImgLoader(
-					new N5CloudImageLoader( null, n5PathURI, dataGlobal.getSequenceDescription())); // null is OK because the instance is not used now
+			return new N5CloudImageLoader( null, n5PathURI, data.getSequenceDescription()); // null is OK because the instance is not used now
 		}
 		else
 		{
@@ -344,19 +456,54 @@ public class SparkResaveN5 extends AbstractBasic implements Callable<Void>, Seri
 						new OMEZARREntry( mrInfo[ 0 ].dataset.substring(0,  mrInfo[ 0 ].dataset.lastIndexOf( "/" ) ), new int[] { 0, 0 } ) )
 			);
 
-			dataGlobal.getSequenceDescription().setImgLoader(
-					new AllenOMEZarrLoader( n5PathURI, dataGlobal.getSequenceDescription(), viewIdToPath )); // null is OK because the instance is not used now
+			return new AllenOMEZarrLoader( n5PathURI, data.getSequenceDescription(), viewIdToPath );
 		}
+	}
 
-		new XmlIoSpimData2().save( dataGlobal, xmlOutURI );
+	/**
+	 * Resaves a compute block of s0 one output block at a time, the output blocks are loaded from the imgloader by the
+	 * compute threads of the pipeline and written by its I/O threads (same layout as N5ApiTools.resaveS0Block).
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	protected static void resaveS0Block(
+			final BlockPipeline pipeline,
+			final SpimData2 data,
+			final N5Writer n5,
+			final StorageFormat storageType,
+			final Function< long[][], String > gridBlockToDataset,
+			final long[][] gridBlock,
+			final int[] blockSize,
+			final RunMetrics metrics )
+	{
+		final ViewId viewId = N5ApiTools.gridBlockToViewId( gridBlock );
+		final String dataset = gridBlockToDataset.apply( gridBlock );
 
-		n5Writer.close();
+		final RandomAccessibleInterval img =
+				data.getSequenceDescription().getImgLoader().getSetupImgLoader( viewId.getViewSetupId() ).getImage( viewId.getTimePointId() );
+		final NativeType type = (NativeType)Util.getTypeFromInterval( img );
 
-		Thread.sleep( 100 );
-		System.out.println( "Resaved project, in total took: " + (System.currentTimeMillis() - time ) + " ms." );
-		System.out.println( "done." );
+		for ( final long[][] block : BlockPipeline.split( gridBlock, blockSize ) )
+			pipeline.submit(
+					metrics.compute( () ->
+					{
+						final RandomAccessibleInterval loaded = Downsampling.copyToArrayImg( Views.offsetInterval( img, block[ 0 ], block[ 1 ] ), type );
 
-		return null;
+						// one read of the imgloader per output block
+						metrics.input( 1, RunMetrics.bytes( loaded ) );
+
+						return loaded;
+					}),
+					metrics.write( loaded ->
+					{
+						if ( storageType == StorageFormat.ZARR )
+							N5Utils.saveBlock(
+									Views.addDimension( Views.addDimension( loaded, 0, 0 ), 0, 0 ),
+									n5,
+									dataset,
+									new long[] { block[ 2 ][ 0 ], block[ 2 ][ 1 ], block[ 2 ][ 2 ], 0, 0 } );
+						else
+							N5Utils.saveBlock( loaded, n5, dataset, block[ 2 ] );
+					}) );
 	}
 
 	public static void main(final String... args) {
@@ -44,12 +44,18 @@ public abstract class AbstractBasic extends AbstractInfrastructure implements Ca
 	// will be assigned in loadSpimData2()
 	protected URI xmlURI = null;
 
+	// will be assigned in loadSpimData2(), identifies the XML content for the executor-side cache (see Spark.getSparkJobSpimData2( URI, long ))
+	protected long xmlHash = 0;
+
 	public SpimData2 loadSpimData2() throws SpimDataException
 	{
 		System.out.println( "'" + xmlURIString + "'" );
 		System.out.println( "xml: " + (xmlURI = URITools.toURI(xmlURIString)) );
 		final SpimData2 dataGlobal = Spark.getSparkJobSpimData2( xmlURI );
 
+		if ( dataGlobal != null )
+			xmlHash = Spark.contentHash( dataGlobal );
+
 		return dataGlobal;
 	}
 
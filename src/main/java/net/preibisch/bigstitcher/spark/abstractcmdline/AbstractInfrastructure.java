@@ -1,8 +1,16 @@
 package net.preibisch.bigstitcher.spark.abstractcmdline;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.concurrent.Callable;
 
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaSparkContext;
+
+import net.preibisch.bigstitcher.spark.util.DiskChunkCache;
+import net.preibisch.bigstitcher.spark.util.ProgressListener;
+import net.preibisch.bigstitcher.spark.util.RunMetrics;
+import net.preibisch.bigstitcher.spark.util.Spark;
 import picocli.CommandLine.Option;
 import util.URITools;
 
@@ -17,12 +25,71 @@ public abstract class AbstractInfrastructure implements Callable<Void>, Serializ
 	@Option(names = "--localSparkBindAddress", description = "specify Spark bind address as localhost")
 	protected boolean localSparkBindAddress = false;
 
+	@Option(names = "--javaSerialization", description = "serialize RDD data and task results with Java serialization instead of Kryo (default: false)")
+	protected boolean javaSerialization = false;
+
 	@Option(names = { "--s3Region" }, description = "Manually set AWS s3 region, e.g. us-west-2")
 	protected String s3Region = null;
 
+	@Option(names = { "--inputCacheDir" }, description = "local directory (e.g. on an SSD) in which the executors of each node cache the chunks of remote N5/OME-ZARR input images, shared by all executors of a node, e.g. /scratch/bigstitcher-cache (default: no cache)")
+	protected String inputCacheDir = null;
+
+	@Option(names = { "--inputCacheSize" }, description = "maximal size of the input cache per node in GB, the least recently used chunks are evicted (default: 50)")
+	protected double inputCacheSize = 50;
+
+	@Option(names = { "--runReport" }, description = "path of a JSON report with the metrics of all Spark tasks (timings, bytes read and written, histograms and the slowest blocks), written by commands that run Spark jobs, e.g. /home/report.json (default: none)")
+	protected String runReport = null;
+
+	@Option(names = { "--progressInterval" }, description = "print the progress, throughput and ETA of the running Spark stages every N seconds, 0 only prints when a stage finishes (default: 60)")
+	protected int progressInterval = 60;
+
+	@Option(names = { "--statusFile" }, description = "local path of a small JSON file with the progress, throughput and ETA of all Spark stages that is updated periodically, e.g. for a scheduler to poll it (default: none)")
+	protected String statusFile = null;
+
 	public void setRegion()
 	{
 		if ( s3Region != null )
 			URITools.s3Region = s3Region;
 	}
+
+	/**
+	 * @param appName - name of the Spark application
+	 * @return the SparkConf for this command, see {@link Spark#conf(String, boolean, boolean)}
+	 */
+	public SparkConf sparkConf( final String appName )
+	{
+		final SparkConf conf = Spark.conf( appName, localSparkBindAddress, !javaSerialization );
+
+		if ( inputCacheDir != null )
+			DiskChunkCache.configure( conf, inputCacheDir, Math.round( inputCacheSize * 1024 * 1024 * 1024 ) );
+
+		return conf;
+	}
+
+	/**
+	 * Registers a {@link ProgressListener} with the SparkContext according to --progressInterval and --statusFile.
+	 */
+	public ProgressListener registerProgressListener( final JavaSparkContext sc )
+	{
+		return ProgressListener.register( sc, getClass().getSimpleName(), progressInterval, statusFile );
+	}
+
+	/**
+	 * Writes the run report if --runReport is set, a failure to write it is only reported.
+	 */
+	public void saveRunReport( final RunMetrics metrics )
+	{
+		if ( runReport == null )
+			return;
+
+		try
+		{
+			metrics.save( runReport );
+			System.out.println( "Saved run report to '" + runReport + "'." );
+		}
+		catch ( IOException e )
+		{
+			System.out.println( "Could not save run report to '" + runReport + "': " + e );
+		}
+	}
 }
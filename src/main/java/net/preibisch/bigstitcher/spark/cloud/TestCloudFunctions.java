@@ -23,6 +23,7 @@ import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.universe.StorageFormat;
 
 import mpicbg.spim.data.SpimDataException;
+import net.preibisch.bigstitcher.spark.util.Spark;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 import util.URITools;
@@ -110,10 +111,7 @@ public class TestCloudFunctions implements Callable<Void>
 
 		System.out.println( "Starting SPARK test @ " + new Date( System.currentTimeMillis() ) );
 
-		final SparkConf conf = new SparkConf().setAppName("TestDAL");
-
-		if (localSparkBindAddress)
-			conf.set("spark.driver.bindAddress", "127.0.0.1");
+		final SparkConf conf = Spark.conf( "TestDAL", localSparkBindAddress, true );
 
 		System.out.println( conf.get( "spark.master" ) );
 
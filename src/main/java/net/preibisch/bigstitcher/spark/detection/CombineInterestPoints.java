@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.detection;
+
+import java.util.List;
+
+import net.imglib2.KDTree;
+import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+
+public class CombineInterestPoints
+{
+	/**
+	 * Combines the interest points of one view that were detected in several jobs. If only overlapping areas were
+	 * processed, the areas might overlap themselves and points closer than combineDistance to an already combined
+	 * point are dropped.
+	 *
+	 * @param ipsList - the interest points of each job
+	 * @param intensitiesList - the intensities of each job (or null)
+	 * @param overlappingOnly - if only overlapping areas were processed
+	 * @param combineDistance - the distance below which points are considered duplicates
+	 * @param combinedIps - the combined interest points are added here
+	 * @param combinedIntensities - the combined intensities are added here (if intensitiesList != null)
+	 */
+	public static void combine(
+			final List< List< InterestPoint > > ipsList,
+			final List< List< Double > > intensitiesList,
+			final boolean overlappingOnly,
+			final double combineDistance,
+			final List< InterestPoint > combinedIps,
+			final List< Double > combinedIntensities )
+	{
+		for ( int l = 0; l < ipsList.size(); ++l )
+		{
+			final List< InterestPoint > ips = ipsList.get( l );
+			final List< Double > intensities = intensitiesList == null ? null : intensitiesList.get( l );
+
+			if ( !overlappingOnly || combinedIps.size() == 0 )
+			{
+				combinedIps.addAll( ips );
+
+				if ( intensities != null )
+					combinedIntensities.addAll( intensities );
+			}
+			else
+			{
+				final KDTree< InterestPoint > tree = new KDTree<>( combinedIps, combinedIps );
+				final NearestNeighborSearchOnKDTree< InterestPoint > search = new NearestNeighborSearchOnKDTree<>( tree );
+
+				for ( int i = 0; i < ips.size(); ++i )
+				{
+					final InterestPoint ip = ips.get( i );
+					search.search( ip );
+
+					if ( search.getDistance() > combineDistance )
+					{
+						combinedIps.add( ip );
+
+						if ( intensities != null )
+							combinedIntensities.add( intensities.get( i ) );
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.fusion;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lookup tables for the cosine blending weights of the weighted average fusion (AVG_BLEND) of unscaled views. The
+ * weight of a voxel is the cosine of the product of its relative distances to the closer border of the view in each
+ * dimension (as in multiview-reconstruction), so one table per axis and view size holds the relative distances and
+ * a second, finely sampled table replaces the cosine. The per-axis tables only depend on the size of the view and are
+ * shared by all blocks and tasks of an executor.
+ * <p>
+ * {@code BlendingWeightsBenchmark} in the {@code benchmarks} module compares the tables with the per-voxel weights.
+ */
+public class BlendingWeights
+{
+	public static final float blendingRange = 40;
+	public static final float blendingBorder = 0;
+
+	// samples of the cosine weight in [0...1], the error of linear interpolation is below 1e-7
+	private static final int numSamples = 1 << 12;
+	private static final float[] cosine = new float[ numSamples + 1 ];
+
+	static
+	{
+		for ( int i = 0; i <= numSamples; ++i )
+			cosine[ i ] = (float)( ( Math.cos( ( 1 - (double)i / numSamples ) * Math.PI ) + 1 ) / 2 );
+	}
+
+	private static final ConcurrentHashMap< Long, float[] > axisTables = new ConcurrentHashMap<>();
+
+	/**
+	 * @param size the size of the view along one axis
+	 * @return the relative distances [0...1] to the closer border for all positions 0...size-1 along the axis (do not modify)
+	 */
+	public static float[] axisTable( final long size )
+	{
+		return axisTables.computeIfAbsent( size, s ->
+		{
+			final float[] table = new float[ (int)(long)s ];
+
+			for ( int x = 0; x < table.length; ++x )
+			{
+				final double value = Math.max( 1, Math.min( x - blendingBorder, ( s - 1 - blendingBorder ) - x ) );
+
+				table[ x ] = value < blendingRange ? (float)( value / blendingRange ) : 1.0f;
+			}
+
+			return table;
+		});
+	}
+
+	/**
+	 * @param relativeDistance the product of the relative distances of all axes
+	 * @return the blending weight (looked up)
+	 */
+	public static float weight( final float relativeDistance )
+	{
+		if ( relativeDistance >= 1 )
+			return 1;
+		else if ( relativeDistance <= 0 )
+			return 0.0000001f;
+
+		final float x = relativeDistance * numSamples;
+		final int i = (int)x;
+		final float f = x - i;
+
+		return cosine[ i ] + f * ( cosine[ i + 1 ] - cosine[ i ] );
+	}
+
+	/**
+	 * @param relativeDistance the product of the relative distances of all axes
+	 * @return the blending weight (computed)
+	 */
+	public static float exactWeight( final float relativeDistance )
+	{
+		if ( relativeDistance >= 1 )
+			return 1;
+		else if ( relativeDistance <= 0 )
+			return 0.0000001f;
+		else
+			return (float)( ( Math.cos( ( 1 - relativeDistance ) * Math.PI ) + 1 ) / 2 );
+	}
+}
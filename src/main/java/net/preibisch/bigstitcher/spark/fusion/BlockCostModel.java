@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.fusion;
+
+import java.util.Arrays;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+
+/**
+ * Estimates the relative cost of fusing a grid block (long[][] { offset, size, gridOffset, ... }) from the
+ * transformed bounding boxes of the views, without loading any image data. The cost is measured in (weighted)
+ * voxels: the output voxels that are computed and written, the input voxels of all overlapping views that are
+ * read and blended (approximated by the overlap of each view's bounding box with the block) plus a fixed overhead
+ * per overlapping view. Blocks that no view overlaps cost nothing and are not fused at all.
+ */
+public class BlockCostModel
+{
+	// relative cost of reading and blending one input voxel
+	public static double inputVoxelWeight = 1.0;
+
+	// relative cost of converting, compressing and writing one output voxel
+	public static double outputVoxelWeight = 0.5;
+
+	// fixed cost of each overlapping view (finding and opening its cells, setting up the transform), in voxels
+	public static double viewOverhead = 32 * 32 * 32;
+
+	private final ViewBoundsIndex index;
+	private final long[] offset;
+	private final long expand;
+
+	/**
+	 * @param index the bounding boxes of all views that are fused
+	 * @param offset the offset of the grid in world coordinates (e.g. the min of the bounding box)
+	 * @param expand by how much each block is expanded when looking for overlapping views (as done by the fusion)
+	 */
+	public BlockCostModel( final ViewBoundsIndex index, final long[] offset, final long expand )
+	{
+		this.index = index;
+		this.offset = offset.clone();
+		this.expand = expand;
+	}
+
+	/**
+	 * @param gridBlock the block
+	 * @return the estimated cost, 0 if no view overlaps the block
+	 */
+	public double cost( final long[][] gridBlock )
+	{
+		final int n = offset.length;
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		Arrays.setAll( min, d -> gridBlock[ 0 ][ d ] + offset[ d ] );
+		Arrays.setAll( max, d -> min[ d ] + gridBlock[ 1 ][ d ] - 1 );
+
+		final Interval block = new FinalInterval( min, max );
+		final List< ViewId > views = index.overlapping( Intervals.expand( block, expand ) );
+
+		if ( views.size() == 0 )
+			return 0;
+
+		double inputVoxels = 0;
+
+		for ( final ViewId viewId : views )
+		{
+			final Interval overlap = Intervals.intersect( index.bounds( viewId ), block );
+
+			if ( !Intervals.isEmpty( overlap ) )
+				inputVoxels += Intervals.numElements( overlap );
+		}
+
+		return outputVoxelWeight * Intervals.numElements( block ) + inputVoxelWeight * inputVoxels + viewOverhead * views.size();
+	}
+}
@@ -0,0 +1,256 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.fusion;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import mpicbg.spim.data.SpimData;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * The plan of an affine fusion, computed on the driver from the container metadata and the transformed bounding
+ * boxes of the views (without loading any pixels): which blocks are not empty, how many input cells each of them
+ * reads, and the resulting input and output bytes and peak memory per task. It is printed for {@code --dryRun},
+ * can be saved as JSON and loaded by a later run, which then uses its blocks and costs instead of estimating them again.
+ */
+public class FusionPlan
+{
+	public static class Block
+	{
+		public int c, t;
+		public long[] offset, size;
+		public double cost;
+		public int inputCells;
+		public long inputBytes;
+	}
+
+	public static class Volume
+	{
+		public int c, t;
+		public int[] computeBlockSize;
+		public long numBlocks, numNonEmptyBlocks, numInputCells, inputBytes, outputBytes, peakTaskBytes;
+	}
+
+	public long[] boundingBoxMin, boundingBoxMax;
+
+	public final List< Volume > volumes = new ArrayList<>();
+	public final List< Block > blocks = new ArrayList<>();
+
+	// rebuilt after loading
+	private transient Map< String, Double > costs;
+
+	public FusionPlan( final long[] boundingBoxMin, final long[] boundingBoxMax )
+	{
+		this.boundingBoxMin = boundingBoxMin.clone();
+		this.boundingBoxMax = boundingBoxMax.clone();
+	}
+
+	// for loading
+	private FusionPlan() {}
+
+	/**
+	 * Plans one 3D volume.
+	 *
+	 * @param data the project, used for the image metadata and registrations
+	 * @param index the transformed bounding boxes of the views of this volume
+	 * @param grid all blocks of the volume
+	 * @param costs the estimated cost of each block (blocks without cost are empty)
+	 * @param offset the offset of the grid in world coordinates
+	 * @param c channel index
+	 * @param t timepoint index
+	 * @param computeBlockSize the size of the blocks
+	 * @param bytesPerPixel of the output
+	 * @param pyramidFactor the size of all levels relative to s0 (e.g. 1.14 for 2x downsampling in 3D)
+	 * @return the plan of the volume
+	 */
+	public Volume plan(
+			final SpimData data,
+			final ViewBoundsIndex index,
+			final List< long[][] > grid,
+			final Map< long[][], Double > costs,
+			final long[] offset,
+			final int c,
+			final int t,
+			final int[] computeBlockSize,
+			final int bytesPerPixel,
+			final double pyramidFactor )
+	{
+		final Volume volume = new Volume();
+		volume.c = c;
+		volume.t = t;
+		volume.computeBlockSize = computeBlockSize.clone();
+		volume.numBlocks = grid.size();
+
+		final int n = offset.length;
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		long outputVoxels = 0;
+
+		for ( final long[][] gridBlock : grid )
+		{
+			if ( costs.get( gridBlock ) <= 0 )
+				continue;
+
+			Arrays.setAll( min, d -> gridBlock[ 0 ][ d ] + offset[ d ] );
+			Arrays.setAll( max, d -> min[ d ] + gridBlock[ 1 ][ d ] - 1 );
+
+			final Interval fusedBlock = new FinalInterval( min, max );
+			final OverlappingBlocks overlappingBlocks = OverlappingBlocks.find( data, index, fusedBlock );
+
+			// no input cell overlaps, will be skipped
+			if ( overlappingBlocks.overlappingViews().isEmpty() )
+				continue;
+
+			final Block block = new Block();
+			block.c = c;
+			block.t = t;
+			block.offset = gridBlock[ 0 ].clone();
+			block.size = gridBlock[ 1 ].clone();
+			block.cost = costs.get( gridBlock );
+			block.inputCells = overlappingBlocks.numPrefetchBlocks();
+			block.inputBytes = overlappingBlocks.estimatedBytes();
+
+			blocks.add( block );
+
+			final long blockBytes = bytesPerPixel * fusedBlock.size();
+
+			++volume.numNonEmptyBlocks;
+			volume.numInputCells += block.inputCells;
+			volume.inputBytes += block.inputBytes;
+
+			// all prefetched input cells, the fused block and the downsampled copies / conversion buffers
+			volume.peakTaskBytes = Math.max( volume.peakTaskBytes, block.inputBytes + 2 * blockBytes );
+
+			outputVoxels += fusedBlock.size();
+		}
+
+		volume.outputBytes = Math.round( outputVoxels * bytesPerPixel * pyramidFactor );
+
+		volumes.add( volume );
+
+		return volume;
+	}
+
+	public void printSummary()
+	{
+		long numBlocks = 0, numNonEmptyBlocks = 0, numInputCells = 0, inputBytes = 0, outputBytes = 0, peakTaskBytes = 0;
+
+		for ( final Volume volume : volumes )
+		{
+			System.out.println(
+					"Channel " + volume.c + ", timepoint " + volume.t + ": " + volume.numNonEmptyBlocks + " of " + volume.numBlocks + " block(s) not empty, " +
+					volume.numInputCells + " input cell(s), input=" + mb( volume.inputBytes ) + " MB, output=" + mb( volume.outputBytes ) +
+					" MB, peak memory per task=" + mb( volume.peakTaskBytes ) + " MB" );
+
+			numBlocks += volume.numBlocks;
+			numNonEmptyBlocks += volume.numNonEmptyBlocks;
+			numInputCells += volume.numInputCells;
+			inputBytes += volume.inputBytes;
+			outputBytes += volume.outputBytes;
+			peakTaskBytes = Math.max( peakTaskBytes, volume.peakTaskBytes );
+		}
+
+		System.out.println( "Total: " + numNonEmptyBlocks + " of " + numBlocks + " block(s) not empty, " + numInputCells + " input cell(s) to read" );
+		System.out.println( "Total: input=" + mb( inputBytes ) + " MB (without cache reuse), output=" + mb( outputBytes ) + " MB (uncompressed, incl. pyramid)" );
+		System.out.println( "Peak memory per task: " + mb( peakTaskBytes ) + " MB (with prefetching, otherwise less)" );
+	}
+
+	/**
+	 * @param boundingBoxMin the bounding box of the run
+	 * @param boundingBoxMax the bounding box of the run
+	 * @param c channel index
+	 * @param t timepoint index
+	 * @param computeBlockSize the compute block size of the run
+	 * @return true if the plan contains the volume and was made for the same blocks
+	 */
+	public boolean matches( final long[] boundingBoxMin, final long[] boundingBoxMax, final int c, final int t, final int[] computeBlockSize )
+	{
+		if ( !Arrays.equals( this.boundingBoxMin, boundingBoxMin ) || !Arrays.equals( this.boundingBoxMax, boundingBoxMax ) )
+			return false;
+
+		for ( final Volume volume : volumes )
+			if ( volume.c == c && volume.t == t )
+				return Arrays.equals( volume.computeBlockSize, computeBlockSize );
+
+		return false;
+	}
+
+	/**
+	 * @return the planned cost of the block, 0 if it is empty (i.e. not part of the plan)
+	 */
+	public synchronized double cost( final int c, final int t, final long[][] gridBlock )
+	{
+		if ( costs == null )
+		{
+			costs = new HashMap<>();
+			blocks.forEach( block -> costs.put( key( block.c, block.t, block.offset ), block.cost ) );
+		}
+
+		return costs.getOrDefault( key( c, t, gridBlock[ 0 ] ), 0.0 );
+	}
+
+	public void save( final String path ) throws IOException
+	{
+		try ( final Writer writer = Files.newBufferedWriter( Paths.get( path ), StandardCharsets.UTF_8 ) )
+		{
+			gson().toJson( this, writer );
+		}
+	}
+
+	public static FusionPlan load( final String path ) throws IOException
+	{
+		try ( final Reader reader = Files.newBufferedReader( Paths.get( path ), StandardCharsets.UTF_8 ) )
+		{
+			return gson().fromJson( reader, FusionPlan.class );
+		}
+	}
+
+	private static Gson gson()
+	{
+		return new GsonBuilder().setPrettyPrinting().create();
+	}
+
+	private static String key( final int c, final int t, final long[] offset )
+	{
+		return c + "," + t + "," + Arrays.toString( offset );
+	}
+
+	private static long mb( final long bytes )
+	{
+		return bytes / ( 1024 * 1024 );
+	}
+}
@@ -23,9 +23,6 @@ package net.preibisch.bigstitcher.spark.fusion;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 
 import mpicbg.spim.data.SpimData;
 import mpicbg.spim.data.sequence.ViewId;
@@ -59,7 +56,7 @@ public class OverlappingBlocks
 			Interval interval )
 	{
 		final List< ViewId > overlapping = new ArrayList<>();
-		final List< Callable< Object > > prefetch = new ArrayList<>();
+		final List< PrefetchPixel< ? > > prefetch = new ArrayList<>();
 
 		// expand to be conservative ...
 		final Interval expandedInterval = Intervals.expand( interval, 2 );
@@ -82,6 +79,41 @@ public class OverlappingBlocks
 		return new OverlappingBlocks( overlapping, prefetch );
 	}
 
+	/**
+	 * Determine which views of the {@code index} have blocks that overlap
+	 * {@code interval}.
+	 *
+	 * @param data
+	 * 		has all images and transformations
+	 * @param index
+	 * 		the precomputed transformed bounds of the views to check
+	 * @param interval
+	 * 		the interval that will be processed (in world coordinates)
+	 * @return list of views with overlapping blocks, and a prefetcher for those blocks.
+	 */
+	public static OverlappingBlocks find(
+			final SpimData data,
+			final ViewBoundsIndex index,
+			Interval interval )
+	{
+		final List< ViewId > overlapping = new ArrayList<>();
+		final List< PrefetchPixel< ? > > prefetch = new ArrayList<>();
+
+		// expand to be conservative ...
+		for ( final ViewId viewId : index.overlapping( Intervals.expand( interval, 2 ) ) )
+		{
+			// determine which Cells exactly we need to compute the fused block
+			final List< PrefetchPixel< ? > > blocks = ViewUtil.findOverlappingBlocks( data, viewId, interval );
+			if ( !blocks.isEmpty() )
+			{
+				prefetch.addAll( blocks );
+				overlapping.add( viewId );
+			}
+		}
+
+		return new OverlappingBlocks( overlapping, prefetch );
+	}
+
 	/**
 	 * Get the list of views with overlapping blocks.
 	 *
@@ -93,28 +125,28 @@ public class OverlappingBlocks
 	}
 
 	/**
-	 * Prefetch all overlapping blocks.
+	 * Prefetch all overlapping blocks (asynchronously).
 	 * <p>
-	 * The returned {@code AutoCloseable} holds strong reference to all
+	 * The returned {@code Handle} holds strong reference to all
 	 * prefetched blocks (until it is closed), preventing those blocks
 	 * from being garbage-collected.
 	 *
-	 * @param executor blocks are loaded in parallel using this executor
+	 * @param service blocks are loaded by this executor-wide service, which limits threads and memory
 	 *
-	 * @return {@code AutoCloseable} that holds strong reference to all prefetched blocks (until it is closed), preventing those blocks from being garbage-collected.
+	 * @return {@code Handle} that holds strong reference to all prefetched blocks (until it is closed), preventing those blocks from being garbage-collected. Closing it releases the memory accounted for in the {@code service}.
 	 */
-	public AutoCloseable prefetch( final ExecutorService executor ) throws InterruptedException
+	public PrefetchService.Handle prefetch( final PrefetchService service )
 	{
-		return new Prefetched( executor.invokeAll( prefetchBlocks ) );
+		return service.submit( prefetchBlocks );
 	}
 
 	private final List< ViewId > overlappingViews;
 
-	private final List< Callable< Object > > prefetchBlocks;
+	private final List< PrefetchPixel< ? > > prefetchBlocks;
 
 	private OverlappingBlocks(
 			final List< ViewId > overlappingViews,
-			final List< Callable< Object > > prefetchBlocks )
+			final List< PrefetchPixel< ? > > prefetchBlocks )
 	{
 		this.overlappingViews = overlappingViews;
 		this.prefetchBlocks = prefetchBlocks;
@@ -123,24 +155,10 @@ public class OverlappingBlocks
 	public int numPrefetchBlocks() { return prefetchBlocks.size(); }
 
 	/**
-	 * Result of {@link OverlappingBlocks#prefetch}. Holds strong
-	 * references to prefetched data, until it is {@link #close()
-	 * closed}.
+	 * @return the estimated size of all overlapping blocks in bytes
 	 */
-	private static class Prefetched implements AutoCloseable
+	public long estimatedBytes()
 	{
-		private final List< Future< Object > > prefetched;
-
-		public Prefetched( final List< Future< Object > > prefetched )
-		{
-			this.prefetched = prefetched;
-		}
-
-		@Override
-		public void close() throws Exception
-		{
-			// let go of references to the prefetched cells
-			prefetched.clear();
-		}
+		return prefetchBlocks.stream().mapToLong( PrefetchPixel::estimatedBytes ).sum();
 	}
 }
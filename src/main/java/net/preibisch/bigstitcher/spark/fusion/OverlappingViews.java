@@ -76,6 +76,22 @@ public class OverlappingViews
 		return overlapping;
 	}
 
+	/**
+	 * Find all views in the {@code index} that overlap the given {@code interval},
+	 * with a conservative extension of 2 pixels in each direction.
+	 *
+	 * @param index the precomputed transformed bounds of the views to check
+	 * @param interval interval in world coordinates
+	 * @return views that overlap {@code interval}
+	 */
+	public static List<ViewId> findOverlappingViews(
+			final ViewBoundsIndex index,
+			final Interval interval )
+	{
+		// expand to be conservative ...
+		return index.overlapping( Intervals.expand( interval, 2 ) );
+	}
+
 	public static ArrayList< ViewId > findAllOverlappingViewsFor(
 			final ViewId viewIdA,
 			final SpimData spimData,
@@ -83,12 +99,13 @@ public class OverlappingViews
 	{
 		final ArrayList< ViewId > overlappingViews = new ArrayList<>();
 
+		final Interval bounds1 = ViewUtil.getTransformedBoundingBox( spimData, viewIdA );
+
 		for ( final ViewId viewIdB : viewIds )
 		{
 			if ( viewIdA.equals( viewIdB ) )
 				continue;
 
-			final Interval bounds1 = ViewUtil.getTransformedBoundingBox( spimData, viewIdA );
 			final Interval bounds2 = ViewUtil.getTransformedBoundingBox( spimData, viewIdB );
 
 			if ( ViewUtil.overlaps( bounds1, bounds2 ) )
@@ -0,0 +1,246 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.fusion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.preibisch.bigstitcher.spark.util.Spark;
+import net.preibisch.bigstitcher.spark.util.ViewUtil.PrefetchPixel;
+
+/**
+ * An executor-wide (i.e. one per JVM) service for prefetching input cells that is shared by all Spark tasks.
+ * It limits the number of concurrently loading cells (threads) and the amount of prefetched data that is held
+ * (bytes in flight). Cells are loaded in the order they were submitted, i.e. cells of earlier submitted blocks
+ * first, and within a block in the order of the list (traversal order).
+ * <p>
+ * The memory of the cells prefetched for one block is accounted for until its {@link Handle} is closed.
+ */
+public class PrefetchService
+{
+	private static PrefetchService service = null;
+
+	/**
+	 * Returns the prefetch service of this executor, creating it the first time it is requested.
+	 * The parameters of later calls are ignored.
+	 *
+	 * @param numThreads maximal number of cells that are loaded concurrently
+	 * @param maxBytesInFlight maximal number of bytes held by all open handles (a single cell may exceed it)
+	 * @return the shared instance
+	 */
+	public static synchronized PrefetchService getInstance( final int numThreads, final long maxBytesInFlight )
+	{
+		if ( service == null )
+		{
+			service = new PrefetchService( numThreads, maxBytesInFlight );
+
+			System.out.println(
+					"Created prefetch service with " + numThreads + " thread(s) and a budget of " +
+					( maxBytesInFlight / 1024 / 1024 ) + " MB (executorId=" + Spark.getSparkExecutorId() + ")" );
+		}
+
+		return service;
+	}
+
+	private final ThreadPoolExecutor executor;
+
+	private final long maxBytesInFlight;
+
+	// guarded by this
+	private long bytesInFlight = 0;
+
+	private final AtomicLong nextHandleId = new AtomicLong();
+
+	private PrefetchService( final int numThreads, final long maxBytesInFlight )
+	{
+		this.maxBytesInFlight = maxBytesInFlight;
+
+		this.executor = new ThreadPoolExecutor(
+				numThreads,
+				numThreads,
+				60, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<>(),
+				r ->
+				{
+					final Thread thread = new Thread( r, "prefetch" );
+					thread.setDaemon( true );
+					return thread;
+				} );
+
+		this.executor.allowCoreThreadTimeOut( true );
+	}
+
+	/**
+	 * Submits the cells required for one block.
+	 *
+	 * @param cells the cells to load (in the order they should be loaded)
+	 * @return the handle that holds the prefetched cells until it is closed
+	 */
+	public Handle submit( final List< ? extends PrefetchPixel< ? > > cells )
+	{
+		final Handle handle = new Handle( nextHandleId.getAndIncrement() );
+
+		for ( int i = 0; i < cells.size(); ++i )
+			executor.execute( new PrefetchTask( handle, i, cells.get( i ) ) );
+
+		return handle;
+	}
+
+	public synchronized long bytesInFlight() { return bytesInFlight; }
+
+	private synchronized void acquire( final long bytes ) throws InterruptedException
+	{
+		// a single cell that is larger than the budget is loaded if nothing else is held
+		while ( bytesInFlight > 0 && bytesInFlight + bytes > maxBytesInFlight )
+			wait();
+
+		bytesInFlight += bytes;
+	}
+
+	private synchronized void release( final long bytes )
+	{
+		bytesInFlight -= bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Holds strong references to the prefetched cells of one block, preventing them from being garbage-collected
+	 * until it is closed. Closing it also releases its share of the byte budget and skips cells that were not
+	 * loaded yet.
+	 */
+	public class Handle implements AutoCloseable
+	{
+		private final long id;
+
+		private final List< Object > prefetched = new ArrayList<>();
+
+		private long bytes = 0;
+
+		private boolean closed = false;
+
+		private Handle( final long id )
+		{
+			this.id = id;
+		}
+
+		public synchronized int numPrefetched() { return prefetched.size(); }
+
+		public synchronized long bytes() { return bytes; }
+
+		private synchronized boolean isClosed() { return closed; }
+
+		private synchronized boolean add( final Object cell, final long cellBytes )
+		{
+			if ( closed )
+				return false;
+
+			prefetched.add( cell );
+			bytes += cellBytes;
+
+			return true;
+		}
+
+		@Override
+		public void close()
+		{
+			final long released;
+
+			synchronized ( this )
+			{
+				if ( closed )
+					return;
+
+				closed = true;
+
+				// let go of references to the prefetched cells
+				prefetched.clear();
+				released = bytes;
+				bytes = 0;
+			}
+
+			release( released );
+		}
+	}
+
+	private class PrefetchTask implements Runnable, Comparable< PrefetchTask >
+	{
+		private final Handle handle;
+		private final int index;
+		private final PrefetchPixel< ? > cell;
+
+		PrefetchTask( final Handle handle, final int index, final PrefetchPixel< ? > cell )
+		{
+			this.handle = handle;
+			this.index = index;
+			this.cell = cell;
+		}
+
+		@Override
+		public void run()
+		{
+			// the block is done already
+			if ( handle.isClosed() )
+				return;
+
+			final long bytes = cell.estimatedBytes();
+
+			try
+			{
+				acquire( bytes );
+			}
+			catch ( InterruptedException e )
+			{
+				return;
+			}
+
+			// the block might have finished while waiting for the budget
+			if ( handle.isClosed() )
+			{
+				release( bytes );
+				return;
+			}
+
+			try
+			{
+				if ( !handle.add( cell.call(), bytes ) )
+					release( bytes );
+			}
+			catch ( Exception e )
+			{
+				release( bytes );
+				System.out.println( "Prefetching failed for " + cell + ": " + e );
+			}
+		}
+
+		@Override
+		public int compareTo( final PrefetchTask o )
+		{
+			final int cmp = Long.compare( handle.id, o.handle.id );
+
+			return cmp != 0 ? cmp : Integer.compare( index, o.index );
+		}
+	}
+}
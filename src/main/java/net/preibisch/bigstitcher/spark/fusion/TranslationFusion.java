@@ -0,0 +1,222 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.fusion;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Fast path of the weighted average fusion for views that are (almost) integer translations of the output grid.
+ * Each overlapping input region is copied into an array and added with blending weights that are looked up in
+ * {@link BlendingWeights}, instead of interpolating every voxel of an affine transformed view.
+ */
+public class TranslationFusion
+{
+	/**
+	 * @param data the views
+	 * @param registrations the registrations of the views (including the anisotropy of the output)
+	 * @param views the views overlapping a block
+	 * @param bbMin the min of the output bounding box
+	 * @param tolerance the maximal distance (in output pixels) of any transformed voxel from the nearest integer translation
+	 * @return the integer offset (output = input + offset, relative to bbMin) of all views, or null if one of them is not a translation
+	 */
+	public static Map< ViewId, long[] > translations(
+			final Map< ViewId, ? extends ViewDescription > data,
+			final Map< ViewId, AffineTransform3D > registrations,
+			final List< ViewId > views,
+			final long[] bbMin,
+			final double tolerance )
+	{
+		final HashMap< ViewId, long[] > translations = new HashMap<>();
+
+		for ( final ViewId viewId : views )
+		{
+			final long[] offset =
+					integerTranslation( registrations.get( viewId ), data.get( viewId ).getViewSetup().getSize(), bbMin, tolerance );
+
+			if ( offset == null )
+				return null;
+
+			translations.put( viewId, offset );
+		}
+
+		return translations;
+	}
+
+	/**
+	 * @return the integer offset relative to bbMin if the model maps all voxels of the view within the tolerance onto
+	 * integer positions of the output grid using the same shift, otherwise null
+	 */
+	public static long[] integerTranslation(
+			final AffineTransform3D model,
+			final Dimensions size,
+			final long[] bbMin,
+			final double tolerance )
+	{
+		final long[] offset = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+			offset[ d ] = Math.round( model.get( d, 3 ) - bbMin[ d ] );
+
+		// the transformation is affine, so the largest deviation is at one of the corners of the view
+		final double[] corner = new double[ 3 ];
+		final double[] transformed = new double[ 3 ];
+
+		for ( int i = 0; i < 8; ++i )
+		{
+			for ( int d = 0; d < 3; ++d )
+				corner[ d ] = ( ( i >> d ) & 1 ) == 0 ? 0 : size.dimension( d ) - 1;
+
+			model.apply( corner, transformed );
+
+			for ( int d = 0; d < 3; ++d )
+				if ( Math.abs( transformed[ d ] - bbMin[ d ] - corner[ d ] - offset[ d ] ) > tolerance )
+					return null;
+		}
+
+		return offset;
+	}
+
+	/**
+	 * Fuses a block of the output using weighted average blending.
+	 *
+	 * @param imgLoader the imgloader
+	 * @param data the views
+	 * @param translations the integer offset of each view (see {@link #translations})
+	 * @param blockMin the min of the block relative to bbMin
+	 * @param blockSize the size of the block
+	 * @return the fused block (zero-min)
+	 */
+	public static RandomAccessibleInterval< FloatType > fuse(
+			final ImgLoader imgLoader,
+			final Map< ViewId, ? extends ViewDescription > data,
+			final Map< ViewId, long[] > translations,
+			final long[] blockMin,
+			final long[] blockSize )
+	{
+		final ArrayImg< FloatType, FloatArray > fused = ArrayImgs.floats( blockSize );
+		final float[] sum = fused.update( null ).getCurrentStorageArray();
+		final float[] weights = new float[ sum.length ];
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+		final long[] target = new long[ 3 ];
+
+		for ( final Map.Entry< ViewId, long[] > entry : translations.entrySet() )
+		{
+			final ViewId viewId = entry.getKey();
+			final long[] offset = entry.getValue();
+			final Dimensions size = data.get( viewId ).getViewSetup().getSize();
+
+			// the overlap of the view and the block in the coordinates of the view
+			boolean overlaps = true;
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.max( 0, blockMin[ d ] - offset[ d ] );
+				max[ d ] = Math.min( size.dimension( d ) - 1, blockMin[ d ] + blockSize[ d ] - 1 - offset[ d ] );
+				target[ d ] = min[ d ] + offset[ d ] - blockMin[ d ];
+				overlaps &= min[ d ] <= max[ d ];
+			}
+
+			if ( !overlaps )
+				continue;
+
+			// bulk copy of the overlapping input
+			final ArrayImg< FloatType, FloatArray > input = ArrayImgs.floats( max[ 0 ] - min[ 0 ] + 1, max[ 1 ] - min[ 1 ] + 1, max[ 2 ] - min[ 2 ] + 1 );
+			final RandomAccessibleInterval< FloatType > img =
+					imgLoader.getSetupImgLoader( viewId.getViewSetupId() ).getFloatImage( viewId.getTimePointId(), false );
+
+			LoopBuilder.setImages( Views.interval( img, min, max ), input ).forEachPixel( ( i, o ) -> o.set( i ) );
+
+			accumulate( input.update( null ).getCurrentStorageArray(), min, max, size, sum, weights, blockSize, target );
+		}
+
+		for ( int i = 0; i < sum.length; ++i )
+			if ( weights[ i ] > 0 )
+				sum[ i ] /= weights[ i ];
+
+		return fused;
+	}
+
+	/**
+	 * Adds the weighted values of one view to a block.
+	 *
+	 * @param values the input region min...max of the view (flat, x fastest)
+	 * @param min the min of the input region in the coordinates of the view
+	 * @param max the max of the input region in the coordinates of the view
+	 * @param size the size of the view
+	 * @param sum the weighted sum of the block (flat, x fastest)
+	 * @param weights the sum of weights of the block
+	 * @param blockSize the size of the block
+	 * @param target the position of the input region in the block
+	 */
+	public static void accumulate(
+			final float[] values,
+			final long[] min,
+			final long[] max,
+			final Dimensions size,
+			final float[] sum,
+			final float[] weights,
+			final long[] blockSize,
+			final long[] target )
+	{
+		final float[] wx = BlendingWeights.axisTable( size.dimension( 0 ) );
+		final float[] wy = BlendingWeights.axisTable( size.dimension( 1 ) );
+		final float[] wz = BlendingWeights.axisTable( size.dimension( 2 ) );
+
+		final int sx = (int)blockSize[ 0 ];
+		final int sxy = sx * (int)blockSize[ 1 ];
+		final int minX = (int)min[ 0 ], maxX = (int)max[ 0 ];
+
+		int j = 0;
+
+		for ( int z = (int)min[ 2 ]; z <= max[ 2 ]; ++z )
+			for ( int y = (int)min[ 1 ]; y <= max[ 1 ]; ++y )
+			{
+				final float wyz = wy[ y ] * wz[ z ];
+				int i = (int)( ( target[ 2 ] + z - min[ 2 ] ) * sxy + ( target[ 1 ] + y - min[ 1 ] ) * sx + target[ 0 ] );
+
+				for ( int x = minX; x <= maxX; ++x, ++i, ++j )
+				{
+					final float w = BlendingWeights.weight( wx[ x ] * wyz );
+
+					sum[ i ] += w * values[ j ];
+					weights[ i ] += w;
+				}
+			}
+	}
+}
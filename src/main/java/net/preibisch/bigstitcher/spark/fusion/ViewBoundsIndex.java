@@ -0,0 +1,278 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.fusion;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Intervals;
+import net.preibisch.bigstitcher.spark.util.ViewUtil;
+
+/**
+ * A uniform bucket grid over the transformed bounding boxes of a set of views.
+ * It is built once (on the driver) and can be broadcast to the executors, which
+ * then find the views overlapping a block without transforming any bounding box.
+ * Queries return the views in the order they were given to the constructor.
+ */
+public class ViewBoundsIndex implements Serializable
+{
+	private static final long serialVersionUID = 3920178309618410251L;
+
+	// each view spans about that many buckets per dimension
+	private static final int bucketsPerView = 2;
+
+	// limits the total number of buckets to that many per view
+	private static final double maxBucketsPerViewTotal = 64;
+
+	private final int[][] viewIds;
+	private final long[][] min, max;
+
+	private final long[] gridMin;
+	private final long[] bucketSize;
+	private final int[] numBuckets;
+	private final int[][] buckets;
+
+	// not serialized, rebuilt lazily on the executors
+	private transient HashMap< ViewId, Integer > viewIdToIndex;
+
+	/**
+	 * Creates the index using the registrations stored in {@code data}.
+	 *
+	 * @param data contains bounds and registrations for all views
+	 * @param viewIds which views to index
+	 */
+	public ViewBoundsIndex( final SpimData data, final List< ? extends ViewId > viewIds )
+	{
+		this( data, viewIds, null );
+	}
+
+	/**
+	 * @param data contains bounds for all views
+	 * @param viewIds which views to index
+	 * @param registrations the transformations to use, if null the registrations stored in {@code data} are used
+	 */
+	public ViewBoundsIndex( final SpimData data, final List< ? extends ViewId > viewIds, final Map< ? extends ViewId, AffineTransform3D > registrations )
+	{
+		final int numViews = viewIds.size();
+
+		this.viewIds = new int[ numViews ][];
+		this.min = new long[ numViews ][];
+		this.max = new long[ numViews ][];
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			final ViewId viewId = viewIds.get( i );
+			final Interval bounds =
+					registrations == null ?
+							ViewUtil.getTransformedBoundingBox( data, viewId ) :
+							ViewUtil.getTransformedBoundingBox( data, viewId, registrations.get( viewId ) );
+
+			this.viewIds[ i ] = new int[] { viewId.getTimePointId(), viewId.getViewSetupId() };
+			this.min[ i ] = bounds.minAsLongArray();
+			this.max[ i ] = bounds.maxAsLongArray();
+		}
+
+		final int n = numViews == 0 ? 3 : min[ 0 ].length;
+
+		this.gridMin = new long[ n ];
+		this.bucketSize = new long[ n ];
+		this.numBuckets = new int[ n ];
+
+		if ( numViews == 0 )
+		{
+			Arrays.fill( bucketSize, 1 );
+			this.buckets = new int[ 0 ][];
+			return;
+		}
+
+		for ( int d = 0; d < n; ++d )
+		{
+			long gMin = Long.MAX_VALUE, gMax = Long.MIN_VALUE;
+			final long[] extent = new long[ numViews ];
+
+			for ( int i = 0; i < numViews; ++i )
+			{
+				gMin = Math.min( gMin, min[ i ][ d ] );
+				gMax = Math.max( gMax, max[ i ][ d ] );
+				extent[ i ] = max[ i ][ d ] - min[ i ][ d ] + 1;
+			}
+
+			Arrays.sort( extent );
+
+			// the median view size defines the bucket size, limited so the grid stays small
+			final long range = gMax - gMin + 1;
+			final long maxBucketsPerDim = Math.max( 1, (long)Math.ceil( Math.pow( maxBucketsPerViewTotal * numViews, 1.0 / n ) ) );
+
+			gridMin[ d ] = gMin;
+			bucketSize[ d ] = Math.max( 1, Math.max( extent[ numViews / 2 ] / bucketsPerView, ( range + maxBucketsPerDim - 1 ) / maxBucketsPerDim ) );
+			numBuckets[ d ] = (int)( ( range + bucketSize[ d ] - 1 ) / bucketSize[ d ] );
+		}
+
+		final ArrayList< ArrayList< Integer > > bucketLists = new ArrayList<>();
+		final int totalBuckets = (int)Intervals.numElements( numBuckets );
+
+		for ( int b = 0; b < totalBuckets; ++b )
+			bucketLists.add( new ArrayList<>() );
+
+		final int[] bMin = new int[ n ];
+		final int[] bMax = new int[ n ];
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			bucketRange( min[ i ], max[ i ], bMin, bMax );
+			final int view = i;
+			forEachBucket( bMin, bMax, b -> bucketLists.get( b ).add( view ) );
+		}
+
+		this.buckets = new int[ totalBuckets ][];
+
+		for ( int b = 0; b < totalBuckets; ++b )
+			this.buckets[ b ] = bucketLists.get( b ).stream().mapToInt( Integer::intValue ).toArray();
+	}
+
+	public int numViews() { return viewIds.length; }
+
+	/**
+	 * @param viewId the view
+	 * @return the transformed bounding box of the view, or null if it is not part of the index
+	 */
+	public Interval bounds( final ViewId viewId )
+	{
+		final Integer i = indexOf( viewId );
+
+		return i == null ? null : new FinalInterval( min[ i ], max[ i ] );
+	}
+
+	/**
+	 * @param interval interval in world coordinates
+	 * @return all views whose bounding box overlaps {@code interval}
+	 */
+	public List< ViewId > overlapping( final Interval interval )
+	{
+		final List< ViewId > overlapping = new ArrayList<>();
+
+		if ( viewIds.length == 0 )
+			return overlapping;
+
+		final int n = gridMin.length;
+		final long[] iMin = interval.minAsLongArray();
+		final long[] iMax = interval.maxAsLongArray();
+
+		for ( int d = 0; d < n; ++d )
+			if ( iMax[ d ] < gridMin[ d ] || iMin[ d ] >= gridMin[ d ] + (long)numBuckets[ d ] * bucketSize[ d ] )
+				return overlapping;
+
+		final int[] bMin = new int[ n ];
+		final int[] bMax = new int[ n ];
+		bucketRange( iMin, iMax, bMin, bMax );
+
+		final BitSet candidates = new BitSet( viewIds.length );
+		forEachBucket( bMin, bMax, b -> { for ( final int i : buckets[ b ] ) candidates.set( i ); } );
+
+		for ( int i = candidates.nextSetBit( 0 ); i >= 0; i = candidates.nextSetBit( i + 1 ) )
+			if ( overlaps( i, iMin, iMax ) )
+				overlapping.add( new ViewId( viewIds[ i ][ 0 ], viewIds[ i ][ 1 ] ) );
+
+		return overlapping;
+	}
+
+	/**
+	 * @param viewId a view of the index
+	 * @return all other views whose bounding box overlaps the bounding box of {@code viewId}
+	 */
+	public List< ViewId > overlappingViews( final ViewId viewId )
+	{
+		final List< ViewId > overlapping = overlapping( bounds( viewId ) );
+		overlapping.remove( viewId );
+
+		return overlapping;
+	}
+
+	private boolean overlaps( final int i, final long[] iMin, final long[] iMax )
+	{
+		for ( int d = 0; d < iMin.length; ++d )
+			if ( max[ i ][ d ] < iMin[ d ] || min[ i ][ d ] > iMax[ d ] )
+				return false;
+
+		return true;
+	}
+
+	private void bucketRange( final long[] iMin, final long[] iMax, final int[] bMin, final int[] bMax )
+	{
+		for ( int d = 0; d < gridMin.length; ++d )
+		{
+			bMin[ d ] = (int)Math.max( 0, Math.min( numBuckets[ d ] - 1, ( iMin[ d ] - gridMin[ d ] ) / bucketSize[ d ] ) );
+			bMax[ d ] = (int)Math.max( 0, Math.min( numBuckets[ d ] - 1, ( iMax[ d ] - gridMin[ d ] ) / bucketSize[ d ] ) );
+		}
+	}
+
+	private void forEachBucket( final int[] bMin, final int[] bMax, final IntConsumer action )
+	{
+		final int n = bMin.length;
+		final int[] pos = bMin.clone();
+
+		while ( true )
+		{
+			int b = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				b = b * numBuckets[ d ] + pos[ d ];
+
+			action.accept( b );
+
+			int d = 0;
+			while ( d < n && ++pos[ d ] > bMax[ d ] )
+			{
+				pos[ d ] = bMin[ d ];
+				++d;
+			}
+
+			if ( d == n )
+				return;
+		}
+	}
+
+	private Integer indexOf( final ViewId viewId )
+	{
+		if ( viewIdToIndex == null )
+		{
+			final HashMap< ViewId, Integer > map = new HashMap<>();
+
+			for ( int i = 0; i < viewIds.length; ++i )
+				map.put( new ViewId( viewIds[ i ][ 0 ], viewIds[ i ][ 1 ] ), i );
+
+			viewIdToIndex = map;
+		}
+
+		return viewIdToIndex.get( viewId );
+	}
+}
@@ -0,0 +1,363 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.spark.TaskContext;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.universe.StorageFormat;
+
+/**
+ * Records which blocks of one level of a fused volume (channel, timepoint) were completed, so an interrupted run can
+ * be resumed. Each Spark task attempt keeps the blocks it completed in a {@link BlockManifest} and writes it in batches
+ * (and when it ends) into its own group of the container, so no two writers ever update the same attributes. Speculative
+ * and retried attempts only add blocks that were actually written, thus the union of all groups is the set of completed
+ * blocks. When a level is done, the driver marks it as complete.
+ *
+ * Layout: {@code Bigstitcher-Spark-Ledger/c{c}_t{t}/s{level}/attempt-{id}} with the attribute {@code completed}
+ * (see {@link BlockManifest}), the level group holds the compacted blocks of previous runs and the attribute {@code complete}.
+ */
+public class BlockLedger implements Serializable
+{
+	private static final long serialVersionUID = 5284612337815830451L;
+
+	public static final String ledgerGroup = "Bigstitcher-Spark-Ledger";
+
+	// after how many completed blocks a task writes its record
+	public static int batchSize = 16;
+
+	// the records of all running task attempts of this executor
+	private static final ConcurrentHashMap< String, Recorder > recorders = new ConcurrentHashMap<>();
+
+	private final URI outPathURI;
+	private final StorageFormat storageType;
+	private final String group;
+	private final long[] dimensions;
+	private final int[] blockSize;
+	private final boolean record;
+
+	/**
+	 * @param outPathURI the container
+	 * @param storageType the storage format
+	 * @param cIndex channel index
+	 * @param tIndex timepoint index
+	 * @param level the resolution level
+	 * @param dimensions the dimensions of the 3D volume at this level (in pixels)
+	 * @param blockSize the block size of the dataset
+	 * @param record whether the completed blocks are recorded (only if the run should be resumable), otherwise nothing is written
+	 */
+	public BlockLedger(
+			final URI outPathURI,
+			final StorageFormat storageType,
+			final int cIndex,
+			final int tIndex,
+			final int level,
+			final long[] dimensions,
+			final int[] blockSize,
+			final boolean record )
+	{
+		this.outPathURI = outPathURI;
+		this.storageType = storageType;
+		this.group = volumeGroup( cIndex, tIndex ) + "/s" + level;
+		this.dimensions = dimensions.clone();
+		this.blockSize = blockSize.clone();
+		this.record = record;
+	}
+
+	public static String volumeGroup( final int cIndex, final int tIndex )
+	{
+		return ledgerGroup + "/c" + cIndex + "_t" + tIndex;
+	}
+
+	/**
+	 * Records a block as completed, called by the Spark task after the block (and everything computed from it) was written.
+	 *
+	 * @param gridBlock the block
+	 */
+	public void completed( final long[][] gridBlock )
+	{
+		if ( !record )
+			return;
+
+		final Recorder recorder = recorders.computeIfAbsent( attemptGroup(), path ->
+		{
+			final Recorder r = new Recorder( path );
+
+			// also writes what was completed if the task fails
+			if ( !Spark.closeOnTaskCompletion( r ) )
+				r.flushEachBlock = true;
+
+			return r;
+		});
+
+		recorder.add( gridBlock );
+	}
+
+	/**
+	 * Called by the Spark task if a block failed: writes the blocks completed by this attempt so far and closes its
+	 * record, so the failed attempt leaves no open state behind.
+	 */
+	public void failed()
+	{
+		if ( !record )
+			return;
+
+		final Recorder recorder = recorders.get( attemptGroup() );
+
+		if ( recorder != null )
+			recorder.close();
+	}
+
+	private String attemptGroup()
+	{
+		final TaskContext context = TaskContext.get();
+		final String attempt = context == null ? "driver" : Long.toString( context.taskAttemptId() );
+
+		return group + "/attempt-" + attempt;
+	}
+
+	/**
+	 * Loads all blocks completed by previous runs and compacts them into the level group (driver only).
+	 *
+	 * @param n5 the container
+	 * @return the completed blocks
+	 */
+	public BlockManifest load( final N5Writer n5 )
+	{
+		final BlockManifest completed = new BlockManifest( dimensions, blockSize );
+
+		if ( !n5.exists( group ) )
+			return completed;
+
+		final BlockManifest compacted = BlockManifest.load( n5, group, "completed", dimensions, blockSize );
+
+		if ( compacted != null )
+			completed.addAll( compacted );
+
+		final String[] attempts = n5.list( group );
+
+		for ( final String attempt : attempts )
+		{
+			final BlockManifest record = BlockManifest.load( n5, group + "/" + attempt, "completed", dimensions, blockSize );
+
+			if ( record != null )
+				completed.addAll( record );
+		}
+
+		completed.save( n5, group, "completed" );
+
+		for ( final String attempt : attempts )
+			n5.remove( group + "/" + attempt );
+
+		return completed;
+	}
+
+	public boolean isComplete( final N5Writer n5 )
+	{
+		try
+		{
+			final Boolean complete = n5.getAttribute( group, "complete", Boolean.class );
+			return complete != null && complete;
+		}
+		catch ( Exception e )
+		{
+			return false;
+		}
+	}
+
+	public void setComplete( final N5Writer n5 )
+	{
+		if ( !record )
+			return;
+
+		if ( !n5.exists( group ) )
+			n5.createGroup( group );
+
+		n5.setAttribute( group, "complete", true );
+	}
+
+	/**
+	 * Prepares the ledger of a volume on the driver. A run can only be resumed if the ledger was written with the same
+	 * parameters (see {@link #parameters}), otherwise the volume is fused from scratch. The ledger is only kept if the
+	 * user wants to resume, so a run that should be resumable has to be started with resume as well.
+	 *
+	 * @param n5 the container
+	 * @param resume whether the user wants to resume
+	 * @param cIndex channel index
+	 * @param tIndex timepoint index
+	 * @param parameters the parameters the volume is fused with
+	 * @return true if the volume is resumed, false if it is fused from scratch
+	 */
+	public static boolean prepare( final N5Writer n5, final boolean resume, final int cIndex, final int tIndex, final Map< String, Object > parameters )
+	{
+		final String group = volumeGroup( cIndex, tIndex );
+
+		if ( resume && n5.exists( group ) )
+		{
+			final String mismatch = mismatch( n5, group, parameters );
+
+			if ( mismatch == null )
+			{
+				System.out.println( "Resuming channel " + cIndex + ", timepoint " + tIndex + " from the ledger in the container." );
+				return true;
+			}
+
+			System.out.println( "Cannot resume channel " + cIndex + ", timepoint " + tIndex + ", the ledger was written with a different " + mismatch + ". Fusing from scratch." );
+		}
+		else if ( resume )
+		{
+			System.out.println( "No ledger found for channel " + cIndex + ", timepoint " + tIndex + ". Fusing from scratch." );
+		}
+
+		clear( n5, cIndex, tIndex );
+
+		if ( resume )
+		{
+			n5.createGroup( group );
+			n5.setAttributes( group, parameters );
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param contentHash the hash of the XML (registrations, views, ...)
+	 * @param bbMin min of the bounding box
+	 * @param bbMax max of the bounding box
+	 * @param dataType the data type of the output
+	 * @param minIntensity the min intensity the output is scaled with
+	 * @param maxIntensity the max intensity the output is scaled with
+	 * @param inMemoryLevels the number of levels computed together with s0
+	 * @return the parameters of a fused volume that have to match when resuming
+	 */
+	public static Map< String, Object > parameters(
+			final long contentHash,
+			final long[] bbMin,
+			final long[] bbMax,
+			final DataType dataType,
+			final double minIntensity,
+			final double maxIntensity,
+			final int inMemoryLevels )
+	{
+		final LinkedHashMap< String, Object > parameters = new LinkedHashMap<>();
+
+		parameters.put( "contentHash", contentHash );
+		parameters.put( "boundingBoxMin", bbMin.clone() );
+		parameters.put( "boundingBoxMax", bbMax.clone() );
+		parameters.put( "dataType", dataType.toString() );
+		parameters.put( "minIntensity", minIntensity );
+		parameters.put( "maxIntensity", maxIntensity );
+		parameters.put( "inMemoryLevels", inMemoryLevels );
+
+		return parameters;
+	}
+
+	/**
+	 * @return the name of the first parameter that is not stored with the same value in the ledger, or null if all match
+	 */
+	private static String mismatch( final N5Writer n5, final String group, final Map< String, Object > parameters )
+	{
+		for ( final Map.Entry< String, Object > parameter : parameters.entrySet() )
+		{
+			Object stored = null;
+
+			try
+			{
+				stored = n5.getAttribute( group, parameter.getKey(), parameter.getValue().getClass() );
+			}
+			catch ( Exception e ) {}
+
+			if ( !Objects.deepEquals( stored, parameter.getValue() ) )
+				return parameter.getKey();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Removes the ledger of a volume, e.g. when it is fused from scratch.
+	 */
+	public static void clear( final N5Writer n5, final int cIndex, final int tIndex )
+	{
+		if ( n5.exists( volumeGroup( cIndex, tIndex ) ) )
+			n5.remove( volumeGroup( cIndex, tIndex ) );
+	}
+
+	private class Recorder implements AutoCloseable
+	{
+		final String path;
+		final BlockManifest blocks;
+		boolean flushEachBlock = false;
+		int unsaved = 0;
+
+		Recorder( final String path )
+		{
+			this.path = path;
+			this.blocks = new BlockManifest( dimensions, blockSize );
+		}
+
+		synchronized void add( final long[][] gridBlock )
+		{
+			blocks.add( gridBlock );
+
+			if ( ++unsaved >= batchSize || flushEachBlock )
+				flush();
+		}
+
+		// always writes all blocks of this attempt, so writing it again (e.g. after a failure) is harmless
+		synchronized void flush()
+		{
+			if ( unsaved == 0 )
+				return;
+
+			final N5Writer n5 = N5Util.acquireN5Writer( outPathURI, storageType );
+
+			try
+			{
+				if ( !n5.exists( path ) )
+					n5.createGroup( path );
+
+				blocks.save( n5, path, "completed" );
+			}
+			finally
+			{
+				N5Util.releaseN5Writer( n5 );
+			}
+
+			unsaved = 0;
+		}
+
+		@Override
+		public void close()
+		{
+			recorders.remove( path );
+			flush();
+		}
+	}
+}
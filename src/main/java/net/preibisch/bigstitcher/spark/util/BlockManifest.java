@@ -0,0 +1,260 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.LongConsumer;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import net.imglib2.IterableInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A sparse set of blocks (chunks) of a 3D volume in a container, e.g. the blocks that were skipped because they only
+ * contain background (0), or the blocks that were completed (see {@link BlockLedger}). It is stored as an attribute,
+ * as run-length encoded linear chunk indices (x fastest): long[] { start0, length0, start1, length1, ... }. Levels of
+ * a pyramid that are computed from a level with a manifest of empty blocks can skip all blocks whose source region
+ * is empty without reading it.
+ */
+public class BlockManifest implements Serializable
+{
+	private static final long serialVersionUID = -2917353470297405121L;
+
+	private final long[] gridDimensions;
+	private final int[] blockSize;
+	private final BitSet blocks;
+
+	/**
+	 * @param dimensions the dimensions of the 3D volume (in pixels)
+	 * @param blockSize the block size of the dataset
+	 */
+	public BlockManifest( final long[] dimensions, final int[] blockSize )
+	{
+		this.blockSize = blockSize.clone();
+		this.gridDimensions = new long[ blockSize.length ];
+		Arrays.setAll( gridDimensions, d -> ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ] );
+		this.blocks = new BitSet();
+	}
+
+	/**
+	 * @param c channel index
+	 * @param t timepoint index
+	 * @return the attribute name used for the volume (c,t), 5D OME-ZARR datasets hold all of them
+	 */
+	public static String attribute( final int c, final int t )
+	{
+		return "Bigstitcher-Spark/EmptyBlocks_c" + c + "_t" + t;
+	}
+
+	/**
+	 * Adds all chunks that overlap the interval, the caller must ensure that the interval
+	 * covers them completely (or reaches the border of the volume).
+	 *
+	 * @param min - min of the interval (in pixels)
+	 * @param max - max of the interval (in pixels)
+	 */
+	public synchronized void add( final long[] min, final long[] max )
+	{
+		final long[] gridMin = new long[ min.length ];
+		final long[] gridMax = new long[ min.length ];
+
+		if ( toGrid( min, max, gridMin, gridMax ) )
+			forEachChunk( gridMin, gridMax, i -> blocks.set( (int)i ) );
+	}
+
+	/**
+	 * @param gridBlock - a block as created by {@code Grid.create} (long[][] { offset, size, gridOffset, ... })
+	 */
+	public void add( final long[][] gridBlock )
+	{
+		add( gridBlock[ 0 ], max( gridBlock ) );
+	}
+
+	/**
+	 * @param other - another manifest of the same volume
+	 */
+	public synchronized void addAll( final BlockManifest other )
+	{
+		blocks.or( other.blocks );
+	}
+
+	/**
+	 * @param min - min of the interval (in pixels)
+	 * @param max - max of the interval (in pixels)
+	 * @return true if all chunks that overlap the interval are part of the manifest
+	 */
+	public synchronized boolean containsAll( final long[] min, final long[] max )
+	{
+		final long[] gridMin = new long[ min.length ];
+		final long[] gridMax = new long[ min.length ];
+
+		if ( !toGrid( min, max, gridMin, gridMax ) )
+			return true;
+
+		final boolean[] all = new boolean[] { true };
+		forEachChunk( gridMin, gridMax, i -> all[ 0 ] &= blocks.get( (int)i ) );
+
+		return all[ 0 ];
+	}
+
+	/**
+	 * @param gridBlock - a block as created by {@code Grid.create} (long[][] { offset, size, gridOffset, ... })
+	 * @return true if all chunks of the block are part of the manifest
+	 */
+	public boolean containsAll( final long[][] gridBlock )
+	{
+		return containsAll( gridBlock[ 0 ], max( gridBlock ) );
+	}
+
+	public synchronized long size() { return blocks.cardinality(); }
+
+	public long numBlocks()
+	{
+		long n = 1;
+
+		for ( final long g : gridDimensions )
+			n *= g;
+
+		return n;
+	}
+
+	/**
+	 * Stores the manifest as an attribute of the dataset.
+	 *
+	 * @param n5 the container
+	 * @param dataset the dataset
+	 * @param attribute the attribute, see {@link #attribute(int, int)}
+	 */
+	public synchronized void save( final N5Writer n5, final String dataset, final String attribute )
+	{
+		final ArrayList< Long > runs = new ArrayList<>();
+
+		for ( int i = blocks.nextSetBit( 0 ); i >= 0; )
+		{
+			final int end = blocks.nextClearBit( i );
+
+			runs.add( (long)i );
+			runs.add( (long)( end - i ) );
+
+			i = blocks.nextSetBit( end );
+		}
+
+		n5.setAttribute( dataset, attribute, runs.stream().mapToLong( Long::longValue ).toArray() );
+	}
+
+	/**
+	 * @param n5 the container
+	 * @param dataset the dataset
+	 * @param attribute the attribute, see {@link #attribute(int, int)}
+	 * @param dimensions the dimensions of the 3D volume (in pixels)
+	 * @param blockSize the block size of the dataset
+	 * @return the manifest or null if none is stored
+	 */
+	public static BlockManifest load( final N5Reader n5, final String dataset, final String attribute, final long[] dimensions, final int[] blockSize )
+	{
+		final long[] runs;
+
+		try
+		{
+			runs = n5.getAttribute( dataset, attribute, long[].class );
+		}
+		catch ( Exception e )
+		{
+			return null;
+		}
+
+		if ( runs == null )
+			return null;
+
+		final BlockManifest manifest = new BlockManifest( dimensions, blockSize );
+
+		for ( int r = 0; r < runs.length; r += 2 )
+			manifest.blocks.set( (int)runs[ r ], (int)( runs[ r ] + runs[ r + 1 ] ) );
+
+		return manifest;
+	}
+
+	/**
+	 * @param block - a computed block
+	 * @return true if all pixels are 0
+	 */
+	public static boolean isBackground( final IterableInterval< ? extends RealType< ? > > block )
+	{
+		for ( final RealType< ? > t : block )
+			if ( t.getRealDouble() != 0 )
+				return false;
+
+		return true;
+	}
+
+	private static long[] max( final long[][] gridBlock )
+	{
+		final long[] max = new long[ gridBlock[ 0 ].length ];
+		Arrays.setAll( max, d -> gridBlock[ 0 ][ d ] + gridBlock[ 1 ][ d ] - 1 );
+
+		return max;
+	}
+
+	private boolean toGrid( final long[] min, final long[] max, final long[] gridMin, final long[] gridMax )
+	{
+		for ( int d = 0; d < gridDimensions.length; ++d )
+		{
+			gridMin[ d ] = Math.max( 0, min[ d ] / blockSize[ d ] );
+			gridMax[ d ] = Math.min( gridDimensions[ d ] - 1, max[ d ] / blockSize[ d ] );
+
+			if ( gridMin[ d ] > gridMax[ d ] )
+				return false;
+		}
+
+		return true;
+	}
+
+	private void forEachChunk( final long[] gridMin, final long[] gridMax, final LongConsumer action )
+	{
+		final int n = gridMin.length;
+		final long[] pos = gridMin.clone();
+
+		while ( true )
+		{
+			long i = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				i = i * gridDimensions[ d ] + pos[ d ];
+
+			action.accept( i );
+
+			int d = 0;
+			while ( d < n && ++pos[ d ] > gridMax[ d ] )
+			{
+				pos[ d ] = gridMin[ d ];
+				++d;
+			}
+
+			if ( d == n )
+				return;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.Arrays;
+
+import org.apache.spark.util.AccumulatorV2;
+
+/**
+ * Collects the empty blocks of the levels of a pyramid that are computed in one pass (s0 and the levels downsampled
+ * in memory) in one {@link BlockManifest} per level. Each task adds its blocks to its own copy, so the driver only
+ * merges one bit set per level and task instead of receiving every single block.
+ */
+public class BlockManifestAccumulator extends AccumulatorV2< long[][], BlockManifest[] >
+{
+	private static final long serialVersionUID = 4170262380236245637L;
+
+	private final long[][] dimensions;
+	private final int[][] absoluteDownsampling;
+	private final int[] blockSize;
+	private final BlockManifest[] manifests;
+	private long numBlocks = 0;
+
+	/**
+	 * @param dimensions the dimensions of the 3D volume of each level (in pixels)
+	 * @param absoluteDownsampling the downsampling of each level relative to s0
+	 * @param blockSize the block size of the datasets
+	 */
+	public BlockManifestAccumulator( final long[][] dimensions, final int[][] absoluteDownsampling, final int[] blockSize )
+	{
+		this.dimensions = dimensions;
+		this.absoluteDownsampling = absoluteDownsampling;
+		this.blockSize = blockSize;
+		this.manifests = new BlockManifest[ dimensions.length ];
+
+		Arrays.setAll( manifests, level -> new BlockManifest( dimensions[ level ], blockSize ) );
+	}
+
+	/**
+	 * @param gridBlock an empty block { offset, size, gridOffset } of s0, which is empty in all levels, or an empty
+	 * block of a single level, marked by a fourth row { level } (its coordinates are those of the level)
+	 */
+	@Override
+	public synchronized void add( final long[][] gridBlock )
+	{
+		++numBlocks;
+
+		if ( gridBlock.length > 3 )
+		{
+			manifests[ (int)gridBlock[ 3 ][ 0 ] ].add( gridBlock );
+			return;
+		}
+
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		for ( int level = 0; level < manifests.length; ++level )
+		{
+			final int[] ds = absoluteDownsampling[ level ];
+
+			// the compute blocks are aligned with the blocks of all levels computed in memory
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = gridBlock[ 0 ][ d ] / ds[ d ];
+				max[ d ] = ( gridBlock[ 0 ][ d ] + gridBlock[ 1 ][ d ] + ds[ d ] - 1 ) / ds[ d ] - 1;
+			}
+
+			manifests[ level ].add( min, max );
+		}
+	}
+
+	@Override
+	public synchronized void merge( final AccumulatorV2< long[][], BlockManifest[] > other )
+	{
+		final BlockManifestAccumulator o = (BlockManifestAccumulator)other;
+
+		synchronized ( o )
+		{
+			for ( int level = 0; level < manifests.length; ++level )
+				manifests[ level ].addAll( o.manifests[ level ] );
+
+			numBlocks += o.numBlocks;
+		}
+	}
+
+	@Override
+	public synchronized BlockManifestAccumulator copy()
+	{
+		final BlockManifestAccumulator copy = new BlockManifestAccumulator( dimensions, absoluteDownsampling, blockSize );
+		copy.merge( this );
+
+		return copy;
+	}
+
+	@Override
+	public synchronized void reset()
+	{
+		Arrays.setAll( manifests, level -> new BlockManifest( dimensions[ level ], blockSize ) );
+		numBlocks = 0;
+	}
+
+	@Override
+	public synchronized boolean isZero() { return numBlocks == 0; }
+
+	/**
+	 * @return the manifests, one per level
+	 */
+	@Override
+	public synchronized BlockManifest[] value() { return manifests.clone(); }
+
+	/**
+	 * @return how many empty blocks were added
+	 */
+	public synchronized long numBlocks() { return numBlocks; }
+}
@@ -0,0 +1,361 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.util.Intervals;
+
+/**
+ * A bounded producer/consumer pipeline for the output blocks of one Spark task: blocks are computed by the task (or
+ * its own pool of compute threads) and handed to a pool that compresses and writes them, so block i+1 is computed while
+ * block i is written. At most maxQueuedBlocks blocks are computed but not yet written, {@link #submit} blocks otherwise.
+ * <p>
+ * The I/O pool is shared by all pipelines of this executor and grows to ioThreads per open pipeline (i.e. per running
+ * task), a pipeline only holds the bound, its compute threads and the futures of its own blocks.
+ */
+public class BlockPipeline implements AutoCloseable
+{
+	@FunctionalInterface
+	public static interface BlockWriter< T >
+	{
+		public void write( T block ) throws Exception;
+	}
+
+	private static ThreadPoolExecutor ioService = null;
+	private static int openPipelines = 0;
+
+	// null if the blocks are computed by the thread that submits them
+	private final ExecutorService computeService;
+	private final Semaphore queued;
+	private boolean closed = false;
+	private final List< Future< ? > > computeFutures = Collections.synchronizedList( new ArrayList<>() );
+	private final List< Future< ? > > ioFutures = Collections.synchronizedList( new ArrayList<>() );
+
+	private volatile Throwable failure = null;
+
+	/**
+	 * @param computeThreads - number of threads of this pipeline that compute blocks, with 1 (or less) they are computed by the calling thread
+	 * @param ioThreads - number of threads of this pipeline that compress and write blocks (added to the pool shared by the executor)
+	 * @param maxQueuedBlocks - maximal number of blocks that are computed or queued for writing at the same time
+	 */
+	public BlockPipeline( final int computeThreads, final int ioThreads, final int maxQueuedBlocks )
+	{
+		open( ioThreads );
+
+		this.computeService = computeThreads > 1 ? fixedThreadPool( computeThreads, "block-compute" ) : null;
+		this.queued = new Semaphore( Math.max( 1, maxQueuedBlocks ) );
+	}
+
+	/**
+	 * Creates the I/O pool of this executor the first time a pipeline is opened and grows it to ioThreads per open pipeline.
+	 */
+	private static synchronized void open( final int ioThreads )
+	{
+		++openPipelines;
+
+		final int numThreads = Math.max( 1, ioThreads ) * openPipelines;
+
+		if ( ioService == null )
+		{
+			ioService = fixedThreadPool( numThreads, "block-io" );
+		}
+		else if ( numThreads > ioService.getCorePoolSize() )
+		{
+			ioService.setMaximumPoolSize( numThreads );
+			ioService.setCorePoolSize( numThreads );
+		}
+		else
+		{
+			return;
+		}
+
+		System.out.println( "Block pipelines use " + numThreads + " I/O thread(s) for " + openPipelines + " task(s) (executorId=" + Spark.getSparkExecutorId() + ")" );
+	}
+
+	private static synchronized void release()
+	{
+		--openPipelines;
+	}
+
+	/**
+	 * Computes a block (on the compute threads, or right away by the calling thread) and writes it on the I/O threads,
+	 * waits if too many blocks are in flight.
+	 *
+	 * @param compute - computes the block, if it returns null nothing is written
+	 * @param writer - writes the block
+	 */
+	public < T > void submit( final Callable< T > compute, final BlockWriter< T > writer )
+	{
+		acquire();
+
+		if ( computeService == null )
+		{
+			final T block;
+
+			try
+			{
+				block = compute.call();
+			}
+			catch ( Exception e )
+			{
+				queued.release();
+				fail( e );
+				throw new RuntimeException( "Block pipeline failed: " + e, e );
+			}
+
+			if ( block == null )
+				queued.release();
+			else
+				write( block, writer, false );
+
+			return;
+		}
+
+		computeFutures.add( computeService.submit( () ->
+		{
+			final T block;
+
+			try
+			{
+				block = compute.call();
+			}
+			catch ( Exception e )
+			{
+				queued.release();
+				fail( e );
+				throw e;
+			}
+
+			if ( block == null )
+				queued.release();
+			else
+				write( block, writer, false );
+
+			return null;
+		}));
+	}
+
+	/**
+	 * Writes an already computed block on the I/O threads, waits if too many blocks are in flight.
+	 *
+	 * @param block - the block
+	 * @param writer - writes the block
+	 */
+	public < T > void write( final T block, final BlockWriter< T > writer )
+	{
+		write( block, writer, true );
+	}
+
+	/**
+	 * Waits until all submitted blocks are computed (they might not be written yet).
+	 */
+	public void awaitComputed()
+	{
+		await( computeFutures );
+	}
+
+	/**
+	 * Waits until all submitted blocks are computed and written.
+	 */
+	public void await()
+	{
+		await( computeFutures );
+		await( ioFutures );
+	}
+
+	/**
+	 * Cancels the blocks of this pipeline that are not done yet (e.g. if the Spark task failed) and stops its compute
+	 * threads, the shared I/O threads keep running.
+	 */
+	@Override
+	public void close()
+	{
+		synchronized ( computeFutures )
+		{
+			computeFutures.forEach( future -> future.cancel( true ) );
+		}
+
+		synchronized ( ioFutures )
+		{
+			ioFutures.forEach( future -> future.cancel( true ) );
+		}
+
+		if ( computeService != null )
+			computeService.shutdownNow();
+
+		synchronized ( this )
+		{
+			if ( closed )
+				return;
+
+			closed = true;
+		}
+
+		release();
+	}
+
+	/**
+	 * Splits a grid block { offset, size, gridOffset } into grid blocks of a single output block each.
+	 *
+	 * @param gridBlock - the grid block, additional rows (e.g. a ViewId) are copied
+	 * @param blockSize - the output block size, the offset of the grid block must be a multiple of it
+	 * @return the output blocks
+	 */
+	public static List< long[][] > split( final long[][] gridBlock, final int[] blockSize )
+	{
+		final int n = gridBlock[ 0 ].length;
+		final long[] numBlocks = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			numBlocks[ d ] = ( gridBlock[ 1 ][ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+
+		final ArrayList< long[][] > blocks = new ArrayList<>();
+		final long[] position = new long[ n ];
+
+		for ( long i = 0; i < Intervals.numElements( numBlocks ); ++i )
+		{
+			long index = i;
+			for ( int d = 0; d < n; ++d )
+			{
+				position[ d ] = index % numBlocks[ d ];
+				index /= numBlocks[ d ];
+			}
+
+			final long[][] block = new long[ gridBlock.length ][];
+
+			block[ 0 ] = new long[ n ];
+			block[ 1 ] = new long[ n ];
+			block[ 2 ] = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				block[ 0 ][ d ] = gridBlock[ 0 ][ d ] + position[ d ] * blockSize[ d ];
+				block[ 1 ][ d ] = Math.min( blockSize[ d ], gridBlock[ 0 ][ d ] + gridBlock[ 1 ][ d ] - block[ 0 ][ d ] );
+				block[ 2 ][ d ] = gridBlock[ 2 ][ d ] + position[ d ];
+			}
+
+			for ( int r = 3; r < gridBlock.length; ++r )
+				block[ r ] = gridBlock[ r ].clone();
+
+			blocks.add( block );
+		}
+
+		return blocks;
+	}
+
+	private < T > void write( final T block, final BlockWriter< T > writer, final boolean acquire )
+	{
+		if ( acquire )
+			acquire();
+
+		ioFutures.add( ioService.submit( () ->
+		{
+			try
+			{
+				writer.write( block );
+			}
+			catch ( Exception e )
+			{
+				fail( e );
+				throw e;
+			}
+			finally
+			{
+				queued.release();
+			}
+
+			return null;
+		}));
+	}
+
+	private void acquire()
+	{
+		if ( failure != null )
+			throw new RuntimeException( "Block pipeline failed: " + failure, failure );
+
+		try
+		{
+			queued.acquire();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+	}
+
+	private void fail( final Throwable e )
+	{
+		if ( failure == null )
+			failure = e;
+	}
+
+	private static void await( final List< Future< ? > > futures )
+	{
+		for ( int i = 0; i < futures.size(); ++i )
+		{
+			try
+			{
+				futures.get( i ).get();
+			}
+			catch ( ExecutionException e )
+			{
+				throw new RuntimeException( "Block pipeline failed: " + e.getCause(), e.getCause() );
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( e );
+			}
+		}
+	}
+
+	private static ThreadPoolExecutor fixedThreadPool( final int numThreads, final String name )
+	{
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				numThreads,
+				numThreads,
+				60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),
+				r ->
+				{
+					final Thread thread = new Thread( r, name );
+					thread.setDaemon( true );
+					return thread;
+				} );
+
+		executor.allowCoreThreadTimeOut( true );
+
+		return executor;
+	}
+}
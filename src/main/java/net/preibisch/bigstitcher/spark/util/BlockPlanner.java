@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import net.imglib2.util.Util;
+import net.preibisch.mvrecon.process.n5api.N5ApiTools.MultiResolutionLevelInfo;
+import util.Grid;
+
+/**
+ * Derives the compute blocks of a level from the storage layout of its dataset in the container, i.e. its chunk
+ * grid, or the shard grid for sharded OME-ZARR. Every compute block covers whole write units (chunks or shards, only
+ * cut at the border of the volume) and every write unit is covered by exactly one compute block, thus each chunk is
+ * written by a single Spark task, completely and only once. Writes therefore need no locking, can be repeated
+ * (e.g. when Spark re-runs a task or fusion is resumed) and never read-modify-write a partially written chunk.
+ */
+public class BlockPlanner
+{
+	private final String dataset;
+	private final long[] dimensions;
+	private final int[] blockSize;
+	private final int[] unitSize;
+
+	/**
+	 * @param dataset - the dataset (for error messages)
+	 * @param dimensions - the dimensions of the 3D volume (in pixels)
+	 * @param blockSize - the chunk size of the dataset (3D)
+	 * @param unitSize - the size of a write unit, the chunk or the shard size (3D)
+	 */
+	public BlockPlanner( final String dataset, final long[] dimensions, final int[] blockSize, final int[] unitSize )
+	{
+		for ( int d = 0; d < 3; ++d )
+			if ( unitSize[ d ] % blockSize[ d ] != 0 )
+				throw new IllegalArgumentException( "Write unit " + Util.printCoordinates( unitSize ) + " of '" + dataset + "' is not a multiple of its chunks " + Util.printCoordinates( blockSize ) );
+
+		this.dataset = dataset;
+		this.dimensions = Arrays.copyOf( dimensions, 3 );
+		this.blockSize = Arrays.copyOf( blockSize, 3 );
+		this.unitSize = Arrays.copyOf( unitSize, 3 );
+	}
+
+	/**
+	 * Creates the planner for one level of a pyramid.
+	 *
+	 * @param n5 - the container
+	 * @param mrInfo - the level
+	 * @param blockSize - the chunk size of sharded arrays (ignored otherwise)
+	 * @param shardSize - the shard size if the level is a sharded array (which has no N5 dataset attributes), otherwise null
+	 * @return the planner
+	 */
+	public static BlockPlanner forLevel( final N5Reader n5, final MultiResolutionLevelInfo mrInfo, final int[] blockSize, final int[] shardSize )
+	{
+		if ( shardSize != null )
+			return new BlockPlanner( mrInfo.dataset, mrInfo.dimensions, blockSize, shardSize );
+		else
+			return forDataset( n5, mrInfo.dataset );
+	}
+
+	/**
+	 * Creates the planner for a dataset from the chunk size stored in the container. For 5D OME-ZARR it verifies
+	 * that a chunk holds a single channel and timepoint, otherwise the volumes could not be written independently.
+	 *
+	 * @param n5 - the container
+	 * @param dataset - the dataset (3D, or 5D for OME-ZARR)
+	 * @return the planner
+	 */
+	public static BlockPlanner forDataset( final N5Reader n5, final String dataset )
+	{
+		final DatasetAttributes attributes = n5.getDatasetAttributes( dataset );
+
+		if ( attributes == null )
+			throw new IllegalStateException( "Dataset '" + dataset + "' does not exist in the container." );
+
+		final int[] chunkSize = attributes.getBlockSize();
+
+		for ( int d = 3; d < chunkSize.length; ++d )
+			if ( chunkSize[ d ] != 1 )
+				throw new IllegalStateException( "Chunks of '" + dataset + "' " + Arrays.toString( chunkSize ) + " span several channels or timepoints, which cannot be written independently." );
+
+		return new BlockPlanner( dataset, attributes.getDimensions(), chunkSize, chunkSize );
+	}
+
+	/**
+	 * @return the size of a write unit (chunk or shard)
+	 */
+	public int[] unitSize()
+	{
+		return unitSize.clone();
+	}
+
+	/**
+	 * @param computeBlockSize - the requested size of a compute block
+	 * @return the smallest size of a compute block that is at least as large and covers whole write units
+	 */
+	public int[] align( final int[] computeBlockSize )
+	{
+		final int[] aligned = new int[ 3 ];
+		Arrays.setAll( aligned, d -> Math.max( 1, ( computeBlockSize[ d ] + unitSize[ d ] - 1 ) / unitSize[ d ] ) * unitSize[ d ] );
+
+		return aligned;
+	}
+
+	/**
+	 * @param computeBlockSize - the size of a compute block, must be a multiple of the write unit
+	 * @return the compute blocks of the level (long[][] { offset, size, gridOffset }), validated
+	 */
+	public List< long[][] > plan( final int[] computeBlockSize )
+	{
+		if ( !Arrays.equals( align( computeBlockSize ), Arrays.copyOf( computeBlockSize, 3 ) ) )
+			throw new IllegalArgumentException( "Compute blocksize " + Util.printCoordinates( computeBlockSize ) + " for '" + dataset +
+					"' is not a multiple of its write unit " + Util.printCoordinates( unitSize ) + ", use e.g. " + Util.printCoordinates( align( computeBlockSize ) ) );
+
+		final List< long[][] > blocks = Grid.create( dimensions, computeBlockSize, blockSize );
+		validate( blocks );
+
+		return blocks;
+	}
+
+	/**
+	 * Verifies that the blocks cover whole write units, that no write unit is covered by more than one block, and that
+	 * their grid offsets address the chunks of the dataset. Additional rows of the blocks (e.g. a ViewId) are ignored.
+	 *
+	 * @param blocks - the compute blocks (long[][] { offset, size, gridOffset, ... })
+	 * @throws IllegalStateException if a write unit would have more than one writer or be written partially
+	 */
+	public void validate( final List< long[][] > blocks )
+	{
+		final long[] unitGrid = new long[ 3 ];
+		Arrays.setAll( unitGrid, d -> ( dimensions[ d ] + unitSize[ d ] - 1 ) / unitSize[ d ] );
+
+		final long numUnits = unitGrid[ 0 ] * unitGrid[ 1 ] * unitGrid[ 2 ];
+
+		if ( numUnits > Integer.MAX_VALUE )
+			throw new IllegalStateException( "Too many write units in '" + dataset + "' to validate: " + numUnits );
+
+		final BitSet owned = new BitSet( (int)numUnits );
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		for ( final long[][] block : blocks )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				final long end = block[ 0 ][ d ] + block[ 1 ][ d ];
+
+				if ( block[ 0 ][ d ] % unitSize[ d ] != 0 || ( end % unitSize[ d ] != 0 && end != dimensions[ d ] ) || end > dimensions[ d ] || block[ 1 ][ d ] <= 0 )
+					throw new IllegalStateException( "Compute block " + Util.printCoordinates( block[ 0 ] ) + "+" + Util.printCoordinates( block[ 1 ] ) +
+							" of '" + dataset + "' does not cover whole write units " + Util.printCoordinates( unitSize ) + ", dimensions " + Util.printCoordinates( dimensions ) );
+
+				if ( block[ 2 ][ d ] * blockSize[ d ] != block[ 0 ][ d ] )
+					throw new IllegalStateException( "Compute block " + Util.printCoordinates( block[ 0 ] ) + " of '" + dataset + "' has the wrong grid offset " + Util.printCoordinates( block[ 2 ] ) );
+
+				min[ d ] = block[ 0 ][ d ] / unitSize[ d ];
+				max[ d ] = ( end - 1 ) / unitSize[ d ];
+			}
+
+			for ( long z = min[ 2 ]; z <= max[ 2 ]; ++z )
+				for ( long y = min[ 1 ]; y <= max[ 1 ]; ++y )
+					for ( long x = min[ 0 ]; x <= max[ 0 ]; ++x )
+					{
+						final int i = (int)( ( z * unitGrid[ 1 ] + y ) * unitGrid[ 0 ] + x );
+
+						if ( owned.get( i ) )
+							throw new IllegalStateException( "Write unit " + x + "," + y + "," + z + " of '" + dataset + "' is covered by more than one compute block." );
+
+						owned.set( i );
+					}
+		}
+	}
+}
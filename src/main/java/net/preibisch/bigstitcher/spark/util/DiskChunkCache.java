@@ -0,0 +1,638 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.SparkEnv;
+import org.janelia.saalfeldlab.n5.KeyValueAccess;
+import org.janelia.saalfeldlab.n5.LockedChannel;
+import org.janelia.saalfeldlab.n5.N5KeyValueReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.zarr.ZarrKeyValueReader;
+
+import com.google.gson.GsonBuilder;
+
+import bdv.img.n5.N5ImageLoader;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.imgloaders.AllenOMEZarrLoader;
+import util.URITools;
+
+/**
+ * A node-local cache of remote input chunks on disk, shared by all executor JVMs on a host that use the same
+ * directory (ideally a local SSD). It sits below the imgloader as a {@link KeyValueAccess}, so neighbouring compute
+ * blocks fused by different JVMs download each input chunk only once, while the in-memory imglib2 cache of each JVM
+ * keeps working as before.
+ *
+ * Chunks are immutable inputs while a command runs, each is stored in a file named after the SHA-256 of its full URI
+ * (including the container, so containers never collide) in the directory of a generation. The driver starts a new
+ * generation for every run (see {@link #configure}), so a dataset that was rewritten at the same path since an earlier
+ * run is never served from the chunks cached by that run, those are evicted as they are not used anymore. Files are
+ * written to a temporary file first and moved into place atomically, so readers never see partial chunks and
+ * concurrent downloads of the same chunk are harmless. The total size is kept below a cap by deleting the least recently used files (the
+ * modification time is updated on every hit), one JVM at a time guarded by a file lock, in the background so a sweep
+ * never fails a read. Metadata (attributes.json, .zarray, .zattrs, zarr.json, ...) is never cached.
+ */
+public class DiskChunkCache
+{
+	// set in the SparkConf by the driver (see AbstractInfrastructure), read by the executors
+	public static final String DIR_PROPERTY = "spark.bigstitcher.inputCache.dir";
+	public static final String SIZE_PROPERTY = "spark.bigstitcher.inputCache.maxBytes";
+	public static final String GENERATION_PROPERTY = "spark.bigstitcher.inputCache.generation";
+
+	// hits only update the modification time (the LRU clock) if it is older than this
+	private static final long TOUCH_INTERVAL_MILLIS = 60 * 1000;
+
+	// temporary files older than this were left over by a crashed JVM
+	private static final long STALE_TMP_MILLIS = 60 * 60 * 1000;
+
+	private static final HashMap< Path, DiskChunkCache > caches = new HashMap<>();
+
+	// sweeps the caches of this JVM in the background
+	private static final ExecutorService sweeper = Executors.newSingleThreadExecutor( r ->
+	{
+		final Thread thread = new Thread( r, "input-chunk-cache-sweep" );
+		thread.setDaemon( true );
+		return thread;
+	});
+
+	// the cache directory (swept as a whole) and the directory of the chunks of this generation
+	private final Path dir, generationDir;
+	private final long maxBytes;
+
+	private final AtomicLong bytesSinceSweep = new AtomicLong();
+	private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param dir - the cache directory, all JVMs of a host using the same directory share the cache
+	 * @param maxBytes - the maximal size of all cached chunks (of all generations)
+	 * @param generation - the generation, only JVMs of the same generation (run) share chunks
+	 */
+	public DiskChunkCache( final Path dir, final long maxBytes, final String generation ) throws IOException
+	{
+		this.dir = dir;
+		this.generationDir = dir.resolve( generation );
+		this.maxBytes = maxBytes;
+
+		Files.createDirectories( generationDir );
+	}
+
+	/**
+	 * @return the cache of this JVM for the directory and generation
+	 */
+	public static synchronized DiskChunkCache getInstance( final Path dir, final long maxBytes, final String generation ) throws IOException
+	{
+		DiskChunkCache cache = caches.get( dir.resolve( generation ) );
+
+		if ( cache == null )
+		{
+			cache = new DiskChunkCache( dir, maxBytes, generation );
+			caches.put( dir.resolve( generation ), cache );
+
+			System.out.println( "Caching input chunks in '" + dir + "' (max " + ( maxBytes / 1024 / 1024 ) + " MB) on executorId=" + Spark.getSparkExecutorId() );
+		}
+
+		return cache;
+	}
+
+	/**
+	 * Sets up the cache in the SparkConf, so it is used by the executors. Starts a new generation, the chunks cached
+	 * by earlier runs are not used.
+	 *
+	 * @param conf - the SparkConf
+	 * @param dir - the cache directory on each node
+	 * @param maxBytes - the maximal size of the cache on each node
+	 */
+	public static void configure( final SparkConf conf, final String dir, final long maxBytes )
+	{
+		conf.set( DIR_PROPERTY, dir );
+		conf.set( SIZE_PROPERTY, Long.toString( maxBytes ) );
+		conf.set( GENERATION_PROPERTY, UUID.randomUUID().toString() );
+	}
+
+	/**
+	 * @return the cache configured in the SparkConf of this JVM, or null if there is none (or no Spark environment)
+	 */
+	public static DiskChunkCache fromSparkEnv() throws IOException
+	{
+		final SparkEnv env = SparkEnv.get();
+
+		if ( env == null || !env.conf().contains( DIR_PROPERTY ) )
+			return null;
+
+		return getInstance(
+				Paths.get( env.conf().get( DIR_PROPERTY ) ),
+				env.conf().getLong( SIZE_PROPERTY, 50L * 1024 * 1024 * 1024 ),
+				env.conf().get( GENERATION_PROPERTY, "default" ) );
+	}
+
+	/**
+	 * Replaces the imgloader of a project that reads a remote N5 or OME-ZARR container by one that reads
+	 * the chunks through the cache configured in the SparkConf (if any). Other imgloaders are not changed.
+	 *
+	 * @param data - the project, as loaded on an executor
+	 */
+	public static void wrapImgLoader( final SpimData2 data ) throws IOException
+	{
+		final BasicImgLoader imgLoader = data.getSequenceDescription().getImgLoader();
+
+		if ( !( imgLoader instanceof N5ImageLoader ) )
+			return;
+
+		final URI uri = ( (N5ImageLoader)imgLoader ).getN5URI();
+
+		if ( uri == null || URITools.isFile( uri ) )
+			return;
+
+		final DiskChunkCache cache = fromSparkEnv();
+
+		if ( cache == null )
+			return;
+
+		final KeyValueAccess kva = cache.wrap( URITools.getKeyValueAccess( uri ) );
+
+		if ( imgLoader instanceof AllenOMEZarrLoader )
+		{
+			final N5Reader reader = new ZarrKeyValueReader( kva, uri.toString(), new GsonBuilder(), true, true, true );
+
+			data.getSequenceDescription().setImgLoader(
+					new AllenOMEZarrLoader( reader, uri, data.getSequenceDescription(), ( (AllenOMEZarrLoader)imgLoader ).getViewIdToPath() ) );
+		}
+		else
+		{
+			final N5Reader reader = new N5KeyValueReader( kva, uri.toString(), new GsonBuilder(), true );
+
+			data.getSequenceDescription().setImgLoader( new N5ImageLoader( reader, uri, data.getSequenceDescription() ) );
+		}
+	}
+
+	/**
+	 * @return a KeyValueAccess that reads chunks through this cache, all other calls go to the given one
+	 */
+	public KeyValueAccess wrap( final KeyValueAccess kva )
+	{
+		return new CachedKeyValueAccess( kva );
+	}
+
+	public long hits() { return hits.get(); }
+
+	public long misses() { return misses.get(); }
+
+	/**
+	 * @return the cached chunk, loading and caching it if it is not cached yet
+	 */
+	public byte[] get( final String key, final ChunkLoader load ) throws IOException
+	{
+		final Path file = file( key );
+
+		try
+		{
+			final byte[] bytes = Files.readAllBytes( file );
+
+			hits.incrementAndGet();
+			touch( file );
+
+			return bytes;
+		}
+		catch ( final NoSuchFileException e )
+		{
+			// not cached (or just evicted)
+		}
+
+		misses.incrementAndGet();
+
+		final byte[] bytes = load.load();
+
+		try
+		{
+			put( file, bytes );
+		}
+		catch ( final IOException e )
+		{
+			// the chunk was loaded, a full or broken cache disk must not fail the read
+			System.out.println( "Could not cache '" + key + "' in '" + dir + "': " + e );
+		}
+
+		// sweep after a twentieth of the cache was added by this JVM, in the background so it never delays or fails a read
+		if ( bytesSinceSweep.addAndGet( bytes.length ) > maxBytes / 20 && sweepScheduled.compareAndSet( false, true ) )
+		{
+			sweeper.execute( () ->
+			{
+				try
+				{
+					sweep();
+				}
+				finally
+				{
+					sweepScheduled.set( false );
+				}
+			});
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * @return true if the chunk is cached
+	 */
+	public boolean contains( final String key )
+	{
+		return Files.exists( file( key ) );
+	}
+
+	/**
+	 * Deletes the least recently used chunks (of all generations) until the cache is below 90% of its maximal size,
+	 * and the directories of other generations once they are empty. Only one JVM sweeps at a time, the others return
+	 * immediately. Files that are evicted or moved into place while sweeping are skipped, and errors are only logged,
+	 * the next sweep will try again.
+	 */
+	public synchronized void sweep()
+	{
+		bytesSinceSweep.set( 0 );
+
+		try ( final FileChannel lockFile = FileChannel.open( dir.resolve( ".sweep.lock" ), StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+				final FileLock lock = tryLock( lockFile ) )
+		{
+			if ( lock == null )
+				return;
+
+			final List< Path > files = new ArrayList<>();
+			final Map< Path, BasicFileAttributes > attributes = new HashMap<>();
+
+			Files.walkFileTree( dir, new SimpleFileVisitor< Path >()
+			{
+				@Override
+				public FileVisitResult visitFile( final Path path, final BasicFileAttributes a )
+				{
+					if ( !a.isRegularFile() )
+						return FileVisitResult.CONTINUE;
+
+					// the lock and temporary files, which are deleted if a crashed JVM left them over
+					if ( path.getFileName().toString().startsWith( "." ) )
+					{
+						if ( path.getFileName().toString().endsWith( ".tmp" ) && System.currentTimeMillis() - a.lastModifiedTime().toMillis() > STALE_TMP_MILLIS )
+							deleteQuietly( path );
+
+						return FileVisitResult.CONTINUE;
+					}
+
+					files.add( path );
+					attributes.put( path, a );
+
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed( final Path path, final IOException e ) throws IOException
+				{
+					// evicted by another JVM or moved into place while walking, the next sweep will see it
+					if ( e instanceof NoSuchFileException )
+						return FileVisitResult.CONTINUE;
+
+					throw e;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory( final Path path, final IOException e )
+				{
+					// directories of earlier generations whose chunks were all evicted
+					if ( !path.equals( dir ) && !path.startsWith( generationDir ) )
+					{
+						try
+						{
+							Files.deleteIfExists( path );
+						}
+						catch ( final IOException notEmpty ) {}
+					}
+
+					return FileVisitResult.CONTINUE;
+				}
+			});
+
+			long total = 0;
+
+			for ( final Path path : files )
+				total += attributes.get( path ).size();
+
+			if ( total <= maxBytes )
+				return;
+
+			files.sort( Comparator.comparing( path -> attributes.get( path ).lastModifiedTime() ) );
+
+			final long target = maxBytes / 10 * 9;
+
+			for ( int i = 0; i < files.size() && total > target; ++i )
+			{
+				if ( deleteQuietly( files.get( i ) ) )
+					total -= attributes.get( files.get( i ) ).size();
+			}
+		}
+		catch ( final IOException | UncheckedIOException e )
+		{
+			System.out.println( "Sweeping the input chunk cache '" + dir + "' failed: " + e );
+		}
+	}
+
+	protected void put( final Path file, final byte[] bytes ) throws IOException
+	{
+		Files.createDirectories( file.getParent() );
+
+		// hidden temporary file in the same directory, so it can be moved atomically
+		final Path tmp = Files.createTempFile( file.getParent(), "." + file.getFileName(), ".tmp" );
+
+		try
+		{
+			Files.write( tmp, bytes );
+
+			try
+			{
+				Files.move( tmp, file, StandardCopyOption.ATOMIC_MOVE );
+			}
+			catch ( final AtomicMoveNotSupportedException e )
+			{
+				Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp );
+		}
+	}
+
+	/**
+	 * @return the lock, or null if another JVM (or another cache on the same directory in this JVM) holds it
+	 */
+	protected static FileLock tryLock( final FileChannel lockFile ) throws IOException
+	{
+		try
+		{
+			return lockFile.tryLock();
+		}
+		catch ( final OverlappingFileLockException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the file was deleted by this call
+	 */
+	protected static boolean deleteQuietly( final Path file )
+	{
+		try
+		{
+			return Files.deleteIfExists( file );
+		}
+		catch ( final IOException e )
+		{
+			System.out.println( "Could not delete '" + file + "' from the input chunk cache: " + e );
+			return false;
+		}
+	}
+
+	protected void touch( final Path file )
+	{
+		try
+		{
+			final long now = System.currentTimeMillis();
+
+			if ( now - Files.getLastModifiedTime( file ).toMillis() > TOUCH_INTERVAL_MILLIS )
+				Files.setLastModifiedTime( file, FileTime.fromMillis( now ) );
+		}
+		catch ( final IOException e )
+		{
+			// evicted by another JVM in the meantime
+		}
+	}
+
+	/**
+	 * @return the file of a chunk in this generation, named after the SHA-256 of its key (two levels of directories)
+	 */
+	protected Path file( final String key )
+	{
+		final StringBuilder hex = new StringBuilder();
+
+		try
+		{
+			for ( final byte b : MessageDigest.getInstance( "SHA-256" ).digest( key.getBytes( StandardCharsets.UTF_8 ) ) )
+				hex.append( String.format( "%02x", b ) );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+
+		return generationDir.resolve( hex.substring( 0, 2 ) ).resolve( hex.toString() );
+	}
+
+	/**
+	 * @return true if the key is a chunk, i.e. not metadata of a group or dataset
+	 */
+	protected static boolean isChunk( final String key )
+	{
+		final String name = key.substring( key.lastIndexOf( '/' ) + 1 );
+
+		return !name.startsWith( "." ) && !name.endsWith( ".json" );
+	}
+
+	protected static byte[] readFully( final InputStream in ) throws IOException
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[ 65536 ];
+
+		for ( int n = in.read( buffer ); n >= 0; n = in.read( buffer ) )
+			out.write( buffer, 0, n );
+
+		return out.toByteArray();
+	}
+
+	@FunctionalInterface
+	public static interface ChunkLoader
+	{
+		public byte[] load() throws IOException;
+	}
+
+	/**
+	 * Reads chunks through the cache, everything else (metadata, listing, writing) goes to the remote storage.
+	 * Chunks are cached under their full URI, paths of different containers (e.g. buckets) can be the same.
+	 */
+	protected class CachedKeyValueAccess implements KeyValueAccess
+	{
+		final KeyValueAccess kva;
+
+		CachedKeyValueAccess( final KeyValueAccess kva )
+		{
+			this.kva = kva;
+		}
+
+		@Override
+		public LockedChannel lockForReading( final String normalPath ) throws IOException
+		{
+			if ( !isChunk( normalPath ) )
+				return kva.lockForReading( normalPath );
+
+			return new BytesChannel( get( key( normalPath ), () ->
+			{
+				try ( final LockedChannel channel = kva.lockForReading( normalPath );
+						final InputStream in = channel.newInputStream() )
+				{
+					return readFully( in );
+				}
+			}) );
+		}
+
+		@Override
+		public boolean exists( final String normalPath )
+		{
+			return isChunk( normalPath ) && contains( key( normalPath ) ) || kva.exists( normalPath );
+		}
+
+		@Override
+		public boolean isFile( final String normalPath )
+		{
+			return isChunk( normalPath ) && contains( key( normalPath ) ) || kva.isFile( normalPath );
+		}
+
+		/**
+		 * @return the key of a chunk in the cache, its full URI
+		 */
+		String key( final String normalPath )
+		{
+			try
+			{
+				return kva.uri( normalPath ).toString();
+			}
+			catch ( final URISyntaxException e )
+			{
+				throw new IllegalArgumentException( "Cannot cache '" + normalPath + "', it is not a valid URI: " + e, e );
+			}
+		}
+
+		@Override
+		public String[] components( final String path ) { return kva.components( path ); }
+
+		@Override
+		public String compose( final String... components ) { return kva.compose( components ); }
+
+		@Override
+		public String compose( final URI uri, final String... components ) { return kva.compose( uri, components ); }
+
+		@Override
+		public String parent( final String path ) { return kva.parent( path ); }
+
+		@Override
+		public String relativize( final String path, final String base ) { return kva.relativize( path, base ); }
+
+		@Override
+		public String normalize( final String path ) { return kva.normalize( path ); }
+
+		@Override
+		public URI uri( final String normalPath ) throws URISyntaxException { return kva.uri( normalPath ); }
+
+		@Override
+		public boolean isDirectory( final String normalPath ) { return kva.isDirectory( normalPath ); }
+
+		@Override
+		public LockedChannel lockForWriting( final String normalPath ) throws IOException { return kva.lockForWriting( normalPath ); }
+
+		@Override
+		public String[] listDirectories( final String normalPath ) throws IOException { return kva.listDirectories( normalPath ); }
+
+		@Override
+		public String[] list( final String normalPath ) throws IOException { return kva.list( normalPath ); }
+
+		@Override
+		public void createDirectories( final String normalPath ) throws IOException { kva.createDirectories( normalPath ); }
+
+		@Override
+		public void delete( final String normalPath ) throws IOException { kva.delete( normalPath ); }
+	}
+
+	/**
+	 * A read-only channel of a cached chunk.
+	 */
+	protected static class BytesChannel implements LockedChannel
+	{
+		final byte[] bytes;
+
+		BytesChannel( final byte[] bytes )
+		{
+			this.bytes = bytes;
+		}
+
+		@Override
+		public InputStream newInputStream() { return new ByteArrayInputStream( bytes ); }
+
+		@Override
+		public Reader newReader() { return new InputStreamReader( newInputStream(), StandardCharsets.UTF_8 ); }
+
+		@Override
+		public OutputStream newOutputStream() throws IOException { throw new IOException( "Cached chunks are read-only." ); }
+
+		@Override
+		public Writer newWriter() throws IOException { throw new IOException( "Cached chunks are read-only." ); }
+
+		@Override
+		public void close() {}
+	}
+}
@@ -36,6 +36,11 @@ import org.janelia.saalfeldlab.n5.universe.StorageFormat;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.ShortType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
@@ -123,7 +128,7 @@ public class Downsampling
 					gridBlock ->
 					{
 						final N5Writer executorVolumeWriter =
-								N5Util.createN5Writer( path, storageType );
+								N5Util.acquireN5Writer( path, storageType );
 
 						try
 						{
@@ -211,10 +216,10 @@ public class Downsampling
 							System.out.println( "Error writing block offset=" + Util.printCoordinates( gridBlock[0] ) + "' ... " + exc );
 							exc.printStackTrace();
 						}
-
-						// if it is not the shared HDF5 writer, then close
-						if ( N5Util.sharedHDF5Writer != executorVolumeWriter )
-							executorVolumeWriter.close();
+						finally
+						{
+							N5Util.releaseN5Writer( executorVolumeWriter );
+						}
 					});
 
 			System.out.println( "Saved level s " + level + ", took: " + (System.currentTimeMillis() - time ) + " ms." );
@@ -227,6 +232,102 @@ public class Downsampling
 		return true;
 	}
 
+	/**
+	 * Computes how many pyramid levels (beyond s0) can be computed from a single compute block in memory,
+	 * i.e. the deepest level for which a full block (at that level) fits into the compute block in every dimension.
+	 *
+	 * @param absoluteDownsamplings - the absolute downsampling of each level (index 0 is s0)
+	 * @param blockSize - the block size of all levels
+	 * @param computeBlockSize - the compute block size at s0
+	 * @return the number of levels that can be computed in the same pass as s0 (0 means none)
+	 */
+	public static int numInMemoryLevels( final int[][] absoluteDownsamplings, final int[] blockSize, final int[] computeBlockSize )
+	{
+		int levels = 0;
+
+		for ( int level = 1; level < absoluteDownsamplings.length; ++level )
+		{
+			for ( int d = 0; d < computeBlockSize.length; ++d )
+				if ( (long)absoluteDownsamplings[ level ][ d ] * blockSize[ d ] > computeBlockSize[ d ] )
+					return levels;
+
+			levels = level;
+		}
+
+		return levels;
+	}
+
+	/**
+	 * Enlarges the compute block so it covers whole blocks of the given level, which makes the downsampled
+	 * compute blocks of all levels up to that level block-aligned (and thus independent from each other).
+	 *
+	 * @param absoluteDownsampling - the absolute downsampling of the deepest level computed in memory
+	 * @param blockSize - the block size of all levels
+	 * @param computeBlockSize - the compute block size at s0
+	 * @return the new compute block size at s0
+	 */
+	public static int[] alignComputeBlockSize( final int[] absoluteDownsampling, final int[] blockSize, final int[] computeBlockSize )
+	{
+		final int[] aligned = new int[ computeBlockSize.length ];
+
+		for ( int d = 0; d < aligned.length; ++d )
+		{
+			final int footprint = absoluteDownsampling[ d ] * blockSize[ d ];
+			aligned[ d ] = ( ( computeBlockSize[ d ] + footprint - 1 ) / footprint ) * footprint;
+		}
+
+		return aligned;
+	}
+
+	/**
+	 * Downsamples a (zero-min) block in memory using the same half-pixel scheme as the level-by-level downsampling
+	 * that reads the previous level from storage, thus for block-aligned inputs the result is identical.
+	 *
+	 * @param block - the input block
+	 * @param relativeDownsampling - the downsampling relative to the input block (1 or 2 per dimension)
+	 * @param type - the pixel type
+	 * @param blockSize - the block size used for the lazy computation
+	 * @return the downsampled block, copied to an ArrayImg, or null if it is empty in any dimension
+	 */
+	public static < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< T > downsampleInMemory(
+			final RandomAccessibleInterval< T > block,
+			final int[] relativeDownsampling,
+			final T type,
+			final int[] blockSize )
+	{
+		RandomAccessibleInterval< T > downsampled = Views.zeroMin( block );
+
+		for ( int d = 0; d < downsampled.numDimensions(); ++d )
+			if ( relativeDownsampling[ d ] > 1 )
+			{
+				if ( downsampled.dimension( d ) < 2 )
+					return null;
+
+				downsampled = LazyHalfPixelDownsample2x.init(
+					downsampled,
+					new FinalInterval( downsampled ),
+					type,
+					blockSize,
+					d);
+			}
+
+		return copyToArrayImg( downsampled, type );
+	}
+
+	/**
+	 * @param img - the input
+	 * @param type - the pixel type
+	 * @return a zero-min copy of the input in an ArrayImg
+	 */
+	public static < T extends NativeType< T > > RandomAccessibleInterval< T > copyToArrayImg( final RandomAccessibleInterval< T > img, final T type )
+	{
+		final Img< T > copy = new ArrayImgFactory<>( type ).create( img );
+
+		LoopBuilder.setImages( Views.zeroMin( img ), copy ).forEachPixel( (i,o) -> o.set( i ) );
+
+		return copy;
+	}
+
 	public static boolean testDownsamplingParameters( final boolean multiRes, final List<String> downsampling )
 	{
 		// no not create multi-res pyramid
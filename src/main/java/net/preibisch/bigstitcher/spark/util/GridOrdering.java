@@ -0,0 +1,390 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+
+/**
+ * Orders grid blocks (as created by {@code Grid.create}, i.e. long[][] { offset, size, gridOffset, ... })
+ * along a Morton (Z-order) curve and packs contiguous runs of about equal estimated cost into Spark partitions,
+ * so that neighboring blocks, which read the same input cells, are processed by the same task and benefit from its
+ * cache, while all tasks take about the same time.
+ */
+public class GridOrdering
+{
+	// how many neighboring blocks should end up in one partition at least (if there is enough parallelism)
+	public static int minBlocksPerPartition = 8;
+
+	// how many blocks should end up in one partition at most, so single tasks stay short and cheap to retry
+	public static int maxBlocksPerPartition = 256;
+
+	// how many partitions per core are created (if there are enough blocks), so expensive partitions can be balanced by cheap ones
+	public static int partitionsPerCore = 4;
+
+	/**
+	 * Orders the blocks along a Morton curve and parallelizes them so that each partition holds a contiguous
+	 * run of the curve with about the same number of voxels. Also prints the expected reuse of input cells
+	 * compared to raster order.
+	 *
+	 * @param sc the spark context
+	 * @param grid the blocks
+	 * @return the RDD
+	 */
+	public static JavaRDD< long[][] > parallelize( final JavaSparkContext sc, final List< long[][] > grid )
+	{
+		return parallelize( sc, grid, Function.identity(), GridOrdering::numVoxels );
+	}
+
+	/**
+	 * Orders the items along a Morton curve, drops all items without cost (e.g. blocks that no view overlaps) and
+	 * splits the curve into contiguous runs of about the same total cost, one per partition. The most expensive
+	 * partitions come first, so Spark schedules them first and the cheap ones fill the gaps at the end of the job.
+	 *
+	 * @param sc the spark context
+	 * @param items the items
+	 * @param toGridBlock returns the grid block of an item
+	 * @param cost the estimated cost of an item, items with a cost &lt;= 0 are dropped
+	 * @return the RDD
+	 */
+	public static < T > JavaRDD< T > parallelize(
+			final JavaSparkContext sc,
+			final List< T > items,
+			final Function< T, long[][] > toGridBlock,
+			final ToDoubleFunction< T > cost )
+	{
+		final List< List< T > > partitions = partition( items, toGridBlock, cost, sc.defaultParallelism() );
+
+		if ( partitions.size() == 0 )
+			return sc.emptyRDD();
+
+		// exactly one list per slice
+		return sc.parallelize( partitions, partitions.size() ).flatMap( partition -> partition.iterator() );
+	}
+
+	/**
+	 * Computes the partitions used by {@link #parallelize(JavaSparkContext, List, Function, ToDoubleFunction)}.
+	 *
+	 * @param items the items
+	 * @param toGridBlock returns the grid block of an item
+	 * @param cost the estimated cost of an item, items with a cost &lt;= 0 are dropped
+	 * @param parallelism the default parallelism of the Spark context
+	 * @return the partitions, most expensive first
+	 */
+	public static < T > List< List< T > > partition(
+			final List< T > items,
+			final Function< T, long[][] > toGridBlock,
+			final ToDoubleFunction< T > cost,
+			final int parallelism )
+	{
+		final ArrayList< T > nonEmpty = new ArrayList<>();
+
+		for ( final T item : items )
+			if ( cost.applyAsDouble( item ) > 0 )
+				nonEmpty.add( item );
+
+		if ( nonEmpty.size() == 0 )
+		{
+			System.out.println( "All " + items.size() + " blocks are empty, nothing to do." );
+			return new ArrayList<>();
+		}
+
+		final List< T > ordered = mortonOrder( nonEmpty, toGridBlock );
+		final double[] costs = ordered.stream().mapToDouble( cost ).toArray();
+		final double totalCost = Arrays.stream( costs ).sum();
+		final int numPartitions = numPartitions( ordered.size(), parallelism );
+
+		final ArrayList< List< T > > partitions = new ArrayList<>();
+		final ArrayList< Double > partitionCosts = new ArrayList<>();
+
+		ArrayList< T > partition = new ArrayList<>();
+		double sum = 0, partitionCost = 0;
+		int p = 0;
+
+		for ( int i = 0; i < ordered.size(); ++i )
+		{
+			partition.add( ordered.get( i ) );
+			sum += costs[ i ];
+			partitionCost += costs[ i ];
+
+			// close the partition once the cumulative cost reaches its share (a very expensive block may cover several shares)
+			if ( sum >= totalCost * ( p + 1 ) / numPartitions || partition.size() >= maxBlocksPerPartition )
+			{
+				partitions.add( partition );
+				partitionCosts.add( partitionCost );
+
+				partition = new ArrayList<>();
+				partitionCost = 0;
+				p = Math.max( p, (int)Math.min( numPartitions - 1, Math.floor( sum * numPartitions / totalCost ) ) );
+			}
+		}
+
+		if ( partition.size() > 0 )
+		{
+			partitions.add( partition );
+			partitionCosts.add( partitionCost );
+		}
+
+		// most expensive first
+		final Integer[] indices = new Integer[ partitions.size() ];
+		Arrays.setAll( indices, i -> i );
+		Arrays.sort( indices, ( a, b ) -> Double.compare( partitionCosts.get( b ), partitionCosts.get( a ) ) );
+
+		final ArrayList< List< T > > sorted = new ArrayList<>( partitions.size() );
+
+		for ( final int i : indices )
+			sorted.add( partitions.get( i ) );
+
+		System.out.println(
+				"Ordered " + ordered.size() + " blocks along a Morton curve in " + sorted.size() + " partition(s) (" + ( items.size() - ordered.size() ) + " empty blocks dropped), " +
+				"max/mean partition cost: " + String.format( "%.2f", partitionCosts.get( indices[ 0 ] ) * sorted.size() / totalCost ) +
+				", expected input-cell reuse factor: " + String.format( "%.2f", expectedReuseFactor( sorted, toGridBlock ) ) +
+				" (raster order: " + String.format( "%.2f", expectedReuseFactor( nonEmpty, sorted.size(), toGridBlock ) ) + ")" );
+
+		return sorted;
+	}
+
+	/**
+	 * @param numBlocks number of blocks
+	 * @param parallelism the default parallelism of the Spark context
+	 * @return a number of partitions that gives each core several partitions to balance the load, puts several neighboring
+	 * blocks into each partition if possible, but not more than {@link #maxBlocksPerPartition}
+	 */
+	public static int numPartitions( final int numBlocks, final int parallelism )
+	{
+		final int blocksPerPartition = Math.max( 1, Math.min( minBlocksPerPartition, numBlocks / Math.max( 1, parallelism * 2 ) ) );
+
+		final long maxPartitions = ( numBlocks + blocksPerPartition - 1 ) / blocksPerPartition;
+		final long minPartitions = ( numBlocks + maxBlocksPerPartition - 1 ) / maxBlocksPerPartition;
+
+		return (int)Math.max( 1, Math.min( maxPartitions, Math.max( minPartitions, (long)parallelism * partitionsPerCore ) ) );
+	}
+
+	/**
+	 * @param gridBlock the block
+	 * @return the number of voxels of the block, i.e. its cost if all blocks do the same work per voxel (e.g. downsampling)
+	 */
+	public static double numVoxels( final long[][] gridBlock )
+	{
+		double numVoxels = 1;
+
+		for ( final long s : gridBlock[ 1 ] )
+			numVoxels *= s;
+
+		return numVoxels;
+	}
+
+	/**
+	 * Orders items by the Morton code of the location of their block. The sort is stable, so items with the
+	 * same block location (e.g. of different channels) keep their order and stay next to each other.
+	 * Blocks that have a fourth entry (e.g. the ViewId when resaving) are grouped by it first.
+	 *
+	 * @param items the items
+	 * @param toGridBlock returns the grid block of an item
+	 * @return a new, ordered list
+	 */
+	public static < T > List< T > mortonOrder( final List< T > items, final Function< T, long[][] > toGridBlock )
+	{
+		final long[] codes = mortonCodes( items, toGridBlock );
+
+		final Integer[] indices = new Integer[ items.size() ];
+		Arrays.setAll( indices, i -> i );
+
+		// stable for objects
+		Arrays.sort( indices, ( a, b ) ->
+		{
+			final int cmp = compareGroup( toGridBlock.apply( items.get( a ) ), toGridBlock.apply( items.get( b ) ) );
+
+			return cmp != 0 ? cmp : Long.compare( codes[ a ], codes[ b ] );
+		});
+
+		final List< T > ordered = new ArrayList<>( items.size() );
+
+		for ( final int i : indices )
+			ordered.add( items.get( i ) );
+
+		return ordered;
+	}
+
+	/**
+	 * Estimates how often each loaded input cell is used if the blocks are split into equally sized slices, as done by
+	 * {@code JavaSparkContext.parallelize}.
+	 *
+	 * @param ordered the blocks in the order they are parallelized
+	 * @param numPartitions the number of slices
+	 * @param toGridBlock returns the grid block of an item
+	 * @return the expected reuse factor (1.0 means no reuse)
+	 */
+	public static < T > double expectedReuseFactor( final List< T > ordered, final int numPartitions, final Function< T, long[][] > toGridBlock )
+	{
+		final ArrayList< List< T > > partitions = new ArrayList<>();
+
+		for ( int p = 0; p < numPartitions; ++p )
+			partitions.add( ordered.subList( (int)( (long)p * ordered.size() / numPartitions ), (int)( (long)( p + 1 ) * ordered.size() / numPartitions ) ) );
+
+		return expectedReuseFactor( partitions, toGridBlock );
+	}
+
+	/**
+	 * Estimates how often each loaded input cell is used, assuming that face-adjacent blocks within the same
+	 * partition share the cells at their common face (and blocks in different partitions share nothing).
+	 *
+	 * @param partitions the blocks of each partition
+	 * @param toGridBlock returns the grid block of an item
+	 * @return the expected reuse factor (1.0 means no reuse)
+	 */
+	public static < T > double expectedReuseFactor( final List< ? extends List< T > > partitions, final Function< T, long[][] > toGridBlock )
+	{
+		final ArrayList< T > all = new ArrayList<>();
+		partitions.forEach( all::addAll );
+
+		if ( all.size() == 0 )
+			return 1.0;
+
+		final long[][] positions = gridPositions( all, toGridBlock );
+		final int n = positions[ 0 ].length;
+		long adjacent = 0;
+		int start = 0;
+
+		for ( final List< T > p : partitions )
+		{
+			final int end = start + p.size();
+
+			final HashSet< List< Long > > partition = new HashSet<>();
+
+			for ( int i = start; i < end; ++i )
+				partition.add( key( toGridBlock.apply( all.get( i ) ), positions[ i ] ) );
+
+			for ( int i = start; i < end; ++i )
+				for ( int d = 0; d < n; ++d )
+				{
+					final long[] neighbor = positions[ i ].clone();
+					++neighbor[ d ];
+
+					if ( partition.contains( key( toGridBlock.apply( all.get( i ) ), neighbor ) ) )
+						++adjacent;
+				}
+
+			start = end;
+		}
+
+		// each block has 2*n faces, each shared face is read once instead of twice
+		final double faces = 2.0 * n * all.size();
+
+		return faces / ( faces - adjacent );
+	}
+
+	private static < T > long[] mortonCodes( final List< T > items, final Function< T, long[][] > toGridBlock )
+	{
+		final long[] codes = new long[ items.size() ];
+
+		if ( items.size() == 0 )
+			return codes;
+
+		final long[][] positions = gridPositions( items, toGridBlock );
+		final int n = positions[ 0 ].length;
+		final int bits = 63 / n;
+
+		for ( int i = 0; i < items.size(); ++i )
+		{
+			long code = 0;
+
+			for ( int b = 0; b < bits; ++b )
+				for ( int d = 0; d < n; ++d )
+					code |= ( ( positions[ i ][ d ] >> b ) & 1L ) << ( b * n + d );
+
+			codes[ i ] = code;
+		}
+
+		return codes;
+	}
+
+	/**
+	 * @return the index of each block along each dimension (rank of its offset among all offsets)
+	 */
+	private static < T > long[][] gridPositions( final List< T > items, final Function< T, long[][] > toGridBlock )
+	{
+		final int n = toGridBlock.apply( items.get( 0 ) )[ 0 ].length;
+		final ArrayList< HashMap< Long, Long > > ranks = new ArrayList<>();
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final TreeSet< Long > offsets = new TreeSet<>();
+
+			for ( final T item : items )
+				offsets.add( toGridBlock.apply( item )[ 0 ][ d ] );
+
+			final HashMap< Long, Long > rank = new HashMap<>();
+			long r = 0;
+
+			for ( final long offset : offsets )
+				rank.put( offset, r++ );
+
+			ranks.add( rank );
+		}
+
+		final long[][] positions = new long[ items.size() ][ n ];
+
+		for ( int i = 0; i < items.size(); ++i )
+			for ( int d = 0; d < n; ++d )
+				positions[ i ][ d ] = ranks.get( d ).get( toGridBlock.apply( items.get( i ) )[ 0 ][ d ] );
+
+		return positions;
+	}
+
+	private static int compareGroup( final long[][] a, final long[][] b )
+	{
+		if ( a.length < 4 || b.length < 4 )
+			return 0;
+
+		for ( int i = 0; i < Math.min( a[ 3 ].length, b[ 3 ].length ); ++i )
+		{
+			final int cmp = Long.compare( a[ 3 ][ i ], b[ 3 ][ i ] );
+
+			if ( cmp != 0 )
+				return cmp;
+		}
+
+		return 0;
+	}
+
+	private static List< Long > key( final long[][] gridBlock, final long[] position )
+	{
+		final List< Long > key = new ArrayList<>();
+
+		if ( gridBlock.length >= 4 )
+			Arrays.stream( gridBlock[ 3 ] ).forEach( key::add );
+
+		Arrays.stream( position ).forEach( key::add );
+
+		return key;
+	}
+}
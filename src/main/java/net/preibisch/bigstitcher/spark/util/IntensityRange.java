@@ -0,0 +1,265 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.spark.api.java.JavaSparkContext;
+
+import mpicbg.spim.data.generic.sequence.BasicMultiResolutionSetupImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import scala.Tuple2;
+
+/**
+ * Estimates the intensity range for UINT8/UINT16 fusion from histograms of a low resolution level of the input views
+ * (using the mipmaps of the imgloader, or a subsampled full resolution image otherwise). A first pass computes the min
+ * and max of each channel, the histograms then cover this range with {@link #numBins} bins, so any input type (e.g.
+ * float or signed data) gives a meaningful range. 8 and 16 bit input data is binned exactly (one bin per value).
+ */
+public class IntensityRange
+{
+	// the coarsest mipmap level with at least that many voxels is used
+	public static long minVoxelsPerView = 1 << 20;
+
+	public static final int numBins = 65536;
+
+	/**
+	 * Computes the histograms of all views in a Spark job and returns the percentiles of each channel.
+	 *
+	 * @param sc the spark context
+	 * @param xmlURI the project
+	 * @param xmlHash the content hash of the project
+	 * @param data the project
+	 * @param viewIds the views to use
+	 * @param lowPercentile lower percentile (0...100)
+	 * @param highPercentile upper percentile (0...100)
+	 * @return channel id &gt; { min, max }
+	 */
+	public static HashMap< Integer, double[] > estimate(
+			final JavaSparkContext sc,
+			final URI xmlURI,
+			final long xmlHash,
+			final SpimData2 data,
+			final List< ViewId > viewIds,
+			final double lowPercentile,
+			final double highPercentile )
+	{
+		final ArrayList< Tuple2< Integer, int[] > > jobs = new ArrayList<>();
+
+		for ( final ViewId viewId : viewIds )
+			jobs.add( new Tuple2<>(
+					data.getSequenceDescription().getViewDescription( viewId ).getViewSetup().getChannel().getId(),
+					Spark.serializeViewId( viewId ) ) );
+
+		System.out.println( "Estimating intensity range from the histograms of " + jobs.size() + " view(s) ..." );
+
+		final int numSlices = Math.max( 1, Math.min( Spark.maxPartitions, jobs.size() ) );
+
+		// the histograms of a channel cover the range of all its views
+		final HashMap< Integer, double[] > channelMinMax = new HashMap<>(
+				sc.parallelize( jobs, numSlices )
+				.mapToPair( job ->
+				{
+					final SpimData2 dataLocal = Spark.getSparkJobSpimData2( xmlURI, xmlHash );
+					return new Tuple2<>( job._1(), minMax( dataLocal, Spark.deserializeViewId( job._2() ) ) );
+				})
+				.reduceByKey( ( a, b ) -> new double[] { Math.min( a[ 0 ], b[ 0 ] ), Math.max( a[ 1 ], b[ 1 ] ) } )
+				.collectAsMap() );
+
+		final Map< Integer, long[] > histograms =
+				sc.parallelize( jobs, numSlices )
+				.mapToPair( job ->
+				{
+					final SpimData2 dataLocal = Spark.getSparkJobSpimData2( xmlURI, xmlHash );
+					final double[] range = channelMinMax.get( job._1() );
+					return new Tuple2<>( job._1(), histogram( dataLocal, Spark.deserializeViewId( job._2() ), range[ 0 ], range[ 1 ] ) );
+				})
+				.reduceByKey( ( a, b ) ->
+				{
+					for ( int i = 0; i < a.length; ++i )
+						a[ i ] += b[ i ];
+
+					return a;
+				})
+				.collectAsMap();
+
+		final HashMap< Integer, double[] > ranges = new HashMap<>();
+
+		histograms.forEach( ( channelId, histogram ) ->
+		{
+			// no values (e.g. all NaN), the channel uses the global range
+			if ( Double.isInfinite( channelMinMax.get( channelId )[ 0 ] ) )
+			{
+				System.out.println( "Channel id " + channelId + ": no intensities found, cannot estimate its range." );
+				return;
+			}
+
+			final double min = channelMinMax.get( channelId )[ 0 ];
+			final double binWidth = binWidth( min, channelMinMax.get( channelId )[ 1 ] );
+
+			final double[] range = new double[] {
+					min + percentile( histogram, lowPercentile ) * binWidth,
+					min + percentile( histogram, highPercentile ) * binWidth };
+
+			// do not collapse to a single value
+			if ( range[ 1 ] <= range[ 0 ] )
+				range[ 1 ] = range[ 0 ] + 1;
+
+			System.out.println( "Channel id " + channelId + ": " + lowPercentile + "% = " + range[ 0 ] + ", " + highPercentile + "% = " + range[ 1 ] );
+
+			ranges.put( channelId, range );
+		});
+
+		return ranges;
+	}
+
+	/**
+	 * @param data the project
+	 * @param viewId the view
+	 * @return { min, max } of a low resolution version of the view (NaN values are ignored), { +inf, -inf } if it has no values
+	 */
+	@SuppressWarnings( "rawtypes" )
+	public static double[] minMax( final SpimData2 data, final ViewId viewId )
+	{
+		final double[] minMax = new double[] { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+		for ( final Object t : Views.flatIterable( image( data, viewId ) ) )
+		{
+			final double value = ( (RealType)t ).getRealDouble();
+
+			if ( value < minMax[ 0 ] )
+				minMax[ 0 ] = value;
+
+			if ( value > minMax[ 1 ] )
+				minMax[ 1 ] = value;
+		}
+
+		return minMax;
+	}
+
+	/**
+	 * @param data the project
+	 * @param viewId the view
+	 * @param min the min of the histogram (see {@link #minMax(SpimData2, ViewId)})
+	 * @param max the max of the histogram
+	 * @return the histogram of a low resolution version of the view, bin i holds the values around min + i * {@link #binWidth(double, double)}
+	 */
+	@SuppressWarnings( "rawtypes" )
+	public static long[] histogram( final SpimData2 data, final ViewId viewId, final double min, final double max )
+	{
+		final long[] histogram = new long[ numBins ];
+		final double binWidth = binWidth( min, max );
+
+		for ( final Object t : Views.flatIterable( image( data, viewId ) ) )
+		{
+			final double value = ( (RealType)t ).getRealDouble();
+
+			if ( Double.isNaN( value ) )
+				continue;
+
+			final int bin = binWidth == 0 ? 0 : (int)Math.max( 0, Math.min( numBins - 1, Math.round( ( value - min ) / binWidth ) ) );
+			++histogram[ bin ];
+		}
+
+		return histogram;
+	}
+
+	/**
+	 * @return the width of a bin of the histograms covering [min, max] (at most 1 for 8 and 16 bit data, so every value has its own bin), 0 if the range is empty
+	 */
+	public static double binWidth( final double min, final double max )
+	{
+		if ( !( max > min ) || Double.isInfinite( max - min ) )
+			return 0;
+
+		return ( max - min ) / ( numBins - 1 );
+	}
+
+	/**
+	 * @param data the project
+	 * @param viewId the view
+	 * @return the coarsest mipmap level of the view with at least {@link #minVoxelsPerView} voxels, or a subsampled full resolution image
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	protected static RandomAccessibleInterval image( final SpimData2 data, final ViewId viewId )
+	{
+		final BasicSetupImgLoader< ? > setupImgLoader =
+				data.getSequenceDescription().getImgLoader().getSetupImgLoader( viewId.getViewSetupId() );
+
+		RandomAccessibleInterval img = null;
+
+		if ( setupImgLoader instanceof BasicMultiResolutionSetupImgLoader )
+		{
+			final BasicMultiResolutionSetupImgLoader< ? > mrSetupImgLoader = ( BasicMultiResolutionSetupImgLoader< ? > ) setupImgLoader;
+
+			for ( int level = mrSetupImgLoader.getMipmapResolutions().length - 1; level >= 0 && img == null; --level )
+			{
+				final RandomAccessibleInterval levelImg = mrSetupImgLoader.getImage( viewId.getTimePointId(), level );
+
+				if ( levelImg.size() >= minVoxelsPerView || level == 0 )
+					img = levelImg;
+			}
+		}
+		else
+		{
+			final RandomAccessibleInterval fullImg = setupImgLoader.getImage( viewId.getTimePointId() );
+			final long step = Math.max( 1, (long)Math.floor( Math.cbrt( (double)fullImg.size() / minVoxelsPerView ) ) );
+
+			img = Views.subsample( fullImg, step );
+		}
+
+		return img;
+	}
+
+	/**
+	 * @param histogram the histogram
+	 * @param percentile the percentile (0...100)
+	 * @return the value (bin) at the percentile
+	 */
+	public static double percentile( final long[] histogram, final double percentile )
+	{
+		final long total = Arrays.stream( histogram ).sum();
+		final double threshold = total * percentile / 100.0;
+
+		long sum = 0;
+
+		for ( int i = 0; i < histogram.length; ++i )
+		{
+			sum += histogram[ i ];
+
+			if ( sum >= threshold && sum > 0 )
+				return i;
+		}
+
+		return histogram.length - 1;
+	}
+}
@@ -23,6 +23,9 @@ package net.preibisch.bigstitcher.spark.util;
 
 import java.io.File;
 import java.net.URI;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 
 import org.janelia.saalfeldlab.n5.Bzip2Compression;
 import org.janelia.saalfeldlab.n5.Compression;
@@ -44,6 +47,31 @@ public class N5Util
 {
 	public static N5HDF5Writer sharedHDF5Writer = null;
 
+	// maximal number of blocks waiting for the HDF5 writer thread before the tasks block, see QueuedHDF5Writer
+	public static int hdf5QueueSize = 64;
+
+	/**
+	 * A writer shared by all tasks of an executor (or the driver) that write into the same container, so the
+	 * client (e.g. S3 connection pool) and the attribute cache are only created once per JVM.
+	 */
+	protected static class SharedWriter
+	{
+		final String key;
+		final N5Writer writer;
+		int refCount = 0;
+
+		SharedWriter( final String key, final N5Writer writer )
+		{
+			this.key = key;
+			this.writer = writer;
+		}
+	}
+
+	// shared writers by storage format and URI, access is synchronized on N5Util.class
+	private static final HashMap< String, SharedWriter > sharedWriters = new HashMap<>();
+	private static final IdentityHashMap< N5Writer, SharedWriter > acquiredWriters = new IdentityHashMap<>();
+	private static boolean shutdownHookAdded = false;
+
 	public static N5Writer createN5Writer(
 			final URI n5PathURI,
 			final StorageFormat storageType )
@@ -61,7 +89,8 @@ public class N5Util
 				if ( !dir.exists() )
 					dir.mkdirs();
 
-				driverVolumeWriter = sharedHDF5Writer = new N5HDF5Writer( URITools.fromURI( n5PathURI ) );
+				// all local Spark threads hand their blocks to one writer thread
+				driverVolumeWriter = sharedHDF5Writer = new QueuedHDF5Writer( URITools.fromURI( n5PathURI ), hdf5QueueSize );
 			}
 			else if ( storageType == StorageFormat.N5 || storageType == StorageFormat.ZARR )
 			{
@@ -79,6 +108,111 @@ public class N5Util
 		return driverVolumeWriter;
 	}
 
+	/**
+	 * Returns the writer for a container that is shared by all tasks of this JVM, creating it if necessary; every
+	 * call must be matched by {@link #releaseN5Writer(N5Writer)} in a finally block. The writer stays open when it is released (also
+	 * if no task uses it) and is closed when the JVM (the Spark executor) shuts down or with {@link #closeSharedWriters()}.
+	 *
+	 * Note: the writer caches attributes, it is meant for writing blocks into datasets that were created before the
+	 * Spark job started (as all commands do on the driver). HDF5 always uses {@link #sharedHDF5Writer}.
+	 *
+	 * @param n5PathURI - the container
+	 * @param storageType - N5, ZARR or HDF5
+	 * @return the shared writer or null if the container could not be opened
+	 */
+	public static synchronized N5Writer acquireN5Writer(
+			final URI n5PathURI,
+			final StorageFormat storageType )
+	{
+		if ( storageType == StorageFormat.HDF5 )
+			return createN5Writer( n5PathURI, storageType );
+
+		final String key = storageType + ":" + n5PathURI;
+
+		SharedWriter shared = sharedWriters.get( key );
+
+		if ( shared == null )
+		{
+			final N5Writer writer = createN5Writer( n5PathURI, storageType );
+
+			if ( writer == null )
+				return null;
+
+			shared = new SharedWriter( key, writer );
+			sharedWriters.put( key, shared );
+			acquiredWriters.put( writer, shared );
+
+			if ( !shutdownHookAdded )
+			{
+				Runtime.getRuntime().addShutdownHook( new Thread( N5Util::closeAllSharedWriters, "close-shared-n5-writers" ) );
+				shutdownHookAdded = true;
+			}
+		}
+
+		++shared.refCount;
+
+		return shared.writer;
+	}
+
+	/**
+	 * Releases a writer obtained by {@link #acquireN5Writer(URI, StorageFormat)}, it stays open for the next task.
+	 *
+	 * @param writer - the writer
+	 */
+	public static synchronized void releaseN5Writer( final N5Writer writer )
+	{
+		if ( writer == null || writer == sharedHDF5Writer )
+			return;
+
+		final SharedWriter shared = acquiredWriters.get( writer );
+
+		if ( shared == null )
+			throw new IllegalArgumentException( "Writer " + writer + " was not acquired from N5Util." );
+
+		if ( shared.refCount <= 0 )
+			throw new IllegalStateException( "Writer for '" + shared.key + "' was released more often than acquired." );
+
+		--shared.refCount;
+	}
+
+	/**
+	 * Closes all shared writers that are currently not used by any task (e.g. on the driver after the Spark context
+	 * was closed, before the containers are modified by a different writer).
+	 */
+	public static synchronized void closeSharedWriters()
+	{
+		for ( final Iterator< SharedWriter > it = sharedWriters.values().iterator(); it.hasNext(); )
+		{
+			final SharedWriter shared = it.next();
+
+			if ( shared.refCount == 0 )
+			{
+				it.remove();
+				acquiredWriters.remove( shared.writer );
+				shared.writer.close();
+			}
+		}
+	}
+
+	// on shutdown of the JVM all writers are closed, whether still in use or not
+	private static synchronized void closeAllSharedWriters()
+	{
+		for ( final SharedWriter shared : sharedWriters.values() )
+		{
+			try
+			{
+				shared.writer.close();
+			}
+			catch ( Exception e )
+			{
+				System.out.println( "Could not close writer for '" + shared.key + "': " + e );
+			}
+		}
+
+		sharedWriters.clear();
+		acquiredWriters.clear();
+	}
+
 	public static Compression getCompression( Compressions compressionType, Integer compressionLevel )
 	{
 		final Compression compression;
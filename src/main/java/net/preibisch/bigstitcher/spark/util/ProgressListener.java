@@ -0,0 +1,393 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.scheduler.AccumulableInfo;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerApplicationEnd;
+import org.apache.spark.scheduler.SparkListenerStageCompleted;
+import org.apache.spark.scheduler.SparkListenerStageSubmitted;
+import org.apache.spark.scheduler.SparkListenerTaskEnd;
+
+import com.google.gson.GsonBuilder;
+
+import scala.collection.Iterator;
+
+/**
+ * Reports the progress of the running Spark stages on the driver: tasks and blocks done out of the total,
+ * throughput (voxels/s, MB/s) and the estimated time until the stage finishes. It prints a progress line every
+ * few seconds and/or keeps a small JSON status file up to date that a scheduler can poll.
+ *
+ * Blocks, voxels and bytes come from the accumulators of {@link RunMetrics}, the total number of blocks of a
+ * stage from {@link #stage(JavaSparkContext, String, long)}; without it the progress is measured in tasks.
+ */
+public class ProgressListener extends SparkListener
+{
+	// local property of the SparkContext that holds the number of blocks of the next stage(s)
+	public static final String NUM_BLOCKS_PROPERTY = "bigstitcher.numBlocks";
+
+	public static class StageProgress
+	{
+		public final int id;
+		public final String name;
+		public final int numTasks;
+		public final long numBlocks; // -1 if unknown
+		public final long startTime;
+
+		public int tasksDone = 0, tasksFailed = 0;
+		public long blocksDone = 0, voxelsWritten = 0, bytesWritten = 0;
+
+		// serialized size of the task results sent to the driver (e.g. collect()), depends on the serializer
+		public long resultBytes = 0;
+		public long endTime = -1;
+
+		public StageProgress( final int id, final String name, final int numTasks, final long numBlocks )
+		{
+			this.id = id;
+			this.name = name;
+			this.numTasks = numTasks;
+			this.numBlocks = numBlocks;
+			this.startTime = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return fraction done in [0,1], based on the blocks if their total is known, otherwise on the tasks
+		 */
+		public double fractionDone()
+		{
+			if ( numBlocks > 0 )
+				return Math.min( 1.0, (double)blocksDone / numBlocks );
+			else if ( numTasks > 0 )
+				return (double)tasksDone / numTasks;
+			else
+				return 0;
+		}
+
+		public long elapsedMillis()
+		{
+			return ( endTime >= 0 ? endTime : System.currentTimeMillis() ) - startTime;
+		}
+
+		/**
+		 * @return estimated remaining time in ms, or -1 if nothing is done yet
+		 */
+		public long etaMillis()
+		{
+			final double f = fractionDone();
+
+			if ( f <= 0 )
+				return -1;
+
+			return Math.round( elapsedMillis() * ( 1.0 - f ) / f );
+		}
+
+		@Override
+		public String toString()
+		{
+			final double seconds = Math.max( 1, elapsedMillis() ) / 1000.0;
+			final long eta = etaMillis();
+
+			return String.format(
+					"stage %d '%s': %d/%d tasks%s (%.1f%%), %.2f Mvoxels/s, %.2f MB/s, results %.2f MB, elapsed %s, ETA %s",
+					id, name, tasksDone, numTasks,
+					numBlocks > 0 ? ", " + blocksDone + "/" + numBlocks + " blocks" : ( blocksDone > 0 ? ", " + blocksDone + " blocks" : "" ),
+					fractionDone() * 100,
+					voxelsWritten / seconds / 1e6, bytesWritten / seconds / ( 1024.0 * 1024.0 ), resultBytes / ( 1024.0 * 1024.0 ),
+					time( elapsedMillis() ), eta < 0 ? "unknown" : time( eta ) );
+		}
+	}
+
+	private final String command;
+	private final String statusFile;
+	private final long startTime;
+
+	// the running and finished stages by id, access is synchronized on this
+	private final Map< Integer, StageProgress > stages = new LinkedHashMap<>();
+
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * @param command - name of the command that is reported
+	 * @param intervalSeconds - print a progress line for all running stages every intervalSeconds (0 = only when a stage finishes)
+	 * @param statusFile - local path of the JSON status file that is updated every intervalSeconds (or every 10 seconds if intervalSeconds==0), or null
+	 */
+	public ProgressListener( final String command, final int intervalSeconds, final String statusFile )
+	{
+		this.command = command;
+		this.statusFile = statusFile;
+		this.startTime = System.currentTimeMillis();
+
+		if ( intervalSeconds > 0 || statusFile != null )
+		{
+			this.timer = Executors.newSingleThreadScheduledExecutor( r ->
+			{
+				final Thread t = new Thread( r, "progress-listener" );
+				t.setDaemon( true );
+				return t;
+			});
+
+			final int interval = intervalSeconds > 0 ? intervalSeconds : 10;
+
+			this.timer.scheduleAtFixedRate( () ->
+			{
+				if ( intervalSeconds > 0 )
+					printRunning();
+
+				writeStatus( "running" );
+			}, interval, interval, TimeUnit.SECONDS );
+		}
+		else
+		{
+			this.timer = null;
+		}
+	}
+
+	/**
+	 * Creates a ProgressListener and registers it with the SparkContext.
+	 */
+	public static ProgressListener register( final JavaSparkContext sc, final String command, final int intervalSeconds, final String statusFile )
+	{
+		final ProgressListener listener = new ProgressListener( command, intervalSeconds, statusFile );
+		sc.sc().addSparkListener( listener );
+
+		return listener;
+	}
+
+	/**
+	 * Names the Spark jobs that are submitted next from this thread and sets the number of blocks they will process,
+	 * which is what the progress and ETA are computed from.
+	 *
+	 * @param sc - the context
+	 * @param name - name of the stage as it appears in the progress and the Spark UI, e.g. "fusion s0"
+	 * @param numBlocks - the number of blocks, or -1 if unknown
+	 */
+	public static void stage( final JavaSparkContext sc, final String name, final long numBlocks )
+	{
+		sc.setJobDescription( name );
+		sc.setLocalProperty( NUM_BLOCKS_PROPERTY, numBlocks > 0 ? Long.toString( numBlocks ) : null );
+	}
+
+	@Override
+	public void onStageSubmitted( final SparkListenerStageSubmitted stageSubmitted )
+	{
+		final String description = stageSubmitted.properties() == null ? null : stageSubmitted.properties().getProperty( "spark.job.description" );
+		final String blocks = stageSubmitted.properties() == null ? null : stageSubmitted.properties().getProperty( NUM_BLOCKS_PROPERTY );
+
+		final int id = stageSubmitted.stageInfo().stageId();
+		final String name = description != null ? description : stageSubmitted.stageInfo().name();
+		final int numTasks = stageSubmitted.stageInfo().numTasks();
+
+		synchronized ( this )
+		{
+			stages.put( id, new StageProgress( id, name, numTasks, blocks == null ? -1 : Long.parseLong( blocks ) ) );
+		}
+	}
+
+	@Override
+	public void onTaskEnd( final SparkListenerTaskEnd taskEnd )
+	{
+		long blocks = 0, voxels = 0, bytes = 0;
+
+		// the values the accumulators of RunMetrics were updated with by this task
+		final Iterator< AccumulableInfo > it = taskEnd.taskInfo().accumulables().iterator();
+
+		while ( it.hasNext() )
+		{
+			final AccumulableInfo info = it.next();
+
+			if ( info.name().isEmpty() || info.update().isEmpty() || !( info.update().get() instanceof Number ) )
+				continue;
+
+			final long update = ( (Number)info.update().get() ).longValue();
+
+			switch ( info.name().get() )
+			{
+				case RunMetrics.BLOCKS_DONE: blocks += update; break;
+				case RunMetrics.VOXELS_WRITTEN: voxels += update; break;
+				case RunMetrics.BYTES_WRITTEN: bytes += update; break;
+				default: break;
+			}
+		}
+
+		synchronized ( this )
+		{
+			final StageProgress stage = stages.get( taskEnd.stageId() );
+
+			if ( stage == null )
+				return;
+
+			if ( taskEnd.taskInfo().successful() )
+			{
+				++stage.tasksDone;
+				stage.blocksDone += blocks;
+				stage.voxelsWritten += voxels;
+				stage.bytesWritten += bytes;
+
+				if ( taskEnd.taskMetrics() != null )
+					stage.resultBytes += taskEnd.taskMetrics().resultSize();
+			}
+			else
+			{
+				++stage.tasksFailed;
+			}
+		}
+	}
+
+	@Override
+	public void onStageCompleted( final SparkListenerStageCompleted stageCompleted )
+	{
+		final StageProgress stage;
+
+		synchronized ( this )
+		{
+			stage = stages.get( stageCompleted.stageInfo().stageId() );
+
+			if ( stage == null )
+				return;
+
+			stage.endTime = System.currentTimeMillis();
+		}
+
+		System.out.println( new Date( System.currentTimeMillis() ) + ": finished " + stage +
+				( stageCompleted.stageInfo().failureReason().isDefined() ? " (FAILED: " + stageCompleted.stageInfo().failureReason().get() + ")" : "" ) );
+
+		writeStatus( "running" );
+	}
+
+	@Override
+	public void onApplicationEnd( final SparkListenerApplicationEnd applicationEnd )
+	{
+		stop();
+	}
+
+	/**
+	 * Stops the periodic output and writes the final status.
+	 */
+	public void stop()
+	{
+		if ( timer != null )
+			timer.shutdownNow();
+
+		writeStatus( "finished" );
+	}
+
+	protected synchronized List< StageProgress > running()
+	{
+		final ArrayList< StageProgress > running = new ArrayList<>();
+
+		for ( final StageProgress stage : stages.values() )
+			if ( stage.endTime < 0 )
+				running.add( stage );
+
+		return running;
+	}
+
+	protected void printRunning()
+	{
+		for ( final StageProgress stage : running() )
+			System.out.println( new Date( System.currentTimeMillis() ) + ": " + stage );
+	}
+
+	/**
+	 * Writes the status file (if set) to a temporary file and moves it in place, so a poller never sees a partial file.
+	 */
+	protected void writeStatus( final String state )
+	{
+		if ( statusFile == null )
+			return;
+
+		final Map< String, Object > status = new LinkedHashMap<>();
+
+		synchronized ( this )
+		{
+			status.put( "command", command );
+			status.put( "state", state );
+			status.put( "start", new Date( startTime ).toString() );
+			status.put( "updated", new Date( System.currentTimeMillis() ).toString() );
+			status.put( "elapsedMillis", System.currentTimeMillis() - startTime );
+
+			final List< Map< String, Object > > list = new ArrayList<>();
+
+			for ( final StageProgress stage : stages.values() )
+			{
+				final Map< String, Object > s = new LinkedHashMap<>();
+				s.put( "id", stage.id );
+				s.put( "name", stage.name );
+				s.put( "state", stage.endTime < 0 ? "running" : "finished" );
+				s.put( "tasksDone", stage.tasksDone );
+				s.put( "tasksFailed", stage.tasksFailed );
+				s.put( "numTasks", stage.numTasks );
+				s.put( "blocksDone", stage.blocksDone );
+				s.put( "numBlocks", stage.numBlocks );
+				s.put( "fractionDone", stage.fractionDone() );
+				s.put( "voxelsPerSecond", stage.voxelsWritten * 1000.0 / Math.max( 1, stage.elapsedMillis() ) );
+				s.put( "bytesPerSecond", stage.bytesWritten * 1000.0 / Math.max( 1, stage.elapsedMillis() ) );
+				s.put( "resultBytes", stage.resultBytes );
+				s.put( "elapsedMillis", stage.elapsedMillis() );
+				s.put( "etaMillis", stage.endTime < 0 ? stage.etaMillis() : 0 );
+				list.add( s );
+			}
+
+			status.put( "stages", list );
+		}
+
+		try
+		{
+			final Path path = Paths.get( statusFile ).toAbsolutePath();
+			final Path tmp = path.resolveSibling( path.getFileName() + ".tmp" );
+
+			try ( final Writer writer = Files.newBufferedWriter( tmp, StandardCharsets.UTF_8 ) )
+			{
+				new GsonBuilder().setPrettyPrinting().create().toJson( status, writer );
+			}
+
+			Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( IOException e )
+		{
+			System.out.println( "Could not write status file '" + statusFile + "': " + e );
+		}
+	}
+
+	protected static String time( final long millis )
+	{
+		final long s = millis / 1000;
+		return String.format( "%d:%02d:%02d", s / 3600, ( s / 60 ) % 60, s % 60 );
+	}
+}
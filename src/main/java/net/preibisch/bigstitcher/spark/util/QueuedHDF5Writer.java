@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer;
+
+/**
+ * HDF5 writer for local, multithreaded Spark in which all blocks are written by one dedicated thread. HDF5 writes
+ * are globally locked, with a plain N5HDF5Writer every Spark task would wait for the lock while another one is
+ * writing. Here the tasks only hand over their DataBlocks (which they filled in parallel) through a bounded queue
+ * and continue; if the writer thread falls behind, the tasks block until there is space again (back-pressure).
+ *
+ * Reading a block or removing a path first waits until all queued blocks are written, so e.g. downsampling sees
+ * the previous level. An error of the writer thread is rethrown by the next call that writes, flushes or closes; the
+ * thread keeps taking (and skipping) the queued blocks after an error, so no task waits for it forever.
+ */
+public class QueuedHDF5Writer extends N5HDF5Writer
+{
+	private static final Runnable POISON = () -> {};
+
+	private final BlockingQueue< Runnable > queue;
+	private final Thread writerThread;
+
+	// number of blocks that were queued but not written yet, access is synchronized on this
+	private long pending = 0;
+	private volatile Throwable error = null;
+
+	/**
+	 * @param hdf5Path - the HDF5 file
+	 * @param queueSize - the maximal number of blocks waiting to be written
+	 * @throws IOException
+	 */
+	public QueuedHDF5Writer( final String hdf5Path, final int queueSize ) throws IOException
+	{
+		super( hdf5Path );
+
+		this.queue = new ArrayBlockingQueue<>( queueSize );
+		this.writerThread = new Thread( this::writeBlocks, "hdf5-writer" );
+		this.writerThread.setDaemon( true );
+		this.writerThread.start();
+	}
+
+	@Override
+	public < T > void writeBlock( final String pathName, final DatasetAttributes datasetAttributes, final DataBlock< T > dataBlock )
+	{
+		checkError();
+
+		synchronized ( this )
+		{
+			++pending;
+		}
+
+		try
+		{
+			queue.put( () -> super.writeBlock( pathName, datasetAttributes, dataBlock ) );
+		}
+		catch ( InterruptedException e )
+		{
+			done();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while queueing block " + dataBlock + " of '" + pathName + "'.", e );
+		}
+	}
+
+	@Override
+	public DataBlock< ? > readBlock( final String pathName, final DatasetAttributes datasetAttributes, final long... gridPosition )
+	{
+		flush();
+		return super.readBlock( pathName, datasetAttributes, gridPosition );
+	}
+
+	@Override
+	public boolean remove( final String pathName )
+	{
+		flush();
+		return super.remove( pathName );
+	}
+
+	/**
+	 * Waits until all queued blocks are written.
+	 */
+	public synchronized void flush()
+	{
+		while ( pending > 0 && error == null )
+		{
+			try
+			{
+				wait();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "Interrupted while waiting for the HDF5 writer.", e );
+			}
+		}
+
+		checkError();
+	}
+
+	@Override
+	public void close()
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			try
+			{
+				queue.put( POISON );
+				writerThread.join();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			super.close();
+		}
+	}
+
+	protected void writeBlocks()
+	{
+		while ( true )
+		{
+			final Runnable write;
+
+			try
+			{
+				write = queue.take();
+			}
+			catch ( InterruptedException e )
+			{
+				// nothing can be written anymore, but the queue is still drained until it is closed
+				fail( e );
+				continue;
+			}
+
+			if ( write == POISON )
+				return;
+
+			try
+			{
+				if ( error == null )
+					write.run();
+			}
+			catch ( Throwable e )
+			{
+				fail( e );
+			}
+			finally
+			{
+				done();
+			}
+		}
+	}
+
+	protected void fail( final Throwable e )
+	{
+		if ( error == null )
+			error = e;
+	}
+
+	protected synchronized void done()
+	{
+		--pending;
+		notifyAll();
+	}
+
+	protected void checkError()
+	{
+		if ( error != null )
+			throw new RuntimeException( "Writing to HDF5 failed: " + error, error );
+	}
+}
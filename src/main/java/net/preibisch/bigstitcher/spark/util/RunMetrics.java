@@ -0,0 +1,405 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.util.AccumulatorV2;
+import org.apache.spark.util.LongAccumulator;
+
+import com.google.gson.GsonBuilder;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.preibisch.bigstitcher.spark.util.BlockPipeline.BlockWriter;
+
+/**
+ * Metrics of the Spark tasks of one command, collected with accumulators: time to load the XML, input cells and their
+ * estimated (uncompressed) size, bytes written, compute and write (compression + I/O) time, views per block, empty
+ * blocks skipped and histograms of the block times and views per block plus the slowest blocks (see
+ * {@link BlockTimeAccumulator}, so the driver never receives one entry per block). The instance is serialized into
+ * the Spark tasks, the driver writes them as a JSON run report (see --runReport).
+ */
+public class RunMetrics implements Serializable
+{
+	private static final long serialVersionUID = -1826839503414750427L;
+
+	// how many of the slowest blocks are listed in the report
+	public static int numSlowestBlocks = 20;
+
+	// names of the accumulators that the ProgressListener reads from the finished tasks
+	public static final String BLOCKS_DONE = "blocks done", VOXELS_WRITTEN = "voxels written", BYTES_WRITTEN = "bytes written";
+
+	public static class BlockTime implements Serializable
+	{
+		private static final long serialVersionUID = 3981066284815396712L;
+
+		// either the offset and size of a block or the name of a task (e.g. a pair of views)
+		public final long[] offset, size;
+		public final String name;
+		public final int views;
+		public final long nanos;
+
+		public BlockTime( final long[] offset, final long[] size, final String name, final int views, final long nanos )
+		{
+			this.offset = offset;
+			this.size = size;
+			this.name = name;
+			this.views = views;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * Merges the times of all blocks into fixed histograms (power-of-two buckets of milliseconds and views per block)
+	 * and keeps only the {@link RunMetrics#numSlowestBlocks} slowest blocks, so its size does not depend on the number of blocks.
+	 */
+	public static class BlockTimeAccumulator extends AccumulatorV2< BlockTime, BlockTimeAccumulator >
+	{
+		private static final long serialVersionUID = -6125360722412416235L;
+
+		// blocks with at least that many views share the last bucket of the views histogram
+		public static int maxViewsBucket = 256;
+
+		private final int numSlowest;
+		private long count = 0;
+		private final long[] timeBuckets = new long[ 64 ];
+		private final long[] viewsBuckets = new long[ maxViewsBucket + 1 ];
+		private final ArrayList< BlockTime > slowest = new ArrayList<>();
+
+		public BlockTimeAccumulator( final int numSlowest )
+		{
+			this.numSlowest = numSlowest;
+		}
+
+		@Override
+		public synchronized void add( final BlockTime block )
+		{
+			++count;
+			++timeBuckets[ 63 - Long.numberOfLeadingZeros( Math.max( 1, block.nanos / 1000000 ) ) ];
+			++viewsBuckets[ Math.max( 0, Math.min( maxViewsBucket, block.views ) ) ];
+
+			addSlowest( block );
+		}
+
+		@Override
+		public synchronized void merge( final AccumulatorV2< BlockTime, BlockTimeAccumulator > other )
+		{
+			final BlockTimeAccumulator o = (BlockTimeAccumulator)other;
+
+			synchronized ( o )
+			{
+				count += o.count;
+
+				for ( int i = 0; i < timeBuckets.length; ++i )
+					timeBuckets[ i ] += o.timeBuckets[ i ];
+
+				for ( int i = 0; i < viewsBuckets.length; ++i )
+					viewsBuckets[ i ] += o.viewsBuckets[ i ];
+
+				o.slowest.forEach( this::addSlowest );
+			}
+		}
+
+		private void addSlowest( final BlockTime block )
+		{
+			slowest.add( block );
+			slowest.sort( Comparator.comparingLong( ( BlockTime b ) -> b.nanos ).reversed() );
+
+			if ( slowest.size() > numSlowest )
+				slowest.remove( slowest.size() - 1 );
+		}
+
+		@Override
+		public synchronized BlockTimeAccumulator copy()
+		{
+			final BlockTimeAccumulator copy = new BlockTimeAccumulator( numSlowest );
+			copy.merge( this );
+
+			return copy;
+		}
+
+		@Override
+		public synchronized void reset()
+		{
+			count = 0;
+			Arrays.fill( timeBuckets, 0 );
+			Arrays.fill( viewsBuckets, 0 );
+			slowest.clear();
+		}
+
+		@Override
+		public synchronized boolean isZero() { return count == 0; }
+
+		@Override
+		public BlockTimeAccumulator value() { return copy(); }
+
+		public long count() { return count; }
+
+		/**
+		 * @return number of blocks per bucket, "&lt;{x}ms" holds all blocks that took less than x ms (and at least x/2 ms)
+		 */
+		public Map< String, Long > timeHistogram()
+		{
+			final Map< String, Long > histogram = new LinkedHashMap<>();
+
+			for ( int i = 0; i < timeBuckets.length; ++i )
+				if ( timeBuckets[ i ] > 0 )
+					histogram.put( "<" + ( 1l << ( i + 1 ) ) + "ms", timeBuckets[ i ] );
+
+			return histogram;
+		}
+
+		/**
+		 * @return number of blocks per number of views, the last bucket holds all blocks with at least {@link #maxViewsBucket} views
+		 */
+		public Map< String, Long > viewsHistogram()
+		{
+			final Map< String, Long > histogram = new LinkedHashMap<>();
+
+			for ( int i = 0; i < viewsBuckets.length; ++i )
+				if ( viewsBuckets[ i ] > 0 )
+					histogram.put( i == maxViewsBucket ? ">=" + i : Integer.toString( i ), viewsBuckets[ i ] );
+
+			return histogram;
+		}
+
+		/**
+		 * @return the slowest blocks, slowest first
+		 */
+		public List< BlockTime > slowest() { return slowest; }
+	}
+
+	private final LongAccumulator xmlLoadNanos, inputCells, estimatedInputBytes, bytesWritten, voxelsWritten, computeNanos, writeNanos, blocksDone, views, emptyBlocks;
+	private final BlockTimeAccumulator blockTimes;
+
+	// only used on the driver
+	private final transient String command;
+	private final transient long startTime;
+	private final transient Map< String, Long > stages = new LinkedHashMap<>();
+
+	public RunMetrics( final JavaSparkContext sc, final String command )
+	{
+		this.command = command;
+		this.startTime = System.currentTimeMillis();
+
+		this.xmlLoadNanos = sc.sc().longAccumulator( "xml load time (ns)" );
+		this.inputCells = sc.sc().longAccumulator( "input cells fetched" );
+		this.estimatedInputBytes = sc.sc().longAccumulator( "estimated input bytes" );
+		this.bytesWritten = sc.sc().longAccumulator( BYTES_WRITTEN );
+		this.voxelsWritten = sc.sc().longAccumulator( VOXELS_WRITTEN );
+		this.computeNanos = sc.sc().longAccumulator( "compute time (ns)" );
+		this.writeNanos = sc.sc().longAccumulator( "compression and write time (ns)" );
+		this.blocksDone = sc.sc().longAccumulator( BLOCKS_DONE );
+		this.views = sc.sc().longAccumulator( "views per block (sum)" );
+		this.emptyBlocks = sc.sc().longAccumulator( "empty blocks skipped" );
+		this.blockTimes = new BlockTimeAccumulator( numSlowestBlocks );
+		sc.sc().register( blockTimes, "block times" );
+	}
+
+	/**
+	 * Loads the XML (or anything derived from it, e.g. registrations) and measures the time it takes.
+	 */
+	public < T > T loadXml( final Callable< T > load ) throws Exception
+	{
+		final long time = System.nanoTime();
+		final T result = load.call();
+		xmlLoadNanos.add( System.nanoTime() - time );
+
+		return result;
+	}
+
+	/**
+	 * Records the input cells (blocks of the input images) that a block needs and their estimated (uncompressed) size
+	 * in bytes, which is not necessarily what is read from storage (compression, caching).
+	 */
+	public void input( final long cells, final long estimatedBytes )
+	{
+		inputCells.add( cells );
+		estimatedInputBytes.add( estimatedBytes );
+	}
+
+	public void emptyBlocks( final long numBlocks )
+	{
+		emptyBlocks.add( numBlocks );
+	}
+
+	/**
+	 * Records the total time of a block { offset, size, ... } and how many views contributed to it.
+	 */
+	public void block( final long[][] gridBlock, final int numViews, final long nanos )
+	{
+		blocksDone.add( 1 );
+		views.add( numViews );
+		blockTimes.add( new BlockTime( gridBlock[ 0 ].clone(), gridBlock[ 1 ].clone(), null, numViews, nanos ) );
+	}
+
+	/**
+	 * Records the total time of a task that is not a block (e.g. matching a pair of views) and how many views it used.
+	 */
+	public void task( final String name, final int numViews, final long nanos )
+	{
+		blocksDone.add( 1 );
+		views.add( numViews );
+		blockTimes.add( new BlockTime( null, null, name, numViews, nanos ) );
+	}
+
+	/**
+	 * @return the computation, which adds the time it takes to the compute time
+	 */
+	public < T > Callable< T > compute( final Callable< T > compute )
+	{
+		return () ->
+		{
+			final long time = System.nanoTime();
+			final T result = compute.call();
+			computeTime( System.nanoTime() - time );
+
+			return result;
+		};
+	}
+
+	public void computeTime( final long nanos )
+	{
+		computeNanos.add( nanos );
+	}
+
+	/**
+	 * @return the writer, which adds the time it takes (compression and I/O) to the write time and the
+	 * (uncompressed) size of each written image to the bytes written
+	 */
+	public < T extends RandomAccessibleInterval< ? > > BlockWriter< T > write( final BlockWriter< T > writer )
+	{
+		return block ->
+		{
+			final long time = System.nanoTime();
+			writer.write( block );
+			written( Intervals.numElements( block ), bytes( block ), System.nanoTime() - time );
+		};
+	}
+
+	/**
+	 * Records data that was written (number of voxels, 0 if it is not an image, and uncompressed size) and the time
+	 * it took to compress and write it.
+	 */
+	public void written( final long voxels, final long bytes, final long nanos )
+	{
+		voxelsWritten.add( voxels );
+		bytesWritten.add( bytes );
+		writeNanos.add( nanos );
+	}
+
+	/**
+	 * Records the time of a stage of the command, measured on the driver.
+	 */
+	public void stage( final String name, final long millis )
+	{
+		stages.put( name, millis );
+	}
+
+	/**
+	 * @return the uncompressed size of an image in bytes (4 bytes per pixel if the type is not a RealType)
+	 */
+	public static long bytes( final RandomAccessibleInterval< ? > img )
+	{
+		final Object type = Util.getTypeFromInterval( img );
+		final int bits = type instanceof RealType ? ( (RealType< ? >)type ).getBitsPerPixel() : 32;
+
+		return Intervals.numElements( img ) * Math.max( 1, bits / 8 );
+	}
+
+	/**
+	 * @return the report as a map that is serialized to JSON
+	 */
+	public Map< String, Object > report()
+	{
+		final BlockTimeAccumulator blocks = blockTimes.value();
+
+		final Map< String, Object > report = new LinkedHashMap<>();
+		report.put( "command", command );
+		report.put( "start", new Date( startTime ).toString() );
+		report.put( "wallTimeMs", System.currentTimeMillis() - startTime );
+		report.put( "stagesMs", stages );
+
+		final Map< String, Object > counters = new LinkedHashMap<>();
+		counters.put( "xmlLoadTimeMs", xmlLoadNanos.value() / 1000000 );
+		counters.put( "inputCellsFetched", inputCells.value() );
+		counters.put( "estimatedInputBytes", estimatedInputBytes.value() );
+		counters.put( "voxelsWritten", voxelsWritten.value() );
+		counters.put( "bytesWritten", bytesWritten.value() );
+		counters.put( "computeTimeMs", computeNanos.value() / 1000000 );
+		counters.put( "compressionAndWriteTimeMs", writeNanos.value() / 1000000 );
+		counters.put( "blocks", blocks.count() );
+		counters.put( "emptyBlocksSkipped", emptyBlocks.value() );
+		counters.put( "meanViewsPerBlock", blocks.count() == 0 ? 0 : views.value() / (double)blocks.count() );
+		report.put( "counters", counters );
+
+		// block times in power-of-two buckets of milliseconds
+		report.put( "blockTimeHistogram", blocks.timeHistogram() );
+		report.put( "viewsPerBlockHistogram", blocks.viewsHistogram() );
+
+		report.put( "slowestBlocks", blocks.slowest().stream()
+				.map( block ->
+				{
+					final Map< String, Object > b = new LinkedHashMap<>();
+
+					if ( block.name != null )
+						b.put( "task", block.name );
+					else
+					{
+						b.put( "offset", block.offset );
+						b.put( "size", block.size );
+					}
+
+					b.put( "views", block.views );
+					b.put( "timeMs", block.nanos / 1000000.0 );
+					return b;
+				}).collect( Collectors.toList() ) );
+
+		return report;
+	}
+
+	public void save( final String path ) throws IOException
+	{
+		try ( final Writer writer = Files.newBufferedWriter( Paths.get( path ), StandardCharsets.UTF_8 ) )
+		{
+			new GsonBuilder().setPrettyPrinting().create().toJson( report(), writer );
+		}
+	}
+}
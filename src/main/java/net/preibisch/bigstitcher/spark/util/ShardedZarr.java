@@ -0,0 +1,599 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.KeyValueAccess;
+import org.janelia.saalfeldlab.n5.LockedChannel;
+
+import com.github.luben.zstd.Zstd;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.bigstitcher.spark.CreateFusionContainer.Compressions;
+import util.URITools;
+
+/**
+ * Sharded 5D OME-ZARR output (Zarr v3, codec sharding_indexed): each shard is one object that holds many chunks
+ * (blocks) plus an index, so a volume needs far fewer objects (PUTs, listing, deletes on S3). A Spark task always
+ * writes whole shards with a single PUT, which is why the compute block of the fusion is the shard.
+ *
+ * The arrays are written by our own code since the N5 API does not support sharding, the root group keeps its
+ * Zarr v2 attributes (.zattrs, read by BigStitcher-Spark) next to the Zarr v3 metadata (zarr.json, OME-NGFF 0.5)
+ * that other readers use. The arrays have no .zarray (they are Zarr v2 groups, holding e.g. the block manifests).
+ * Chunks are stored in C-order (t,c,z,y,x), padded to the full chunk size at the border, chunks that are all
+ * background are not stored (fill value 0).
+ */
+public class ShardedZarr
+{
+	// attributes of the root group: the shard size in pixels (x,y,z), the codec of the chunks and its level
+	public static final String SHARD_SIZE_ATTRIBUTE = "Bigstitcher-Spark/ShardSize";
+	public static final String CODEC_ATTRIBUTE = "Bigstitcher-Spark/ShardCodec";
+	public static final String CODEC_LEVEL_ATTRIBUTE = "Bigstitcher-Spark/ShardCodecLevel";
+
+	/**
+	 * One sharded 5D (x,y,z,c,t) array, serialized into the Spark tasks.
+	 */
+	public static class Array implements Serializable
+	{
+		private static final long serialVersionUID = 6418838203871563101L;
+
+		public final URI container;
+		public final String dataset;
+		public final long[] dimensions; // x,y,z,c,t
+		public final int[] chunkSize, shardSize; // x,y,z
+		public final DataType dataType;
+		public final Compressions codec;
+		public final int codecLevel;
+
+		public Array(
+				final URI container,
+				final String dataset,
+				final long[] dimensions,
+				final int[] chunkSize,
+				final int[] shardSize,
+				final DataType dataType,
+				final Compressions codec,
+				final int codecLevel )
+		{
+			this.container = container;
+			this.dataset = dataset;
+			this.dimensions = dimensions;
+			this.chunkSize = chunkSize;
+			this.shardSize = shardSize;
+			this.dataType = dataType;
+			this.codec = codec;
+			this.codecLevel = codecLevel;
+		}
+
+		public int chunksPerShard( final int d )
+		{
+			return shardSize[ d ] / chunkSize[ d ];
+		}
+
+		public int numChunksPerShard()
+		{
+			return chunksPerShard( 0 ) * chunksPerShard( 1 ) * chunksPerShard( 2 );
+		}
+
+		public int bytesPerPixel()
+		{
+			return dataType == DataType.UINT8 ? 1 : dataType == DataType.UINT16 ? 2 : 4;
+		}
+
+		/**
+		 * @param shardPosition - position of the shard in the grid of shards (x,y,z)
+		 * @param c - channel index
+		 * @param t - timepoint index
+		 * @return the key of the shard (default chunk key encoding, in zarr order t,c,z,y,x)
+		 */
+		public String shardKey( final KeyValueAccess kva, final long[] shardPosition, final int c, final int t )
+		{
+			return kva.compose( container, dataset, "c", Integer.toString( t ), Integer.toString( c ),
+					Long.toString( shardPosition[ 2 ] ), Long.toString( shardPosition[ 1 ] ), Long.toString( shardPosition[ 0 ] ) );
+		}
+
+		/**
+		 * @return the Zarr v3 array metadata (zarr.json)
+		 */
+		public Map< String, Object > metadata()
+		{
+			final Map< String, Object > bytes = codec( "bytes", "endian", "little" );
+
+			final Map< String, Object > sharding = new LinkedHashMap<>();
+			sharding.put( "chunk_shape", new int[] { 1, 1, chunkSize[ 2 ], chunkSize[ 1 ], chunkSize[ 0 ] } );
+			sharding.put( "codecs", codec == Compressions.Raw ? new Object[] { bytes } : new Object[] { bytes, compressor() } );
+			sharding.put( "index_codecs", new Object[] { bytes } );
+			sharding.put( "index_location", "end" );
+
+			final Map< String, Object > meta = new LinkedHashMap<>();
+			meta.put( "zarr_format", 3 );
+			meta.put( "node_type", "array" );
+			meta.put( "shape", new long[] { dimensions[ 4 ], dimensions[ 3 ], dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] } );
+			meta.put( "data_type", dataType == DataType.UINT8 ? "uint8" : dataType == DataType.UINT16 ? "uint16" : "float32" );
+			meta.put( "chunk_grid", codec( "regular", "chunk_shape", new int[] { 1, 1, shardSize[ 2 ], shardSize[ 1 ], shardSize[ 0 ] } ) );
+			meta.put( "chunk_key_encoding", codec( "default", "separator", "/" ) );
+			meta.put( "fill_value", 0 );
+			meta.put( "codecs", new Object[] { codec( "sharding_indexed", sharding ) } );
+			meta.put( "dimension_names", new String[] { "t", "c", "z", "y", "x" } );
+
+			return meta;
+		}
+
+		protected Map< String, Object > compressor()
+		{
+			final Map< String, Object > configuration = new LinkedHashMap<>();
+			configuration.put( "level", codecLevel );
+
+			if ( codec == Compressions.Zstandard )
+			{
+				configuration.put( "checksum", false );
+				return codec( "zstd", configuration );
+			}
+			else
+			{
+				return codec( "gzip", configuration );
+			}
+		}
+	}
+
+	/**
+	 * @param compression - the compression selected for the container
+	 * @return true if the chunks of a sharded array can be compressed with it
+	 */
+	public static boolean supports( final Compressions compression )
+	{
+		return compression == Compressions.Zstandard || compression == Compressions.Gzip || compression == Compressions.Raw;
+	}
+
+	/**
+	 * @return the compression level that is used if none is specified (as in N5Util.getCompression)
+	 */
+	public static int defaultLevel( final Compressions compression )
+	{
+		return compression == Compressions.Gzip ? 1 : 3;
+	}
+
+	/**
+	 * Writes the Zarr v3 metadata of an array and replaces its Zarr v2 metadata (.zarray) by a Zarr v2 group.
+	 */
+	public static void createArray( final Array array ) throws IOException
+	{
+		final KeyValueAccess kva = URITools.getKeyValueAccess( array.container );
+
+		writeJson( kva, kva.compose( array.container, array.dataset, "zarr.json" ), array.metadata() );
+
+		final String zarray = kva.compose( array.container, array.dataset, ".zarray" );
+
+		if ( kva.exists( zarray ) )
+			kva.delete( zarray );
+
+		final Map< String, Object > group = new LinkedHashMap<>();
+		group.put( "zarr_format", 2 );
+		writeJson( kva, kva.compose( array.container, array.dataset, ".zgroup" ), group );
+	}
+
+	/**
+	 * Writes the Zarr v3 metadata of the root group with the OME-NGFF multiscales.
+	 */
+	public static void createRootGroup( final URI container, final JsonElement multiscales ) throws IOException
+	{
+		final KeyValueAccess kva = URITools.getKeyValueAccess( container );
+
+		final Map< String, Object > ome = new LinkedHashMap<>();
+		ome.put( "version", "0.5" );
+		ome.put( "multiscales", multiscales );
+
+		final Map< String, Object > attributes = new LinkedHashMap<>();
+		attributes.put( "ome", ome );
+
+		final Map< String, Object > meta = new LinkedHashMap<>();
+		meta.put( "zarr_format", 3 );
+		meta.put( "node_type", "group" );
+		meta.put( "attributes", attributes );
+
+		writeJson( kva, kva.compose( container, "zarr.json" ), meta );
+	}
+
+	/**
+	 * Collects the encoded chunks of one shard (thread-safe) and writes them as a single object.
+	 */
+	public static class ShardWriter
+	{
+		final Array array;
+		final long[] shardPosition, firstChunk;
+		final int c, t;
+		final byte[][] chunks;
+
+		/**
+		 * @param array - the array
+		 * @param offset - offset of the shard in pixels (x,y,z), must be a multiple of the shard size
+		 * @param c - channel index
+		 * @param t - timepoint index
+		 */
+		public ShardWriter( final Array array, final long[] offset, final int c, final int t )
+		{
+			this.array = array;
+			this.c = c;
+			this.t = t;
+			this.shardPosition = new long[ 3 ];
+			this.firstChunk = new long[ 3 ];
+			this.chunks = new byte[ array.numChunksPerShard() ][];
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				if ( offset[ d ] % array.shardSize[ d ] != 0 )
+					throw new IllegalArgumentException( "Offset " + Arrays.toString( offset ) + " is not aligned with the shards " + Arrays.toString( array.shardSize ) );
+
+				shardPosition[ d ] = offset[ d ] / array.shardSize[ d ];
+				firstChunk[ d ] = shardPosition[ d ] * array.chunksPerShard( d );
+			}
+		}
+
+		/**
+		 * Encodes a chunk of this shard.
+		 *
+		 * @param block - the zero-min 3D chunk (smaller than the chunk size at the border)
+		 * @param gridPosition - its position in the grid of chunks of the array (x,y,z)
+		 * @return the number of bytes before compression
+		 */
+		public < T extends NativeType< T > > long add( final RandomAccessibleInterval< T > block, final long[] gridPosition ) throws IOException
+		{
+			final int[] p = new int[ 3 ];
+			Arrays.setAll( p, d -> (int)( gridPosition[ d ] - firstChunk[ d ] ) );
+
+			for ( int d = 0; d < 3; ++d )
+				if ( p[ d ] < 0 || p[ d ] >= array.chunksPerShard( d ) )
+					throw new IllegalArgumentException( "Chunk " + Arrays.toString( gridPosition ) + " is not part of shard " + Arrays.toString( shardPosition ) );
+
+			final byte[] raw = encode( block, array.chunkSize, array.bytesPerPixel() );
+			final byte[] encoded = compress( raw, array.codec, array.codecLevel );
+
+			// C-order of the chunks in the shard (z slowest)
+			synchronized ( chunks )
+			{
+				chunks[ ( p[ 2 ] * array.chunksPerShard( 1 ) + p[ 1 ] ) * array.chunksPerShard( 0 ) + p[ 0 ] ] = encoded;
+			}
+
+			return raw.length;
+		}
+
+		/**
+		 * @return true if no chunk was added
+		 */
+		public boolean isEmpty()
+		{
+			synchronized ( chunks )
+			{
+				for ( final byte[] chunk : chunks )
+					if ( chunk != null )
+						return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Deletes the shard, e.g. if it is empty now but might hold data written earlier.
+		 */
+		public void delete() throws IOException
+		{
+			final KeyValueAccess kva = URITools.getKeyValueAccess( array.container );
+			final String key = array.shardKey( kva, shardPosition, c, t );
+
+			if ( kva.exists( key ) )
+				kva.delete( key );
+		}
+
+		/**
+		 * Writes the shard (chunks followed by the index) with a single PUT, nothing is written if it has no chunks.
+		 *
+		 * @return the number of bytes written
+		 */
+		public long write() throws IOException
+		{
+			final ByteArrayOutputStream shard = new ByteArrayOutputStream();
+			final ByteBuffer index = ByteBuffer.allocate( chunks.length * 16 ).order( ByteOrder.LITTLE_ENDIAN );
+
+			synchronized ( chunks )
+			{
+				for ( final byte[] chunk : chunks )
+				{
+					if ( chunk == null )
+					{
+						// missing chunk: offset and nbytes are 2^64-1
+						index.putLong( -1 ).putLong( -1 );
+					}
+					else
+					{
+						index.putLong( shard.size() ).putLong( chunk.length );
+						shard.write( chunk );
+					}
+				}
+			}
+
+			if ( shard.size() == 0 )
+				return 0;
+
+			shard.write( index.array() );
+
+			final KeyValueAccess kva = URITools.getKeyValueAccess( array.container );
+
+			try ( final LockedChannel channel = kva.lockForWriting( array.shardKey( kva, shardPosition, c, t ) );
+					final OutputStream out = channel.newOutputStream() )
+			{
+				shard.writeTo( out );
+			}
+
+			return shard.size();
+		}
+	}
+
+	/**
+	 * Reads a 3D region of one volume (c,t) of a sharded array, reading every shard it overlaps once (as a whole,
+	 * since downsampling needs all of their chunks). Missing shards and chunks are 0.
+	 *
+	 * @param array - the array
+	 * @param min - min of the region (x,y,z)
+	 * @param size - size of the region (x,y,z)
+	 * @param c - channel index
+	 * @param t - timepoint index
+	 * @param type - the pixel type matching the data type of the array
+	 * @return a zero-min ArrayImg with the region
+	 */
+	public static < T extends NativeType< T > > RandomAccessibleInterval< T > read(
+			final Array array,
+			final long[] min,
+			final long[] size,
+			final int c,
+			final int t,
+			final T type ) throws IOException
+	{
+		final RandomAccessibleInterval< T > region = new ArrayImgFactory<>( type ).create( size );
+		final long[] max = new long[ 3 ];
+		Arrays.setAll( max, d -> min[ d ] + size[ d ] - 1 );
+
+		final KeyValueAccess kva = URITools.getKeyValueAccess( array.container );
+		final long[] shardPosition = new long[ 3 ];
+		final long[] chunkMin = new long[ 3 ];
+		final long[] chunkMax = new long[ 3 ];
+
+		for ( shardPosition[ 2 ] = min[ 2 ] / array.shardSize[ 2 ]; shardPosition[ 2 ] <= max[ 2 ] / array.shardSize[ 2 ]; ++shardPosition[ 2 ] )
+			for ( shardPosition[ 1 ] = min[ 1 ] / array.shardSize[ 1 ]; shardPosition[ 1 ] <= max[ 1 ] / array.shardSize[ 1 ]; ++shardPosition[ 1 ] )
+				for ( shardPosition[ 0 ] = min[ 0 ] / array.shardSize[ 0 ]; shardPosition[ 0 ] <= max[ 0 ] / array.shardSize[ 0 ]; ++shardPosition[ 0 ] )
+				{
+					final String key = array.shardKey( kva, shardPosition, c, t );
+
+					if ( !kva.exists( key ) )
+						continue;
+
+					final byte[] shard;
+
+					try ( final LockedChannel channel = kva.lockForReading( key );
+							final InputStream in = channel.newInputStream() )
+					{
+						shard = readFully( in );
+					}
+
+					final ByteBuffer index = ByteBuffer.wrap( shard, shard.length - array.numChunksPerShard() * 16, array.numChunksPerShard() * 16 ).order( ByteOrder.LITTLE_ENDIAN );
+
+					for ( int z = 0; z < array.chunksPerShard( 2 ); ++z )
+						for ( int y = 0; y < array.chunksPerShard( 1 ); ++y )
+							for ( int x = 0; x < array.chunksPerShard( 0 ); ++x )
+							{
+								final long offset = index.getLong();
+								final long nbytes = index.getLong();
+
+								if ( offset == -1 && nbytes == -1 )
+									continue;
+
+								final int[] p = new int[] { x, y, z };
+								boolean overlaps = true;
+
+								for ( int d = 0; d < 3; ++d )
+								{
+									chunkMin[ d ] = shardPosition[ d ] * array.shardSize[ d ] + (long)p[ d ] * array.chunkSize[ d ];
+									chunkMax[ d ] = chunkMin[ d ] + array.chunkSize[ d ] - 1;
+									overlaps &= chunkMin[ d ] <= max[ d ] && chunkMax[ d ] >= min[ d ];
+								}
+
+								if ( !overlaps )
+									continue;
+
+								final byte[] raw = decompress( Arrays.copyOfRange( shard, (int)offset, (int)( offset + nbytes ) ), array.codec, array.chunkSize, array.bytesPerPixel() );
+								final RandomAccessibleInterval< T > chunk = Views.translate( decode( raw, array.chunkSize, type ), chunkMin );
+
+								final long[] iMin = new long[ 3 ];
+								final long[] iMax = new long[ 3 ];
+								Arrays.setAll( iMin, d -> Math.max( min[ d ], chunkMin[ d ] ) );
+								Arrays.setAll( iMax, d -> Math.min( max[ d ], chunkMax[ d ] ) );
+
+								final FinalInterval intersection = new FinalInterval( iMin, iMax );
+
+								LoopBuilder.setImages(
+										Views.interval( chunk, intersection ),
+										Views.interval( Views.translate( region, min ), intersection ) ).forEachPixel( ( i, o ) -> o.set( i ) );
+							}
+				}
+
+		return region;
+	}
+
+	/**
+	 * @return the pixel type of a data type that can be stored in a sharded array
+	 */
+	public static NativeType< ? > type( final DataType dataType )
+	{
+		if ( dataType == DataType.UINT8 )
+			return new UnsignedByteType();
+		else if ( dataType == DataType.UINT16 )
+			return new UnsignedShortType();
+		else
+			return new FloatType();
+	}
+
+	/**
+	 * Copies a zero-min block into a chunk (zero-padded at the border) and returns its little-endian bytes.
+	 */
+	protected static < T extends NativeType< T > > byte[] encode( final RandomAccessibleInterval< T > block, final int[] chunkSize, final int bytesPerPixel )
+	{
+		final ArrayImg< T, ? > chunk = (ArrayImg< T, ? >)new ArrayImgFactory<>( Util.getTypeFromInterval( block ) ).create( chunkSize );
+
+		LoopBuilder.setImages( Views.zeroMin( block ), Views.interval( chunk, new FinalInterval( Intervals.dimensionsAsLongArray( block ) ) ) ).forEachPixel( ( i, o ) -> o.set( i ) );
+
+		final Object storage = ( (ArrayDataAccess< ? >)chunk.update( null ) ).getCurrentStorageArray();
+		final ByteBuffer bytes = ByteBuffer.allocate( (int)Intervals.numElements( chunkSize ) * bytesPerPixel ).order( ByteOrder.LITTLE_ENDIAN );
+
+		if ( storage instanceof byte[] )
+			bytes.put( (byte[])storage );
+		else if ( storage instanceof short[] )
+			bytes.asShortBuffer().put( (short[])storage );
+		else
+			bytes.asFloatBuffer().put( (float[])storage );
+
+		return bytes.array();
+	}
+
+	/**
+	 * @return a zero-min chunk from its little-endian bytes
+	 */
+	protected static < T extends NativeType< T > > RandomAccessibleInterval< T > decode( final byte[] raw, final int[] chunkSize, final T type )
+	{
+		final ArrayImg< T, ? > chunk = (ArrayImg< T, ? >)new ArrayImgFactory<>( type ).create( chunkSize );
+
+		final Object storage = ( (ArrayDataAccess< ? >)chunk.update( null ) ).getCurrentStorageArray();
+		final ByteBuffer bytes = ByteBuffer.wrap( raw ).order( ByteOrder.LITTLE_ENDIAN );
+
+		if ( storage instanceof byte[] )
+			bytes.get( (byte[])storage );
+		else if ( storage instanceof short[] )
+			bytes.asShortBuffer().get( (short[])storage );
+		else
+			bytes.asFloatBuffer().get( (float[])storage );
+
+		return chunk;
+	}
+
+	protected static byte[] compress( final byte[] raw, final Compressions codec, final int level ) throws IOException
+	{
+		if ( codec == Compressions.Zstandard )
+			return Zstd.compress( raw, level );
+
+		if ( codec == Compressions.Gzip )
+		{
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			try ( final GZIPOutputStream gzip = new GZIPOutputStream( out ) { { def.setLevel( level ); } } )
+			{
+				gzip.write( raw );
+			}
+
+			return out.toByteArray();
+		}
+
+		return raw;
+	}
+
+	protected static byte[] decompress( final byte[] encoded, final Compressions codec, final int[] chunkSize, final int bytesPerPixel ) throws IOException
+	{
+		final int numBytes = (int)Intervals.numElements( chunkSize ) * bytesPerPixel;
+
+		if ( codec == Compressions.Zstandard )
+			return Zstd.decompress( encoded, numBytes );
+
+		if ( codec == Compressions.Gzip )
+		{
+			try ( final GZIPInputStream gzip = new GZIPInputStream( new ByteArrayInputStream( encoded ) ) )
+			{
+				return readFully( gzip );
+			}
+		}
+
+		return encoded;
+	}
+
+	protected static byte[] readFully( final InputStream in ) throws IOException
+	{
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[ 65536 ];
+
+		for ( int n = in.read( buffer ); n >= 0; n = in.read( buffer ) )
+			out.write( buffer, 0, n );
+
+		return out.toByteArray();
+	}
+
+	protected static Map< String, Object > codec( final String name, final String key, final Object value )
+	{
+		final Map< String, Object > configuration = new LinkedHashMap<>();
+		configuration.put( key, value );
+
+		return codec( name, configuration );
+	}
+
+	protected static Map< String, Object > codec( final String name, final Map< String, Object > configuration )
+	{
+		final Map< String, Object > codec = new LinkedHashMap<>();
+		codec.put( "name", name );
+		codec.put( "configuration", configuration );
+
+		return codec;
+	}
+
+	protected static void writeJson( final KeyValueAccess kva, final String key, final Object json ) throws IOException
+	{
+		try ( final LockedChannel channel = kva.lockForWriting( key );
+				final Writer writer = channel.newWriter() )
+		{
+			new GsonBuilder().setPrettyPrinting().create().toJson( json, writer );
+		}
+	}
+}
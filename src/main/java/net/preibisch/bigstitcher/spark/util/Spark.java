@@ -21,19 +21,34 @@
  */
 package net.preibisch.bigstitcher.spark.util;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import org.apache.spark.SparkConf;
 import org.apache.spark.SparkEnv;
+import org.apache.spark.TaskContext;
+import org.apache.spark.serializer.KryoSerializer;
+import org.apache.spark.util.TaskCompletionListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import bdv.ViewerImgLoader;
 import mpicbg.spim.data.SpimDataException;
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewTransform;
 import mpicbg.spim.data.sequence.SequenceDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.Cursor;
@@ -50,13 +65,41 @@ import net.imglib2.view.Views;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.fusion.transformed.TransformVirtual;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 
 public class Spark {
 
 	public static final int maxPartitions = 10_000;
 
+	/**
+	 * Creates the SparkConf of a command. Unless useKryo is false or spark.serializer was already set (e.g. with
+	 * spark-submit --conf), RDD data, shuffles and task results are serialized with Kryo and the classes of
+	 * {@link SparkKryoRegistrator}; task closures are always serialized with Java serialization by Spark.
+	 *
+	 * @param appName - name of the Spark application
+	 * @param localSparkBindAddress - bind the driver to 127.0.0.1
+	 * @param useKryo - use Kryo instead of Java serialization
+	 * @return the SparkConf (which also contains all spark.* system properties)
+	 */
+	public static SparkConf conf( final String appName, final boolean localSparkBindAddress, final boolean useKryo )
+	{
+		final SparkConf conf = new SparkConf().setAppName( appName );
+
+		if ( localSparkBindAddress )
+			conf.set( "spark.driver.bindAddress", "127.0.0.1" );
+
+		if ( useKryo )
+		{
+			conf.setIfMissing( "spark.serializer", KryoSerializer.class.getName() );
+			conf.setIfMissing( "spark.kryo.registrator", SparkKryoRegistrator.class.getName() );
+		}
+
+		return conf;
+	}
+
 	public static List< ViewId > deserializeViewIds( final int[][] serializedViewIds )
 	{
 		final List< ViewId > viewIds = new ArrayList<>( serializedViewIds.length );
@@ -203,6 +246,39 @@ public class Spark {
 		return sparkEnv == null ? null : sparkEnv.executorId();
 	}
 
+	/**
+	 * Closes the resource when the current Spark task completes (successfully or not), so it is
+	 * released even if the task fails. Outside of a Spark task the caller has to close it.
+	 *
+	 * @param closeable the resource
+	 * @return true if it will be closed by Spark, false if it is not running inside a Spark task
+	 */
+	public static boolean closeOnTaskCompletion( final AutoCloseable closeable )
+	{
+		final TaskContext context = TaskContext.get();
+
+		if ( context == null )
+			return false;
+
+		context.addTaskCompletionListener( new TaskCompletionListener()
+		{
+			@Override
+			public void onTaskCompletion( final TaskContext context )
+			{
+				try
+				{
+					closeable.close();
+				}
+				catch ( Exception e )
+				{
+					System.out.println( "Failed to close " + closeable + ": " + e );
+				}
+			}
+		} );
+
+		return true;
+	}
+
 	/**
 	 * @return a new data instance optimized for use within single-threaded Spark tasks.
 	 */
@@ -219,6 +295,16 @@ public class Spark {
 		final SpimData2 data = new XmlIoSpimData2().load(xmlPath);
 		final SequenceDescription sequenceDescription = data.getSequenceDescription();
 
+		// remote input chunks are read through the node-local disk cache if it is configured in the SparkConf
+		try
+		{
+			DiskChunkCache.wrapImgLoader( data );
+		}
+		catch ( final IOException e )
+		{
+			System.out.println( "Could not set up the input chunk cache, reading without it: " + e );
+		}
+
 		// set number of fetcher threads to 0 for spark usage
 		final BasicImgLoader imgLoader = sequenceDescription.getImgLoader();
 		if (imgLoader instanceof ViewerImgLoader) {
@@ -230,6 +316,206 @@ public class Spark {
 		return data;
 	}
 
+	/**
+	 * Executor-wide cache of {@link SpimData2} instances, keyed by XML URI and
+	 * content hash (see {@link #contentHash(SpimData2)}). All Spark tasks of an
+	 * executor share one instance (and thus one imgloader cache) instead of
+	 * parsing the XML for every block.
+	 */
+	private static final ConcurrentHashMap< String, CachedSpimData2 > spimDataCache = new ConcurrentHashMap<>();
+
+	private static final AtomicLong spimDataCacheHits = new AtomicLong();
+	private static final AtomicLong spimDataCacheMisses = new AtomicLong();
+
+	/**
+	 * Returns a {@link SpimData2} instance that is shared by all Spark tasks
+	 * running in this JVM. The XML is only loaded the first time a specific
+	 * combination of {@code xmlPath} and {@code contentHash} is requested.
+	 * <p>
+	 * The returned instance must be treated as read-only, use
+	 * {@link #getSparkJobSpimData2(URI)} if the data needs to be modified.
+	 *
+	 * @param xmlPath the XML to load
+	 * @param contentHash the hash of the XML content as computed on the driver using {@link #contentHash(SpimData2)}
+	 * @return the shared instance
+	 * @throws SpimDataException if the XML could not be loaded
+	 */
+	public static SpimData2 getSparkJobSpimData2( final URI xmlPath, final long contentHash ) throws SpimDataException
+	{
+		return getCachedSpimData2( xmlPath, contentHash ).data;
+	}
+
+	/**
+	 * Returns the registrations as computed by {@link TransformVirtual#adjustAllTransforms},
+	 * shared by all Spark tasks running in this JVM that ask for the same views,
+	 * anisotropy factor and downsampling. The returned map must not be modified.
+	 *
+	 * @param xmlPath the XML to load
+	 * @param contentHash the hash of the XML content as computed on the driver using {@link #contentHash(SpimData2)}
+	 * @param viewIds the views to compute the transformations for
+	 * @param anisotropyFactor the anisotropy factor (or Double.NaN)
+	 * @param downsampling the downsampling (or Double.NaN)
+	 * @return the shared registrations
+	 * @throws SpimDataException if the XML could not be loaded
+	 */
+	public static HashMap< ViewId, AffineTransform3D > getSparkJobRegistrations(
+			final URI xmlPath,
+			final long contentHash,
+			final Collection< ? extends ViewId > viewIds,
+			final double anisotropyFactor,
+			final double downsampling ) throws SpimDataException
+	{
+		return getCachedSpimData2( xmlPath, contentHash ).registrations( viewIds, anisotropyFactor, downsampling );
+	}
+
+	public static long spimDataCacheHits() { return spimDataCacheHits.get(); }
+
+	public static long spimDataCacheMisses() { return spimDataCacheMisses.get(); }
+
+	private static CachedSpimData2 getCachedSpimData2( final URI xmlPath, final long contentHash ) throws SpimDataException
+	{
+		final String key = xmlPath + "@" + Long.toHexString( contentHash );
+
+		final CachedSpimData2 cached = spimDataCache.get( key );
+
+		if ( cached != null )
+		{
+			spimDataCacheHits.incrementAndGet();
+			return cached;
+		}
+
+		synchronized ( spimDataCache )
+		{
+			final CachedSpimData2 loaded = spimDataCache.get( key );
+
+			if ( loaded != null )
+			{
+				spimDataCacheHits.incrementAndGet();
+				return loaded;
+			}
+
+			spimDataCacheMisses.incrementAndGet();
+
+			// the XML changed, let go of previous versions
+			spimDataCache.keySet().removeIf( k -> k.startsWith( xmlPath + "@" ) );
+
+			final CachedSpimData2 entry = new CachedSpimData2( getSparkJobSpimData2( xmlPath ) );
+			spimDataCache.put( key, entry );
+
+			System.out.println(
+					"Loaded SpimData2 '" + xmlPath + "' into executor cache (executorId=" + getSparkExecutorId() +
+					", hits=" + spimDataCacheHits.get() + ", misses=" + spimDataCacheMisses.get() + ")" );
+
+			return entry;
+		}
+	}
+
+	/**
+	 * Computes a hash over the parts of the XML that Spark tasks depend on
+	 * (base path, imgloader type, registrations and interest point labels of all views).
+	 * It is computed once on the driver and passed to the tasks, so they can
+	 * detect a changed XML without loading it.
+	 *
+	 * @param data the project
+	 * @return the hash
+	 */
+	public static long contentHash( final SpimData2 data )
+	{
+		long hash = Objects.hashCode( data.getBasePathURI() );
+
+		final BasicImgLoader imgLoader = data.getSequenceDescription().getImgLoader();
+		hash = 31 * hash + ( imgLoader == null ? 0 : imgLoader.getClass().getName().hashCode() );
+
+		final ArrayList< ViewId > viewIds = new ArrayList<>( data.getViewRegistrations().getViewRegistrations().keySet() );
+		Collections.sort( viewIds );
+
+		for ( final ViewId viewId : viewIds )
+		{
+			hash = 31 * hash + viewId.getTimePointId();
+			hash = 31 * hash + viewId.getViewSetupId();
+
+			for ( final double v : data.getViewRegistrations().getViewRegistration( viewId ).getModel().getRowPackedCopy() )
+				hash = 31 * hash + Double.hashCode( v );
+
+			final ViewInterestPointLists ipl = data.getViewInterestPoints().getViewInterestPointLists( viewId );
+
+			if ( ipl != null )
+				for ( final String label : new TreeSet<>( ipl.getHashMap().keySet() ) )
+					hash = 31 * hash + label.hashCode();
+		}
+
+		return hash;
+	}
+
+	private static class CachedSpimData2
+	{
+		final SpimData2 data;
+
+		final Map< List< Object >, HashMap< ViewId, AffineTransform3D > > registrations = new HashMap<>();
+
+		CachedSpimData2( final SpimData2 data )
+		{
+			// compute all models once, so concurrent tasks calling updateModel() cannot observe a half-updated model
+			data.getViewRegistrations().getViewRegistrations().replaceAll(
+					( viewId, vr ) -> new SharedViewRegistration( vr.getTimePointId(), vr.getViewSetupId(), vr.getTransformList() ) );
+
+			this.data = data;
+		}
+
+		synchronized HashMap< ViewId, AffineTransform3D > registrations(
+				final Collection< ? extends ViewId > viewIds,
+				final double anisotropyFactor,
+				final double downsampling )
+		{
+			final List< Object > key = new ArrayList<>();
+			viewIds.forEach( viewId -> key.add( new ViewId( viewId.getTimePointId(), viewId.getViewSetupId() ) ) );
+			key.add( anisotropyFactor );
+			key.add( downsampling );
+
+			HashMap< ViewId, AffineTransform3D > r = registrations.get( key );
+
+			if ( r == null )
+			{
+				// adjustAllTransforms updates the ViewRegistrations it is given, so work on copies
+				final HashMap< ViewId, ViewRegistration > copies = new HashMap<>();
+
+				for ( final ViewId viewId : viewIds )
+				{
+					final ViewRegistration vr = data.getViewRegistrations().getViewRegistration( viewId );
+					copies.put( viewId, new ViewRegistration( vr.getTimePointId(), vr.getViewSetupId(), new ArrayList<>( vr.getTransformList() ) ) );
+				}
+
+				r = TransformVirtual.adjustAllTransforms( viewIds, copies, anisotropyFactor, downsampling );
+				registrations.put( key, r );
+			}
+
+			return r;
+		}
+	}
+
+	/**
+	 * A read-only {@link ViewRegistration} that is shared by concurrent tasks. Its model is computed once, changing its
+	 * transforms (e.g. {@link #preconcatenateTransform}) throws an {@link UnsupportedOperationException}; since the
+	 * transforms cannot change, calls to {@link #updateModel()} are ignored.
+	 */
+	private static class SharedViewRegistration extends ViewRegistration
+	{
+		private boolean initialized;
+
+		SharedViewRegistration( final int timepointId, final int setupId, final List< ViewTransform > transformList )
+		{
+			super( timepointId, setupId, Collections.unmodifiableList( new ArrayList<>( transformList ) ) );
+			this.initialized = true;
+		}
+
+		@Override
+		public void updateModel()
+		{
+			if ( !initialized )
+				super.updateModel();
+		}
+	}
+
 	private static final Logger LOG = LoggerFactory.getLogger(Spark.class);
 
 	public static ArrayList< Pair<ViewId, ViewId> > toViewIds( final List<Pair<ViewId, ViewId>> pairList )
@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * Spark-based parallel BigStitcher project.
+ * %%
+ * Copyright (C) 2021 - 2024 Developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.bigstitcher.spark.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.spark.serializer.KryoRegistrator;
+
+import com.esotericsoftware.kryo.Kryo;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.util.ValuePair;
+import net.preibisch.legacy.mpicbg.PointMatchGeneric;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.MatcherPairwiseTools.MatchingTask;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import scala.Tuple2;
+import scala.Tuple3;
+
+/**
+ * Registers the classes that our RDDs carry and the tasks return (grid blocks, the serialized ViewId forms of
+ * {@link Spark}, matching tasks and their point matches, pairwise stitching results), so Kryo writes a small
+ * id instead of the class name for each object. Classes that are not registered still work unless
+ * spark.kryo.registrationRequired=true, which can be used to find missing ones.
+ *
+ * The order of the registrations defines the ids, so new classes must only be appended.
+ */
+public class SparkKryoRegistrator implements KryoRegistrator
+{
+	@Override
+	public void registerClasses( final Kryo kryo )
+	{
+		// grid blocks (long[][] {offset, size, gridOffset}), intervals and the serialized ViewIds, pairs and groups of Spark
+		kryo.register( long[].class );
+		kryo.register( long[][].class );
+		kryo.register( int[].class );
+		kryo.register( int[][].class );
+		kryo.register( int[][][].class );
+		kryo.register( double[].class );
+		kryo.register( double[][].class );
+
+		kryo.register( Tuple2.class );
+		kryo.register( Tuple3.class );
+		kryo.register( ArrayList.class );
+		kryo.register( HashMap.class );
+		kryo.register( HashSet.class );
+		kryo.register( ValuePair.class );
+
+		kryo.register( ViewId.class );
+		kryo.register( Group.class );
+
+		// interest point matching
+		kryo.register( MatchingTask.class );
+		kryo.register( InterestPoint.class );
+		kryo.register( PointMatchGeneric.class );
+
+		// pairwise stitching
+		kryo.register( SerializablePairwiseStitchingResult.class );
+	}
+}
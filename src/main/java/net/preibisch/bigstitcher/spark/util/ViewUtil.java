@@ -35,6 +35,7 @@ import mpicbg.spim.data.sequence.SetupImgLoader;
 import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
@@ -44,16 +45,22 @@ import net.imglib2.iterator.IntervalIterator;
 import net.imglib2.iterator.LocalizingIntervalIterator;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.transform.integer.BoundingBox;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.transform.integer.MixedTransform;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.LinAlgHelpers;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.MixedTransformView;
-import util.Grid;
 
 public class ViewUtil
 {
+	// used to estimate the memory of prefetched data if the pixel type is unknown
+	private static final int unknownBytesPerPixel = 4;
+
+	// nominal cell size used for prefetching if the cells of a source are unknown
+	private static final int[] nominalCellSize = new int[] { 128, 128, 64 };
+
 	public static long size( final Interval interval )
 	{
 		if ( interval == null || interval.numDimensions() == 0 )
@@ -91,7 +98,8 @@ public class ViewUtil
 					"failed to find viewRegistration for " + viewIdToString(viewId) + " in " + data);
 		}
 
-		reg.updateModel(); // TODO: This shouldn't be necessary, right?
+		// the model is computed when loading (see Spark.getSparkJobSpimData2( URI, long )),
+		// shared instances are read-only and ignore updateModel()
 
 		return reg;
 	}
@@ -194,143 +202,232 @@ public class ViewUtil
 
 		imgToWorld.concatenate( best.mipmapTransform );
 
+		// unwrap the views on top of the source (e.g. the hyperslices of 5D OME-ZARR), composing their transforms
 		RandomAccessible< ? > rai = best.img;
+		MixedTransform transformToSource = null;
 
-		// strip one level of IntervalView, if present
-		if ( rai instanceof IntervalView )
+		while ( rai instanceof IntervalView || rai instanceof MixedTransformView )
 		{
-			rai = ( ( IntervalView< ? > ) rai ).getSource();
+			if ( rai instanceof IntervalView )
+			{
+				rai = ( ( IntervalView< ? > ) rai ).getSource();
+			}
+			else
+			{
+				final MixedTransform t = ( ( MixedTransformView< ? > ) rai ).getTransformToSource();
+				transformToSource = transformToSource == null ? t : t.concatenate( transformToSource );
+				rai = ( ( MixedTransformView< ? > ) rai ).getSource();
+			}
 		}
 
-		final MixedTransform transformToSource;
-		if ( rai instanceof MixedTransformView )
+		// the cells of the source, or nominal cells on img if the source has no (known) cell structure
+		final CellGrid grid;
+		final double bytesPerPixel;
+		final long[] gridOffset;
+
+		if ( rai instanceof AbstractCellImg )
 		{
-			transformToSource = ( ( MixedTransformView< ? > ) rai ).getTransformToSource();
-			rai = ( ( MixedTransformView< ? > ) rai ).getSource();
+			grid = ( ( AbstractCellImg< ?, ?, ?, ? > ) rai ).getCellGrid();
+			gridOffset = new long[ rai.numDimensions() ];
+
+			// does not access any data
+			final Object type = ( ( AbstractCellImg< ?, ?, ?, ? > ) rai ).createLinkedType();
+			bytesPerPixel = ( type instanceof RealType ) ? ( ( RealType< ? > ) type ).getBitsPerPixel() / 8.0 : unknownBytesPerPixel;
 		}
 		else
 		{
+			rai = img;
 			transformToSource = null;
+			grid = new CellGrid( Intervals.dimensionsAsLongArray( img ), nominalCellSize );
+			gridOffset = Intervals.minAsLongArray( img );
+			bytesPerPixel = unknownBytesPerPixel;
 		}
 
-		// this failed for the AllenOMEZarrLoader because the RandomAccessibleInterval< ? > img is .view().slice( 4, 0 ).slice( 3, 0 );
-		// TODO: I added some copy of the code below that assumes a 128x128x64 blocksize, this should be fixed. But better this than a non-working code ...
-		if ( ! ( rai instanceof AbstractCellImg ) )
+		// project the fused block into the coordinates of img (with a safety margin for rounding and interpolation)
+		final double[][] fusedWorld = new double[][] {
+				Arrays.stream( fusedBlock.minAsLongArray() ).mapToDouble( v -> v - 1 ).toArray(),
+				Arrays.stream( fusedBlock.maxAsLongArray() ).mapToDouble( v -> v + 1 ).toArray() };
+
+		final int m = img.numDimensions(); // should be always ==3
+		final long[] imgMin = new long[ m ];
+		final long[] imgMax = new long[ m ];
+		projectToSource( imgToWorld, fusedWorld[ 0 ], fusedWorld[ 1 ], expand, imgMin, imgMax );
+
+		// the candidate region in the coordinates of rai
+		final int n = rai.numDimensions();
+		final BoundingBox sourceBBox = new BoundingBox( n );
+
+		if ( transformToSource == null )
 		{
-			// use some random blocksize and fetch for all
-			final List<long[][]> grid = Grid.create( new FinalInterval( img ).dimensionsAsLongArray(), new int[] { 128, 128, 64 } );
+			System.arraycopy( imgMin, 0, sourceBBox.corner1, 0, m );
+			System.arraycopy( imgMax, 0, sourceBBox.corner2, 0, m );
+		}
+		else
+		{
+			transformToSource.apply( imgMin, sourceBBox.corner1 );
+			transformToSource.apply( imgMax, sourceBBox.corner2 );
+			sourceBBox.orderMinMax();
+		}
 
-			final int n = img.numDimensions();
-			final BoundingBox cellBBox = new BoundingBox( n );
-			final long[] cellMin = cellBBox.corner1;
-			final long[] cellMax = cellBBox.corner2;
+		// Only test the cells that intersect the fused block projected into source
+		// coordinates, then test each of them exactly using the (non-axis-aligned)
+		// planes of the transformed cell (see BigVolumeViewer's FindRequiredBlocks).
+		final long[] gridMin = new long[ n ];
+		final long[] gridMax = new long[ n ];
 
-			final BoundingBox projectedCellBBox;
-			final Interval projectedCellInterval;
-			final int m = img.numDimensions(); // should be always ==3
-			projectedCellBBox = new BoundingBox( m );
-			projectedCellInterval = FinalInterval.wrap( projectedCellBBox.corner1, projectedCellBBox.corner2 );
+		for ( int d = 0; d < n; ++d )
+		{
+			gridMin[ d ] = Math.max( 0, Math.floorDiv( sourceBBox.corner1[ d ] - gridOffset[ d ], grid.cellDimension( d ) ) );
+			gridMax[ d ] = Math.min( grid.gridDimension( d ) - 1, Math.floorDiv( sourceBBox.corner2[ d ] - gridOffset[ d ], grid.cellDimension( d ) ) );
 
-			for ( final long[][] block : grid )
-			{
-				final long[] offset = block[ 0 ];
-				final long[] size = block[ 1 ];
+			if ( gridMax[ d ] < gridMin[ d ] )
+				return prefetch;
+		}
 
-				for ( int d = 0; d < n; ++d )
-				{
-					cellMin[ d ] = offset[ d ];
-					cellMax[ d ] = cellMin[ d ] + size[ d ] - 1;
-				}
+		final long[] gridPos = new long[ n ];
+		final BoundingBox cellBBox = new BoundingBox( n );
+		final long[] cellMin = cellBBox.corner1;
+		final long[] cellMax = cellBBox.corner2;
 
-				if ( transformToSource == null )
-				{
-					expand( cellBBox, expand, projectedCellBBox );
-				}
-				else
-				{
-					transform( transformToSource, projectedCellBBox, cellBBox );
-					expand( projectedCellBBox, expand );
-				}
+		final BoundingBox projectedCellBBox = new BoundingBox( m );
+		final double[] projectedMin = new double[ m ];
+		final double[] projectedMax = new double[ m ];
 
-				final Interval bounds = Intervals.smallestContainingInterval(
-						imgToWorld.estimateBounds( projectedCellInterval ) );
+		final IntervalIterator gridIter = new LocalizingIntervalIterator( gridMin, gridMax );
+		while( gridIter.hasNext() )
+		{
+			gridIter.fwd();
+			gridIter.localize( gridPos );
+			grid.getCellInterval( gridPos, cellMin, cellMax );
 
-				if ( overlaps( bounds, fusedBlock ) )
-				{
-					System.out.println( Arrays.toString( offset ) + ", " + Arrays.toString( size ) );
+			for ( int d = 0; d < n; ++d )
+			{
+				cellMin[ d ] += gridOffset[ d ];
+				cellMax[ d ] += gridOffset[ d ];
+			}
 
-					prefetch.add( new PrefetchPixel<>( rai, cellMin.clone() ) );
-				}
+			if ( transformToSource == null )
+			{
+				expand( cellBBox, expand, projectedCellBBox );
+			}
+			else
+			{
+				transform( transformToSource, projectedCellBBox, cellBBox );
+				expand( projectedCellBBox, expand );
 			}
 
-			//throw new IllegalArgumentException( "TODO. Handling source types other than CellImg is not implemented yet, rai is=" + rai.getClass().getName() );
-		}
-		else
-		{
-			// Brute force search for overlapping cells:
-			//
-			// For each grid cell, estimate its bounding box in world space and test
-			// for intersection with fusedBlock
-			//
-			// TODO: BigVolumeViewer has a more sophisticated method for
-			//       intersecting the View Frustum with the source grid and
-			//       determining overlapping cells. This is similar and could be
-			//       re-used here to make the search more efficient. It should
-			//       provide more accurate results because it uses non-axis aligned
-			//       planes for intersection. See class FindRequiredBlocks.
-			//
-			// TODO: The following works for the hyperslice views currently produced by ZarrImageLoader
-			//       (from https://github.com/bigdataviewer/bigdataviewer-omezarr)
-			//       However, for the general case, the logic should be inverted:
-			//       Project the "fused" bounding box into source coordinates (see
-			//       above), because that is well-defined.
-			//       In contrast, the code below performs a projection onto the
-			//       "fused" hyper-slice, which can lead to non-required blocks
-			//       being loaded.
-	
-			// iterate all cells (intervals) in grid
-			final CellGrid grid = ( ( AbstractCellImg< ?, ?, ?, ? > ) rai ).getCellGrid();
-	
-			final int n = grid.numDimensions();
-			final long[] gridPos = new long[ n ];
-			final BoundingBox cellBBox = new BoundingBox( n );
-			final long[] cellMin = cellBBox.corner1;
-			final long[] cellMax = cellBBox.corner2;
-	
-			final BoundingBox projectedCellBBox;
-			final Interval projectedCellInterval;
-			final int m = img.numDimensions(); // should be always ==3
-			projectedCellBBox = new BoundingBox( m );
-			projectedCellInterval = FinalInterval.wrap( projectedCellBBox.corner1, projectedCellBBox.corner2 );
-	
-			final IntervalIterator gridIter = new LocalizingIntervalIterator( grid.getGridDimensions() );
-			while( gridIter.hasNext() )
+			for ( int d = 0; d < m; ++d )
 			{
-				gridIter.fwd();
-				gridIter.localize( gridPos );
-				grid.getCellInterval( gridPos, cellMin, cellMax );
-	
-				if ( transformToSource == null )
-				{
-					expand( cellBBox, expand, projectedCellBBox );
-				}
-				else
-				{
-					transform( transformToSource, projectedCellBBox, cellBBox );
-					expand( projectedCellBBox, expand );
-				}
-	
-				final Interval bounds = Intervals.smallestContainingInterval(
-						imgToWorld.estimateBounds( projectedCellInterval ) );
-	
-				if ( overlaps( bounds, fusedBlock ) )
-					prefetch.add( new PrefetchPixel<>( rai, cellMin.clone() ) );
+				projectedMin[ d ] = projectedCellBBox.corner1[ d ];
+				projectedMax[ d ] = projectedCellBBox.corner2[ d ];
 			}
+
+			if ( intersects( imgToWorld, projectedMin, projectedMax, fusedWorld[ 0 ], fusedWorld[ 1 ] ) )
+				prefetch.add( new PrefetchPixel<>( rai, cellMin.clone(), (long)Math.ceil( Intervals.numElements( new FinalInterval( cellMin, cellMax ) ) * bytesPerPixel ) ) );
 		}
+
 //		prefetch.forEach( System.out::println );
 		return prefetch;
 	}
 
+	/**
+	 * Computes the bounding box (in source coordinates) of the world-space box [worldMin, worldMax],
+	 * expanded by {@code border} pixels on every side.
+	 */
+	private static void projectToSource( final AffineTransform3D sourceToWorld, final double[] worldMin, final double[] worldMax, final long border, final long[] min, final long[] max )
+	{
+		final FinalRealInterval bounds = sourceToWorld.inverse().estimateBounds( new FinalRealInterval( worldMin, worldMax ) );
+
+		for ( int d = 0; d < min.length; ++d )
+		{
+			min[ d ] = (long)Math.floor( bounds.realMin( d ) ) - border;
+			max[ d ] = (long)Math.ceil( bounds.realMax( d ) ) + border;
+		}
+	}
+
+	/**
+	 * Exact intersection test of the source box [min, max] transformed by {@code sourceToWorld} (a parallelepiped)
+	 * and the axis-aligned world box [aMin, aMax] using the separating axis theorem, i.e. the face normals of both
+	 * boxes and the cross products of their edges.
+	 */
+	static boolean intersects( final AffineTransform3D sourceToWorld, final double[] min, final double[] max, final double[] aMin, final double[] aMax )
+	{
+		final double[] center = new double[ 3 ];
+		final double[][] halfAxes = new double[ 3 ][ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+			center[ d ] = ( min[ d ] + max[ d ] ) / 2.0;
+
+		sourceToWorld.apply( center, center );
+
+		for ( int k = 0; k < 3; ++k )
+			for ( int d = 0; d < 3; ++d )
+				halfAxes[ k ][ d ] = sourceToWorld.get( d, k ) * ( max[ k ] - min[ k ] ) / 2.0;
+
+		final double[] aCenter = new double[ 3 ];
+		final double[] aHalf = new double[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			aCenter[ d ] = ( aMin[ d ] + aMax[ d ] ) / 2.0;
+			aHalf[ d ] = ( aMax[ d ] - aMin[ d ] ) / 2.0;
+			center[ d ] -= aCenter[ d ];
+		}
+
+		final double[] axis = new double[ 3 ];
+		final double[] unit = new double[ 3 ];
+
+		// face normals of the axis-aligned box
+		for ( int i = 0; i < 3; ++i )
+		{
+			Arrays.fill( unit, 0 );
+			unit[ i ] = 1;
+
+			if ( separates( unit, center, halfAxes, aHalf ) )
+				return false;
+		}
+
+		// face normals of the transformed box
+		for ( int k = 0; k < 3; ++k )
+		{
+			LinAlgHelpers.cross( halfAxes[ ( k + 1 ) % 3 ], halfAxes[ ( k + 2 ) % 3 ], axis );
+
+			if ( separates( axis, center, halfAxes, aHalf ) )
+				return false;
+		}
+
+		// cross products of the edges
+		for ( int i = 0; i < 3; ++i )
+		{
+			Arrays.fill( unit, 0 );
+			unit[ i ] = 1;
+
+			for ( int k = 0; k < 3; ++k )
+			{
+				LinAlgHelpers.cross( unit, halfAxes[ k ], axis );
+
+				if ( separates( axis, center, halfAxes, aHalf ) )
+					return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean separates( final double[] axis, final double[] centerDistance, final double[][] halfAxes, final double[] aHalf )
+	{
+		// degenerate axis (parallel edges), covered by the other axes
+		if ( LinAlgHelpers.squareLength( axis ) < 1e-12 )
+			return false;
+
+		double r = 0;
+
+		for ( int k = 0; k < 3; ++k )
+			r += Math.abs( LinAlgHelpers.dot( halfAxes[ k ], axis ) ) + aHalf[ k ] * Math.abs( axis[ k ] );
+
+		return Math.abs( LinAlgHelpers.dot( centerDistance, axis ) ) > r;
+	}
+
 	/**
 	 * Callable that reads one pixel from a {@link RandomAccessible}, for
 	 * prefetching. In a cached `CellImg`, this will trigger the loading of the
@@ -343,10 +440,21 @@ public class ViewUtil
 
 		private final long[] pos;
 
-		PrefetchPixel( final RandomAccessible< T > img, final long[] pos )
+		private final long estimatedBytes;
+
+		PrefetchPixel( final RandomAccessible< T > img, final long[] pos, final long estimatedBytes )
 		{
 			this.pos = pos;
 			this.img = img;
+			this.estimatedBytes = estimatedBytes;
+		}
+
+		/**
+		 * @return the estimated size of the data (usually the cell) that is loaded by this callable
+		 */
+		public long estimatedBytes()
+		{
+			return estimatedBytes;
 		}
 
 		@Override
@@ -0,0 +1,235 @@
+package net.preibisch.bigstitcher.spark;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.janelia.saalfeldlab.n5.FileSystemKeyValueAccess;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.KeyValueAccess;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5KeyValueReader;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import com.google.gson.GsonBuilder;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import net.preibisch.bigstitcher.spark.util.DiskChunkCache;
+
+/**
+ * Tests the node-local input chunk cache without any cloud storage: a local N5 container read through a
+ * KeyValueAccess that counts the chunk reads stands in for S3. Two cache instances on the same directory stand in
+ * for two executor JVMs on one node, a third one with a small size cap tests the eviction, and a cache of a later
+ * run (generation) must not return chunks of a dataset that was rewritten at the same path.
+ */
+public class TestDiskChunkCache
+{
+	public static final void main( final String... args ) throws IOException, InterruptedException
+	{
+		final Path tmp = Files.createTempDirectory( "chunkcache" );
+		final Path remoteDir = tmp.resolve( "remote.n5" );
+
+		// 4x4x2 chunks of random data that does not compress well
+		final ArrayImg< UnsignedShortType, ShortArray > img = ArrayImgs.unsignedShorts( 256, 256, 128 );
+		final Random rnd = new Random( 42 );
+		img.forEach( t -> t.set( rnd.nextInt( 65536 ) ) );
+		final long sum = sum( img );
+
+		try ( final N5FSWriter writer = new N5FSWriter( remoteDir.toString() ) )
+		{
+			N5Utils.save( img, writer, "img", new int[] { 64, 64, 64 }, new GzipCompression() );
+		}
+
+		final long numChunks = 4 * 4 * 2;
+
+		// the S3 stand-in
+		final KeyValueAccess fs = new FileSystemKeyValueAccess( FileSystems.getDefault() );
+		final AtomicLong remoteReads = new AtomicLong();
+		final KeyValueAccess remote = (KeyValueAccess)Proxy.newProxyInstance(
+				KeyValueAccess.class.getClassLoader(),
+				new Class< ? >[] { KeyValueAccess.class },
+				( proxy, method, methodArgs ) ->
+				{
+					if ( method.getName().equals( "lockForReading" ) && !( (String)methodArgs[ 0 ] ).endsWith( ".json" ) )
+						remoteReads.incrementAndGet();
+
+					try
+					{
+						return method.invoke( fs, methodArgs );
+					}
+					catch ( final InvocationTargetException e )
+					{
+						throw e.getCause();
+					}
+				} );
+
+		// first executor JVM downloads every chunk once
+		final Path cacheDir = tmp.resolve( "cache" );
+		final DiskChunkCache cacheA = new DiskChunkCache( cacheDir, 1024L * 1024 * 1024, "run1" );
+
+		check( "executor A reads the correct data", sum( read( cacheA, remote, remoteDir ) ) == sum );
+		check( "executor A downloads each chunk once (" + remoteReads.get() + ")", remoteReads.get() == numChunks );
+		check( "executor A misses each chunk once (" + cacheA.misses() + ")", cacheA.misses() == numChunks );
+
+		// second executor JVM on the same node finds all chunks on disk
+		remoteReads.set( 0 );
+		final DiskChunkCache cacheB = new DiskChunkCache( cacheDir, 1024L * 1024 * 1024, "run1" );
+
+		check( "executor B reads the correct data", sum( read( cacheB, remote, remoteDir ) ) == sum );
+		check( "executor B downloads nothing (" + remoteReads.get() + ")", remoteReads.get() == 0 );
+		check( "executor B hits each chunk (" + cacheB.hits() + ")", cacheB.hits() == numChunks );
+
+		// a cache that holds about a quarter of the chunks
+		final long cacheSize = size( cacheDir );
+		final long maxBytes = cacheSize / 4;
+		final Path smallDir = tmp.resolve( "small" );
+		final DiskChunkCache cacheC = new DiskChunkCache( smallDir, maxBytes, "run1" );
+
+		check( "executor C reads the correct data", sum( read( cacheC, remote, remoteDir ) ) == sum );
+		cacheC.sweep();
+		check( "executor C stays below its size cap (" + size( smallDir ) + " <= " + maxBytes + ")", size( smallDir ) <= maxBytes );
+
+		// two executor JVMs on a node keep adding chunks to a small cache while both sweep it
+		final Path concurrentDir = tmp.resolve( "concurrent" );
+		final DiskChunkCache cacheD = new DiskChunkCache( concurrentDir, 1024 * 1024, "run1" );
+		final DiskChunkCache cacheE = new DiskChunkCache( concurrentDir, 1024 * 1024, "run1" );
+		final AtomicReference< Throwable > failure = new AtomicReference<>();
+		final ArrayList< Thread > writers = new ArrayList<>();
+
+		for ( int t = 0; t < 4; ++t )
+		{
+			final DiskChunkCache cache = t % 2 == 0 ? cacheD : cacheE;
+			final int thread = t;
+
+			writers.add( new Thread( () ->
+			{
+				try
+				{
+					for ( int i = 0; i < 200 && failure.get() == null; ++i )
+					{
+						final String key = "remote.n5/chunks/" + thread + "/" + i;
+
+						// loaded the first time, evicted or not the second time
+						for ( int r = 0; r < 2; ++r )
+							if ( !Arrays.equals( cache.get( key, () -> chunk( key ) ), chunk( key ) ) )
+								throw new RuntimeException( "wrong data for " + key );
+					}
+				}
+				catch ( final Throwable e )
+				{
+					failure.compareAndSet( null, e );
+				}
+			}) );
+		}
+
+		writers.forEach( Thread::start );
+
+		int sweeps = 0;
+		while ( writers.stream().anyMatch( Thread::isAlive ) )
+		{
+			cacheD.sweep();
+			cacheE.sweep();
+			++sweeps;
+		}
+
+		for ( final Thread writer : writers )
+			writer.join();
+
+		check( "concurrent writers never fail while sweeping (" + sweeps + " sweeps): " + failure.get(), failure.get() == null );
+		cacheD.sweep();
+		check( "concurrent writers stay below the size cap (" + size( concurrentDir ) + " <= " + 1024 * 1024 + ")", size( concurrentDir ) <= 1024 * 1024 );
+
+		// the dataset is rewritten at the same path, the next run reads the new data
+		final Random rnd2 = new Random( 43 );
+		img.forEach( t -> t.set( rnd2.nextInt( 65536 ) ) );
+		final long sum2 = sum( img );
+
+		try ( final N5FSWriter writer = new N5FSWriter( remoteDir.toString() ) )
+		{
+			N5Utils.save( img, writer, "img", new int[] { 64, 64, 64 }, new GzipCompression() );
+		}
+
+		remoteReads.set( 0 );
+		final DiskChunkCache cacheF = new DiskChunkCache( cacheDir, 1024L * 1024 * 1024, "run2" );
+
+		check( "a later run reads the rewritten data", sum2 != sum && sum( read( cacheF, remote, remoteDir ) ) == sum2 );
+		check( "a later run downloads each rewritten chunk once (" + remoteReads.get() + ")", remoteReads.get() == numChunks );
+		check( "a later run does not hit chunks of the earlier run (" + cacheF.hits() + ")", cacheF.hits() == 0 );
+
+		System.out.println( "Cache of all " + numChunks + " chunks: " + cacheSize / 1024 + " kB in " + cacheDir );
+		System.out.println( "All tests passed." );
+	}
+
+	protected static RandomAccessibleInterval< UnsignedShortType > read( final DiskChunkCache cache, final KeyValueAccess remote, final Path container )
+	{
+		return N5Utils.open( new N5KeyValueReader( cache.wrap( remote ), container.toString(), new GsonBuilder(), true ), "img" );
+	}
+
+	protected static byte[] chunk( final String key )
+	{
+		final byte[] bytes = new byte[ 16 * 1024 ];
+		new Random( key.hashCode() ).nextBytes( bytes );
+
+		return bytes;
+	}
+
+	protected static long sum( final RandomAccessibleInterval< UnsignedShortType > img )
+	{
+		long sum = 0;
+
+		for ( final UnsignedShortType t : Views.iterable( img ) )
+			sum += t.get();
+
+		return sum;
+	}
+
+	protected static long size( final Path dir ) throws IOException
+	{
+		final AtomicLong size = new AtomicLong();
+
+		// background sweeps might still delete files
+		Files.walkFileTree( dir, new SimpleFileVisitor< Path >()
+		{
+			@Override
+			public FileVisitResult visitFile( final Path path, final BasicFileAttributes a )
+			{
+				if ( a.isRegularFile() && !path.getFileName().toString().startsWith( "." ) )
+					size.addAndGet( a.size() );
+
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed( final Path path, final IOException e )
+			{
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		return size.get();
+	}
+
+	protected static void check( final String test, final boolean passed )
+	{
+		System.out.println( ( passed ? "PASSED: " : "FAILED: " ) + test );
+
+		if ( !passed )
+			throw new RuntimeException( "Test failed: " + test );
+	}
+}
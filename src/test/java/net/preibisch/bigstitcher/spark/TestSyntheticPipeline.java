@@ -0,0 +1,99 @@
+package net.preibisch.bigstitcher.spark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import picocli.CommandLine;
+
+/**
+ * End-to-end performance test that does not need any cloud dataset: generates a synthetic project and runs
+ * resave, detection, matching, solve, create-fusion-container and affine fusion on it in local[N] mode,
+ * then prints the time taken by each stage. The Spark stages write their run reports (report-stage.json) into the same folder.
+ *
+ * Arguments (all optional): number of Spark threads (default: all cores), tiles (default: 3,3,1), tile size (default: 512,512,128)
+ */
+public class TestSyntheticPipeline
+{
+	public static Map< String, Long > runPipeline( final String dir, final String tiles, final String tileSize )
+	{
+		final String rawXml = dir + File.separator + "synthetic-raw.xml";
+		final String xml = dir + File.separator + "synthetic.xml";
+		final String fused = dir + File.separator + "fused.ome.zarr";
+
+		final Map< String, Long > timings = new LinkedHashMap<>();
+
+		run( timings, "generate", new SparkGenerateSyntheticDataset(),
+				"-xo", rawXml, "--N5", "--tiles", tiles, "--tileSize", tileSize, "--rotation", "1.0", "--jitter", "10.0", "--runReport", report( dir, "generate" ) );
+
+		run( timings, "resave", new SparkResaveN5(),
+				"-x", rawXml, "-xo", xml, "--runReport", report( dir, "resave" ) );
+
+		run( timings, "detect-interestpoints", new SparkInterestPointDetection(),
+				"-x", xml, "-l", "beads", "-s", "1.8", "-t", "0.008", "-i0", "0", "-i1", "2048", "--runReport", report( dir, "detect-interestpoints" ) );
+
+		run( timings, "match-interestpoints", new SparkGeometricDescriptorMatching(),
+				"-x", xml, "-l", "beads", "-m", "FAST_ROTATION", "--clearCorrespondences", "--runReport", report( dir, "match-interestpoints" ) );
+
+		run( timings, "solver", new Solver(),
+				"-x", xml, "-s", "IP", "-l", "beads" );
+
+		run( timings, "create-fusion-container", new CreateFusionContainer(),
+				"-x", xml, "-o", fused, "-d", "UINT16", "--multiRes" );
+
+		run( timings, "affine-fusion", new SparkAffineFusion(),
+				"-o", fused, "--runReport", report( dir, "affine-fusion" ) );
+
+		return timings;
+	}
+
+	protected static String report( final String dir, final String stage )
+	{
+		return dir + File.separator + "report-" + stage + ".json";
+	}
+
+	protected static void run( final Map< String, Long > timings, final String stage, final Callable< Void > cmd, final String... args )
+	{
+		System.out.println( "Running stage '" + stage + "' ..." );
+
+		final long time = System.currentTimeMillis();
+		final int exitCode = new CommandLine( cmd ).execute( args );
+
+		if ( exitCode != 0 )
+			throw new RuntimeException( "Stage '" + stage + "' failed with exit code " + exitCode + "." );
+
+		timings.put( stage, System.currentTimeMillis() - time );
+
+		System.out.println( "Stage '" + stage + "' took " + timings.get( stage ) + " ms." );
+	}
+
+	public static final void main( final String... args ) throws Exception
+	{
+		final int numThreads = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : Runtime.getRuntime().availableProcessors();
+		final String tiles = args.length > 1 ? args[ 1 ] : "3,3,1";
+		final String tileSize = args.length > 2 ? args[ 2 ] : "512,512,128";
+
+		// all stages create their SparkConf from the system properties
+		System.setProperty( "spark.master", "local[" + numThreads + "]" );
+
+		final Path tmp = Files.createTempDirectory( "synthetic" );
+		System.out.println( "Running the pipeline in " + tmp + " with local[" + numThreads + "]" );
+
+		final Map< String, Long > timings = runPipeline( tmp.toString(), tiles, tileSize );
+
+		System.out.println();
+		System.out.println( "Stage timings (tiles=" + tiles + ", tileSize=" + tileSize + ", local[" + numThreads + "]):" );
+
+		long total = 0;
+		for ( final Map.Entry< String, Long > e : timings.entrySet() )
+		{
+			System.out.println( String.format( "%-25s %10d ms", e.getKey(), e.getValue() ) );
+			total += e.getValue();
+		}
+
+		System.out.println( String.format( "%-25s %10d ms", "total", total ) );
+	}
+}